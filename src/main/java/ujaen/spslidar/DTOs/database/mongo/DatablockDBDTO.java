@@ -34,6 +34,13 @@ public class DatablockDBDTO {
     @NotNull
     private int depth;
 
+    //Flat copy of the 2D limits of the bounding box, indexed to resolve region queries with a single range query
+    private String zone;
+    private double minEasting;
+    private double minNorthing;
+    private double maxEasting;
+    private double maxNorthing;
+
 
     public DatablockDBDTO(AbstractDatablock datablock, String datasetName, ObjectId gridFileId) {
 
@@ -45,6 +52,11 @@ public class DatablockDBDTO {
         this.cell = datablock.getUTMZoneLocalGrid();
         this.gridFileId = gridFileId;
         this.depth = datablock.getDepth();
+        this.zone = datablock.getGeorefBox().getSouthWestBottom().getZone();
+        this.minEasting = datablock.getGeorefBox().getSouthWestBottom().getEasting();
+        this.minNorthing = datablock.getGeorefBox().getSouthWestBottom().getNorthing();
+        this.maxEasting = datablock.getGeorefBox().getNorthEastTop().getEasting();
+        this.maxNorthing = datablock.getGeorefBox().getNorthEastTop().getNorthing();
 
     }
 
@@ -0,0 +1,99 @@
+package ujaen.spslidar.DTOs.database.mongo;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.UTMCoord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact layout (version 2) of the datablock documents. Compared to DatablockDBDTO, the zone is stored once,
+ * the bounds are a fixed array of six doubles (min easting, northing, height and max easting, northing, height)
+ * and the grid cell is a string key, so documents are smaller and are decoded without going through the
+ * mapping of the nested GeorefBox and UTMCoord documents.
+ * Documents stored with the previous layout don't have the version field.
+ */
+public final class DatablockDocument {
+
+    public static final int VERSION = 2;
+
+    public static final String VERSION_FIELD = "v";
+    public static final String DATASET_FIELD = "datasetName";
+    public static final String NODE_FIELD = "node";
+    public static final String DEPTH_FIELD = "depth";
+    public static final String ZONE_FIELD = "zone";
+    public static final String CELL_FIELD = "cell";
+    public static final String BOUNDS_FIELD = "bounds";
+    public static final String POINTS_FIELD = "numberOfPoints";
+    public static final String CHILDREN_FIELD = "children";
+    public static final String FILE_FIELD = "gridFileId";
+
+    private DatablockDocument() {
+    }
+
+    public static Document encode(AbstractDatablock datablock, String datasetName, ObjectId gridFileId) {
+        GeorefBox bbox = datablock.getGeorefBox();
+        List<Double> bounds = List.of(
+                bbox.getSouthWestBottom().getEasting(), bbox.getSouthWestBottom().getNorthing(), bbox.getSouthWestBottom().getHeight(),
+                bbox.getNorthEastTop().getEasting(), bbox.getNorthEastTop().getNorthing(), bbox.getNorthEastTop().getHeight());
+
+        return new Document(VERSION_FIELD, VERSION)
+                .append(DATASET_FIELD, datasetName)
+                .append(NODE_FIELD, datablock.getId())
+                .append(DEPTH_FIELD, datablock.getDepth())
+                .append(ZONE_FIELD, bbox.getSouthWestBottom().getZone())
+                .append(CELL_FIELD, cellKey(datablock.getUTMZoneLocalGrid()))
+                .append(BOUNDS_FIELD, bounds)
+                .append(POINTS_FIELD, datablock.getNumberOfPoints())
+                .append(CHILDREN_FIELD, datablock.getChildren())
+                .append(FILE_FIELD, gridFileId);
+    }
+
+    public static Datablock decode(Document document) {
+        String zone = document.getString(ZONE_FIELD);
+        List<?> bounds = document.get(BOUNDS_FIELD, List.class);
+
+        Datablock datablock = new Datablock();
+        datablock.setId(document.getInteger(NODE_FIELD));
+        datablock.setDepth(document.getInteger(DEPTH_FIELD));
+        datablock.setNumberOfPoints(((Number) document.get(POINTS_FIELD)).longValue());
+        datablock.setGeorefBox(new GeorefBox(
+                new UTMCoord(bound(bounds, 0), bound(bounds, 1), zone, bound(bounds, 2)),
+                new UTMCoord(bound(bounds, 3), bound(bounds, 4), zone, bound(bounds, 5))));
+        datablock.setUTMZoneLocalGrid(cellFromKey(document.getString(CELL_FIELD), zone));
+        datablock.setChildren(new ArrayList<>(document.getList(CHILDREN_FIELD, Integer.class, List.of())));
+        datablock.setObjectId(document.getObjectId(FILE_FIELD));
+        return datablock;
+    }
+
+    public static boolean isCurrentVersion(Document document) {
+        return document.getInteger(VERSION_FIELD, 1) == VERSION;
+    }
+
+    /**
+     * Key of a grid cell. Grid cells are 2D boxes of a single zone, so only their limits are kept
+     *
+     * @param cell
+     * @return
+     */
+    public static String cellKey(GeorefBox cell) {
+        return cell.getSouthWestBottom().getEasting() + "," + cell.getSouthWestBottom().getNorthing() + ","
+                + cell.getNorthEastTop().getEasting() + "," + cell.getNorthEastTop().getNorthing();
+    }
+
+    private static GeorefBox cellFromKey(String key, String zone) {
+        String[] limits = key.split(",");
+        return new GeorefBox(
+                UTMCoord.builder().easting(Double.parseDouble(limits[0])).northing(Double.parseDouble(limits[1])).zone(zone).build(),
+                UTMCoord.builder().easting(Double.parseDouble(limits[2])).northing(Double.parseDouble(limits[3])).zone(zone).build());
+    }
+
+    private static double bound(List<?> bounds, int index) {
+        return ((Number) bounds.get(index)).doubleValue();
+    }
+
+}
@@ -3,6 +3,7 @@ package ujaen.spslidar.DTOs.database.mongo;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
 import org.springframework.format.annotation.DateTimeFormat;
 import ujaen.spslidar.entities.Dataset;
@@ -37,6 +38,10 @@ public class DatasetDBDTO {
     @NotNull
     private Dataset.State dataAssociated = Dataset.State.NO_DATA;
 
+    private Map<String, ObjectId> copcFiles = new HashMap<>();
+
+    private ObjectId completeFile;
+
 
     public DatasetDBDTO(Dataset dataset) {
         this.datasetName = dataset.getDatasetName();
@@ -47,11 +52,17 @@ public class DatasetDBDTO {
         this.dataBlockFormat = dataset.getDataBlockFormat();
         this.gridsAssociated = dataset.getRootDatablocks();
         this.dataAssociated = dataset.getDataAssociated();
+        this.copcFiles = dataset.getCopcFiles();
+        this.completeFile = dataset.getCompleteFile();
     }
 
     public Dataset datasetFromDTO() {
-        return new Dataset(datasetName, description, date, bbox,
+        Dataset dataset = new Dataset(datasetName, description, date, bbox,
                 dataBlockSize, dataBlockFormat, gridsAssociated, dataAssociated);
+        if (copcFiles != null)
+            dataset.setCopcFiles(copcFiles);
+        dataset.setCompleteFile(completeFile);
+        return dataset;
 
     }
 
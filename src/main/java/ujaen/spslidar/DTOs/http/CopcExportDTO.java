@@ -0,0 +1,21 @@
+package ujaen.spslidar.DTOs.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CopcExportDTO {
+
+    String state;
+    Date started;
+    int cells;
+    int exportedCells;
+    List<String> files;
+
+}
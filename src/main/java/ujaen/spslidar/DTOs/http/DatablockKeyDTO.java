@@ -0,0 +1,20 @@
+package ujaen.spslidar.DTOs.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Identifies a datablock of a dataset: the node and the coordinates of the grid cell of its octree,
+ * in the same format as the queries of a single datablock
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DatablockKeyDTO {
+
+    int id;
+    String southWest;
+    String northEast;
+
+}
@@ -0,0 +1,24 @@
+package ujaen.spslidar.DTOs.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.LocalDateTime;
+
+/**
+ * Datablock found by a region query over a workspace, tagged with the dataset it belongs to and the date
+ * on which the dataset was acquired
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DatasetDatablockDTO {
+
+    String dataset;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    LocalDateTime dateOfAcquisition;
+    DatablockDTO datablock;
+
+}
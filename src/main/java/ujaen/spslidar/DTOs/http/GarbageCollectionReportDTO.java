@@ -0,0 +1,20 @@
+package ujaen.spslidar.DTOs.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class GarbageCollectionReportDTO {
+
+    Date date;
+    long files;
+    long fileBytes;
+    long directories;
+    long directoryBytes;
+
+}
@@ -0,0 +1,19 @@
+package ujaen.spslidar.DTOs.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IndexUsageDTO {
+
+    String collection;
+    String index;
+    long operations;
+    Date since;
+
+}
@@ -0,0 +1,21 @@
+package ujaen.spslidar.DTOs.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PayloadCacheStatsDTO {
+
+    String workspace;
+    String dataset;
+    long entries;
+    long bytes;
+    long hits;
+    long misses;
+    long evictions;
+    double hitRatio;
+
+}
@@ -0,0 +1,19 @@
+package ujaen.spslidar.DTOs.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ujaen.spslidar.entities.GeorefBox;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PotreeCellDTO {
+
+    int cell;
+    GeorefBox box;
+    long points;
+    int depth;
+    String metadata;
+
+}
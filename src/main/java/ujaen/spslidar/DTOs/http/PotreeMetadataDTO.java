@@ -0,0 +1,67 @@
+package ujaen.spslidar.DTOs.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Content of the metadata.json file of a Potree 2.0 point cloud
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PotreeMetadataDTO {
+
+    String version;
+    String name;
+    String description;
+    long points;
+    String projection;
+    Hierarchy hierarchy;
+    double[] offset;
+    double[] scale;
+    double spacing;
+    BoundingBox boundingBox;
+    String encoding;
+    List<Attribute> attributes;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Hierarchy {
+
+        long firstChunkSize;
+        int stepSize;
+        int depth;
+
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class BoundingBox {
+
+        double[] min;
+        double[] max;
+
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Attribute {
+
+        String name;
+        String description;
+        int size;
+        int numElements;
+        int elementSize;
+        String type;
+        double[] min;
+        double[] max;
+
+    }
+
+}
@@ -0,0 +1,14 @@
+package ujaen.spslidar.Exceptions;
+
+import lombok.Getter;
+
+public class BatchTooLargeException extends RuntimeException {
+
+    @Getter
+    private static String msg = "The batch requests more datablocks than allowed (256)";
+
+    public BatchTooLargeException() {
+        super(msg);
+    }
+
+}
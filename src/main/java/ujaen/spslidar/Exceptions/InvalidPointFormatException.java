@@ -0,0 +1,14 @@
+package ujaen.spslidar.Exceptions;
+
+import lombok.Getter;
+
+public class InvalidPointFormatException extends RuntimeException {
+
+    @Getter
+    private static String msg = "The requested format or attributes of the points are not supported";
+
+    public InvalidPointFormatException() {
+        super(msg);
+    }
+
+}
@@ -8,15 +8,21 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import ujaen.spslidar.utils.properties.CacheProperties;
 import ujaen.spslidar.utils.properties.FileStorageProperties;
+import ujaen.spslidar.utils.properties.GarbageCollectionProperties;
 import ujaen.spslidar.utils.properties.LasToolsProperties;
 import ujaen.spslidar.utils.properties.OctreeProperties;
+import ujaen.spslidar.utils.properties.PrefetchProperties;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 
 @SpringBootApplication
-@EnableConfigurationProperties({FileStorageProperties.class, LasToolsProperties.class, OctreeProperties.class})
+@EnableConfigurationProperties({FileStorageProperties.class, LasToolsProperties.class, OctreeProperties.class, CacheProperties.class,
+        GarbageCollectionProperties.class, PrefetchProperties.class})
+@EnableScheduling
 public class SpslidarApplication {
 
     public static void main(String[] args) {
@@ -1,12 +1,21 @@
 package ujaen.spslidar.controllers;
 
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.mongodb.core.ReactiveMongoOperations;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import ujaen.spslidar.DTOs.http.GarbageCollectionReportDTO;
+import ujaen.spslidar.DTOs.http.IndexUsageDTO;
+import ujaen.spslidar.DTOs.http.PayloadCacheStatsDTO;
+import ujaen.spslidar.repositories.IndexManagerInterface;
 import ujaen.spslidar.repositories.PerformanceStatsServiceInterface;
 import ujaen.spslidar.repositories.SchemaManagerInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+import ujaen.spslidar.services.core.cache.PayloadCache;
+import ujaen.spslidar.services.tools.StorageGarbageCollector;
 import ujaen.spslidar.utils.properties.OctreeProperties;
 
 /**
@@ -20,12 +29,20 @@ public class AdminController {
     final PerformanceStatsServiceInterface performanceStatsServiceInterface;
     final OctreeProperties octreeProperties;
     final SchemaManagerInterface schemaManager;
+    final IndexManagerInterface indexManager;
+    final ApplicationEventPublisher eventPublisher;
+    final StorageGarbageCollector storageGarbageCollector;
+    final PayloadCache payloadCache;
 
-    public AdminController(ReactiveMongoOperations operations, PerformanceStatsServiceInterface performanceStatsServiceInterface, OctreeProperties octreeProperties, SchemaManagerInterface schemaManager) {
+    public AdminController(ReactiveMongoOperations operations, PerformanceStatsServiceInterface performanceStatsServiceInterface, OctreeProperties octreeProperties, SchemaManagerInterface schemaManager, IndexManagerInterface indexManager, ApplicationEventPublisher eventPublisher, StorageGarbageCollector storageGarbageCollector, PayloadCache payloadCache) {
         this.operations = operations;
         this.performanceStatsServiceInterface = performanceStatsServiceInterface;
         this.octreeProperties = octreeProperties;
         this.schemaManager = schemaManager;
+        this.indexManager = indexManager;
+        this.eventPublisher = eventPublisher;
+        this.storageGarbageCollector = storageGarbageCollector;
+        this.payloadCache = payloadCache;
     }
 
     /**
@@ -37,6 +54,7 @@ public class AdminController {
 
         return schemaManager.dropSchema()
                 .then(schemaManager.buildSchema())
+                .doOnSuccess(unused -> eventPublisher.publishEvent(DatasetChangedEvent.all()))
                 .thenReturn(ResponseEntity.ok("Reseting database"));
     }
 
@@ -83,6 +101,49 @@ public class AdminController {
     }
 
 
+    /**
+     * Returns the number of operations that have used each index of the collections of a workspace
+     * @param workspace_name
+     * @return
+     */
+    @GetMapping("/workspaces/{workspace_name}/indexes")
+    public Flux<IndexUsageDTO> getIndexUsage(@PathVariable String workspace_name) {
+        return indexManager.getIndexUsage(workspace_name);
+    }
+
+
+    /**
+     * Returns the storage reclaimed by the last sweep of the garbage collector
+     * @return
+     */
+    @GetMapping("storage/gc")
+    public Mono<ResponseEntity<GarbageCollectionReportDTO>> getGarbageCollectionReport() {
+        return storageGarbageCollector.getLastReport()
+                .map(ResponseEntity::ok)
+                .defaultIfEmpty(ResponseEntity.noContent().build());
+    }
+
+    /**
+     * Runs a sweep of the garbage collector and returns the storage reclaimed
+     * @return
+     */
+    @PostMapping("storage/gc")
+    public Mono<ResponseEntity<GarbageCollectionReportDTO>> runGarbageCollection() {
+        return storageGarbageCollector.sweep()
+                .map(ResponseEntity::ok)
+                .defaultIfEmpty(ResponseEntity.status(HttpStatus.CONFLICT).build());
+    }
+
+    /**
+     * Returns the hits, misses and evictions of the cache of datablock files for each dataset
+     * @return
+     */
+    @GetMapping("cache/payloads")
+    public Flux<PayloadCacheStatsDTO> getPayloadCacheStats() {
+        return Flux.fromIterable(payloadCache.getStats());
+    }
+
+
     /**
      * Updates the value of maximum depth for the octree
      * @param size
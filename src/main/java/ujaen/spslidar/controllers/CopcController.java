@@ -0,0 +1,89 @@
+package ujaen.spslidar.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.DTOs.http.CopcExportDTO;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.services.core.copc.CopcExportService;
+
+/**
+ * Controller class that exports the octrees of the datasets as Cloud Optimized Point Cloud (COPC) files, one for
+ * each grid cell, and serves them with byte ranges so COPC readers can load them directly.
+ */
+@RestController
+@RequestMapping("/spslidar/workspaces/")
+public class CopcController {
+
+    private final CopcExportService copcExportService;
+    private final FileRepositoryInterface fileRepositoryInterface;
+
+    Logger logger = LoggerFactory.getLogger(CopcController.class);
+
+    public CopcController(CopcExportService copcExportService, FileRepositoryInterface fileRepositoryInterface) {
+        this.copcExportService = copcExportService;
+        this.fileRepositoryInterface = fileRepositoryInterface;
+    }
+
+    /**
+     * Start the export of a dataset to COPC files. The export runs in the background, its progress is
+     * returned by the GET of the same url.
+     *
+     * @param workspace_name name of the workspace
+     * @param dataset_name   name of the dataset
+     * @return The state of the export. If the dataset has no data, or its octrees are being built, an error
+     * handler will manage the request.
+     */
+    @PostMapping(value = "{workspace_name}/datasets/{dataset_name}/copc")
+    @ResponseStatus(code = HttpStatus.ACCEPTED)
+    public Mono<CopcExportDTO> startCopcExport(@PathVariable String workspace_name,
+                                               @PathVariable String dataset_name) {
+
+        logger.info("startCopcExport invoked");
+
+        return copcExportService.startExport(workspace_name, dataset_name);
+    }
+
+    /**
+     * Retrieve the state of the last export of a dataset and the relative urls of its COPC files
+     *
+     * @param workspace_name name of the workspace
+     * @param dataset_name   name of the dataset
+     * @return The state of the export
+     */
+    @GetMapping(value = "{workspace_name}/datasets/{dataset_name}/copc")
+    public Mono<CopcExportDTO> getCopcExport(@PathVariable String workspace_name,
+                                             @PathVariable String dataset_name) {
+
+        logger.info("getCopcExport invoked");
+
+        return copcExportService.getExport(workspace_name, dataset_name);
+    }
+
+    @GetMapping(value = "{workspace_name}/datasets/{dataset_name}/copc/{cell}.copc.laz")
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getCopcFile(@PathVariable String workspace_name,
+                                                              @PathVariable String dataset_name,
+                                                              @PathVariable int cell,
+                                                              ServerHttpRequest request) {
+
+        logger.info("getCopcFile invoked");
+
+        return copcExportService.getCopcFile(workspace_name, dataset_name, cell)
+                .map(file -> FileResponses.storedFile(file,
+                        fileRepositoryInterface.getFile(file.getObjectId()),
+                        (start, end) -> fileRepositoryInterface.getFile(file, start, end),
+                        request.getHeaders()));
+    }
+
+}
@@ -9,18 +9,30 @@ package ujaen.spslidar.controllers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ujaen.spslidar.DTOs.http.DatablockDTO;
+import ujaen.spslidar.DTOs.http.DatablockKeyDTO;
+import ujaen.spslidar.DTOs.http.DatasetDatablockDTO;
 import ujaen.spslidar.Exceptions.*;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
 import ujaen.spslidar.services.core.DatablockService;
 import ujaen.spslidar.services.core.DatablockServiceCommonUtils;
 import ujaen.spslidar.services.core.DatasetService;
+import ujaen.spslidar.services.core.LevelOfDetail;
+import ujaen.spslidar.services.core.PointFormat;
+import ujaen.spslidar.services.core.complete.CompleteDatasetService;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * Controller class to manage the requests associated to the Datablock entity
@@ -32,6 +44,8 @@ public class DatablockController {
     private final DatablockService datablockService;
     private final DatablockServiceCommonUtils datablockServiceCommonUtils;
     private final DatasetService datasetService;
+    private final CompleteDatasetService completeDatasetService;
+    private final FileRepositoryInterface fileRepositoryInterface;
     private final String messageAddedData = "Added dataset";
 
 
@@ -39,10 +53,14 @@ public class DatablockController {
 
     public DatablockController(DatablockService datablockService,
                                DatablockServiceCommonUtils datablockServiceCommonUtils,
-                               DatasetService datasetService) {
+                               DatasetService datasetService,
+                               CompleteDatasetService completeDatasetService,
+                               FileRepositoryInterface fileRepositoryInterface) {
         this.datablockService = datablockService;
         this.datablockServiceCommonUtils = datablockServiceCommonUtils;
         this.datasetService = datasetService;
+        this.completeDatasetService = completeDatasetService;
+        this.fileRepositoryInterface = fileRepositoryInterface;
     }
 
 
@@ -83,33 +101,73 @@ public class DatablockController {
      * @param datablock_id   id of the datablock
      * @param sw_coord       south west coordinate of the geoquery
      * @param ne_coord       north east coordinate of the geoquery
+     * @param format         las to get the stored file, bin to get the points in the binary format
+     * @param attrs          attributes of the binary format: rgb, intensity and classification, separated by commas
+     * @param position_bits  bits of the positions of the binary format, 16 or 32
      * @return If the operation is successful, will return the data of the point associated to the datablock.
      * If no workspace, dataset or datablock was found, an error handler will manage the request.
      */
-    @ResponseStatus(code = HttpStatus.OK)
     @GetMapping(value = "{workspace_name}/datasets/{dataset_name}/datablocks/{datablock_id}/data")
-    public Flux<DataBuffer> getDatablockData(@PathVariable String workspace_name,
-                                             @PathVariable String dataset_name,
-                                             @PathVariable int datablock_id,
-                                             @RequestParam String sw_coord,
-                                             @RequestParam String ne_coord) {
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getDatablockData(@PathVariable String workspace_name,
+                                                                   @PathVariable String dataset_name,
+                                                                   @PathVariable int datablock_id,
+                                                                   @RequestParam String sw_coord,
+                                                                   @RequestParam String ne_coord,
+                                                                   @RequestParam(defaultValue = "las") String format,
+                                                                   @RequestParam(required = false) String attrs,
+                                                                   @RequestParam(required = false) Integer position_bits,
+                                                                   ServerHttpRequest request) {
 
         logger.info("getDatablockData invoked");
 
-        return datablockServiceCommonUtils.dataBlockExists(workspace_name, dataset_name, datablock_id, sw_coord, ne_coord)
-                .flatMapMany(aBoolean -> {
-                    if (!aBoolean)
-                        return Mono.error(ElementNotFound::new);
-                    else
-                        return datablockService
-                                .getDatablockFile(workspace_name, dataset_name, datablock_id, sw_coord, ne_coord)
-                                .doOnComplete(() -> {
-                                    logger.info("Served file: " + workspace_name + "_" + dataset_name + "_" + datablock_id);
-                                });
+        PointFormat pointFormat = PointFormat.parse(format, attrs, position_bits);
+        if (pointFormat.isBinary())
+            return Mono.just(ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .body(datablockServiceCommonUtils.getDatablockPoints(workspace_name, dataset_name, datablock_id,
+                            sw_coord, ne_coord, pointFormat)));
+
+        return datablockServiceCommonUtils.findDatablockFile(workspace_name, dataset_name, datablock_id, sw_coord, ne_coord)
+                .map(datablockFile -> {
+                    Flux<DataBuffer> content = datablockFile.getContent()
+                            .doOnComplete(() -> {
+                                logger.info("Served file: " + workspace_name + "_" + dataset_name + "_" + datablock_id);
+                            });
+                    if (datablockFile.getFile() == null)
+                        return ResponseEntity.ok().body(content);
+
+                    return FileResponses.storedFile(datablockFile.getFile(), content,
+                            (start, end) -> datablockServiceCommonUtils.getDatablockFileRange(datablockFile.getFile(), start, end),
+                            request.getHeaders());
                 });
 
     }
 
+    /**
+     * Retrieve the data of several datablocks of a dataset in a single response
+     *
+     * @param workspace_name name of the workspace
+     * @param dataset_name   name of the dataset
+     * @param keys           node and grid cell coordinates of every datablock requested, at most 256
+     * @return Stream with a part for every key, in the order in which they are read. Each part starts with the
+     * index of the key in the request (4 bytes) and the length of the file (8 bytes), both little-endian, followed
+     * by the file. Datablocks that don't exist have length -1 and no file.
+     * If there are too many keys, or no workspace or dataset was found, an error handler will manage the request.
+     */
+    @PostMapping(value = "{workspace_name}/datasets/{dataset_name}/datablocks/batch",
+            consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Flux<DataBuffer> getDatablocksData(@PathVariable String workspace_name,
+                                              @PathVariable String dataset_name,
+                                              @RequestBody List<DatablockKeyDTO> keys) {
+
+        logger.info("getDatablocksData invoked");
+
+        return datasetService.datasetExists(workspace_name, dataset_name)
+                .flatMapMany(exists -> exists
+                        ? datablockServiceCommonUtils.getDatablockFiles(workspace_name, dataset_name, keys)
+                        : Mono.error(new ElementNotFound()));
+    }
+
 
     /**
      * Insert a point cloud to a dataset
@@ -152,18 +210,21 @@ public class DatablockController {
      *
      * @param workspace_name name of the workspace
      * @param dataset_name   name of the dataset
-     * @return File with the complete point cloud
+     * @return Compressed file with the complete point cloud, built once and then sent as it is stored, so byte
+     * ranges and conditional requests are supported
      */
-    @ResponseStatus(code = HttpStatus.OK)
     @GetMapping(value = "{workspace_name}/datasets/{dataset_name}/data")
-    public Flux<DataBuffer> getCompleteDataset(@PathVariable String workspace_name,
-                                               @PathVariable String dataset_name) {
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getCompleteDataset(@PathVariable String workspace_name,
+                                                                     @PathVariable String dataset_name,
+                                                                     ServerHttpRequest request) {
 
         logger.info("getCompleteDataset invoked");
 
-        Mono<Boolean> datasetExists = datasetService.datasetExists(workspace_name, dataset_name);
-        return datasetExists.flatMapMany(aBoolean ->
-                aBoolean ? datablockService.getCompleteDataset(workspace_name, dataset_name) : Mono.error(new ElementNotFound()));
+        return completeDatasetService.getCompleteFile(workspace_name, dataset_name)
+                .map(file -> FileResponses.storedFile(file,
+                        fileRepositoryInterface.getFile(file.getObjectId()),
+                        (start, end) -> fileRepositoryInterface.getFile(file, start, end),
+                        request.getHeaders()));
     }
 
 
@@ -173,6 +234,9 @@ public class DatablockController {
      * @param dataset_name name of the dataset
      * @param sw_coord minimum coordinate
      * @param ne_coord maximum coordinate
+     * @param max_depth deepest level of the octrees returned
+     * @param point_budget maximum number of points of the datablocks returned, complete levels are added until it is reached
+     * @param min_spacing spacing between points (meters) that is enough, finer levels aren't returned
      * @return Fkyx of datablocks
      */
     @ResponseStatus(code = HttpStatus.OK)
@@ -180,13 +244,17 @@ public class DatablockController {
     public Flux<DatablockDTO> getDatablocksByRegion(@PathVariable String workspace_name,
                                                     @PathVariable String dataset_name,
                                                     @RequestParam String sw_coord,
-                                                    @RequestParam String ne_coord) {
+                                                    @RequestParam String ne_coord,
+                                                    @RequestParam(required = false) Integer max_depth,
+                                                    @RequestParam(required = false) Long point_budget,
+                                                    @RequestParam(required = false) Double min_spacing) {
 
         logger.info("getDatablocksByRegion invoked");
         Mono<Boolean> datasetExists = datasetService.datasetExists(workspace_name, dataset_name);
 
         return datasetExists.flatMapMany(aBoolean ->
-                aBoolean ? datablockService.getDatablocksByRegion(workspace_name, dataset_name, sw_coord, ne_coord)
+                aBoolean ? datablockService.getDatablocksByRegion(workspace_name, dataset_name, sw_coord, ne_coord,
+                        new LevelOfDetail(max_depth, point_budget, min_spacing))
                         : Mono.error(new ElementNotFound()));
 
     }
@@ -198,18 +266,110 @@ public class DatablockController {
                                              @PathVariable String dataset_name,
                                              @RequestParam String sw_coord,
                                              @RequestParam String ne_coord,
-                                             @RequestParam(defaultValue = "true") Boolean merged) {
+                                             @RequestParam(defaultValue = "true") Boolean merged,
+                                             @RequestParam(defaultValue = "false") Boolean clip,
+                                             @RequestParam(required = false) Integer max_depth,
+                                             @RequestParam(required = false) Long point_budget,
+                                             @RequestParam(required = false) Double min_spacing,
+                                             @RequestParam(defaultValue = "las") String format,
+                                             @RequestParam(required = false) String attrs,
+                                             @RequestParam(required = false) Integer position_bits) {
         logger.info("getFilesByRegion invoked");
 
+        PointFormat pointFormat = PointFormat.parse(format, attrs, position_bits);
         Mono<Boolean> datasetExists = datasetService.datasetExists(workspace_name, dataset_name);
 
         return datasetExists.flatMapMany(aBoolean ->
                 aBoolean ? datablockService.
-                        getFilesByRegion(workspace_name, dataset_name, sw_coord, ne_coord, merged)
+                        getFilesByRegion(workspace_name, dataset_name, sw_coord, ne_coord, merged, clip,
+                                new LevelOfDetail(max_depth, point_budget, min_spacing), pointFormat)
                         : Mono.error(new ElementNotFound()));
 
     }
 
 
 
+    /**
+     * Get the datablocks of the datasets of a workspace that belong to a spatial region and were acquired
+     * within a time window. The datasets are found in the grid of the workspace and their octrees are traversed
+     * in parallel, so the datablocks of different datasets may be interleaved
+     *
+     * @param workspace_name name of the workspace
+     * @param sw_coord       minimum coordinate
+     * @param ne_coord       maximum coordinate
+     * @param from_date      lower limit of the temporal query
+     * @param to_date        upper limit of the temporal query
+     * @param max_depth      deepest level of the octrees returned
+     * @param point_budget   maximum number of points of the datablocks returned for each dataset
+     * @param min_spacing    spacing between points (meters) that is enough, finer levels aren't returned
+     * @return Flux of datablocks, each one with the name of its dataset and its date of acquisition
+     */
+    @ResponseStatus(code = HttpStatus.OK)
+    @GetMapping(value = "{workspace_name}/datablocks", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<DatasetDatablockDTO> getWorkspaceDatablocksByRegion(
+            @PathVariable String workspace_name,
+            @RequestParam String sw_coord,
+            @RequestParam String ne_coord,
+            @RequestParam(defaultValue = "#{T(java.time.LocalDateTime).of(0001,1,1,0,0)}", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from_date,
+            @RequestParam(defaultValue = "#{T(java.time.LocalDateTime).of(9999,12,31,23,59)}", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to_date,
+            @RequestParam(required = false) Integer max_depth,
+            @RequestParam(required = false) Long point_budget,
+            @RequestParam(required = false) Double min_spacing) {
+
+        logger.info("getWorkspaceDatablocksByRegion invoked");
+
+        return findDatasetsWithData(workspace_name, sw_coord, ne_coord, from_date, to_date)
+                .flatMapMany(datasets -> datablockServiceCommonUtils.getDatablocksByRegion(workspace_name, datasets,
+                        sw_coord, ne_coord, new LevelOfDetail(max_depth, point_budget, min_spacing)));
+    }
+
+    /**
+     * Get a single LAS file with the points of the datasets of a workspace that belong to a spatial region and
+     * were acquired within a time window. Every point has a dataset_id attribute (Extra Bytes) with the index
+     * of its dataset, in order of acquisition, and the names of the datasets are listed in a record of the header
+     *
+     * @param workspace_name name of the workspace
+     * @param sw_coord       minimum coordinate
+     * @param ne_coord       maximum coordinate
+     * @param from_date      lower limit of the temporal query
+     * @param to_date        upper limit of the temporal query
+     * @param clip           whether only the points inside the region are returned
+     * @param max_depth      deepest level of the octrees returned
+     * @param point_budget   maximum number of points of the datablocks returned for each dataset
+     * @param min_spacing    spacing between points (meters) that is enough, finer levels aren't returned
+     * @return File with the merged points
+     */
+    @ResponseStatus(code = HttpStatus.OK)
+    @GetMapping(value = "{workspace_name}/datablocks/data")
+    public Flux<DataBuffer> getWorkspaceFilesByRegion(
+            @PathVariable String workspace_name,
+            @RequestParam String sw_coord,
+            @RequestParam String ne_coord,
+            @RequestParam(defaultValue = "#{T(java.time.LocalDateTime).of(0001,1,1,0,0)}", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from_date,
+            @RequestParam(defaultValue = "#{T(java.time.LocalDateTime).of(9999,12,31,23,59)}", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to_date,
+            @RequestParam(defaultValue = "false") Boolean clip,
+            @RequestParam(required = false) Integer max_depth,
+            @RequestParam(required = false) Long point_budget,
+            @RequestParam(required = false) Double min_spacing) {
+
+        logger.info("getWorkspaceFilesByRegion invoked");
+
+        return findDatasetsWithData(workspace_name, sw_coord, ne_coord, from_date, to_date)
+                .flatMapMany(datasets -> datablockServiceCommonUtils.getFilesByRegion(workspace_name, datasets,
+                        sw_coord, ne_coord, clip, new LevelOfDetail(max_depth, point_budget, min_spacing)));
+    }
+
+    private Mono<List<Dataset>> findDatasetsWithData(String workspaceName, String southWest, String northEast,
+                                                     LocalDateTime fromDate, LocalDateTime toDate) {
+        return datasetService.workspaceExists(workspaceName)
+                .flatMap(aBoolean -> aBoolean
+                        ? datasetService.getDatasetsWithDataByRegion(workspaceName, southWest, northEast, fromDate, toDate)
+                        .collectList()
+                        : Mono.error(new WorkspaceNotFoundException()));
+    }
+
 }
@@ -69,4 +69,14 @@ public class ExceptionsHandler{
         return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(InvalidCoordinateException.getMsg()));
     }
 
+    @ExceptionHandler(InvalidPointFormatException.class)
+    public Mono<ResponseEntity> invalidPointFormatException(){
+        return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(InvalidPointFormatException.getMsg()));
+    }
+
+    @ExceptionHandler(BatchTooLargeException.class)
+    public Mono<ResponseEntity> batchTooLargeException(){
+        return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(BatchTooLargeException.getMsg()));
+    }
+
 }
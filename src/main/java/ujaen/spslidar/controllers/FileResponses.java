@@ -0,0 +1,114 @@
+package ujaen.spslidar.controllers;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Flux;
+import ujaen.spslidar.entities.StoredFile;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Builds the responses of the endpoints that send files: the complete file, or the single byte range requested.
+ * Multiple ranges are answered with the complete file.
+ */
+final class FileResponses {
+
+    private FileResponses() {
+    }
+
+    /**
+     * Builds the response for a stored file. A stored file is never modified, a new one with a different id
+     * is stored instead, so its id is a strong validator and clients may keep it forever. Conditional requests
+     * are answered with 304.
+     *
+     * @param file    description of the stored file
+     * @param content complete content of the file
+     * @param range   reads the bytes of the file between two positions, both included
+     * @param headers headers of the request
+     * @return
+     */
+    static ResponseEntity<Flux<DataBuffer>> storedFile(StoredFile file, Flux<DataBuffer> content,
+                                                       BiFunction<Long, Long, Flux<DataBuffer>> range,
+                                                       HttpHeaders headers) {
+        String eTag = "\"" + file.getObjectId().toHexString() + "\"";
+        long lastModified = file.getUploadDate() == null ? -1 : file.getUploadDate().getTime() / 1000 * 1000;
+
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.setETag(eTag);
+        if (lastModified >= 0)
+            responseHeaders.setLastModified(lastModified);
+        responseHeaders.setCacheControl(CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().getHeaderValue() + ", immutable");
+
+        List<String> ifNoneMatch = headers.getIfNoneMatch();
+        boolean notModified = ifNoneMatch.isEmpty()
+                ? lastModified >= 0 && headers.getIfModifiedSince() >= lastModified
+                : ifNoneMatch.contains(eTag) || ifNoneMatch.contains("*");
+        if (notModified)
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(responseHeaders).body(Flux.empty());
+
+        String ifRange = headers.getFirst(HttpHeaders.IF_RANGE);
+        List<HttpRange> ranges = ifRange != null && !ifRange.equals(eTag) ? Collections.emptyList() : ranges(headers);
+        return rangeResponse(file.getLength(), ranges, responseHeaders, content, range);
+    }
+
+    /**
+     * Builds the response for a file generated on request
+     *
+     * @param length  length of the file
+     * @param content reads the bytes of the file between two positions, both included
+     * @param headers headers of the request
+     * @return
+     */
+    static ResponseEntity<Flux<DataBuffer>> generatedFile(long length, BiFunction<Long, Long, Flux<DataBuffer>> content,
+                                                          HttpHeaders headers) {
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        return rangeResponse(length, ranges(headers), responseHeaders,
+                length == 0 ? Flux.empty() : content.apply(0L, length - 1), content);
+    }
+
+    private static ResponseEntity<Flux<DataBuffer>> rangeResponse(long length, List<HttpRange> ranges,
+                                                                  HttpHeaders responseHeaders, Flux<DataBuffer> content,
+                                                                  BiFunction<Long, Long, Flux<DataBuffer>> range) {
+        responseHeaders.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (ranges.size() != 1)
+            return ResponseEntity.ok().headers(responseHeaders).contentLength(length).body(content);
+
+        //HttpRange doesn't check that the range starts inside the file, and gives an end before its start then
+        long start = ranges.get(0).getRangeStart(length);
+        long end = ranges.get(0).getRangeEnd(length);
+        if (start >= length || end < start) {
+            responseHeaders.set(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).headers(responseHeaders).body(Flux.empty());
+        }
+
+        responseHeaders.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .headers(responseHeaders)
+                .contentLength(end - start + 1)
+                .body(range.apply(start, end));
+    }
+
+    /**
+     * Ranges of the request, ignored if they can't be parsed
+     *
+     * @param headers
+     * @return
+     */
+    private static List<HttpRange> ranges(HttpHeaders headers) {
+        try {
+            return headers.getRange();
+        } catch (IllegalArgumentException e) {
+            return Collections.emptyList();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package ujaen.spslidar.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.DTOs.http.PotreeCellDTO;
+import ujaen.spslidar.DTOs.http.PotreeMetadataDTO;
+import ujaen.spslidar.Exceptions.ElementNotFound;
+import ujaen.spslidar.services.core.DatasetService;
+import ujaen.spslidar.services.core.potree.PotreeExportService;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Controller class that publishes the octrees of the datasets as Potree 2.0 point clouds. The octree of each
+ * grid cell is a point cloud whose files are under potree/{cell}, so Potree can load it from the url of its
+ * metadata.json. hierarchy.bin and octree.bin are read by Potree with byte ranges.
+ */
+@RestController
+@RequestMapping("/spslidar/workspaces/")
+public class PotreeController {
+
+    private final PotreeExportService potreeExportService;
+    private final DatasetService datasetService;
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    Logger logger = LoggerFactory.getLogger(PotreeController.class);
+
+    public PotreeController(PotreeExportService potreeExportService, DatasetService datasetService) {
+        this.potreeExportService = potreeExportService;
+        this.datasetService = datasetService;
+    }
+
+    /**
+     * List the point clouds of a dataset, one for each grid cell
+     *
+     * @param workspace_name name of the workspace
+     * @param dataset_name   name of the dataset
+     * @return The cells with their index and the relative url of the metadata of their point cloud
+     */
+    @GetMapping(value = "{workspace_name}/datasets/{dataset_name}/potree")
+    public Flux<PotreeCellDTO> getPotreeCells(@PathVariable String workspace_name,
+                                              @PathVariable String dataset_name) {
+
+        logger.info("getPotreeCells invoked");
+
+        return datasetService.datasetExists(workspace_name, dataset_name)
+                .flatMapMany(exists -> exists
+                        ? potreeExportService.getOctrees(workspace_name, dataset_name).flatMapMany(Flux::fromIterable)
+                        : Mono.error(new ElementNotFound()))
+                .map(octree -> new PotreeCellDTO(octree.getCell(), octree.getCellBox(), octree.getPoints(),
+                        octree.getDepth(), "potree/" + octree.getCell() + "/metadata.json"));
+    }
+
+    @GetMapping(value = "{workspace_name}/datasets/{dataset_name}/potree/{cell}/metadata.json")
+    public Mono<PotreeMetadataDTO> getPotreeMetadata(@PathVariable String workspace_name,
+                                                     @PathVariable String dataset_name,
+                                                     @PathVariable int cell) {
+
+        logger.info("getPotreeMetadata invoked");
+
+        return potreeExportService.getOctree(workspace_name, dataset_name, cell)
+                .map(octree -> octree.metadata(dataset_name));
+    }
+
+    @GetMapping(value = "{workspace_name}/datasets/{dataset_name}/potree/{cell}/hierarchy.bin")
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getPotreeHierarchy(@PathVariable String workspace_name,
+                                                                     @PathVariable String dataset_name,
+                                                                     @PathVariable int cell,
+                                                                     ServerHttpRequest request) {
+
+        logger.info("getPotreeHierarchy invoked");
+
+        return potreeExportService.getOctree(workspace_name, dataset_name, cell)
+                .map(octree -> FileResponses.generatedFile(octree.getHierarchy().length,
+                        (start, end) -> Flux.just(bufferFactory.wrap(ByteBuffer.wrap(octree.getHierarchy(),
+                                start.intValue(), (int) (end - start + 1)).slice())),
+                        request.getHeaders()));
+    }
+
+    @GetMapping(value = "{workspace_name}/datasets/{dataset_name}/potree/{cell}/octree.bin")
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getPotreeOctree(@PathVariable String workspace_name,
+                                                                  @PathVariable String dataset_name,
+                                                                  @PathVariable int cell,
+                                                                  ServerHttpRequest request) {
+
+        logger.info("getPotreeOctree invoked");
+
+        return potreeExportService.getOctree(workspace_name, dataset_name, cell)
+                .map(octree -> FileResponses.generatedFile(octree.getOctreeSize(),
+                        (start, end) -> potreeExportService.getOctreeRange(octree, start, end),
+                        request.getHeaders()));
+    }
+
+}
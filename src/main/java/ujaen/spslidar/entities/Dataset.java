@@ -8,6 +8,7 @@ package ujaen.spslidar.entities;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.bson.types.ObjectId;
 import org.springframework.format.annotation.DateTimeFormat;
 import ujaen.spslidar.DTOs.http.DatasetDTO;
 
@@ -53,6 +54,12 @@ public class Dataset {
 
     private State dataAssociated = State.NO_DATA;
 
+    //Stored COPC files of the octrees of the dataset, by the index of their grid cell
+    private Map<String, ObjectId> copcFiles = new HashMap<>();
+
+    //Stored file with the complete point cloud of the dataset, merged and compressed
+    private ObjectId completeFile;
+
     public Dataset(DatasetDTO datasetDTO) {
         this.datasetName = datasetDTO.getName();
         this.description = datasetDTO.getDescription();
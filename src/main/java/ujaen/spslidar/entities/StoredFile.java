@@ -0,0 +1,23 @@
+package ujaen.spslidar.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+
+/**
+ * Description of a file kept in the file repository, without its content
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StoredFile {
+
+    private ObjectId objectId;
+    private long length;
+    private int chunkSize;
+    private Date uploadDate;
+
+}
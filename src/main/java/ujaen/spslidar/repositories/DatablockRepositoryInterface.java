@@ -1,10 +1,13 @@
 package ujaen.spslidar.repositories;
 
+import org.bson.types.ObjectId;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ujaen.spslidar.entities.AbstractDatablock;
 import ujaen.spslidar.entities.GeorefBox;
 
+import java.util.Collection;
+
 /**
  * Repository interface for the datablock entity
  */
@@ -39,6 +42,18 @@ public interface DatablockRepositoryInterface {
      */
     Mono<AbstractDatablock> findDatablockByWorkspaceAndDatasetAndNodeAndGridCell(String workspace, String dataset, int node, GeorefBox grid);
 
+    /**
+     * Query for several datablocks of a dataset with a single query. Every combination of the nodes and
+     * grid cells passed is matched, so the caller keeps only the pairs it asked for
+     * @param workspace workspace name
+     * @param dataset dataset name
+     * @param nodes ids of the nodes
+     * @param grids grid cells in which the nodes are located
+     * @return Flux of datablocks
+     */
+    Flux<AbstractDatablock> findDatablocksByWorkspaceAndDatasetAndNodesAndGridCells(String workspace, String dataset,
+                                                                                     Collection<Integer> nodes, Collection<GeorefBox> grids);
+
     /**
      * Save a datablock in the system
      * @param abstractDatablock metadata of the datablock
@@ -55,6 +70,23 @@ public interface DatablockRepositoryInterface {
      */
     Flux<AbstractDatablock> findAllDatablocksInDataset(String workspace, String dataset);
 
+    /**
+     * Find all the datablocks of a dataset whose bounding box overlaps a region, resolved with a single query
+     * over the node bounds instead of traversing the octrees
+     * @param workspace workspace name
+     * @param dataset dataset name
+     * @param region region to query, with both coordinates in the same UTM zone
+     * @param maxDepth deepest level of the octrees to return, a negative value returns every level
+     * @return Flux of datablocks. Datablocks stored without their flat bounds are not returned
+     */
+    Flux<AbstractDatablock> findDatablocksByRegion(String workspace, String dataset, GeorefBox region, int maxDepth);
 
+    /**
+     * Returns which of the passed files are referenced by a datablock of the workspace
+     * @param workspace name of the workspace
+     * @param fileIds ids of the files to check
+     * @return Flux with the ids of the files referenced
+     */
+    Flux<ObjectId> findReferencedFiles(String workspace, Collection<ObjectId> fileIds);
 
 }
@@ -1,11 +1,14 @@
 package ujaen.spslidar.repositories;
 
+import org.bson.types.ObjectId;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ujaen.spslidar.entities.Dataset;
 import ujaen.spslidar.entities.GeorefBox;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * Repository interface for the dataset entity
@@ -38,6 +41,15 @@ public interface DatasetRepositoryInterface {
      */
     Mono<Dataset> findByWorkspaceAndDatasetAndTimeWindow(String workspaceName, String datasetName, LocalDateTime fromDate, LocalDateTime toDate);
 
+    /**
+     * Query by workspace name, a group of dataset names and time window, fetching all of them at once
+     * @param workspaceName name of the workspace
+     * @param datasetNames names of the datasets
+     * @param fromDate lower limit of the temporal query
+     * @param toDate upper limit of the temporal query
+     * @return Flux with the datasets that exist and fit the time window
+     */
+    Flux<Dataset> findByWorkspaceAndDatasetsAndTimeWindow(String workspaceName, Collection<String> datasetNames, LocalDateTime fromDate, LocalDateTime toDate);
 
     /**
      * Returns all the datasets that exist in a specific workspace and fit a spatial and temporal window.
@@ -75,6 +87,34 @@ public interface DatasetRepositoryInterface {
      */
     Mono<Boolean> removeGridCellFromDataset(Dataset dataset, GeorefBox gridCell);
 
+    /**
+     * Stores the COPC files exported from the octrees of a dataset, only if its data is still associated,
+     * so that a build started during the export is not overwritten
+     * @param workspaceName name of the workspace
+     * @param datasetName name of the dataset
+     * @param copcFiles ids of the files by the index of their grid cell
+     * @return True if the dataset was updated, false otherwise
+     */
+    Mono<Boolean> updateCopcFiles(String workspaceName, String datasetName, Map<String, ObjectId> copcFiles);
+
+    /**
+     * Stores the file with the complete point cloud of a dataset, only if its data is still associated,
+     * so that a build started while the file was created is not overwritten
+     * @param workspaceName name of the workspace
+     * @param datasetName name of the dataset
+     * @param completeFile id of the file
+     * @return True if the dataset was updated, false otherwise
+     */
+    Mono<Boolean> updateCompleteFile(String workspaceName, String datasetName, ObjectId completeFile);
+
+    /**
+     * Returns which of the passed files are referenced by a dataset of the workspace, such as its exported files
+     * @param workspaceName name of the workspace
+     * @param fileIds ids of the files to check
+     * @return Flux with the ids of the files referenced
+     */
+    Flux<ObjectId> findReferencedFiles(String workspaceName, Collection<ObjectId> fileIds);
+
 
 
 
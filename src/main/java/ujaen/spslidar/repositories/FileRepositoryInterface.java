@@ -7,6 +7,10 @@ import reactor.core.publisher.Mono;
 import ujaen.spslidar.entities.AbstractDatablock;
 import ujaen.spslidar.entities.GeorefBox;
 import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.entities.StoredFile;
+
+import java.nio.file.Path;
+import java.util.Date;
 
 /**
  * Repository interface for the files
@@ -20,6 +24,22 @@ public interface FileRepositoryInterface {
      */
     Flux<DataBuffer> getFile(ObjectId objectId);
 
+    /**
+     * Get part of a file
+     * @param file description of the file
+     * @param start position of the first byte
+     * @param end position of the last byte, included
+     * @return Flux of DataBuffer with the bytes of the range
+     */
+    Flux<DataBuffer> getFile(StoredFile file, long start, long end);
+
+    /**
+     * Get the description of a file
+     * @param objectId id of the file stored in gridFS
+     * @return Mono with the file, without its content, or Mono empty if it doesn't exist
+     */
+    Mono<StoredFile> findFile(ObjectId objectId);
+
     /**
      * Get file associated to a particular workspace-dataset-grid cell-node
      * @param workspaceName name of the workspace
@@ -38,5 +58,26 @@ public interface FileRepositoryInterface {
      */
     Mono<AbstractDatablock> addFile(AbstractDatablock datablock, Dataset dataset);
 
+    /**
+     * Store a file generated by the server that is not the file of a datablock
+     * @param file path of the file
+     * @return Mono with the id of the stored file
+     */
+    Mono<ObjectId> storeFile(Path file);
+
+    /**
+     * Get the description of the files stored before a date
+     * @param date upper limit of the upload date
+     * @return Flux with the files, without their content
+     */
+    Flux<StoredFile> findFilesUploadedBefore(Date date);
+
+    /**
+     * Remove a file from the system
+     * @param objectId id of the file
+     * @return Mono that completes once the file is removed
+     */
+    Mono<Void> deleteFile(ObjectId objectId);
+
 
 }
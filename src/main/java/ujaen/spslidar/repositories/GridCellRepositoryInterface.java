@@ -18,6 +18,13 @@ public interface    GridCellRepositoryInterface {
      */
     Mono<GridCell> findById(String workspaceName, GeorefBox box);
 
+    /**
+     * Query all the grid cells of a workspace
+     * @param workspaceName name of the workspace
+     * @return Flux with the grid cells and the datasets associated to them
+     */
+    Flux<GridCell> findAll(String workspaceName);
+
     /**
      * Query the datasets associated to a specific grid cell
      * @param workspaceName name of the workspace
@@ -42,6 +49,15 @@ public interface    GridCellRepositoryInterface {
      */
     Mono<GridCell> save(String workspaceName, GridCell gridCell);
 
+    /**
+     * Associates a dataset to a group of grid cells, creating the cells that don't exist yet
+     * @param workspaceName name of the workspace
+     * @param datasetName name of the dataset
+     * @param gridCells boxes of the grid cells
+     * @return number of grid cells created or modified
+     */
+    Mono<Long> addDatasetToGridCells(String workspaceName, String datasetName, Iterable<GeorefBox> gridCells);
+
 
     Mono<Boolean> removeDatasetFromGridCell(String workspaceName, String datasetName, GeorefBox gridCellGeorefBox);
 
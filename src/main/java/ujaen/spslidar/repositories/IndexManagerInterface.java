@@ -0,0 +1,34 @@
+package ujaen.spslidar.repositories;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.DTOs.http.IndexUsageDTO;
+
+/**
+ * Interface for the management of the secondary indexes that support the queries of the repositories
+ */
+public interface IndexManagerInterface {
+
+    /**
+     * Creates, if they don't exist yet, the indexes needed by the queries performed over the
+     * collections of a workspace
+     * @param workspace workspace name
+     * @return Mono that completes once the indexes have been created
+     */
+    Mono<Void> ensureIndexes(String workspace);
+
+    /**
+     * Checks that all the indexes needed by the queries of a workspace exist
+     * @param workspace workspace name
+     * @return Mono with true if every index is present, false otherwise
+     */
+    Mono<Boolean> verifyIndexes(String workspace);
+
+    /**
+     * Returns the usage statistics of the indexes of a workspace
+     * @param workspace workspace name
+     * @return Flux with an entry per index and collection
+     */
+    Flux<IndexUsageDTO> getIndexUsage(String workspace);
+
+}
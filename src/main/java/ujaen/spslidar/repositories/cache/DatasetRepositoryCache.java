@@ -0,0 +1,132 @@
+package ujaen.spslidar.repositories.cache;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dataset repository that keeps in memory the datasets recently read, so that the existence and state
+ * checks done by every request don't reach the database. Every write goes through the wrapped repository
+ * and drops the cached dataset. The cached instances are never handed out, callers receive copies that
+ * they can modify.
+ */
+@Primary
+@Repository
+public class DatasetRepositoryCache implements DatasetRepositoryInterface {
+
+    private final DatasetRepositoryInterface datasetRepositoryInterface;
+    private final ReadThroughCache<List<String>, Dataset> datasets;
+
+    public DatasetRepositoryCache(@Qualifier("datasetRepositoryMongo") DatasetRepositoryInterface datasetRepositoryInterface,
+                                  CacheProperties cacheProperties) {
+        this.datasetRepositoryInterface = datasetRepositoryInterface;
+        this.datasets = new ReadThroughCache<>(cacheProperties.getMetadataTtl(), cacheProperties.getMetadataMaxEntries());
+    }
+
+    @Override
+    public Mono<Boolean> existsByWorkspaceAndDataset(String workspaceName, String datasetName) {
+        return find(workspaceName, datasetName).hasElement();
+    }
+
+    @Override
+    public Mono<Dataset> findByWorkspaceAndDataset(String workspaceName, String datasetName) {
+        return find(workspaceName, datasetName).map(DatasetRepositoryCache::copy);
+    }
+
+    @Override
+    public Mono<Dataset> findByWorkspaceAndDatasetAndTimeWindow(String workspaceName, String datasetName, LocalDateTime fromDate, LocalDateTime toDate) {
+        return find(workspaceName, datasetName)
+                .filter(dataset -> dataset.getDate() != null && !dataset.getDate().isBefore(fromDate) && !dataset.getDate().isAfter(toDate))
+                .map(DatasetRepositoryCache::copy);
+    }
+
+    @Override
+    public Flux<Dataset> findByWorkspaceAndDatasetsAndTimeWindow(String workspaceName, Collection<String> datasetNames, LocalDateTime fromDate, LocalDateTime toDate) {
+        return datasetRepositoryInterface.findByWorkspaceAndDatasetsAndTimeWindow(workspaceName, datasetNames, fromDate, toDate);
+    }
+
+    @Override
+    public Flux<Dataset> findByWorkspaceNameAndTimeWindow(String workspaceName, LocalDateTime fromDate, LocalDateTime toDate) {
+        return datasetRepositoryInterface.findByWorkspaceNameAndTimeWindow(workspaceName, fromDate, toDate);
+    }
+
+    @Override
+    public Mono<Dataset> save(Dataset dataset) {
+        return datasetRepositoryInterface.save(dataset)
+                .doFinally(signalType -> datasets.invalidate(key(dataset.getWorkspaceName(), dataset.getDatasetName())));
+    }
+
+    @Override
+    public Mono<Dataset> update(Dataset dataset) {
+        return datasetRepositoryInterface.update(dataset)
+                .doFinally(signalType -> datasets.invalidate(key(dataset.getWorkspaceName(), dataset.getDatasetName())));
+    }
+
+    @Override
+    public Mono<Boolean> removeGridCellFromDataset(Dataset dataset, GeorefBox gridCell) {
+        return datasetRepositoryInterface.removeGridCellFromDataset(dataset, gridCell)
+                .doFinally(signalType -> datasets.invalidate(key(dataset.getWorkspaceName(), dataset.getDatasetName())));
+    }
+
+    @Override
+    public Mono<Boolean> updateCopcFiles(String workspaceName, String datasetName, Map<String, ObjectId> copcFiles) {
+        return datasetRepositoryInterface.updateCopcFiles(workspaceName, datasetName, copcFiles)
+                .doFinally(signalType -> datasets.invalidate(key(workspaceName, datasetName)));
+    }
+
+    @Override
+    public Mono<Boolean> updateCompleteFile(String workspaceName, String datasetName, ObjectId completeFile) {
+        return datasetRepositoryInterface.updateCompleteFile(workspaceName, datasetName, completeFile)
+                .doFinally(signalType -> datasets.invalidate(key(workspaceName, datasetName)));
+    }
+
+    @Override
+    public Flux<ObjectId> findReferencedFiles(String workspaceName, Collection<ObjectId> fileIds) {
+        return datasetRepositoryInterface.findReferencedFiles(workspaceName, fileIds);
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        datasets.invalidateIf(key -> event.affects(key.get(0), key.get(1)));
+    }
+
+    private Mono<Dataset> find(String workspaceName, String datasetName) {
+        return datasets.get(key(workspaceName, datasetName),
+                () -> datasetRepositoryInterface.findByWorkspaceAndDataset(workspaceName, datasetName));
+    }
+
+    private static List<String> key(String workspaceName, String datasetName) {
+        return List.of(workspaceName, datasetName);
+    }
+
+    private static Dataset copy(Dataset dataset) {
+        Map<String, List<GeorefBox>> rootDatablocks = new HashMap<>();
+        if (dataset.getRootDatablocks() != null)
+            dataset.getRootDatablocks().forEach((zone, cells) -> rootDatablocks.put(zone, new ArrayList<>(cells)));
+
+        Dataset copy = new Dataset(dataset.getDatasetName(), dataset.getDescription(), dataset.getDate(), dataset.getBbox(),
+                dataset.getDataBlockSize(), dataset.getDataBlockFormat(), rootDatablocks, dataset.getDataAssociated());
+        copy.setWorkspaceName(dataset.getWorkspaceName());
+        if (dataset.getCopcFiles() != null)
+            copy.setCopcFiles(new HashMap<>(dataset.getCopcFiles()));
+        copy.setCompleteFile(dataset.getCompleteFile());
+        return copy;
+    }
+
+}
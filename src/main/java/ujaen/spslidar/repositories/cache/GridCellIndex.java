@@ -0,0 +1,103 @@
+package ujaen.spslidar.repositories.cache;
+
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.GridCell;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory uniform grid with the datasets associated to each cell of a workspace. Cells are aligned to
+ * multiples of the cell size of the workspace, so each one is identified by its column and row inside
+ * its UTM zone.
+ */
+class GridCellIndex {
+
+    private final double cellSize;
+    private final Map<String, Map<Long, Set<String>>> zones = new ConcurrentHashMap<>();
+
+    GridCellIndex(int cellSize, List<GridCell> gridCells) {
+        this.cellSize = cellSize;
+        for (GridCell gridCell : gridCells) {
+            gridCell.getDatasets().forEach(dataset -> add(gridCell.getGridGeorefBox(), dataset));
+        }
+    }
+
+    void add(GeorefBox cell, String dataset) {
+        zones.computeIfAbsent(cell.getSouthWestBottom().getZone(), zone -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key(cell), key -> ConcurrentHashMap.newKeySet())
+                .add(dataset);
+    }
+
+    void remove(GeorefBox cell, String dataset) {
+        Map<Long, Set<String>> zone = zones.get(cell.getSouthWestBottom().getZone());
+        if (zone == null)
+            return;
+
+        zone.computeIfPresent(key(cell), (key, datasets) -> {
+            datasets.remove(dataset);
+            return datasets.isEmpty() ? null : datasets;
+        });
+    }
+
+    /**
+     * Returns the datasets of the cells that intersect the passed box, using the same criteria as the
+     * range query over the grid collection. When the box covers more cells than those stored in its zone,
+     * the stored cells are scanned instead of probing every cell of the box.
+     *
+     * @param box box with both coordinates in the same UTM zone
+     * @return
+     */
+    Set<String> findDatasets(GeorefBox box) {
+        Set<String> datasets = new HashSet<>();
+        Map<Long, Set<String>> zone = zones.get(box.getSouthWestBottom().getZone());
+        if (zone == null)
+            return datasets;
+
+        double minEasting = box.getSouthWestBottom().getEasting();
+        double minNorthing = box.getSouthWestBottom().getNorthing();
+        double maxEasting = box.getNorthEastTop().getEasting();
+        double maxNorthing = box.getNorthEastTop().getNorthing();
+
+        //One extra column and row at each side, the exact check is done below
+        long minColumn = (long) Math.ceil(minEasting / cellSize) - 2;
+        long maxColumn = (long) Math.ceil(maxEasting / cellSize);
+        long minRow = (long) Math.ceil(minNorthing / cellSize) - 2;
+        long maxRow = (long) Math.ceil(maxNorthing / cellSize);
+        double cellsInBox = (double) (maxColumn - minColumn + 1) * (maxRow - minRow + 1);
+
+        if (cellsInBox <= zone.size()) {
+            for (long column = minColumn; column <= maxColumn; column++) {
+                for (long row = minRow; row <= maxRow; row++) {
+                    Set<String> cellDatasets = zone.get(key(column, row));
+                    if (cellDatasets != null && intersects(column, row, minEasting, minNorthing, maxEasting, maxNorthing))
+                        datasets.addAll(cellDatasets);
+                }
+            }
+        } else {
+            zone.forEach((key, cellDatasets) -> {
+                if (intersects(key >> 32, (int) (long) key, minEasting, minNorthing, maxEasting, maxNorthing))
+                    datasets.addAll(cellDatasets);
+            });
+        }
+        return datasets;
+    }
+
+    private boolean intersects(long column, long row, double minEasting, double minNorthing, double maxEasting, double maxNorthing) {
+        return column * cellSize < maxEasting && (column + 1) * cellSize >= minEasting
+                && row * cellSize < maxNorthing && (row + 1) * cellSize >= minNorthing;
+    }
+
+    private long key(GeorefBox cell) {
+        return key(Math.round(cell.getSouthWestBottom().getEasting() / cellSize),
+                Math.round(cell.getSouthWestBottom().getNorthing() / cellSize));
+    }
+
+    private static long key(long column, long row) {
+        return (column << 32) | (row & 0xffffffffL);
+    }
+
+}
@@ -0,0 +1,137 @@
+package ujaen.spslidar.repositories.cache;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.Exceptions.DifferentUTMZone;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.GridCell;
+import ujaen.spslidar.entities.Workspace;
+import ujaen.spslidar.repositories.GridCellRepositoryInterface;
+import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Grid cell repository that answers the spatial queries over the datasets of a workspace with an in-memory
+ * grid. The grid of a workspace is loaded the first time it is queried and from then on it is kept
+ * up to date with every write done through this repository.
+ */
+@Primary
+@Repository
+public class GridCellRepositoryCache implements GridCellRepositoryInterface {
+
+    private final GridCellRepositoryInterface gridCellRepositoryInterface;
+    private final WorkspaceRepositoryInterface workspaceRepositoryInterface;
+
+    private final Map<String, Mono<GridCellIndex>> indexes = new ConcurrentHashMap<>();
+
+    public GridCellRepositoryCache(@Qualifier("gridCellRepositoryMongo") GridCellRepositoryInterface gridCellRepositoryInterface,
+                                   WorkspaceRepositoryInterface workspaceRepositoryInterface) {
+        this.gridCellRepositoryInterface = gridCellRepositoryInterface;
+        this.workspaceRepositoryInterface = workspaceRepositoryInterface;
+    }
+
+    @Override
+    public Mono<GridCell> findById(String workspaceName, GeorefBox box) {
+        return gridCellRepositoryInterface.findById(workspaceName, box);
+    }
+
+    @Override
+    public Flux<GridCell> findAll(String workspaceName) {
+        return gridCellRepositoryInterface.findAll(workspaceName);
+    }
+
+    @Override
+    public Flux<String> findDatasetsByGrid(String workspaceName, GridCell gridCell) {
+        return gridCellRepositoryInterface.findDatasetsByGrid(workspaceName, gridCell);
+    }
+
+    @Override
+    public Flux<String> findDatasetsByGeorefBox(String workspaceName, GeorefBox box) {
+        if (!box.getSouthWestBottom().getZone().equals(box.getNorthEastTop().getZone())) {
+            return Flux.error(new DifferentUTMZone());
+        }
+
+        return index(workspaceName)
+                .flatMapIterable(index -> index.findDatasets(box));
+    }
+
+    @Override
+    public Mono<GridCell> save(String workspaceName, GridCell gridCell) {
+        return gridCellRepositoryInterface.save(workspaceName, gridCell)
+                .delayUntil(saved -> updateIndex(workspaceName,
+                        index -> saved.getDatasets().forEach(dataset -> index.add(saved.getGridGeorefBox(), dataset))));
+    }
+
+    @Override
+    public Mono<Long> addDatasetToGridCells(String workspaceName, String datasetName, Iterable<GeorefBox> gridCells) {
+        return gridCellRepositoryInterface.addDatasetToGridCells(workspaceName, datasetName, gridCells)
+                .delayUntil(modified -> updateIndex(workspaceName,
+                        index -> gridCells.forEach(gridCell -> index.add(gridCell, datasetName))));
+    }
+
+    @Override
+    public Mono<Boolean> removeDatasetFromGridCell(String workspaceName, String datasetName, GeorefBox gridCellGeorefBox) {
+        return gridCellRepositoryInterface.removeDatasetFromGridCell(workspaceName, datasetName, gridCellGeorefBox)
+                .delayUntil(removed -> updateIndex(workspaceName, index -> index.remove(gridCellGeorefBox, datasetName)));
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        if (event.getWorkspaceName() == null)
+            indexes.clear();
+    }
+
+    /**
+     * Returns the grid of a workspace, loading it if needed. Concurrent requests for a workspace
+     * whose grid is being loaded share the same load.
+     *
+     * @param workspaceName
+     * @return Mono with the grid, or Mono empty if the workspace doesn't exist
+     */
+    private Mono<GridCellIndex> index(String workspaceName) {
+        Mono<GridCellIndex> index = indexes.computeIfAbsent(workspaceName, this::load);
+
+        return index
+                .doOnSuccess(loaded -> {
+                    if (loaded == null)
+                        indexes.remove(workspaceName, index);
+                })
+                .doOnError(throwable -> indexes.remove(workspaceName, index));
+    }
+
+    private Mono<GridCellIndex> load(String workspaceName) {
+        return workspaceRepositoryInterface.findByName(workspaceName)
+                .map(Workspace::getCellSize)
+                .zipWith(gridCellRepositoryInterface.findAll(workspaceName).collectList())
+                .map(tuple -> new GridCellIndex(tuple.getT1(), tuple.getT2()))
+                .cache();
+    }
+
+    /**
+     * Applies a write to the grid of a workspace once it is loaded. Workspaces whose grid hasn't been
+     * requested yet are skipped, as they will read the write from the database when they are loaded.
+     *
+     * @param workspaceName
+     * @param update
+     * @return
+     */
+    private Mono<Void> updateIndex(String workspaceName, Consumer<GridCellIndex> update) {
+        Mono<GridCellIndex> index = indexes.get(workspaceName);
+        if (index == null)
+            return Mono.empty();
+
+        return index
+                .doOnNext(update)
+                .onErrorResume(throwable -> Mono.empty())
+                .then();
+    }
+
+}
@@ -0,0 +1,91 @@
+package ujaen.spslidar.repositories.cache;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of single values with a time to live. Both found and missing values are kept, and
+ * the requests that arrive while a value is being loaded wait for that same load instead of starting
+ * a new one. Failed loads are not kept.
+ *
+ * @param <K> key of the values
+ * @param <V> values cached
+ */
+class ReadThroughCache<K, V> {
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final long ttl;
+    private final int maxEntries;
+
+    ReadThroughCache(Duration ttl, int maxEntries) {
+        this.ttl = ttl == null ? 0 : ttl.toNanos();
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the value cached for a key, loading it with the passed supplier if it isn't cached or it expired
+     *
+     * @param key
+     * @param loader
+     * @return
+     */
+    Mono<V> get(K key, Supplier<Mono<V>> loader) {
+        if (ttl <= 0)
+            return loader.get();
+
+        long now = System.nanoTime();
+        Entry<V> entry = entries.compute(key, (k, current) ->
+                current != null && current.expiresAt - now > 0 ? current : new Entry<>(loader.get(), now + ttl));
+
+        if (entries.size() > maxEntries)
+            purge(now);
+
+        return entry.value
+                .doOnError(throwable -> entries.remove(key, entry))
+                .flatMap(Mono::justOrEmpty);
+    }
+
+    void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    void invalidateIf(Predicate<K> predicate) {
+        entries.keySet().removeIf(predicate);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Drops the expired values and, if the cache is still over its limit, everything else
+     *
+     * @param now
+     */
+    private void purge(long now) {
+        entries.values().removeIf(entry -> entry.expiresAt - now <= 0);
+        if (entries.size() > maxEntries)
+            entries.clear();
+    }
+
+    private static class Entry<V> {
+
+        private final Mono<Optional<V>> value;
+        private final long expiresAt;
+
+        private Entry(Mono<V> loader, long expiresAt) {
+            this.value = loader
+                    .map(Optional::of)
+                    .defaultIfEmpty(Optional.empty())
+                    .cache();
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package ujaen.spslidar.repositories.cache;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.entities.Workspace;
+import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+/**
+ * Workspace repository that keeps in memory the workspaces recently read, answering the existence
+ * checks of the controllers without querying the database
+ */
+@Primary
+@Repository
+public class WorkspaceRepositoryCache implements WorkspaceRepositoryInterface {
+
+    private final WorkspaceRepositoryInterface workspaceRepositoryInterface;
+    private final ReadThroughCache<String, Workspace> workspaces;
+
+    public WorkspaceRepositoryCache(@Qualifier("workspaceRepositoryMongo") WorkspaceRepositoryInterface workspaceRepositoryInterface,
+                                    CacheProperties cacheProperties) {
+        this.workspaceRepositoryInterface = workspaceRepositoryInterface;
+        this.workspaces = new ReadThroughCache<>(cacheProperties.getMetadataTtl(), cacheProperties.getMetadataMaxEntries());
+    }
+
+    @Override
+    public Flux<Workspace> findAll() {
+        return workspaceRepositoryInterface.findAll();
+    }
+
+    @Override
+    public Mono<Workspace> findByName(String workspaceName) {
+        return workspaces.get(workspaceName, () -> workspaceRepositoryInterface.findByName(workspaceName))
+                .map(workspace -> new Workspace(workspace.getName(), workspace.getDescription(), workspace.getCellSize()));
+    }
+
+    @Override
+    public Mono<Boolean> existsByName(String workspaceName) {
+        return workspaces.get(workspaceName, () -> workspaceRepositoryInterface.findByName(workspaceName))
+                .hasElement();
+    }
+
+    @Override
+    public Mono<Workspace> save(Workspace workspace) {
+        return workspaceRepositoryInterface.save(workspace)
+                .doFinally(signalType -> workspaces.invalidate(workspace.getName()));
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        if (event.getWorkspaceName() == null)
+            workspaces.clear();
+    }
+
+}
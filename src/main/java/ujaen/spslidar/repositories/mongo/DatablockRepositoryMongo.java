@@ -1,20 +1,29 @@
 package ujaen.spslidar.repositories.mongo;
 
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.ClassTypeInformation;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ujaen.spslidar.DTOs.database.mongo.DatablockDBDTO;
+import ujaen.spslidar.DTOs.database.mongo.DatablockDocument;
 import ujaen.spslidar.entities.AbstractDatablock;
 import ujaen.spslidar.entities.Datablock;
 import ujaen.spslidar.entities.GeorefBox;
 import ujaen.spslidar.repositories.CollectionsManager;
 import ujaen.spslidar.repositories.DatablockRepositoryInterface;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 /**
- * Datablock repository implementation for Mongo
+ * Datablock repository implementation for Mongo. Datablocks are stored with the compact layout of DatablockDocument,
+ * and the documents stored with the previous layout (DatablockDBDTO) are still read until they are migrated
  */
 @Repository
 public class DatablockRepositoryMongo implements DatablockRepositoryInterface {
@@ -35,7 +44,7 @@ public class DatablockRepositoryMongo implements DatablockRepositoryInterface {
         query.addCriteria(Criteria.where("datasetName").is(dataset));
         query.addCriteria(Criteria.where("node").is(node));
         return reactiveMongoTemplate
-                .find(query, DatablockDBDTO.class, collection).map(DatablockDBDTO::fromDatablockDBDTO);
+                .find(query, Document.class, collection).map(this::fromDocument);
     }
 
 
@@ -47,8 +56,8 @@ public class DatablockRepositoryMongo implements DatablockRepositoryInterface {
         Query query = new Query();
         query.addCriteria(Criteria.where("datasetName").is(dataset));
         query.addCriteria(Criteria.where("node").is(node));
-        query.addCriteria(Criteria.where("cell").is(grid));
-        return reactiveMongoTemplate.exists(query, DatablockDBDTO.class, collection);
+        query.addCriteria(cellCriteria(grid));
+        return reactiveMongoTemplate.exists(query, collection);
 
 
     }
@@ -60,16 +69,37 @@ public class DatablockRepositoryMongo implements DatablockRepositoryInterface {
         Query query = new Query();
         query.addCriteria(Criteria.where("datasetName").is(dataset));
         query.addCriteria(Criteria.where("node").is(node));
-        query.addCriteria(Criteria.where("cell").is(grid));
+        query.addCriteria(cellCriteria(grid));
 
-        return reactiveMongoTemplate.find(query, DatablockDBDTO.class, collection).next()
-                .map(DatablockDBDTO::fromDatablockDBDTO)
-                .cast(AbstractDatablock.class)
+        return reactiveMongoTemplate.findOne(query, Document.class, collection)
+                .map(this::fromDocument)
                 .name("db.datablock.get")
                 .metrics();
 
     }
 
+    @Override
+    public Flux<AbstractDatablock> findDatablocksByWorkspaceAndDatasetAndNodesAndGridCells(String workspace, String dataset,
+                                                                                            Collection<Integer> nodes, Collection<GeorefBox> grids) {
+        String collection = getCollectionName(workspace);
+
+        List<Object> cells = new ArrayList<>();
+        for (GeorefBox grid : grids) {
+            cells.add(reactiveMongoTemplate.getConverter().convertToMongoType(grid, ClassTypeInformation.from(GeorefBox.class)));
+            cells.add(DatablockDocument.cellKey(grid));
+        }
+
+        Query query = new Query();
+        query.addCriteria(Criteria.where("datasetName").is(dataset));
+        query.addCriteria(Criteria.where("node").in(nodes));
+        query.addCriteria(Criteria.where(DatablockDocument.CELL_FIELD).in(cells));
+
+        return reactiveMongoTemplate.find(query, Document.class, collection)
+                .map(this::fromDocument)
+                .name("db.datablock.batch")
+                .metrics();
+    }
+
     @Override
     public Mono<AbstractDatablock> save(AbstractDatablock abstractDatablock, String workspace, String datasetName) {
         String collection = getCollectionName(workspace);
@@ -78,9 +108,9 @@ public class DatablockRepositoryMongo implements DatablockRepositoryInterface {
             return Mono.error(new RuntimeException("No GridFS file ID found"));
         }
 
-        DatablockDBDTO datablockDBDTO = new DatablockDBDTO(abstractDatablock, datasetName, ((Datablock) abstractDatablock).getObjectId());
-        return reactiveMongoTemplate.save(datablockDBDTO, collection)
-                .map(DatablockDBDTO::fromDatablockDBDTO);
+        Document document = DatablockDocument.encode(abstractDatablock, datasetName, ((Datablock) abstractDatablock).getObjectId());
+        return reactiveMongoTemplate.insert(document, collection)
+                .map(this::fromDocument);
     }
 
 
@@ -91,13 +121,78 @@ public class DatablockRepositoryMongo implements DatablockRepositoryInterface {
         Query query = new Query();
         query.addCriteria(Criteria.where("datasetName").is(dataset));
 
-        return reactiveMongoTemplate.find(query, DatablockDBDTO.class, collection)
-                .map(DatablockDBDTO::fromDatablockDBDTO);
+        return reactiveMongoTemplate.find(query, Document.class, collection)
+                .map(this::fromDocument);
 
     }
 
 
 
+    @Override
+    public Flux<AbstractDatablock> findDatablocksByRegion(String workspace, String dataset, GeorefBox region, int maxDepth) {
+
+        String collection = getCollectionName(workspace);
+        Query query = new Query();
+        query.addCriteria(Criteria.where("datasetName").is(dataset));
+        query.addCriteria(Criteria.where("zone").is(region.getSouthWestBottom().getZone()));
+        if (maxDepth >= 0)
+            query.addCriteria(Criteria.where("depth").lte(maxDepth));
+        //Same overlap test as GeorefBox.doesOverlap, over the flat limits of the previous layout or the bounds array
+        query.addCriteria(new Criteria().orOperator(
+                new Criteria().andOperator(
+                        Criteria.where("minEasting").lte(region.getNorthEastTop().getEasting()),
+                        Criteria.where("maxEasting").gte(region.getSouthWestBottom().getEasting()),
+                        Criteria.where("minNorthing").lte(region.getNorthEastTop().getNorthing()),
+                        Criteria.where("maxNorthing").gte(region.getSouthWestBottom().getNorthing())),
+                new Criteria().andOperator(
+                        Criteria.where(DatablockDocument.BOUNDS_FIELD + ".0").lte(region.getNorthEastTop().getEasting()),
+                        Criteria.where(DatablockDocument.BOUNDS_FIELD + ".3").gte(region.getSouthWestBottom().getEasting()),
+                        Criteria.where(DatablockDocument.BOUNDS_FIELD + ".1").lte(region.getNorthEastTop().getNorthing()),
+                        Criteria.where(DatablockDocument.BOUNDS_FIELD + ".4").gte(region.getSouthWestBottom().getNorthing()))));
+
+        return reactiveMongoTemplate.find(query, Document.class, collection)
+                .map(this::fromDocument)
+                .name("db.datablock.region")
+                .metrics();
+    }
+
+
+    @Override
+    public Flux<ObjectId> findReferencedFiles(String workspace, Collection<ObjectId> fileIds) {
+        String collection = getCollectionName(workspace);
+        Query query = new Query();
+        query.addCriteria(Criteria.where(DatablockDocument.FILE_FIELD).in(fileIds));
+        query.fields().include(DatablockDocument.FILE_FIELD);
+
+        return reactiveMongoTemplate.find(query, Document.class, collection)
+                .map(document -> document.getObjectId(DatablockDocument.FILE_FIELD));
+    }
+
+    /**
+     * Decodes a datablock stored with either layout
+     *
+     * @param document
+     * @return
+     */
+    AbstractDatablock fromDocument(Document document) {
+        if (DatablockDocument.isCurrentVersion(document))
+            return DatablockDocument.decode(document);
+
+        return reactiveMongoTemplate.getConverter().read(DatablockDBDTO.class, document).fromDatablockDBDTO();
+    }
+
+    /**
+     * Matches the grid cell both as the embedded document of the previous layout and as the key of the current one
+     *
+     * @param grid
+     * @return
+     */
+    Criteria cellCriteria(GeorefBox grid) {
+        Object embeddedCell = reactiveMongoTemplate.getConverter()
+                .convertToMongoType(grid, ClassTypeInformation.from(GeorefBox.class));
+        return Criteria.where(DatablockDocument.CELL_FIELD).in(embeddedCell, DatablockDocument.cellKey(grid));
+    }
+
     private String getCollectionName(String workspaceName) {
         return CollectionsManager.cleanCollectionName(workspaceName) + collectionExtension;
     }
@@ -0,0 +1,84 @@
+package ujaen.spslidar.repositories.mongo;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.DTOs.database.mongo.DatablockDBDTO;
+import ujaen.spslidar.DTOs.database.mongo.DatablockDocument;
+import ujaen.spslidar.entities.Workspace;
+import ujaen.spslidar.repositories.CollectionsManager;
+import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
+
+/**
+ * Rewrites the datablock documents stored with the previous layout (DatablockDBDTO) into the compact layout
+ * of DatablockDocument. Documents are replaced one batch at a time, and each replacement only applies if the
+ * document hasn't been migrated in the meantime, so it can run while the server is answering requests.
+ */
+@Component
+public class DatablockSchemaMigrator {
+
+    private static final String collectionExtension = "_datablocks";
+    private static final int batchSize = 500;
+
+    Logger logger = LoggerFactory.getLogger(DatablockSchemaMigrator.class);
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final WorkspaceRepositoryInterface workspaceRepositoryInterface;
+
+    public DatablockSchemaMigrator(ReactiveMongoTemplate reactiveMongoTemplate,
+                                   WorkspaceRepositoryInterface workspaceRepositoryInterface) {
+        this.reactiveMongoTemplate = reactiveMongoTemplate;
+        this.workspaceRepositoryInterface = workspaceRepositoryInterface;
+    }
+
+    /**
+     * Migrates the datablocks of every workspace, one workspace after another
+     *
+     * @return number of documents migrated
+     */
+    public Mono<Long> migrate() {
+        return workspaceRepositoryInterface.findAll()
+                .map(Workspace::getName)
+                .concatMap(this::migrate)
+                .reduce(0L, Long::sum);
+    }
+
+    private Mono<Long> migrate(String workspace) {
+        String collection = CollectionsManager.cleanCollectionName(workspace) + collectionExtension;
+        Query query = new Query(Criteria.where(DatablockDocument.VERSION_FIELD).exists(false));
+        BulkWriteOptions unordered = new BulkWriteOptions().ordered(false);
+
+        return reactiveMongoTemplate.find(query, Document.class, collection)
+                .<WriteModel<Document>>map(document -> new ReplaceOneModel<>(
+                        new Document("_id", document.get("_id"))
+                                .append(DatablockDocument.VERSION_FIELD, new Document("$exists", false)),
+                        toCurrentVersion(document)))
+                .buffer(batchSize)
+                .concatMap(models -> reactiveMongoTemplate.getCollection(collection)
+                        .flatMap(mongoCollection -> Mono.from(mongoCollection.bulkWrite(models, unordered))))
+                .map(BulkWriteResult::getModifiedCount)
+                .reduce(0L, Long::sum)
+                .doOnNext(migrated -> {
+                    if (migrated > 0)
+                        logger.info("Migrated " + migrated + " datablocks of " + workspace + " to version " + DatablockDocument.VERSION);
+                });
+    }
+
+    private Document toCurrentVersion(Document document) {
+        DatablockDBDTO datablockDBDTO = reactiveMongoTemplate.getConverter().read(DatablockDBDTO.class, document);
+        Document migrated = DatablockDocument.encode(datablockDBDTO.fromDatablockDBDTO(),
+                datablockDBDTO.getDatasetName(), datablockDBDTO.getGridFileId());
+        migrated.put("_id", document.get("_id"));
+        return migrated;
+    }
+
+}
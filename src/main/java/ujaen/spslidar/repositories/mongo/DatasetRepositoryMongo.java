@@ -1,6 +1,8 @@
 package ujaen.spslidar.repositories.mongo;
 
 import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -16,6 +18,10 @@ import ujaen.spslidar.repositories.CollectionsManager;
 import ujaen.spslidar.repositories.DatasetRepositoryInterface;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 @Repository
 public class DatasetRepositoryMongo implements DatasetRepositoryInterface {
@@ -58,8 +64,7 @@ public class DatasetRepositoryMongo implements DatasetRepositoryInterface {
         query.addCriteria(Criteria.where("_id").is(datasetName));
         return reactiveMongoTemplate.findOne(query, DatasetDBDTO.class, collection)
                 .map(DatasetDBDTO::datasetFromDTO)
-                .map(dataset -> setWorkspace(dataset, workspaceName))
-                .doOnNext(System.out::println);
+                .map(dataset -> setWorkspace(dataset, workspaceName));
     }
 
     @Override
@@ -117,6 +122,67 @@ public class DatasetRepositoryMongo implements DatasetRepositoryInterface {
                 .map(m -> setWorkspace(m, workspaceName));
     }
 
+    @Override
+    public Flux<Dataset> findByWorkspaceAndDatasetsAndTimeWindow(String workspaceName, Collection<String> datasetNames, LocalDateTime fromDate, LocalDateTime toDate) {
+        String collection = getCollectionName(workspaceName);
+
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").in(datasetNames));
+        query.addCriteria(Criteria.where("date").gte(fromDate).lte(toDate));
+
+        return reactiveMongoTemplate.find(query, DatasetDBDTO.class, collection)
+                .map(DatasetDBDTO::datasetFromDTO)
+                .map(m -> setWorkspace(m, workspaceName));
+    }
+
+    @Override
+    public Mono<Boolean> updateCopcFiles(String workspaceName, String datasetName, Map<String, ObjectId> copcFiles) {
+        String collection = getCollectionName(workspaceName);
+
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(datasetName));
+        query.addCriteria(Criteria.where("dataAssociated").is(Dataset.State.DATA_ASSOCIATED));
+
+        return reactiveMongoTemplate.updateFirst(query, new Update().set("copcFiles", copcFiles), collection)
+                .map(updateResult -> updateResult.getMatchedCount() > 0);
+    }
+
+    @Override
+    public Mono<Boolean> updateCompleteFile(String workspaceName, String datasetName, ObjectId completeFile) {
+        String collection = getCollectionName(workspaceName);
+
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(datasetName));
+        query.addCriteria(Criteria.where("dataAssociated").is(Dataset.State.DATA_ASSOCIATED));
+
+        return reactiveMongoTemplate.updateFirst(query, new Update().set("completeFile", completeFile), collection)
+                .map(updateResult -> updateResult.getMatchedCount() > 0);
+    }
+
+    @Override
+    public Flux<ObjectId> findReferencedFiles(String workspaceName, Collection<ObjectId> fileIds) {
+        String collection = getCollectionName(workspaceName);
+
+        Query query = new Query();
+        query.addCriteria(new Criteria().orOperator(
+                Criteria.where("copcFiles").exists(true),
+                Criteria.where("completeFile").exists(true)));
+        query.fields().include("copcFiles").include("completeFile");
+
+        return reactiveMongoTemplate.find(query, Document.class, collection)
+                .flatMapIterable(document -> {
+                    List<Object> files = new ArrayList<>();
+                    Document copcFiles = document.get("copcFiles", Document.class);
+                    if (copcFiles != null)
+                        files.addAll(copcFiles.values());
+                    if (document.get("completeFile") != null)
+                        files.add(document.get("completeFile"));
+                    return files;
+                })
+                .ofType(ObjectId.class)
+                .filter(fileIds::contains);
+    }
+
     /**
      * Adds the workspaceName to the dataset as that attribute is not stored in Mongo to avoid redundancy
      * with the collection name
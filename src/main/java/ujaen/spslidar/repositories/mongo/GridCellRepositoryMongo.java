@@ -1,10 +1,16 @@
 package ujaen.spslidar.repositories.mongo;
 
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.ClassTypeInformation;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -19,6 +25,7 @@ import ujaen.spslidar.repositories.GridCellRepositoryInterface;
 public class GridCellRepositoryMongo implements GridCellRepositoryInterface {
 
     private static final String collectionExtension = "_grid";
+    private static final int bulkWriteBatchSize = 1000;
     private ReactiveMongoTemplate reactiveMongoTemplate;
 
     public GridCellRepositoryMongo(ReactiveMongoTemplate reactiveMongoTemplate) {
@@ -33,6 +40,30 @@ public class GridCellRepositoryMongo implements GridCellRepositoryInterface {
                 .map(GridCellDBDTO::gridFromDTO);
     }
 
+    /**
+     * Upserts every cell adding the dataset to its list with $addToSet, so concurrent insertions of datasets
+     * that share cells don't overwrite each other. Cells are sent in unordered bulk writes of a fixed size.
+     */
+    @Override
+    public Mono<Long> addDatasetToGridCells(String workspaceName, String datasetName, Iterable<GeorefBox> gridCells) {
+        String collection = CollectionsManager.cleanCollectionName(workspaceName) + collectionExtension;
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        BulkWriteOptions unordered = new BulkWriteOptions().ordered(false);
+
+        return Flux.fromIterable(gridCells)
+                .<WriteModel<Document>>map(gridCell -> new UpdateOneModel<>(
+                        new Document("_id", reactiveMongoTemplate.getConverter()
+                                .convertToMongoType(gridCell, ClassTypeInformation.from(GeorefBox.class))),
+                        new Document("$addToSet", new Document("datasets", datasetName))
+                                .append("$setOnInsert", new Document("UTMZone", gridCell.getSouthWestBottom().getZone())),
+                        upsert))
+                .buffer(bulkWriteBatchSize)
+                .concatMap(models -> reactiveMongoTemplate.getCollection(collection)
+                        .flatMap(mongoCollection -> Mono.from(mongoCollection.bulkWrite(models, unordered))))
+                .map(result -> (long) result.getUpserts().size() + result.getModifiedCount())
+                .reduce(0L, Long::sum);
+    }
+
     @Override
     public Mono<Boolean> removeDatasetFromGridCell(String workspaceName, String datasetName, GeorefBox gridCellGeorefBox) {
         String collection = CollectionsManager.cleanCollectionName(workspaceName) + collectionExtension;
@@ -57,6 +88,13 @@ public class GridCellRepositoryMongo implements GridCellRepositoryInterface {
                 .map(GridCellDBDTO::gridFromDTO);
     }
 
+    @Override
+    public Flux<GridCell> findAll(String workspaceName) {
+        String collection = CollectionsManager.cleanCollectionName(workspaceName) + collectionExtension;
+
+        return reactiveMongoTemplate.findAll(GridCellDBDTO.class, collection)
+                .map(GridCellDBDTO::gridFromDTO);
+    }
 
     public Flux<String> findDatasetsByGrid(String workspaceName, GridCell gridCell) {
         String collection = CollectionsManager.cleanCollectionName(workspaceName) + collectionExtension;
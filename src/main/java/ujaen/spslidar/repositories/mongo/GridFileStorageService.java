@@ -1,6 +1,8 @@
 package ujaen.spslidar.repositories.mongo;
 
 
+import org.bson.Document;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
@@ -13,17 +15,26 @@ import org.springframework.core.io.ResourceLoader;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
 import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
 import org.springframework.data.mongodb.gridfs.ReactiveGridFsUpload;
 import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ujaen.spslidar.entities.AbstractDatablock;
 import ujaen.spslidar.entities.Dataset;
 import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.StoredFile;
 import ujaen.spslidar.repositories.FileRepositoryInterface;
 import ujaen.spslidar.services.tools.LazReaderInterface;
 
@@ -32,6 +43,11 @@ public class GridFileStorageService implements FileRepositoryInterface {
 
     Logger logger = LoggerFactory.getLogger(GridFileStorageService.class);
 
+    private static final String chunksCollection = "fs.chunks";
+    //Bytes of the chunks requested in advance while a file is being sent
+    private static final int readAheadBytes = 8 * 1024 * 1024;
+    private static final int maxStoredFiles = 100000;
+
     @Value("${persistence.chunkSize}")
     int chunkSize;
 
@@ -39,33 +55,105 @@ public class GridFileStorageService implements FileRepositoryInterface {
 
     ReactiveGridFsTemplate reactiveGridFsTemplate;
 
+    ReactiveMongoTemplate reactiveMongoTemplate;
+
     LazReaderInterface lazReaderInterface;
 
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    //Descriptions of the files recently requested, least recently used first
+    private final Map<ObjectId, StoredFile> storedFiles = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ObjectId, StoredFile> eldest) {
+                    return size() > maxStoredFiles;
+                }
+            });
+
     @Autowired
-    public GridFileStorageService(ResourceLoader resourceLoader, ReactiveGridFsTemplate reactiveGridFsTemplate, @Qualifier("lazReaderServicePylasImplementation") LazReaderInterface lazReaderInterface) {
+    public GridFileStorageService(ResourceLoader resourceLoader, ReactiveGridFsTemplate reactiveGridFsTemplate, ReactiveMongoTemplate reactiveMongoTemplate, @Qualifier("lazReaderServicePylasImplementation") LazReaderInterface lazReaderInterface) {
         this.resourceLoader = resourceLoader;
         this.reactiveGridFsTemplate = reactiveGridFsTemplate;
+        this.reactiveMongoTemplate = reactiveMongoTemplate;
         this.lazReaderInterface = lazReaderInterface;
     }
 
     /**
-     * Returns the GridFsResource associated to the workspace, dataset and id indicated
+     * Returns the content of a file, reading its chunks directly. Chunks are requested a few at a time,
+     * so the first one is sent while the next ones are being read
      *
      * @param objectId
      * @return
      */
     @Override
     public Flux<DataBuffer> getFile(ObjectId objectId) {
+        StoredFile storedFile = storedFiles.get(objectId);
+        int fileChunkSize = storedFile == null ? chunkSize : storedFile.getChunkSize();
+
         Query query = new Query();
-        query.addCriteria(Criteria.where("_id").is(objectId));
+        query.addCriteria(Criteria.where("files_id").is(objectId));
+        query.with(Sort.by("n"));
+        query.fields().include("data");
+        query.cursorBatchSize(Math.max(1, readAheadBytes / fileChunkSize));
 
-        return reactiveGridFsTemplate.findFirst(query)
-                .flatMap(reactiveGridFsTemplate::getResource)
-                .flatMapMany(ReactiveGridFsResource::getContent)
+        return reactiveMongoTemplate.find(query, Document.class, chunksCollection)
+                .<DataBuffer>map(chunk -> bufferFactory.wrap(chunkData(chunk)))
                 .name("db.file.get")
                 .metrics();
     }
 
+    /**
+     * Returns part of a file, reading only the chunks that contain it
+     *
+     * @param file
+     * @param start
+     * @param end
+     * @return
+     */
+    @Override
+    public Flux<DataBuffer> getFile(StoredFile file, long start, long end) {
+        int firstChunk = (int) (start / file.getChunkSize());
+        int lastChunk = (int) (end / file.getChunkSize());
+
+        Query query = new Query();
+        query.addCriteria(Criteria.where("files_id").is(file.getObjectId()).and("n").gte(firstChunk).lte(lastChunk));
+        query.with(Sort.by("n"));
+        query.fields().include("n").include("data");
+        query.cursorBatchSize(Math.max(1, readAheadBytes / file.getChunkSize()));
+
+        return reactiveMongoTemplate.find(query, Document.class, chunksCollection)
+                .<DataBuffer>map(chunk -> {
+                    byte[] data = chunkData(chunk);
+                    long chunkStart = (long) chunk.getInteger("n") * file.getChunkSize();
+                    int from = (int) Math.max(0, start - chunkStart);
+                    int to = (int) Math.min(data.length, end - chunkStart + 1);
+                    return bufferFactory.wrap(ByteBuffer.wrap(data, from, to - from).slice());
+                })
+                .name("db.file.range")
+                .metrics();
+    }
+
+    /**
+     * Returns the description of a file. Files don't change once stored, so descriptions are kept
+     * in memory until the file is removed
+     *
+     * @param objectId
+     * @return
+     */
+    @Override
+    public Mono<StoredFile> findFile(ObjectId objectId) {
+        StoredFile storedFile = storedFiles.get(objectId);
+        if (storedFile != null)
+            return Mono.just(storedFile);
+
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(objectId));
+
+        return reactiveGridFsTemplate.findFirst(query)
+                .map(file -> new StoredFile(file.getObjectId(), file.getLength(), file.getChunkSize(), file.getUploadDate()))
+                .doOnNext(file -> storedFiles.put(objectId, file));
+    }
+
 
     /**
      * Adds a file to GridFS. This file will be identified by the datablock and dataset passed
@@ -96,9 +184,47 @@ public class GridFileStorageService implements FileRepositoryInterface {
                 });
     }
 
+    @Override
+    public Mono<ObjectId> storeFile(Path file) {
+        Publisher<DataBuffer> content = DataBufferUtils.read(file, new DefaultDataBufferFactory(), 1024 * 1024);
+
+        ReactiveGridFsUpload reactiveGridFsUpload =
+                ReactiveGridFsUpload.fromPublisher(content)
+                        .id(new ObjectId())
+                        .filename(file.getFileName().toString())
+                        .chunkSize(chunkSize)
+                        .build();
+
+        return reactiveGridFsTemplate.store(reactiveGridFsUpload)
+                .map(o -> (ObjectId) o);
+    }
+
     @Override
     public Flux<DataBuffer> getFile(String workspaceName, String datasetName, int node, GeorefBox box) {
         return Flux.error(new RuntimeException("Method not available for Mongo implementation"));
 
     }
+
+    @Override
+    public Flux<StoredFile> findFilesUploadedBefore(Date date) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where("uploadDate").lt(date));
+
+        return reactiveGridFsTemplate.find(query)
+                .map(file -> new StoredFile(file.getObjectId(), file.getLength(), file.getChunkSize(), file.getUploadDate()));
+    }
+
+    @Override
+    public Mono<Void> deleteFile(ObjectId objectId) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(objectId));
+
+        return reactiveGridFsTemplate.delete(query)
+                .doOnSuccess(unused -> storedFiles.remove(objectId));
+    }
+
+    private static byte[] chunkData(Document chunk) {
+        Object data = chunk.get("data");
+        return data instanceof Binary ? ((Binary) data).getData() : (byte[]) data;
+    }
 }
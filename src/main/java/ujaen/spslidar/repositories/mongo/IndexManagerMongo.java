@@ -1,27 +1,134 @@
 package ujaen.spslidar.repositories.mongo;
 
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexInfo;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import ujaen.spslidar.DTOs.http.IndexUsageDTO;
 import ujaen.spslidar.repositories.CollectionsManager;
+import ujaen.spslidar.repositories.IndexManagerInterface;
 
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Index manager for Mongo. Each workspace owns a collection for its datablocks, datasets and grid cells,
+ * so the indexes are created per workspace, both on startup and when a new workspace is added.
+ */
 @Component
-public class IndexManagerMongo {
+public class IndexManagerMongo implements IndexManagerInterface {
+
+    private static final String datablocksExtension = "_datablocks";
+    private static final String datasetsExtension = "_datasets";
+    private static final String gridExtension = "_grid";
 
-    private static final String collectionExtension = "_datablocks";
+    Logger logger = LoggerFactory.getLogger(IndexManagerMongo.class);
 
     @Autowired
     private ReactiveMongoTemplate reactiveMongoTemplate;
 
-    public Mono<String> createIndex(String workspace){
-        String collection = CollectionsManager.cleanCollectionName(workspace)+collectionExtension;
-        return this.reactiveMongoTemplate.indexOps(collection)
-                .ensureIndex(new Index().on("datasetName", Sort.Direction.ASC)
-                        .on("node", Sort.Direction.ASC));
+    /**
+     * Indexes needed by the queries of each repository, grouped by the extension of the collection
+     * they belong to
+     */
+    private static final Map<String, List<Index>> indexes = Map.of(
+            //Node lookups filter by dataset, node and cell (embedded document equality).
+            //Its prefix also serves the queries by dataset and by dataset and node
+            datablocksExtension, List.of(
+                    new Index().named("dataset_node_cell")
+                            .on("datasetName", Sort.Direction.ASC)
+                            .on("node", Sort.Direction.ASC)
+                            .on("cell", Sort.Direction.ASC),
+                    //Region queries over the bounds array of the compact layout, optionally capped by depth
+                    new Index().named("dataset_zone_depth_bounds_array")
+                            .on("datasetName", Sort.Direction.ASC)
+                            .on("zone", Sort.Direction.ASC)
+                            .on("depth", Sort.Direction.ASC)
+                            .on("bounds.0", Sort.Direction.ASC)
+                            .on("bounds.1", Sort.Direction.ASC)
+                            .on("bounds.3", Sort.Direction.ASC)
+                            .on("bounds.4", Sort.Direction.ASC),
+                    //Same queries over the flat node bounds of the previous layout, until it is migrated
+                    new Index().named("dataset_zone_depth_bounds")
+                            .on("datasetName", Sort.Direction.ASC)
+                            .on("zone", Sort.Direction.ASC)
+                            .on("depth", Sort.Direction.ASC)
+                            .on("minEasting", Sort.Direction.ASC)
+                            .on("minNorthing", Sort.Direction.ASC)
+                            .on("maxEasting", Sort.Direction.ASC)
+                            .on("maxNorthing", Sort.Direction.ASC),
+                    //Reference checks of the garbage collector
+                    new Index().named("file")
+                            .on("gridFileId", Sort.Direction.ASC)),
+            //Bounding box range scans of findDatasetsByGeorefBox
+            gridExtension, List.of(
+                    new Index().named("zone_bbox")
+                            .on("UTMZone", Sort.Direction.ASC)
+                            .on("_id.southWestBottom.easting", Sort.Direction.ASC)
+                            .on("_id.southWestBottom.northing", Sort.Direction.ASC)),
+            //Temporal queries over the datasets of a workspace
+            datasetsExtension, List.of(
+                    new Index().named("date")
+                            .on("date", Sort.Direction.ASC))
+    );
+
+    @Override
+    public Mono<Void> ensureIndexes(String workspace) {
+        return Flux.fromIterable(indexes.entrySet())
+                .flatMap(entry -> Flux.fromIterable(entry.getValue())
+                        .concatMap(index -> reactiveMongoTemplate
+                                .indexOps(getCollectionName(workspace, entry.getKey()))
+                                .ensureIndex(index)))
+                .then();
+    }
+
+    @Override
+    public Mono<Boolean> verifyIndexes(String workspace) {
+        return Flux.fromIterable(indexes.entrySet())
+                .flatMap(entry -> reactiveMongoTemplate
+                        .indexOps(getCollectionName(workspace, entry.getKey()))
+                        .getIndexInfo()
+                        .map(IndexInfo::getName)
+                        .collectList()
+                        .map(existing -> entry.getValue().stream()
+                                .map(index -> (String) index.getIndexOptions().get("name"))
+                                .filter(name -> !existing.contains(name))
+                                .collect(Collectors.toList()))
+                        .doOnNext(missing -> {
+                            if (!missing.isEmpty())
+                                logger.warn("Missing indexes in " + getCollectionName(workspace, entry.getKey()) + ": " + missing);
+                        }))
+                .all(List::isEmpty);
+    }
+
+    @Override
+    public Flux<IndexUsageDTO> getIndexUsage(String workspace) {
+        Aggregation indexStats = Aggregation.newAggregation(context -> new Document("$indexStats", new Document()));
+
+        return Flux.fromIterable(indexes.keySet())
+                .map(extension -> getCollectionName(workspace, extension))
+                .concatMap(collection -> reactiveMongoTemplate
+                        .aggregate(indexStats, collection, Document.class)
+                        .map(document -> {
+                            Document accesses = document.get("accesses", Document.class);
+                            Number operations = accesses.get("ops", Number.class);
+                            return new IndexUsageDTO(collection, document.getString("name"),
+                                    operations.longValue(), accesses.get("since", Date.class));
+                        }));
+    }
 
+    private String getCollectionName(String workspace, String extension) {
+        return CollectionsManager.cleanCollectionName(workspace) + extension;
     }
 
 }
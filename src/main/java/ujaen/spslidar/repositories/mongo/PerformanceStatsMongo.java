@@ -1,12 +1,12 @@
 package ujaen.spslidar.repositories.mongo;
 
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Mono;
-import ujaen.spslidar.DTOs.database.mongo.DatablockDBDTO;
 import ujaen.spslidar.repositories.CollectionsManager;
 import ujaen.spslidar.repositories.PerformanceStatsServiceInterface;
 
@@ -27,7 +27,7 @@ public class PerformanceStatsMongo implements PerformanceStatsServiceInterface {
         Query query = new Query();
         query.addCriteria(Criteria.where("datasetName").is(dataset));
 
-        return reactiveMongoTemplate.find(query, DatablockDBDTO.class, collection).count();
+        return reactiveMongoTemplate.count(query, collection);
     }
 
     @Override
@@ -36,8 +36,10 @@ public class PerformanceStatsMongo implements PerformanceStatsServiceInterface {
         Query query = new Query();
         query.addCriteria(Criteria.where("datasetName").is(dataset));
 
-        return reactiveMongoTemplate.find(query, DatablockDBDTO.class, collection)
-                .map(DatablockDBDTO::getDepth)
+        query.fields().include("depth");
+
+        return reactiveMongoTemplate.find(query, Document.class, collection)
+                .map(document -> document.getInteger("depth"))
                 .reduce(((integer, integer2) -> {
                     if (integer > integer2) {
                         return integer;
@@ -8,6 +8,10 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
 import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import reactor.core.scheduler.Schedulers;
+import ujaen.spslidar.entities.Workspace;
+import ujaen.spslidar.repositories.IndexManagerInterface;
+import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
 
 
 /**
@@ -61,5 +65,33 @@ public class ReactiveMongoConfiguration {
         };
     }
 
+    /**
+     * Creates and verifies the indexes of the workspaces that already exist. Workspaces created
+     * afterwards get their indexes when they are added
+     */
+    @Bean
+    @Order(3)
+    CommandLineRunner ensureIndexes(IndexManagerInterface indexManager,
+                                    WorkspaceRepositoryInterface workspaceRepositoryInterface) {
+        return args -> workspaceRepositoryInterface.findAll()
+                .map(Workspace::getName)
+                .concatMap(workspace -> indexManager.ensureIndexes(workspace)
+                        .then(indexManager.verifyIndexes(workspace)))
+                .then()
+                .block();
+    }
+
+    /**
+     * Migrates in the background the datablocks stored with the previous layout, so the startup
+     * doesn't wait for it
+     */
+    @Bean
+    @Order(4)
+    @ConditionalOnExpression("${database.migrate-datablocks:true}")
+    CommandLineRunner migrateDatablocks(DatablockSchemaMigrator datablockSchemaMigrator) {
+        return args -> datablockSchemaMigrator.migrate()
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe();
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,20 @@
+package ujaen.spslidar.services.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+import ujaen.spslidar.entities.StoredFile;
+
+/**
+ * File of a datablock found by a lookup: its description, known before its content is read, and
+ * the content itself. The description is null if the file repository doesn't provide it.
+ */
+@Getter
+@AllArgsConstructor
+public class DatablockFile {
+
+    private final StoredFile file;
+    private final Flux<DataBuffer> content;
+
+}
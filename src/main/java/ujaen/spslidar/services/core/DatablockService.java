@@ -41,25 +41,16 @@ public interface DatablockService {
     Mono<Boolean> addDataToDataset(String workspaceName, String datasetName, Flux<FilePart> files);
 
 
-    /**
-     * Returns the complete dataset, either merged in one single file or maintaining the
-     * file structure defined in the storage of the system
-     *
-     * @param workspaceName
-     * @param datasetName
-     * @return
-     */
-    Flux<DataBuffer> getCompleteDataset(String workspaceName, String datasetName);
-
     /**
      *
      * @param workspaceName
      * @param datasetName
      * @param southWest
      * @param northEast
+     * @param levelOfDetail limits to the levels of the octrees returned
      * @return
      */
-    Flux<DatablockDTO> getDatablocksByRegion(String workspaceName, String datasetName, String southWest, String northEast);
+    Flux<DatablockDTO> getDatablocksByRegion(String workspaceName, String datasetName, String southWest, String northEast, LevelOfDetail levelOfDetail);
 
     /**
      *
@@ -67,9 +58,14 @@ public interface DatablockService {
      * @param datasetName
      * @param southWest
      * @param northEast
+     * @param merged
+     * @param clip only the points inside the region are returned, in a single merged file
+     * @param levelOfDetail limits to the levels of the octrees returned
+     * @param pointFormat format of the points, the binary one sends a block for each datablock and is never merged
      * @return
      */
-    Flux<DataBuffer> getFilesByRegion(String workspaceName, String datasetName, String southWest, String northEast, Boolean merged);
+    Flux<DataBuffer> getFilesByRegion(String workspaceName, String datasetName, String southWest, String northEast,
+                                      Boolean merged, Boolean clip, LevelOfDetail levelOfDetail, PointFormat pointFormat);
 
 
 
@@ -1,9 +1,7 @@
 package ujaen.spslidar.services.core;
 
-import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
@@ -11,23 +9,41 @@ import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ujaen.spslidar.DTOs.http.DatablockDTO;
-import ujaen.spslidar.Exceptions.DifferentUTMZone;
+import ujaen.spslidar.DTOs.http.DatablockKeyDTO;
+import ujaen.spslidar.DTOs.http.DatasetDatablockDTO;
+import ujaen.spslidar.Exceptions.BatchTooLargeException;
+import ujaen.spslidar.Exceptions.ElementNotFound;
 import ujaen.spslidar.entities.AbstractDatablock;
 import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.Dataset;
 import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.StoredFile;
 import ujaen.spslidar.repositories.DatablockRepositoryInterface;
 import ujaen.spslidar.repositories.DatasetRepositoryInterface;
 import ujaen.spslidar.repositories.FileRepositoryInterface;
 import ujaen.spslidar.repositories.mongo.GridFileStorageService;
-import ujaen.spslidar.services.tools.LasToolsService;
-import ujaen.spslidar.services.tools.SystemFileStorageService;
-
-import java.io.IOException;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import ujaen.spslidar.services.core.cache.ChildPrefetcher;
+import ujaen.spslidar.services.core.cache.OctreeTopology;
+import ujaen.spslidar.services.core.cache.OctreeTopologyCache;
+import ujaen.spslidar.services.core.cache.PayloadCache;
+import ujaen.spslidar.services.core.cache.RegionQueryCache;
+import ujaen.spslidar.services.core.cache.RequestCoalescer;
+import ujaen.spslidar.services.tools.BinaryPointEncoder;
+import ujaen.spslidar.services.tools.BlobDiskCache;
+import ujaen.spslidar.services.tools.LasStreamMerger;
+import ujaen.spslidar.utils.geoconverter.GeoConverter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 
 /**
@@ -38,23 +54,50 @@ public class DatablockServiceCommonUtils {
 
     Logger logger = LoggerFactory.getLogger(DatablockServiceCommonUtils.class);
 
+    //Datablocks that a batch can request
+    private static final int maxBatchSize = 256;
+    //Files of a batch read at the same time
+    private static final int batchConcurrency = 8;
+    //Index of the key and length of the payload that precede every part of a batch
+    private static final int batchPartHeaderBytes = Integer.BYTES + Long.BYTES;
+    //Datasets whose octrees are traversed at the same time by a query over a workspace
+    private static final int datasetConcurrency = 4;
+
     private DatasetRepositoryInterface datasetRepositoryInterface;
     private DatablockRepositoryInterface datablockRepositoryInterface;
     private FileRepositoryInterface fileRepositoryInterface;
-    private SystemFileStorageService systemFileStorageService;
-    private LasToolsService lasToolsService;
+    private LasStreamMerger lasStreamMerger;
+    private OctreeTopologyCache octreeTopologyCache;
+    private BlobDiskCache blobDiskCache;
+    private PayloadCache payloadCache;
+    private BinaryPointEncoder binaryPointEncoder;
+    private RegionQueryCache regionQueryCache;
+    private RequestCoalescer requestCoalescer;
+    private ChildPrefetcher childPrefetcher;
 
     public DatablockServiceCommonUtils(DatasetRepositoryInterface datasetRepositoryInterface,
                                        DatablockRepositoryInterface datablockRepositoryInterface,
                                        FileRepositoryInterface fileRepositoryInterface,
-                                       SystemFileStorageService systemFileStorageService,
-                                       LasToolsService lasToolsService) {
+                                       LasStreamMerger lasStreamMerger,
+                                       OctreeTopologyCache octreeTopologyCache,
+                                       BlobDiskCache blobDiskCache,
+                                       PayloadCache payloadCache,
+                                       BinaryPointEncoder binaryPointEncoder,
+                                       RegionQueryCache regionQueryCache,
+                                       RequestCoalescer requestCoalescer,
+                                       ChildPrefetcher childPrefetcher) {
 
         this.datablockRepositoryInterface = datablockRepositoryInterface;
         this.fileRepositoryInterface = fileRepositoryInterface;
-        this.systemFileStorageService = systemFileStorageService;
-        this.lasToolsService = lasToolsService;
+        this.lasStreamMerger = lasStreamMerger;
         this.datasetRepositoryInterface = datasetRepositoryInterface;
+        this.octreeTopologyCache = octreeTopologyCache;
+        this.blobDiskCache = blobDiskCache;
+        this.payloadCache = payloadCache;
+        this.binaryPointEncoder = binaryPointEncoder;
+        this.regionQueryCache = regionQueryCache;
+        this.requestCoalescer = requestCoalescer;
+        this.childPrefetcher = childPrefetcher;
     }
 
     /**
@@ -68,7 +111,10 @@ public class DatablockServiceCommonUtils {
     public Mono<Boolean> dataBlockExists(String workspaceName, String datasetName, int id, String southWest, String northEast) {
         GeorefBox grid = new GeorefBox(southWest, northEast);
 
-        return datablockRepositoryInterface.existsByWorkspaceAndDatasetAndNodeAndGridCell(workspaceName, datasetName, id, grid);
+        return octreeTopologyCache.get(workspaceName, datasetName)
+                .map(topology -> topology.find(grid, id) >= 0)
+                .switchIfEmpty(Mono.defer(() -> datablockRepositoryInterface
+                        .existsByWorkspaceAndDatasetAndNodeAndGridCell(workspaceName, datasetName, id, grid)));
     }
 
     /**
@@ -89,18 +135,45 @@ public class DatablockServiceCommonUtils {
         Flux<AbstractDatablock> datablockFlux;
 
         if (southWest.equals("") || northEast.equals("")) {
-            datablockFlux = datablockRepositoryInterface
-                    .findDatablockByWorkspaceAndDatasetAndNode(workspaceName, datasetName, id);
+            datablockFlux = octreeTopologyCache.get(workspaceName, datasetName)
+                    .map(topology -> topology.findAll(id).stream()
+                            .<AbstractDatablock>map(topology::getDatablock)
+                            .collect(Collectors.toList()))
+                    .switchIfEmpty(Mono.defer(() -> datablockRepositoryInterface
+                            .findDatablockByWorkspaceAndDatasetAndNode(workspaceName, datasetName, id)
+                            .collectList()))
+                    .flatMapMany(Flux::fromIterable);
         } else {
-            GeorefBox grid = new GeorefBox(southWest, northEast);
-            datablockFlux = Flux.from(datablockRepositoryInterface
-                    .findDatablockByWorkspaceAndDatasetAndNodeAndGridCell(workspaceName, datasetName, id, grid));
+            datablockFlux = Flux.from(findDatablock(workspaceName, datasetName, id, new GeorefBox(southWest, northEast)));
         }
 
         return datablockFlux.map(DatablockDTO::new);
 
     }
 
+    /**
+     * Looks for a single datablock, first in the cached topology of the dataset and then in the database.
+     * A cached topology is complete, so a node that isn't found in it doesn't exist. Concurrent lookups of the
+     * same datablock in the database share the same query
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param id
+     * @param grid
+     * @return
+     */
+    private Mono<AbstractDatablock> findDatablock(String workspaceName, String datasetName, int id, GeorefBox grid) {
+        return octreeTopologyCache.get(workspaceName, datasetName)
+                .map(topology -> {
+                    int position = topology.find(grid, id);
+                    return Optional.<AbstractDatablock>ofNullable(position < 0 ? null : topology.getDatablock(position));
+                })
+                .switchIfEmpty(Mono.defer(() -> requestCoalescer.mono("datablock", workspaceName, datasetName, Arrays.asList(id, grid),
+                        () -> datablockRepositoryInterface.findDatablockByWorkspaceAndDatasetAndNodeAndGridCell(workspaceName, datasetName, id, grid))
+                        .map(Optional::of)))
+                .flatMap(Mono::justOrEmpty);
+    }
+
     /**
      * Get the file associated to a datablock.
      * @param workspaceName
@@ -111,40 +184,183 @@ public class DatablockServiceCommonUtils {
      * @return
      */
     public Flux<DataBuffer> getDatablockFile(String workspaceName, String datasetName, int id, String southWest, String northEast) {
+        return findDatablockFile(workspaceName, datasetName, id, southWest, northEast)
+                .flatMapMany(DatablockFile::getContent);
+    }
+
+    /**
+     * Finds the file associated to a datablock with a single lookup of the datablock, which fails with
+     * ElementNotFound if it doesn't exist. The description of the file is cached by the file repository,
+     * and the content is read from the payload cache or streamed directly from the stored chunks, sharing
+     * the reads in progress of the same file. Once it is sent, the files of its children may be prefetched
+     * @param workspaceName
+     * @param datasetName
+     * @param id
+     * @param southWest
+     * @param northEast
+     * @return
+     */
+    public Mono<DatablockFile> findDatablockFile(String workspaceName, String datasetName, int id, String southWest, String northEast) {
         GeorefBox grid = new GeorefBox(southWest, northEast);
 
         if (fileRepositoryInterface instanceof GridFileStorageService) {
-            Mono<Datablock> datablock = datablockRepositoryInterface
-                    .findDatablockByWorkspaceAndDatasetAndNodeAndGridCell(workspaceName, datasetName, id, grid)
-                    .cast(Datablock.class);
-
-            return datablock
-                    .map(Datablock::getObjectId)
-                    .flatMapMany(objectId -> fileRepositoryInterface.getFile(objectId));
+            return findDatablock(workspaceName, datasetName, id, grid)
+                    .switchIfEmpty(Mono.error(new ElementNotFound()))
+                    .flatMap(datablock -> requestCoalescer.mono("file", workspaceName, datasetName, datablock.getObjectId(),
+                                    () -> fileRepositoryInterface.findFile(datablock.getObjectId()))
+                            .switchIfEmpty(Mono.error(new ElementNotFound()))
+                            .map(file -> new DatablockFile(file, readPayload(workspaceName, datasetName, datablock))));
 
         } else {
-            return fileRepositoryInterface.getFile(workspaceName, datasetName, id, grid);
+            return dataBlockExists(workspaceName, datasetName, id, southWest, northEast)
+                    .flatMap(exists -> exists
+                            ? Mono.just(new DatablockFile(null, fileRepositoryInterface.getFile(workspaceName, datasetName, id, grid)))
+                            : Mono.error(new ElementNotFound()));
         }
     }
 
 
     /**
-     * Returns a file with the complete dataset merged in a single file
+     * Reads the file of a datablock stored in GridFS from the payload cache, or from the stored chunks sharing
+     * the reads in progress of the same file, and prefetches the files of its children once it is sent
      * @param workspaceName
      * @param datasetName
+     * @param datablock
      * @return
      */
-    public Flux<DataBuffer> getCompleteDataset(String workspaceName, String datasetName) {
+    private Flux<DataBuffer> readPayload(String workspaceName, String datasetName, AbstractDatablock datablock) {
+        return childPrefetcher.serve(workspaceName, datasetName, datablock,
+                payloadCache.get(workspaceName, datasetName, datablock,
+                        () -> requestCoalescer.buffers("payload", workspaceName, datasetName, datablock.getObjectId(),
+                                () -> fileRepositoryInterface.getFile(datablock.getObjectId()))));
+    }
 
-        Flux<ObjectId> files = datablockRepositoryInterface
-                .findAllDatablocksInDataset(workspaceName, datasetName)
-                .cast(Datablock.class)
-                .map(Datablock::getObjectId);
+    /**
+     * Returns the points of a datablock in the binary format
+     * @param workspaceName
+     * @param datasetName
+     * @param id
+     * @param southWest
+     * @param northEast
+     * @param pointFormat binary format requested
+     * @return
+     */
+    public Flux<DataBuffer> getDatablockPoints(String workspaceName, String datasetName, int id, String southWest, String northEast,
+                                               PointFormat pointFormat) {
+        return findDatablock(workspaceName, datasetName, id, new GeorefBox(southWest, northEast))
+                .switchIfEmpty(Mono.error(new ElementNotFound()))
+                .flatMapMany(datablock -> binaryPointEncoder.encode(Collections.singletonList(datablock), pointFormat, null));
+    }
 
-        return mergeFiles(files, workspaceName, datasetName);
+    /**
+     * Returns part of the file of a datablock found by findDatablockFile, from the payload cache if it is there
+     * or reading only the stored chunks that contain it otherwise
+     * @param file
+     * @param start position of the first byte
+     * @param end position of the last byte, included
+     * @return
+     */
+    public Flux<DataBuffer> getDatablockFileRange(StoredFile file, long start, long end) {
+        return payloadCache.getRange(file.getObjectId(), start, end)
+                .map(Flux::just)
+                .orElseGet(() -> fileRepositoryInterface.getFile(file, start, end));
+    }
 
+    /**
+     * Returns the files of several datablocks in a single stream. The datablocks are looked up together,
+     * in the cached topology of the dataset or with a single query, and their files are read a few at a time
+     * and sent as each one is complete, so the parts don't follow the order of the keys. Every part starts
+     * with the index of its key in the list (int) and the length of the file (long), both little-endian like
+     * the binary point format, followed by the file. Datablocks that don't exist are sent with length -1 and
+     * no file. The files are read like those of single datablocks, through the payload cache.
+     * @param workspaceName
+     * @param datasetName
+     * @param keys datablocks requested, at most 256
+     * @return Flux with the parts, BatchTooLargeException if there are too many keys
+     */
+    public Flux<DataBuffer> getDatablockFiles(String workspaceName, String datasetName, List<DatablockKeyDTO> keys) {
+        if (keys.size() > maxBatchSize)
+            return Flux.error(new BatchTooLargeException());
+
+        List<GeorefBox> grids = keys.stream()
+                .map(key -> new GeorefBox(key.getSouthWest(), key.getNorthEast()))
+                .collect(Collectors.toList());
+
+        return findDatablocks(workspaceName, datasetName, keys, grids)
+                .flatMapMany(datablocks -> Flux.range(0, keys.size())
+                        .flatMap(index -> readBatchPart(workspaceName, datasetName, index, keys.get(index),
+                                grids.get(index), datablocks.get(index)), batchConcurrency))
+                .flatMapIterable(part -> part);
     }
 
+    /**
+     * Looks for the datablocks of a batch, first in the cached topology of the dataset and then in the database
+     * @param workspaceName
+     * @param datasetName
+     * @param keys
+     * @param grids grid cells of the keys
+     * @return the datablocks found, by the index of their key
+     */
+    private Mono<Map<Integer, AbstractDatablock>> findDatablocks(String workspaceName, String datasetName,
+                                                                 List<DatablockKeyDTO> keys, List<GeorefBox> grids) {
+        return octreeTopologyCache.get(workspaceName, datasetName)
+                .map(topology -> {
+                    Map<Integer, AbstractDatablock> datablocks = new HashMap<>();
+                    for (int index = 0; index < keys.size(); index++) {
+                        int position = topology.find(grids.get(index), keys.get(index).getId());
+                        if (position >= 0)
+                            datablocks.put(index, topology.getDatablock(position));
+                    }
+                    return datablocks;
+                })
+                .switchIfEmpty(Mono.defer(() -> datablockRepositoryInterface
+                        .findDatablocksByWorkspaceAndDatasetAndNodesAndGridCells(workspaceName, datasetName,
+                                keys.stream().map(DatablockKeyDTO::getId).collect(Collectors.toSet()), new HashSet<>(grids))
+                        .collectList()
+                        .map(found -> {
+                            Map<Integer, AbstractDatablock> datablocks = new HashMap<>();
+                            for (int index = 0; index < keys.size(); index++) {
+                                for (AbstractDatablock datablock : found) {
+                                    if (datablock.getId() == keys.get(index).getId()
+                                            && datablock.getUTMZoneLocalGrid().equals(grids.get(index)))
+                                        datablocks.put(index, datablock);
+                                }
+                            }
+                            return datablocks;
+                        })));
+    }
+
+    /**
+     * Reads a complete part of a batch, so that the parts are not interleaved
+     * @param workspaceName
+     * @param datasetName
+     * @param index index of the key in the batch
+     * @param key
+     * @param grid grid cell of the key
+     * @param datablock datablock of the key, null if it doesn't exist
+     * @return header and file of the part
+     */
+    private Mono<List<DataBuffer>> readBatchPart(String workspaceName, String datasetName, int index,
+                                                 DatablockKeyDTO key, GeorefBox grid, AbstractDatablock datablock) {
+        if (datablock == null)
+            return Mono.just(Collections.singletonList(batchPartHeader(index, -1)));
+
+        Flux<DataBuffer> content = fileRepositoryInterface instanceof GridFileStorageService
+                ? readPayload(workspaceName, datasetName, datablock)
+                : fileRepositoryInterface.getFile(workspaceName, datasetName, key.getId(), grid);
+
+        return DataBufferUtils.join(content)
+                .map(file -> Arrays.asList(batchPartHeader(index, file.readableByteCount()), file))
+                .defaultIfEmpty(Collections.singletonList(batchPartHeader(index, -1)));
+    }
+
+    private static DataBuffer batchPartHeader(int index, long length) {
+        return new DefaultDataBufferFactory().wrap(ByteBuffer.allocate(batchPartHeaderBytes)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(index)
+                .putLong(length)
+                .flip());
+    }
 
     /**
      * Returns all the datablocks that overlap the bounding box built with the passed coordinates
@@ -154,49 +370,167 @@ public class DatablockServiceCommonUtils {
      * @param northEast
      * @return
      */
-    public Flux<DatablockDTO> getDatablocksByRegion(String workspaceName, String datasetName, String southWest, String northEast) {
-        return getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast)
+    public Flux<DatablockDTO> getDatablocksByRegion(String workspaceName, String datasetName, String southWest, String northEast, LevelOfDetail levelOfDetail) {
+        return getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast, levelOfDetail)
                 .map(DatablockDTO::new);
 
     }
 
     /**
-     * Return all the files that overlap the bounding box built with the passed coordinates
+     * Returns the datablocks of several datasets that overlap the bounding box built with the passed coordinates,
+     * tagged with their dataset and its date of acquisition. The octrees of a limited number of datasets are
+     * traversed at the same time, and their datablocks are returned as they are found
+     *
+     * @param workspaceName
+     * @param datasets      datasets of the workspace, all of them with data
+     * @param southWest
+     * @param northEast
+     * @param levelOfDetail applied to every dataset on its own
+     * @return
+     */
+    public Flux<DatasetDatablockDTO> getDatablocksByRegion(String workspaceName, List<Dataset> datasets, String southWest,
+                                                           String northEast, LevelOfDetail levelOfDetail) {
+        return Flux.fromIterable(datasets)
+                .flatMap(dataset -> getOverlappingDatablocks(workspaceName, dataset.getDatasetName(), southWest, northEast, levelOfDetail)
+                        .map(datablock -> new DatasetDatablockDTO(dataset.getDatasetName(), dataset.getDate(),
+                                new DatablockDTO(datablock))), datasetConcurrency);
+    }
+
+    /**
+     * Merges in a single LAS file the points of several datasets that are in the bounding box built with the
+     * passed coordinates. Every point carries the index of its dataset in the list passed, whose names are
+     * written in the header. The octrees of a limited number of datasets are traversed at the same time
+     *
+     * @param workspaceName
+     * @param datasets      datasets of the workspace, all of them with data, in the order in which they are written
+     * @param southWest
+     * @param northEast
+     * @param clip          whether only the points inside the bounding box are returned
+     * @param levelOfDetail applied to every dataset on its own
+     * @return
+     */
+    public Flux<DataBuffer> getFilesByRegion(String workspaceName, List<Dataset> datasets, String southWest, String northEast,
+                                             Boolean clip, LevelOfDetail levelOfDetail) {
+        List<String> datasetNames = datasets.stream().map(Dataset::getDatasetName).collect(Collectors.toList());
+        return Flux.fromIterable(datasetNames)
+                .flatMapSequential(datasetName -> getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast, levelOfDetail)
+                        .collectList(), datasetConcurrency)
+                .collectList()
+                .flatMapMany(datablocks -> lasStreamMerger.merge(datablocks, datasetNames,
+                        clip ? new GeorefBox(southWest, northEast) : null));
+    }
+
+    /**
+     * Return all the files that overlap the bounding box built with the passed coordinates. If they are clipped,
+     * only the points inside the bounding box are returned, which requires merging them in a single file.
+     * Identical requests that arrive while the files are being sent share the same read
      * @param workspaceName
      * @param datasetName
      * @param southWest
      * @param northEast
      * @param merged
+     * @param clip
+     * @param levelOfDetail
+     * @param pointFormat
      * @return
      */
-    public Flux<DataBuffer> getFilesByRegion(String workspaceName, String datasetName, String southWest, String northEast, Boolean merged) {
+    public Flux<DataBuffer> getFilesByRegion(String workspaceName, String datasetName, String southWest, String northEast,
+                                             Boolean merged, Boolean clip, LevelOfDetail levelOfDetail, PointFormat pointFormat) {
+
+        List<Object> request = Arrays.asList(southWest, northEast, merged, clip, levelOfDetail.getMaxDepth(),
+                levelOfDetail.getPointBudget(), levelOfDetail.getMinSpacing(), pointFormat.isBinary(),
+                pointFormat.getPositionBits(), pointFormat.getAttributes());
+        return requestCoalescer.buffers("region", workspaceName, datasetName, request,
+                () -> readFilesByRegion(workspaceName, datasetName, southWest, northEast, merged, clip, levelOfDetail, pointFormat));
+    }
 
-        if (!merged)
-            return getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast)
+    private Flux<DataBuffer> readFilesByRegion(String workspaceName, String datasetName, String southWest, String northEast,
+                                               Boolean merged, Boolean clip, LevelOfDetail levelOfDetail, PointFormat pointFormat) {
+
+        if (pointFormat.isBinary())
+            return getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast, levelOfDetail)
+                    .collectList()
+                    .flatMapMany(datablocks -> binaryPointEncoder.encode(datablocks, pointFormat,
+                            clip ? new GeorefBox(southWest, northEast) : null));
+        else if (clip)
+            return getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast, levelOfDetail)
+                    .collectList()
+                    .flatMapMany(datablocks -> lasStreamMerger.merge(datablocks, new GeorefBox(southWest, northEast)));
+        else if (!merged)
+            return getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast, levelOfDetail)
                     .map(AbstractDatablock::getObjectId)
-                    .flatMap(fileRepositoryInterface::getFile);
+                    .flatMap(blobDiskCache::getFile);
         else {
-            Flux<ObjectId> dblocksFilesIDs = getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast)
-                    .map(AbstractDatablock::getObjectId);
-            return this.mergeFiles(dblocksFilesIDs, workspaceName, datasetName);
+            return this.mergeFiles(getOverlappingDatablocks(workspaceName, datasetName, southWest, northEast, levelOfDetail));
         }
     }
 
 
     /**
-     * Returns all the datablocks that fit the spatial query
+     * Returns all the datablocks that fit the spatial query. They are taken from the cached topology of the dataset
+     * if there is one, otherwise they are recovered with a single range query over the indexed bounds of the nodes,
+     * whose result is cached for the queries of nearby regions.
+     * Datablocks stored before those bounds existed are not found by it, so if it returns nothing the octrees
+     * are traversed instead. The maximum depth of the level of detail is applied by the query itself, while the
+     * point budget and the minimum spacing need all the datablocks up to that depth.
+     * If the coordinates belong to different UTM zones, the region is split in a box for each zone and the octrees
+     * of both zones are searched at the same time, each datablock keeping the coordinates of its own zone
      *
      * @param workspaceName
      * @param datasetName
      * @param southWest
      * @param northEast
+     * @param levelOfDetail
      * @return
      */
-    private Flux<AbstractDatablock> getOverlappingDatablocks(String workspaceName, String datasetName, String southWest, String northEast) {
+    private Flux<AbstractDatablock> getOverlappingDatablocks(String workspaceName, String datasetName, String southWest, String northEast,
+                                                             LevelOfDetail levelOfDetail) {
 
-        GeorefBox queryBox = new GeorefBox(southWest, northEast);
-        if (!queryBox.getSouthWestBottom().getZone().equals(queryBox.getNorthEastTop().getZone()))
-            return Flux.error(new DifferentUTMZone());
+        int maxDepth = levelOfDetail.getDepthLimit();
+        Flux<AbstractDatablock> datablocks = Flux.fromIterable(GeoConverter.splitByUTMZone(new GeorefBox(southWest, northEast)))
+                .flatMap(zoneBox -> findOverlappingDatablocks(workspaceName, datasetName, zoneBox, maxDepth));
+
+        if (levelOfDetail.getPointBudget() == null && levelOfDetail.getMinSpacing() == null)
+            return datablocks;
+        return datablocks
+                .collectList()
+                .flatMapIterable(levelOfDetail::select);
+    }
+
+    /**
+     * Returns the datablocks that overlap a box of a single UTM zone, from the cached topology of the dataset
+     * or with the range query
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param queryBox
+     * @param maxDepth      deepest level of the datablocks, -1 if there is no limit
+     * @return
+     */
+    private Flux<AbstractDatablock> findOverlappingDatablocks(String workspaceName, String datasetName, GeorefBox queryBox, int maxDepth) {
+        return octreeTopologyCache.get(workspaceName, datasetName)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMapMany(topology -> topology
+                        .map(cached -> Flux.fromIterable(cached.findOverlapping(queryBox, maxDepth))
+                                .<AbstractDatablock>map(cached::getDatablock))
+                        .orElseGet(() -> regionQueryCache.get(workspaceName, datasetName, queryBox, maxDepth,
+                                region -> datablockRepositoryInterface
+                                        .findDatablocksByRegion(workspaceName, datasetName, region, maxDepth)
+                                        .switchIfEmpty(Flux.defer(() -> traverseOverlappingDatablocks(workspaceName, datasetName, region, maxDepth))))));
+    }
+
+    /**
+     * Returns all the datablocks that fit the spatial query by exploring the octrees whose
+     * cell overlaps the query box
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param queryBox
+     * @param maxDepth deepest level explored, -1 to explore the complete octrees
+     * @return
+     */
+    private Flux<AbstractDatablock> traverseOverlappingDatablocks(String workspaceName, String datasetName, GeorefBox queryBox, int maxDepth) {
 
         return datasetRepositoryInterface.findByWorkspaceAndDataset(workspaceName, datasetName)
                 .flatMapMany(dataset -> {
@@ -205,7 +539,7 @@ public class DatablockServiceCommonUtils {
                 })
                 .filter(georefBox -> georefBox.doesOverlap(queryBox))
                 .flatMap(georefBox -> datablockRepositoryInterface.findDatablockByWorkspaceAndDatasetAndNodeAndGridCell(workspaceName, datasetName, 0, georefBox))
-                .flatMap(datablock -> checkOverlappingChildren(datablock, workspaceName, datasetName, queryBox));
+                .flatMap(datablock -> checkOverlappingChildren(datablock, workspaceName, datasetName, queryBox, maxDepth));
     }
 
     /**
@@ -217,56 +551,35 @@ public class DatablockServiceCommonUtils {
      * @param workspaceName
      * @param datasetName
      * @param queryBox
+     * @param maxDepth
      * @return
      */
-    private Flux<AbstractDatablock> checkOverlappingChildren(AbstractDatablock datablock, String workspaceName, String datasetName, GeorefBox queryBox) {
+    private Flux<AbstractDatablock> checkOverlappingChildren(AbstractDatablock datablock, String workspaceName, String datasetName, GeorefBox queryBox, int maxDepth) {
 
         Flux<AbstractDatablock> abstractDatablockFlux = Flux.empty();
+        if (maxDepth >= 0 && datablock.getDepth() >= maxDepth)
+            return abstractDatablockFlux.concatWith(Mono.just(datablock));
 
         return abstractDatablockFlux
                 .concatWith(Flux.fromIterable(datablock.getChildren())
                         .flatMap(integer -> datablockRepositoryInterface
                                 .findDatablockByWorkspaceAndDatasetAndNodeAndGridCell(workspaceName, datasetName, integer, datablock.getUTMZoneLocalGrid()))
                         .filter(_datablock -> queryBox.doesOverlap(_datablock.getGeorefBox()))
-                        .flatMap(_datablock -> checkOverlappingChildren(_datablock, workspaceName, datasetName, queryBox))
+                        .flatMap(_datablock -> checkOverlappingChildren(_datablock, workspaceName, datasetName, queryBox, maxDepth))
                 ).concatWith(Mono.just(datablock));
 
     }
 
 
     /**
-     * Merges a number of LAZ files into a single one.
-     * @param files
-     * @param workspaceName
-     * @param datasetName
+     * Merges the files of a number of datablocks into a single LAS file that is sent while it is built
+     * @param datablocks
      * @return
      */
-    private Flux<DataBuffer> mergeFiles(Flux<ObjectId> files, String workspaceName, String datasetName) {
-        Path folderToMerge = Path.of(systemFileStorageService.buildMergeDirectory(workspaceName, datasetName));
-        Path fileToReturn = folderToMerge.resolve(Path.of("merged.laz"));
-
-        return files
-                .flatMap(objectId -> {
-                    Path resourceFileName = folderToMerge.resolve(Path.of(objectId.toString() + ".laz"));
-                    try {
-                        AsynchronousFileChannel asynchronousFileChannel =
-                                AsynchronousFileChannel.open(resourceFileName, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-
-                        return DataBufferUtils.write(fileRepositoryInterface.getFile(objectId), asynchronousFileChannel)
-                                .map(DataBufferUtils::release)
-                                .then(Mono.just(String.valueOf(resourceFileName)));
-                    } catch (IOException ioException) {
-                        return Flux.error(new RuntimeException("Couldn't merge files"));
-                    }
-                })
+    private Flux<DataBuffer> mergeFiles(Flux<AbstractDatablock> datablocks) {
+        return datablocks
                 .collectList()
-                .flatMap(strings -> lasToolsService.mergeFilesReturn(strings, fileToReturn)
-                        .map(FileSystemResource::new))
-                .flatMapMany(fileSystemResource -> DataBufferUtils
-                        .read(fileSystemResource, new DefaultDataBufferFactory(), 256))
-                .doAfterTerminate(() -> systemFileStorageService.cleanDirectory(folderToMerge));
-
-
+                .flatMapMany(lasStreamMerger::merge);
     }
 
-}
\ No newline at end of file
+}
@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.codec.multipart.FilePart;
@@ -23,9 +24,10 @@ import ujaen.spslidar.repositories.DatablockRepositoryInterface;
 import ujaen.spslidar.repositories.DatasetRepositoryInterface;
 import ujaen.spslidar.repositories.FileRepositoryInterface;
 import ujaen.spslidar.repositories.GridCellRepositoryInterface;
-import ujaen.spslidar.repositories.mongo.DatablockRepositoryMongo;
-import ujaen.spslidar.repositories.mongo.IndexManagerMongo;
 import ujaen.spslidar.services.core.algorithms.OctreeBuilderInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+import ujaen.spslidar.services.core.cache.OctreeTopologyCache;
+import ujaen.spslidar.services.core.complete.CompleteDatasetService;
 import ujaen.spslidar.services.tools.LasToolsService;
 import ujaen.spslidar.services.tools.LazReaderInterface;
 import ujaen.spslidar.services.tools.SystemFileStorageService;
@@ -35,6 +37,7 @@ import ujaen.spslidar.utils.properties.OctreeProperties;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -52,7 +55,6 @@ public class DatablockServiceLasTools implements DatablockService {
     //Repositories
     DatasetRepositoryInterface datasetRepositoryInterface;
     DatablockRepositoryInterface datablockRepositoryInterface;
-    IndexManagerMongo indexManagerMongo;
     GridCellRepositoryInterface gridCellRepositoryInterface;
 
     //Auxiliar services
@@ -63,6 +65,9 @@ public class DatablockServiceLasTools implements DatablockService {
     LazReaderInterface lazReaderInterface;
     NodeSizeDistribution nodeSizeDistribution;
     OctreeBuilderInterface octreeBuilderInterface;
+    OctreeTopologyCache octreeTopologyCache;
+    CompleteDatasetService completeDatasetService;
+    ApplicationEventPublisher eventPublisher;
 
     //Properties
     OctreeProperties octreeProperties;
@@ -73,16 +78,18 @@ public class DatablockServiceLasTools implements DatablockService {
 
     public DatablockServiceLasTools(LasToolsService lasToolsService,
                                     @Qualifier("gridFileStorageService") FileRepositoryInterface fileRepositoryInterface,
-                                    @Qualifier("datasetRepositoryMongo") DatasetRepositoryInterface datasetRepositoryInterface,
+                                    @Qualifier("datasetRepositoryCache") DatasetRepositoryInterface datasetRepositoryInterface,
                                     SystemFileStorageService systemFileStorageService,
                                     @Qualifier("datablockRepositoryMongo") DatablockRepositoryInterface datablockRepositoryInterface,
-                                    IndexManagerMongo indexManagerMongo,
                                     @Qualifier("lazReaderServicePylasImplementation") LazReaderInterface lazReaderInterface,
                                     DatablockServiceCommonUtils datablockServiceCommonUtils,
                                     OctreeProperties octreeProperties,
                                     NodeSizeDistribution nodeSizeDistribution,
                                     @Qualifier("octreeBuilder") OctreeBuilderInterface octreeBuilderInterface,
-                                    GridCellRepositoryInterface gridCellRepositoryInterface) {
+                                    GridCellRepositoryInterface gridCellRepositoryInterface,
+                                    OctreeTopologyCache octreeTopologyCache,
+                                    CompleteDatasetService completeDatasetService,
+                                    ApplicationEventPublisher eventPublisher) {
 
         this.lasToolsService = lasToolsService;
         this.fileRepositoryInterface = fileRepositoryInterface;
@@ -94,8 +101,10 @@ public class DatablockServiceLasTools implements DatablockService {
         this.octreeProperties = octreeProperties;
         this.nodeSizeDistribution = nodeSizeDistribution;
         this.octreeBuilderInterface = octreeBuilderInterface;
-        this.indexManagerMongo = indexManagerMongo;
         this.gridCellRepositoryInterface = gridCellRepositoryInterface;
+        this.octreeTopologyCache = octreeTopologyCache;
+        this.completeDatasetService = completeDatasetService;
+        this.eventPublisher = eventPublisher;
     }
 
 
@@ -121,9 +130,13 @@ public class DatablockServiceLasTools implements DatablockService {
         return datasetRepositoryInterface.findByWorkspaceAndDataset(workspaceName, datasetName)
                 .map(dataset -> {
                     dataset.setDataAssociated(Dataset.State.BUILDING);
+                    //The exported files belong to the previous octrees
+                    dataset.setCopcFiles(new HashMap<>());
+                    dataset.setCompleteFile(null);
                     return dataset;
                 })
                 .flatMap(datasetRepositoryInterface::update)
+                .doOnNext(dataset -> eventPublisher.publishEvent(new DatasetChangedEvent(workspaceName, datasetName)))
                 .zipWith(filePath)
                 .flatMap(t -> divideDatasetByUTMCells(workspaceName, datasetName, t.getT2())
                         .collectList()
@@ -166,6 +179,7 @@ public class DatablockServiceLasTools implements DatablockService {
                 .last()
                 .doOnError(throwable -> {
                     systemFileStorageService.cleanDirectory(workspaceName, datasetName);
+                    eventPublisher.publishEvent(new DatasetChangedEvent(workspaceName, datasetName));
                     datasetRepositoryInterface
                             .findByWorkspaceAndDataset(workspaceName, datasetName)
                             .map(dataset -> {
@@ -184,6 +198,10 @@ public class DatablockServiceLasTools implements DatablockService {
                             })
                             .flatMap(datasetRepositoryInterface::update);
                 })
+                .doOnNext(dataset -> eventPublisher.publishEvent(new DatasetChangedEvent(workspaceName, datasetName)))
+                .delayUntil(dataset -> octreeTopologyCache.get(workspaceName, datasetName).onErrorResume(throwable -> Mono.empty()))
+                //The download of the complete dataset is built in the background
+                .doOnNext(dataset -> completeDatasetService.start(workspaceName, datasetName))
                 .thenReturn(Boolean.TRUE)
                 .log();
 
@@ -191,19 +209,15 @@ public class DatablockServiceLasTools implements DatablockService {
     }
 
     @Override
-    public Flux<DataBuffer> getCompleteDataset(String workspaceName, String datasetName) {
-
-        return datablockServiceCommonUtils.getCompleteDataset(workspaceName, datasetName);
-    }
-
-    @Override
-    public Flux<DatablockDTO> getDatablocksByRegion(String workspaceName, String datasetName, String southWest, String northEast) {
-        return datablockServiceCommonUtils.getDatablocksByRegion(workspaceName, datasetName, southWest, northEast);
+    public Flux<DatablockDTO> getDatablocksByRegion(String workspaceName, String datasetName, String southWest, String northEast, LevelOfDetail levelOfDetail) {
+        return datablockServiceCommonUtils.getDatablocksByRegion(workspaceName, datasetName, southWest, northEast, levelOfDetail);
     }
 
     @Override
-    public Flux<DataBuffer> getFilesByRegion(String workspaceName, String datasetName, String southWest, String northEast, Boolean merged) {
-        return datablockServiceCommonUtils.getFilesByRegion(workspaceName, datasetName, southWest, northEast, merged);
+    public Flux<DataBuffer> getFilesByRegion(String workspaceName, String datasetName, String southWest, String northEast,
+                                             Boolean merged, Boolean clip, LevelOfDetail levelOfDetail, PointFormat pointFormat) {
+        return datablockServiceCommonUtils.getFilesByRegion(workspaceName, datasetName, southWest, northEast, merged, clip,
+                levelOfDetail, pointFormat);
     }
 
 
@@ -314,11 +328,6 @@ public class DatablockServiceLasTools implements DatablockService {
                                                 String workspaceName) {
         logger.info("Octree storing phase");
 
-        //Particular case: if we are using Mongo, we need to create a secondary index for this
-        //particular collection to speed future queries
-        if (datablockRepositoryInterface instanceof DatablockRepositoryMongo)
-            indexManagerMongo.createIndex(workspaceName).subscribe();
-
         return dataset.flatMapMany(dataset1 -> datablockFlux
                 .parallel()
                 .runOn(Schedulers.boundedElastic())
@@ -356,7 +365,9 @@ public class DatablockServiceLasTools implements DatablockService {
                         objects.getT2().getDataBlockSize(),
                         objects.getT2().getDataBlockFormat(),
                         objects.getT2().getRootDatablocks(),
-                        objects.getT2().getDataAssociated()
+                        objects.getT2().getDataAssociated(),
+                        new HashMap<>(),
+                        null
                 ));
 
         Mono<List<Dataset>> datasetsStored = datasetsToCreate
@@ -367,9 +378,6 @@ public class DatablockServiceLasTools implements DatablockService {
                     return objects.getT1();
                 });
 
-        if (datablockRepositoryInterface instanceof DatablockRepositoryMongo)
-            indexManagerMongo.createIndex(workspaceName).subscribe();
-
         //Combine the list of datasets generated and the flux of datablocks built so that
         //each datablock is stored in each of the datasets.
         return datasetsStored
@@ -20,9 +20,12 @@ import ujaen.spslidar.utils.geoconverter.GeoConverter;
 import ujaen.spslidar.utils.geoconverter.GridAllocator;
 
 import java.time.LocalDateTime;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -48,10 +51,8 @@ public class DatasetService {
 
     /**
      * Finds the datasets associated to a workspace, filtering optionally by coordinates.
-     * There is room for optimization as for cases where a bounding box is provided, two
-     * Mongo queries are performed: one to search the IDs of the datasets in the grids collection
-     * and other to recover the complete information of the dataset by using the previously
-     * recovered ID
+     * When a bounding box is provided, the names of the datasets are taken from the grid of the workspace
+     * and then their complete information is recovered with a single query
      *
      * @param workspaceName
      * @param southWest     southwest coordinate of the bounding box used to filter. If this value does not exist
@@ -86,33 +87,68 @@ public class DatasetService {
 
             //Compose two bounding box, each one in a different UTM zone.
             //Find datasets that adjust to them and remove duplicates
-            UTMCoord UTMCoordNorthEastReprojected = GeoConverter.reprojectUTMCoordinate(UTMCoordNorthEast, UTMCoordSouthWest.getZone());
-            GeorefBox georefBoxWithCoordInSWUTMZone = new GeorefBox(UTMCoordSouthWest, UTMCoordNorthEastReprojected);
+            List<GeorefBox> georefBoxesByZone = GeoConverter.splitByUTMZone(new GeorefBox(UTMCoordSouthWest, UTMCoordNorthEast));
 
-            UTMCoord UTMCoordSouthWestReprojected = GeoConverter.reprojectUTMCoordinate(UTMCoordSouthWest, UTMCoordNorthEast.getZone());
-            GeorefBox georefBoxWithCoordInNEUTMZone = new GeorefBox(UTMCoordSouthWestReprojected, UTMCoordNorthEast);
-
-            Flux<String> datasetsInBboxSWUTMZone = gridCellRepositoryInterface.findDatasetsByGeorefBox(workspaceName, georefBoxWithCoordInSWUTMZone);
-            Flux<String> datasetsInBboxNEUTMZone = gridCellRepositoryInterface.findDatasetsByGeorefBox(workspaceName, georefBoxWithCoordInNEUTMZone);
-
-            return datasetsInBboxSWUTMZone.concatWith(datasetsInBboxNEUTMZone)
-                    .distinct()
-                    .flatMap(datasetName -> datasetRepositoryInterface.findByWorkspaceAndDatasetAndTimeWindow(workspaceName, datasetName, fromDate, toDate))
-                    .map(DatasetDTO::new);
+            return Flux.fromIterable(georefBoxesByZone)
+                    .concatMap(georefBox -> gridCellRepositoryInterface.findDatasetsByGeorefBox(workspaceName, georefBox))
+                    .collect(Collectors.toSet())
+                    .flatMapMany(datasetNames -> findDatasets(workspaceName, datasetNames, fromDate, toDate));
 
         } else {
             //Case 2.2: Query bounding box in a single UTM zone
             GeorefBox georefBoxQuery = new GeorefBox(UTMCoordSouthWest, UTMCoordNorthEast);
 
             return gridCellRepositoryInterface.findDatasetsByGeorefBox(workspaceName, georefBoxQuery)
-                    .distinct()
-                    .flatMap(datasetName -> datasetRepositoryInterface.findByWorkspaceAndDatasetAndTimeWindow(workspaceName, datasetName, fromDate, toDate))
-                    .map(DatasetDTO::new);
+                    .collect(Collectors.toSet())
+                    .flatMapMany(datasetNames -> findDatasets(workspaceName, datasetNames, fromDate, toDate));
 
         }
 
     }
 
+    /**
+     * Finds the datasets of a workspace with data whose grid cells overlap a region and that were acquired within
+     * a time window, ordered by their date of acquisition
+     *
+     * @param workspaceName
+     * @param southWest     southwest coordinate of the region
+     * @param northEast     northeast coordinate of the region, which may be in the next UTM zone
+     * @param fromDate
+     * @param toDate
+     * @return Flux of datasets
+     */
+    public Flux<Dataset> getDatasetsWithDataByRegion(String workspaceName, String southWest, String northEast,
+                                                     LocalDateTime fromDate, LocalDateTime toDate) {
+
+        return Flux.fromIterable(GeoConverter.splitByUTMZone(new GeorefBox(southWest, northEast)))
+                .concatMap(georefBox -> gridCellRepositoryInterface.findDatasetsByGeorefBox(workspaceName, georefBox))
+                .collect(Collectors.toSet())
+                .filter(datasetNames -> !datasetNames.isEmpty())
+                .flatMapMany(datasetNames -> datasetRepositoryInterface
+                        .findByWorkspaceAndDatasetsAndTimeWindow(workspaceName, datasetNames, fromDate, toDate))
+                .filter(dataset -> dataset.getDataAssociated() == Dataset.State.DATA_ASSOCIATED)
+                .sort(Comparator.comparing(Dataset::getDate, Comparator.nullsFirst(Comparator.naturalOrder()))
+                        .thenComparing(Dataset::getDatasetName));
+    }
+
+    /**
+     * Recovers at once the datasets found in the grid that fit the time window
+     *
+     * @param workspaceName
+     * @param datasetNames
+     * @param fromDate
+     * @param toDate
+     * @return
+     */
+    private Flux<DatasetDTO> findDatasets(String workspaceName, Set<String> datasetNames, LocalDateTime fromDate, LocalDateTime toDate) {
+        if (datasetNames.isEmpty())
+            return Flux.empty();
+
+        return datasetRepositoryInterface
+                .findByWorkspaceAndDatasetsAndTimeWindow(workspaceName, datasetNames, fromDate, toDate)
+                .map(DatasetDTO::new);
+    }
+
     /**
      * Adds a new dataset to the system, only containing the workspace it belongs to and its name.
      * It will have to be edited at a later time in order to associate it to a Laz file and instantiate its Georefbox
@@ -161,9 +197,9 @@ public class DatasetService {
                         grids.put(zoneSouthWestBottom, NECoordReprojectedList);
                         grids.put(zoneNorthEastTop, SWCoordReprojectedList);
                         tuple.getT1().setRootDatablocks(grids);
-                        Flux<GridCell> gridsNECoord = saveGrids(NECoordReprojectedList, dataset, workspaceName);
-                        Flux<GridCell> gridsSWCoord = saveGrids(SWCoordReprojectedList, dataset, workspaceName);
-                        return gridsNECoord.concatWith(gridsSWCoord).then(Mono.just(tuple.getT1()));
+                        Mono<Long> gridsNECoord = saveGrids(NECoordReprojectedList, dataset, workspaceName);
+                        Mono<Long> gridsSWCoord = saveGrids(SWCoordReprojectedList, dataset, workspaceName);
+                        return gridsNECoord.then(gridsSWCoord).then(Mono.just(tuple.getT1()));
                     }
                 })
                 .flatMap(datasetRepositoryInterface::update)
@@ -171,21 +207,16 @@ public class DatasetService {
     }
 
     /**
-     * Store grid cells that collide with a dataset bounding box
+     * Store grid cells that collide with a dataset bounding box, associating the dataset to those that already exist
      *
      * @param grids
      * @param dataset
      * @param workspaceName
-     * @return
+     * @return number of grid cells created or modified
      */
-    private Flux<GridCell> saveGrids(List<GeorefBox> grids, Dataset dataset, String workspaceName) {
-
-        return Flux.fromIterable(grids)
-                .flatMap(grid -> gridCellRepositoryInterface.findById(workspaceName, grid)
-                        .defaultIfEmpty(new GridCell(grid)))
-                //.doOnNext(grid -> logger.info(grid.toString()))
-                .map(grid -> grid.addDataset(dataset.getDatasetName()))
-                .flatMap(grid -> gridCellRepositoryInterface.save(workspaceName, grid));
+    private Mono<Long> saveGrids(Iterable<GeorefBox> grids, Dataset dataset, String workspaceName) {
+
+        return gridCellRepositoryInterface.addDatasetToGridCells(workspaceName, dataset.getDatasetName(), grids);
     }
 
 
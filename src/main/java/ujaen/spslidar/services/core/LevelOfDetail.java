@@ -0,0 +1,138 @@
+package ujaen.spslidar.services.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.GeorefBox;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Limits to the detail of a region query. Each level of the octrees refines the points of the previous ones,
+ * so the coarsest set of datablocks that satisfies the limits is made of the upper levels of the octrees:
+ * <ul>
+ *     <li>maxDepth: deepest level returned</li>
+ *     <li>pointBudget: maximum number of points, reached by adding complete levels so that the density is
+ *     the same over the whole region. If the first level alone exceeds it, only that level is returned</li>
+ *     <li>minSpacing: spacing between points (in meters) that is enough, the children of a datablock
+ *     are only returned if its points are further apart</li>
+ * </ul>
+ * Null values don't limit the query.
+ */
+@Getter
+@AllArgsConstructor
+public class LevelOfDetail {
+
+    private final Integer maxDepth;
+    private final Long pointBudget;
+    private final Double minSpacing;
+
+    public static LevelOfDetail full() {
+        return new LevelOfDetail(null, null, null);
+    }
+
+    /**
+     * @return deepest level returned, -1 if there is no limit
+     */
+    public int getDepthLimit() {
+        return maxDepth == null ? -1 : maxDepth;
+    }
+
+    public boolean isFull() {
+        return maxDepth == null && pointBudget == null && minSpacing == null;
+    }
+
+    /**
+     * Selects the datablocks that satisfy the point budget and the minimum spacing among the datablocks
+     * that overlap a region
+     *
+     * @param datablocks datablocks that overlap the region, up to the maximum depth
+     * @return
+     */
+    public List<AbstractDatablock> select(List<AbstractDatablock> datablocks) {
+        List<AbstractDatablock> selected = datablocks.stream()
+                .sorted(Comparator.comparingInt(AbstractDatablock::getDepth))
+                .collect(Collectors.toList());
+
+        if (minSpacing != null)
+            selected = selectBySpacing(selected);
+        if (pointBudget != null)
+            selected = selectByBudget(selected);
+        return selected;
+    }
+
+    /**
+     * Keeps the datablocks whose ancestors are all coarser than the minimum spacing
+     *
+     * @param datablocks sorted by depth
+     * @return
+     */
+    private List<AbstractDatablock> selectBySpacing(List<AbstractDatablock> datablocks) {
+        Map<GeorefBox, Set<Integer>> refined = new HashMap<>();
+        List<AbstractDatablock> selected = new ArrayList<>();
+
+        for (AbstractDatablock datablock : datablocks) {
+            Set<Integer> refinedInCell = refined.computeIfAbsent(datablock.getUTMZoneLocalGrid(), cell -> new HashSet<>());
+            if (datablock.getId() != 0 && !refinedInCell.contains((datablock.getId() - 1) / 8))
+                continue;
+
+            selected.add(datablock);
+            if (spacing(datablock) > minSpacing)
+                refinedInCell.add(datablock.getId());
+        }
+        return selected;
+    }
+
+    /**
+     * Keeps the upper levels whose points fit in the budget
+     *
+     * @param datablocks sorted by depth
+     * @return
+     */
+    private List<AbstractDatablock> selectByBudget(List<AbstractDatablock> datablocks) {
+        List<AbstractDatablock> selected = new ArrayList<>();
+        long points = 0;
+        int index = 0;
+
+        while (index < datablocks.size()) {
+            int depth = datablocks.get(index).getDepth();
+            int levelEnd = index;
+            long levelPoints = 0;
+            while (levelEnd < datablocks.size() && datablocks.get(levelEnd).getDepth() == depth)
+                levelPoints += datablocks.get(levelEnd++).getNumberOfPoints();
+
+            if (!selected.isEmpty() && points + levelPoints > pointBudget)
+                break;
+            selected.addAll(datablocks.subList(index, levelEnd));
+            points += levelPoints;
+            index = levelEnd;
+            if (points >= pointBudget)
+                break;
+        }
+        return selected;
+    }
+
+    /**
+     * Average distance between the points of a datablock, as if they were evenly distributed over its area
+     *
+     * @param datablock
+     * @return
+     */
+    private static double spacing(AbstractDatablock datablock) {
+        if (datablock.getNumberOfPoints() <= 0)
+            return Double.POSITIVE_INFINITY;
+
+        GeorefBox box = datablock.getGeorefBox();
+        double area = (box.getNorthEastTop().getEasting() - box.getSouthWestBottom().getEasting())
+                * (box.getNorthEastTop().getNorthing() - box.getSouthWestBottom().getNorthing());
+        return Math.sqrt(area / datablock.getNumberOfPoints());
+    }
+
+}
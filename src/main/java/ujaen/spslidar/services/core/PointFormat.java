@@ -0,0 +1,76 @@
+package ujaen.spslidar.services.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ujaen.spslidar.Exceptions.InvalidPointFormatException;
+
+/**
+ * Format in which the points of the datablocks are sent:
+ * <ul>
+ *     <li>las: the stored files, as they are or merged</li>
+ *     <li>bin: the points of every datablock in a block with the positions quantized to integers of
+ *     positionBits bits relative to the bounds of the datablock, and the attributes requested, each of them
+ *     as an array that can be read as a typed array</li>
+ * </ul>
+ */
+@Getter
+@AllArgsConstructor
+public class PointFormat {
+
+    public static final int RGB = 1;
+    public static final int INTENSITY = 2;
+    public static final int CLASSIFICATION = 4;
+
+    private final boolean binary;
+    private final int positionBits;
+    //Attributes sent along the positions, as a combination of RGB, INTENSITY and CLASSIFICATION
+    private final int attributes;
+
+    public static PointFormat las() {
+        return new PointFormat(false, 32, 0);
+    }
+
+    /**
+     * Parses the parameters of a request
+     *
+     * @param format       las or bin
+     * @param attributes   attributes of the binary format separated by commas: rgb, intensity and classification
+     * @param positionBits bits of the positions of the binary format, 16 or 32 (default)
+     * @return
+     */
+    public static PointFormat parse(String format, String attributes, Integer positionBits) {
+        if (format == null || format.equalsIgnoreCase("las"))
+            return las();
+        if (!format.equalsIgnoreCase("bin"))
+            throw new InvalidPointFormatException();
+
+        int bits = positionBits == null ? 32 : positionBits;
+        if (bits != 16 && bits != 32)
+            throw new InvalidPointFormatException();
+
+        int mask = 0;
+        if (attributes != null && !attributes.isEmpty()) {
+            for (String attribute : attributes.split(",")) {
+                switch (attribute.trim().toLowerCase()) {
+                    case "rgb":
+                        mask |= RGB;
+                        break;
+                    case "intensity":
+                        mask |= INTENSITY;
+                        break;
+                    case "classification":
+                        mask |= CLASSIFICATION;
+                        break;
+                    default:
+                        throw new InvalidPointFormatException();
+                }
+            }
+        }
+        return new PointFormat(true, bits, mask);
+    }
+
+    public boolean has(int attribute) {
+        return (attributes & attribute) != 0;
+    }
+
+}
@@ -12,6 +12,7 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ujaen.spslidar.DTOs.http.WorkspaceDTO;
 import ujaen.spslidar.entities.Workspace;
+import ujaen.spslidar.repositories.IndexManagerInterface;
 import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
 
 
@@ -19,11 +20,14 @@ import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
 public class WorkspaceService {
 
     private WorkspaceRepositoryInterface workspaceRepositoryInterface;
+    private IndexManagerInterface indexManagerInterface;
     Logger logger = LoggerFactory.getLogger(WorkspaceService.class);
 
 
-    public WorkspaceService(WorkspaceRepositoryInterface workspaceRepositoryInterface) {
+    public WorkspaceService(WorkspaceRepositoryInterface workspaceRepositoryInterface,
+                            IndexManagerInterface indexManagerInterface) {
         this.workspaceRepositoryInterface = workspaceRepositoryInterface;
+        this.indexManagerInterface = indexManagerInterface;
     }
 
     /**
@@ -49,7 +53,7 @@ public class WorkspaceService {
     }
 
     /**
-     * Adds a new workspace to the system
+     * Adds a new workspace to the system, creating the indexes its collections will need
      * @param workspaceDTO information of the workspace to be added
      * @return Mono of WorkspaceDTO or Mono empty
      */
@@ -58,6 +62,7 @@ public class WorkspaceService {
 
         return workspaceRepositoryInterface
                 .save(new Workspace(workspaceDTO))
+                .delayUntil(workspace -> indexManagerInterface.ensureIndexes(workspace.getName()))
                 .map(WorkspaceDTO::new);
 
     }
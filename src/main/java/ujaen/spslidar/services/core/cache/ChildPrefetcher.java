@@ -0,0 +1,153 @@
+package ujaen.spslidar.services.core.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.utils.properties.PrefetchProperties;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads into the payload cache the files of the children of the datablocks served, as viewers request them
+ * shortly after their parent. The children of a datablock are prefetched once while it is among the recently
+ * served ones. Prefetches are limited to a number running at the same time, and none is started, nor continued,
+ * while the number of files being sent to the clients is over the configured limit.
+ */
+@Component
+public class ChildPrefetcher {
+
+    private static final int recentParents = 4096;
+
+    Logger logger = LoggerFactory.getLogger(ChildPrefetcher.class);
+
+    private final PrefetchProperties properties;
+    private final OctreeTopologyCache octreeTopologyCache;
+    private final DatablockRepositoryInterface datablockRepositoryInterface;
+    private final FileRepositoryInterface fileRepositoryInterface;
+    private final PayloadCache payloadCache;
+    private final RequestCoalescer requestCoalescer;
+
+    private final AtomicInteger activeReads = new AtomicInteger();
+    private final AtomicInteger runningPrefetches = new AtomicInteger();
+    //Datablocks whose children have been prefetched recently, least recently served first
+    private final Map<ObjectId, Boolean> prefetchedParents = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ObjectId, Boolean> eldest) {
+                    return size() > recentParents;
+                }
+            });
+
+    private final Counter prefetched;
+    private final Counter backedOff;
+
+    public ChildPrefetcher(PrefetchProperties properties,
+                           OctreeTopologyCache octreeTopologyCache,
+                           DatablockRepositoryInterface datablockRepositoryInterface,
+                           FileRepositoryInterface fileRepositoryInterface,
+                           PayloadCache payloadCache,
+                           RequestCoalescer requestCoalescer,
+                           MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.octreeTopologyCache = octreeTopologyCache;
+        this.datablockRepositoryInterface = datablockRepositoryInterface;
+        this.fileRepositoryInterface = fileRepositoryInterface;
+        this.payloadCache = payloadCache;
+        this.requestCoalescer = requestCoalescer;
+        this.prefetched = Counter.builder("cache.prefetch").tag("result", "cached").register(meterRegistry);
+        this.backedOff = Counter.builder("cache.prefetch").tag("result", "backed_off").register(meterRegistry);
+    }
+
+    /**
+     * Accounts the file of a datablock while it is sent to a client, and prefetches the children of the
+     * datablock once it has been sent
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param datablock
+     * @param content       content of the file
+     * @return
+     */
+    public Flux<DataBuffer> serve(String workspaceName, String datasetName, AbstractDatablock datablock,
+                                  Flux<DataBuffer> content) {
+        if (!properties.isEnabled())
+            return content;
+
+        return content
+                .doOnSubscribe(subscription -> activeReads.incrementAndGet())
+                .doFinally(signalType -> activeReads.decrementAndGet())
+                .doOnComplete(() -> prefetchChildren(workspaceName, datasetName, datablock));
+    }
+
+    private void prefetchChildren(String workspaceName, String datasetName, AbstractDatablock datablock) {
+        if (datablock.getChildren() == null || datablock.getChildren().isEmpty()
+                || prefetchedParents.put(datablock.getObjectId(), Boolean.TRUE) != null)
+            return;
+
+        if (overloaded()) {
+            backOff(datablock);
+            return;
+        }
+        if (runningPrefetches.incrementAndGet() > properties.getMaxConcurrent()) {
+            runningPrefetches.decrementAndGet();
+            backOff(datablock);
+            return;
+        }
+
+        children(workspaceName, datasetName, datablock)
+                .takeWhile(child -> !overloaded())
+                .concatMap(child -> payloadCache.prefetch(workspaceName, datasetName, child,
+                        () -> requestCoalescer.buffers("payload", workspaceName, datasetName, child.getObjectId(),
+                                () -> fileRepositoryInterface.getFile(child.getObjectId()))))
+                .doFinally(signalType -> runningPrefetches.decrementAndGet())
+                .subscribe(cached -> {
+                    if (cached)
+                        prefetched.increment();
+                }, throwable -> logger.warn("Couldn't prefetch the children of " + datablock.getObjectId() + ": " + throwable));
+    }
+
+    /**
+     * Children of a datablock, from the cached topology of the dataset or with a single query
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param datablock
+     * @return
+     */
+    private Flux<AbstractDatablock> children(String workspaceName, String datasetName, AbstractDatablock datablock) {
+        return octreeTopologyCache.get(workspaceName, datasetName)
+                .flatMapMany(topology -> Flux.fromIterable(datablock.getChildren())
+                        .map(child -> topology.find(datablock.getUTMZoneLocalGrid(), child))
+                        .filter(position -> position >= 0)
+                        .<AbstractDatablock>map(topology::getDatablock))
+                .switchIfEmpty(Flux.defer(() -> datablockRepositoryInterface
+                        .findDatablocksByWorkspaceAndDatasetAndNodesAndGridCells(workspaceName, datasetName,
+                                datablock.getChildren(), Collections.singletonList(datablock.getUTMZoneLocalGrid()))));
+    }
+
+    /**
+     * Skips the prefetch of the children of a datablock, which will be tried again the next time it is served
+     *
+     * @param datablock
+     */
+    private void backOff(AbstractDatablock datablock) {
+        prefetchedParents.remove(datablock.getObjectId());
+        backedOff.increment();
+    }
+
+    private boolean overloaded() {
+        return activeReads.get() > properties.getMaxActiveReads();
+    }
+
+}
@@ -0,0 +1,27 @@
+package ujaen.spslidar.services.core.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Event published whenever the data of a dataset is built, rebuilt or removed, so that the
+ * in-memory caches drop what they hold about it. A null workspace means that the whole
+ * database was reset.
+ */
+@Data
+@AllArgsConstructor
+public class DatasetChangedEvent {
+
+    private String workspaceName;
+    private String datasetName;
+
+    public static DatasetChangedEvent all() {
+        return new DatasetChangedEvent(null, null);
+    }
+
+    public boolean affects(String workspaceName, String datasetName) {
+        return this.workspaceName == null
+                || (this.workspaceName.equals(workspaceName) && this.datasetName.equals(datasetName));
+    }
+
+}
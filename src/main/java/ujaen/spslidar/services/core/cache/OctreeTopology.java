@@ -0,0 +1,236 @@
+package ujaen.spslidar.services.core.cache;
+
+import org.bson.types.ObjectId;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.UTMCoord;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable topology of the octrees of a dataset (one per grid cell), kept in struct-of-arrays form.
+ * Node i of the dataset has its attributes in position i of each array, its bounds in
+ * bounds[i*6 .. i*6+5] (min easting, northing, height and max easting, northing, height) and
+ * its children in childIndices[childOffsets[i] .. childOffsets[i+1]-1], referenced by position.
+ */
+public class OctreeTopology {
+
+    private static final int BOUNDS_STRIDE = 6;
+    private static final int OBJECT_ID_LENGTH = 12;
+
+    private final int size;
+    private final int[] nodeIds;
+    private final int[] depths;
+    private final long[] counts;
+    private final double[] bounds;
+    private final int[] childOffsets;
+    private final int[] childIndices;
+    private final int[] cellOf;
+    private final byte[] objectIds;
+
+    private final GeorefBox[] cells;
+    private final Map<GeorefBox, Integer> cellIndex;
+    private final int[] roots;
+
+    //Sorted (cell, node) keys and the position of the node they identify
+    private final long[] sortedKeys;
+    private final int[] sortedPositions;
+
+
+    public OctreeTopology(List<AbstractDatablock> datablocks) {
+
+        this.size = datablocks.size();
+        this.nodeIds = new int[size];
+        this.depths = new int[size];
+        this.counts = new long[size];
+        this.bounds = new double[size * BOUNDS_STRIDE];
+        this.cellOf = new int[size];
+        this.objectIds = new byte[size * OBJECT_ID_LENGTH];
+
+        List<GeorefBox> cellList = new ArrayList<>();
+        this.cellIndex = new HashMap<>();
+
+        for (int i = 0; i < size; i++) {
+            AbstractDatablock datablock = datablocks.get(i);
+            Integer cell = cellIndex.get(datablock.getUTMZoneLocalGrid());
+            if (cell == null) {
+                cell = cellList.size();
+                cellList.add(datablock.getUTMZoneLocalGrid());
+                cellIndex.put(datablock.getUTMZoneLocalGrid(), cell);
+            }
+
+            nodeIds[i] = datablock.getId();
+            depths[i] = datablock.getDepth();
+            counts[i] = datablock.getNumberOfPoints();
+            cellOf[i] = cell;
+            GeorefBox box = datablock.getGeorefBox();
+            bounds[i * BOUNDS_STRIDE] = box.getSouthWestBottom().getEasting();
+            bounds[i * BOUNDS_STRIDE + 1] = box.getSouthWestBottom().getNorthing();
+            bounds[i * BOUNDS_STRIDE + 2] = box.getSouthWestBottom().getHeight();
+            bounds[i * BOUNDS_STRIDE + 3] = box.getNorthEastTop().getEasting();
+            bounds[i * BOUNDS_STRIDE + 4] = box.getNorthEastTop().getNorthing();
+            bounds[i * BOUNDS_STRIDE + 5] = box.getNorthEastTop().getHeight();
+            datablock.getObjectId().putToByteBuffer(ByteBuffer.wrap(objectIds, i * OBJECT_ID_LENGTH, OBJECT_ID_LENGTH));
+        }
+        this.cells = cellList.toArray(new GeorefBox[0]);
+
+        //Lookup table sorted by (cell, node)
+        Map<Long, Integer> positions = new HashMap<>(size * 2);
+        this.sortedKeys = new long[size];
+        for (int i = 0; i < size; i++) {
+            sortedKeys[i] = key(cellOf[i], nodeIds[i]);
+            positions.put(sortedKeys[i], i);
+        }
+        Arrays.sort(sortedKeys);
+        this.sortedPositions = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedPositions[i] = positions.get(sortedKeys[i]);
+        }
+
+        //Children as positions, skipping those that were never stored
+        this.childOffsets = new int[size + 1];
+        List<Integer> children = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            childOffsets[i] = children.size();
+            for (Integer child : datablocks.get(i).getChildren()) {
+                int position = find(cellOf[i], child);
+                if (position >= 0)
+                    children.add(position);
+            }
+        }
+        childOffsets[size] = children.size();
+        this.childIndices = children.stream().mapToInt(Integer::intValue).toArray();
+
+        this.roots = new int[cells.length];
+        for (int cell = 0; cell < cells.length; cell++) {
+            roots[cell] = find(cell, 0);
+        }
+    }
+
+    /**
+     * Number of nodes of the dataset, used as the weight of the topology in the cache
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the position of a node, or -1 if it doesn't exist
+     *
+     * @param cell
+     * @param node
+     * @return
+     */
+    public int find(GeorefBox cell, int node) {
+        Integer position = cellIndex.get(cell);
+        return position == null ? -1 : find(position, node);
+    }
+
+    /**
+     * Returns the positions of the nodes with the same identifier in every octree of the dataset
+     *
+     * @param node
+     * @return
+     */
+    public List<Integer> findAll(int node) {
+        List<Integer> positions = new ArrayList<>();
+        for (int cell = 0; cell < cells.length; cell++) {
+            int position = find(cell, node);
+            if (position >= 0)
+                positions.add(position);
+        }
+        return positions;
+    }
+
+    /**
+     * Explores the octrees of the dataset and returns the positions of the nodes that overlap the query box,
+     * descending only through the branches that overlap it
+     *
+     * @param queryBox box with both coordinates in the same UTM zone
+     * @param maxDepth deepest level to return, a negative value returns every level
+     * @return
+     */
+    public List<Integer> findOverlapping(GeorefBox queryBox, int maxDepth) {
+        String zone = queryBox.getSouthWestBottom().getZone();
+        double minEasting = queryBox.getSouthWestBottom().getEasting();
+        double minNorthing = queryBox.getSouthWestBottom().getNorthing();
+        double maxEasting = queryBox.getNorthEastTop().getEasting();
+        double maxNorthing = queryBox.getNorthEastTop().getNorthing();
+
+        List<Integer> result = new ArrayList<>();
+        int[] stack = new int[64];
+
+        for (int cell = 0; cell < cells.length; cell++) {
+            if (roots[cell] < 0 || !cells[cell].getSouthWestBottom().getZone().equals(zone))
+                continue;
+
+            int top = 0;
+            stack[top++] = roots[cell];
+            while (top > 0) {
+                int node = stack[--top];
+                int offset = node * BOUNDS_STRIDE;
+                if (bounds[offset] > maxEasting || minEasting > bounds[offset + 3]
+                        || bounds[offset + 1] > maxNorthing || minNorthing > bounds[offset + 4])
+                    continue;
+
+                result.add(node);
+                if (maxDepth >= 0 && depths[node] >= maxDepth)
+                    continue;
+
+                for (int c = childOffsets[node]; c < childOffsets[node + 1]; c++) {
+                    if (top == stack.length)
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[top++] = childIndices[c];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds the datablock stored in a position
+     *
+     * @param position
+     * @return
+     */
+    public Datablock getDatablock(int position) {
+        GeorefBox cell = cells[cellOf[position]];
+        String zone = cell.getSouthWestBottom().getZone();
+        int offset = position * BOUNDS_STRIDE;
+
+        Datablock datablock = new Datablock();
+        datablock.setId(nodeIds[position]);
+        datablock.setDepth(depths[position]);
+        datablock.setNumberOfPoints(counts[position]);
+        datablock.setUTMZoneLocalGrid(cell);
+        datablock.setGeorefBox(new GeorefBox(
+                new UTMCoord(bounds[offset], bounds[offset + 1], zone, bounds[offset + 2]),
+                new UTMCoord(bounds[offset + 3], bounds[offset + 4], zone, bounds[offset + 5])));
+        List<Integer> children = new ArrayList<>();
+        for (int c = childOffsets[position]; c < childOffsets[position + 1]; c++) {
+            children.add(nodeIds[childIndices[c]]);
+        }
+        datablock.setChildren(children);
+        datablock.setObjectId(new ObjectId(Arrays.copyOfRange(objectIds,
+                position * OBJECT_ID_LENGTH, (position + 1) * OBJECT_ID_LENGTH)));
+        return datablock;
+    }
+
+    private int find(int cell, int node) {
+        int position = Arrays.binarySearch(sortedKeys, key(cell, node));
+        return position < 0 ? -1 : sortedPositions[position];
+    }
+
+    private static long key(int cell, int node) {
+        return ((long) cell << 32) | (node & 0xffffffffL);
+    }
+
+}
@@ -0,0 +1,167 @@
+package ujaen.spslidar.services.core.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps in memory the topology of the octrees of the most recently queried datasets, so that region queries
+ * and node lookups can be answered without querying the database. The topology of a dataset doesn't change
+ * once it has been built, so it is loaded once and dropped when the dataset changes or when the total
+ * number of nodes cached exceeds the configured limit (least recently used datasets first).
+ */
+@Component
+public class OctreeTopologyCache {
+
+    Logger logger = LoggerFactory.getLogger(OctreeTopologyCache.class);
+
+    private final DatasetRepositoryInterface datasetRepositoryInterface;
+    private final DatablockRepositoryInterface datablockRepositoryInterface;
+    private final long maxNodes;
+
+    private final Map<String, Mono<Optional<OctreeTopology>>> loading = new ConcurrentHashMap<>();
+    //Loaded topologies in access order, used for the eviction
+    private final LinkedHashMap<String, Integer> weights = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedNodes = 0;
+
+    public OctreeTopologyCache(DatasetRepositoryInterface datasetRepositoryInterface,
+                               DatablockRepositoryInterface datablockRepositoryInterface,
+                               CacheProperties cacheProperties) {
+        this.datasetRepositoryInterface = datasetRepositoryInterface;
+        this.datablockRepositoryInterface = datablockRepositoryInterface;
+        this.maxNodes = cacheProperties.getTopologyMaxNodes();
+    }
+
+    /**
+     * Returns the topology of a dataset, loading it if needed. Concurrent requests for a dataset
+     * that is being loaded share the same query.
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @return Mono with the topology, or Mono empty if the dataset doesn't have its data built yet
+     * or it doesn't fit in the cache
+     */
+    public Mono<OctreeTopology> get(String workspaceName, String datasetName) {
+        if (maxNodes <= 0)
+            return Mono.empty();
+
+        String key = key(workspaceName, datasetName);
+        Mono<Optional<OctreeTopology>> topology = loading.computeIfAbsent(key, k -> load(k, workspaceName, datasetName));
+        //Touch the entry so that it becomes the most recently used one
+        synchronized (weights) {
+            weights.get(key);
+        }
+        return topology.flatMap(Mono::justOrEmpty);
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        loading.keySet().removeIf(key -> event.getWorkspaceName() == null || key.equals(key(event.getWorkspaceName(), event.getDatasetName())));
+        synchronized (weights) {
+            Iterator<Map.Entry<String, Integer>> iterator = weights.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Integer> entry = iterator.next();
+                if (!loading.containsKey(entry.getKey())) {
+                    cachedNodes -= entry.getValue();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the shared load of a topology. The Mono stored in the map is the same instance that the callbacks
+     * remove, so a failed or unavailable load is dropped and the next request queries the database again:
+     * errors and empty results (dataset missing, being built or without datablocks) are not cached.
+     * A dataset with more nodes than the cache can hold is cached as Optional.empty() until it changes,
+     * so that the queries of large datasets don't read the first maxNodes datablocks on every request.
+     *
+     * @param key
+     * @param workspaceName
+     * @param datasetName
+     * @return
+     */
+    private Mono<Optional<OctreeTopology>> load(String key, String workspaceName, String datasetName) {
+
+        AtomicReference<Mono<Optional<OctreeTopology>>> self = new AtomicReference<>();
+
+        Mono<Optional<OctreeTopology>> topology = datasetRepositoryInterface
+                .findByWorkspaceAndDataset(workspaceName, datasetName)
+                .filter(dataset -> dataset.getDataAssociated() == Dataset.State.DATA_ASSOCIATED)
+                .flatMap(dataset -> datablockRepositoryInterface
+                        .findAllDatablocksInDataset(workspaceName, datasetName)
+                        .take(maxNodes + 1)
+                        .collectList())
+                .filter(datablocks -> !datablocks.isEmpty())
+                .map(datablocks -> {
+                    if (datablocks.size() > maxNodes) {
+                        logger.info("Topology of " + key + " doesn't fit in the cache (more than " + maxNodes + " nodes)");
+                        return Optional.<OctreeTopology>empty();
+                    }
+                    return Optional.of(new OctreeTopology(datablocks));
+                })
+                .doOnNext(result -> result.ifPresent(loaded -> register(key, self.get(), loaded.size())))
+                .doOnError(throwable -> loading.remove(key, self.get()))
+                .switchIfEmpty(Mono.fromRunnable(() -> loading.remove(key, self.get())))
+                .cache(result -> Duration.ofMillis(Long.MAX_VALUE), throwable -> Duration.ZERO, () -> Duration.ZERO);
+
+        self.set(topology);
+        return topology;
+    }
+
+    /**
+     * Accounts a loaded topology and evicts the least recently used ones until the cache fits its limit.
+     * A load that was dropped meanwhile, because its dataset changed, isn't accounted
+     *
+     * @param key
+     * @param load the load of the topology
+     * @param size
+     */
+    private void register(String key, Mono<Optional<OctreeTopology>> load, int size) {
+        synchronized (weights) {
+            if (loading.get(key) != load || weights.containsKey(key))
+                return;
+            weights.put(key, size);
+            cachedNodes += size;
+
+            Iterator<Map.Entry<String, Integer>> iterator = weights.entrySet().iterator();
+            while (cachedNodes > maxNodes && iterator.hasNext()) {
+                Map.Entry<String, Integer> eldest = iterator.next();
+                if (eldest.getKey().equals(key))
+                    continue;
+                logger.info("Evicting topology of " + eldest.getKey() + " (" + eldest.getValue() + " nodes)");
+                loading.remove(eldest.getKey());
+                cachedNodes -= eldest.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of nodes of the topologies accounted in the cache
+     */
+    long getCachedNodes() {
+        synchronized (weights) {
+            return cachedNodes;
+        }
+    }
+
+    private static String key(String workspaceName, String datasetName) {
+        return workspaceName + "/" + datasetName;
+    }
+
+}
@@ -0,0 +1,338 @@
+package ujaen.spslidar.services.core.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.DTOs.http.PayloadCacheStatsDTO;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps in direct memory the files of the most requested datablocks, so that they are served without
+ * reading the stored files. Files never change, so an entry is only dropped when the cache needs room
+ * or when its dataset changes.
+ * The cache is split in two segments: the datablocks of the upper levels of the octrees, which every
+ * viewer requests, go to a protected segment that takes up to three quarters of the space, and the
+ * rest go to a probationary one. Entries are evicted from the probationary segment first, least recently
+ * used first, and the protected segment only loses its entries when it exceeds its share.
+ */
+@Component
+public class PayloadCache {
+
+    //Share of the space that the protected segment can take
+    private static final double protectedShare = 0.75;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final int protectedDepth;
+    private final MeterRegistry meterRegistry;
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    //Both segments in access order, guarded by this along with their sizes
+    private final LinkedHashMap<ObjectId, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<ObjectId, Entry> probationaryEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long protectedBytes = 0;
+    private long probationaryBytes = 0;
+
+    private final Map<String, DatasetStats> stats = new ConcurrentHashMap<>();
+
+    public PayloadCache(CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        this.maxBytes = cacheProperties.getPayloadMaxBytes();
+        this.maxEntryBytes = maxBytes / 16;
+        this.protectedDepth = cacheProperties.getPayloadProtectedDepth();
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("cache.payload.bytes", this, PayloadCache::getCachedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the file of a datablock. On a hit the cached bytes are returned as a read-only view, without
+     * copying them; on a miss the file is read with the loader and copied to the cache as it is sent.
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param datablock     datablock whose file is requested
+     * @param loader        reads the stored file
+     * @return Flux of DataBuffer with the content of the file
+     */
+    public Flux<DataBuffer> get(String workspaceName, String datasetName, AbstractDatablock datablock,
+                                Supplier<Flux<DataBuffer>> loader) {
+        if (maxBytes <= 0)
+            return loader.get();
+
+        ObjectId objectId = datablock.getObjectId();
+        DatasetStats datasetStats = stats.computeIfAbsent(key(workspaceName, datasetName),
+                key -> new DatasetStats(workspaceName, datasetName));
+
+        ByteBuffer payload = lookup(objectId);
+        if (payload != null) {
+            datasetStats.hit();
+            return Flux.just(bufferFactory.wrap(payload.asReadOnlyBuffer()));
+        }
+
+        datasetStats.miss();
+        Accumulator accumulator = new Accumulator();
+        return loader.get()
+                .doOnNext(accumulator::append)
+                .doOnComplete(() -> {
+                    if (!accumulator.overflow)
+                        store(objectId, new Entry(datasetStats, accumulator.toDirectBuffer(),
+                                datablock.getDepth() <= protectedDepth));
+                });
+    }
+
+    /**
+     * Reads the file of a datablock into the cache if it isn't there. It is not counted as a request of the
+     * dataset, so the hit ratio reflects only the requests of the clients
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param datablock     datablock whose file is read
+     * @param loader        reads the stored file
+     * @return Mono with true if the file has been cached by this call
+     */
+    public Mono<Boolean> prefetch(String workspaceName, String datasetName, AbstractDatablock datablock,
+                                  Supplier<Flux<DataBuffer>> loader) {
+        ObjectId objectId = datablock.getObjectId();
+        if (maxBytes <= 0 || contains(objectId))
+            return Mono.just(false);
+
+        DatasetStats datasetStats = stats.computeIfAbsent(key(workspaceName, datasetName),
+                key -> new DatasetStats(workspaceName, datasetName));
+        Accumulator accumulator = new Accumulator();
+        return loader.get()
+                .doOnNext(accumulator::append)
+                .then(Mono.fromCallable(() -> {
+                    if (accumulator.overflow)
+                        return false;
+                    store(objectId, new Entry(datasetStats, accumulator.toDirectBuffer(),
+                            datablock.getDepth() <= protectedDepth));
+                    return true;
+                }));
+    }
+
+    /**
+     * Returns part of the file of a datablock if it is cached, as a read-only view of the cached bytes
+     *
+     * @param objectId id of the file
+     * @param start    position of the first byte
+     * @param end      position of the last byte, included
+     * @return
+     */
+    public Optional<DataBuffer> getRange(ObjectId objectId, long start, long end) {
+        if (maxBytes <= 0)
+            return Optional.empty();
+
+        return Optional.ofNullable(lookup(objectId))
+                .map(payload -> bufferFactory.wrap(payload.asReadOnlyBuffer()
+                        .position((int) start)
+                        .limit((int) end + 1)
+                        .slice()));
+    }
+
+    /**
+     * Returns the statistics of every dataset that has been requested since the server started
+     *
+     * @return
+     */
+    public List<PayloadCacheStatsDTO> getStats() {
+        return stats.values().stream()
+                .map(DatasetStats::toDTO)
+                .collect(Collectors.toList());
+    }
+
+    public synchronized long getCachedBytes() {
+        return protectedBytes + probationaryBytes;
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        synchronized (this) {
+            protectedBytes -= removeIf(protectedEntries, event);
+            probationaryBytes -= removeIf(probationaryEntries, event);
+        }
+    }
+
+    private synchronized ByteBuffer lookup(ObjectId objectId) {
+        Entry entry = protectedEntries.get(objectId);
+        if (entry == null)
+            entry = probationaryEntries.get(objectId);
+        return entry == null ? null : entry.payload;
+    }
+
+    private synchronized boolean contains(ObjectId objectId) {
+        return protectedEntries.containsKey(objectId) || probationaryEntries.containsKey(objectId);
+    }
+
+    private synchronized void store(ObjectId objectId, Entry entry) {
+        if (protectedEntries.containsKey(objectId) || probationaryEntries.containsKey(objectId))
+            return;
+
+        entry.datasetStats.entries.incrementAndGet();
+        entry.datasetStats.bytes.addAndGet(entry.size());
+        if (entry.protectedEntry) {
+            protectedEntries.put(objectId, entry);
+            protectedBytes += entry.size();
+        } else {
+            probationaryEntries.put(objectId, entry);
+            probationaryBytes += entry.size();
+        }
+
+        //Entries over the share of the protected segment lose their protection, least recently used first
+        Iterator<Map.Entry<ObjectId, Entry>> protectedIterator = protectedEntries.entrySet().iterator();
+        while (protectedBytes > maxBytes * protectedShare && protectedIterator.hasNext()) {
+            Map.Entry<ObjectId, Entry> eldest = protectedIterator.next();
+            protectedIterator.remove();
+            protectedBytes -= eldest.getValue().size();
+            probationaryEntries.put(eldest.getKey(), eldest.getValue());
+            probationaryBytes += eldest.getValue().size();
+        }
+
+        Iterator<Map.Entry<ObjectId, Entry>> probationaryIterator = probationaryEntries.entrySet().iterator();
+        while (protectedBytes + probationaryBytes > maxBytes && probationaryIterator.hasNext()) {
+            Entry eldest = probationaryIterator.next().getValue();
+            probationaryIterator.remove();
+            probationaryBytes -= eldest.size();
+            eldest.datasetStats.evicted(eldest.size());
+        }
+    }
+
+    private long removeIf(LinkedHashMap<ObjectId, Entry> entries, DatasetChangedEvent event) {
+        long removed = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (event.affects(entry.datasetStats.workspaceName, entry.datasetStats.datasetName)) {
+                entry.datasetStats.entries.decrementAndGet();
+                entry.datasetStats.bytes.addAndGet(-entry.size());
+                removed += entry.size();
+                iterator.remove();
+            }
+        }
+        return removed;
+    }
+
+    private static String key(String workspaceName, String datasetName) {
+        return workspaceName + "/" + datasetName;
+    }
+
+    private static class Entry {
+
+        final DatasetStats datasetStats;
+        final ByteBuffer payload;
+        final boolean protectedEntry;
+
+        Entry(DatasetStats datasetStats, ByteBuffer payload, boolean protectedEntry) {
+            this.datasetStats = datasetStats;
+            this.payload = payload;
+            this.protectedEntry = protectedEntry;
+        }
+
+        long size() {
+            return payload.capacity();
+        }
+    }
+
+    /**
+     * Copy of the buffers of a file while it is sent. The buffers belong to the response, so they are
+     * copied as they pass and joined in a single direct buffer once the file is complete
+     */
+    private class Accumulator {
+
+        final List<byte[]> chunks = new ArrayList<>();
+        long size = 0;
+        boolean overflow = false;
+
+        void append(DataBuffer dataBuffer) {
+            if (overflow)
+                return;
+
+            size += dataBuffer.readableByteCount();
+            if (size > maxEntryBytes) {
+                overflow = true;
+                chunks.clear();
+                return;
+            }
+            byte[] chunk = new byte[dataBuffer.readableByteCount()];
+            dataBuffer.asByteBuffer().get(chunk);
+            chunks.add(chunk);
+        }
+
+        ByteBuffer toDirectBuffer() {
+            ByteBuffer payload = ByteBuffer.allocateDirect((int) size);
+            chunks.forEach(payload::put);
+            chunks.clear();
+            return payload.flip();
+        }
+    }
+
+    private class DatasetStats {
+
+        final String workspaceName;
+        final String datasetName;
+        final AtomicLong entries = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final Counter hits;
+        final Counter misses;
+        final Counter evictions;
+
+        DatasetStats(String workspaceName, String datasetName) {
+            this.workspaceName = workspaceName;
+            this.datasetName = datasetName;
+            this.hits = counter("cache.payload.requests", "result", "hit");
+            this.misses = counter("cache.payload.requests", "result", "miss");
+            this.evictions = counter("cache.payload.evictions", null, null);
+        }
+
+        void hit() {
+            hits.increment();
+        }
+
+        void miss() {
+            misses.increment();
+        }
+
+        void evicted(long size) {
+            evictions.increment();
+            entries.decrementAndGet();
+            bytes.addAndGet(-size);
+        }
+
+        PayloadCacheStatsDTO toDTO() {
+            long requests = (long) (hits.count() + misses.count());
+            return new PayloadCacheStatsDTO(workspaceName, datasetName, entries.get(), bytes.get(),
+                    (long) hits.count(), (long) misses.count(), (long) evictions.count(),
+                    requests == 0 ? 0 : hits.count() / requests);
+        }
+
+        private Counter counter(String name, String tag, String value) {
+            Counter.Builder builder = Counter.builder(name)
+                    .tag("workspace", workspaceName)
+                    .tag("dataset", datasetName);
+            if (tag != null)
+                builder.tag(tag, value);
+            return builder.register(meterRegistry);
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package ujaen.spslidar.services.core.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.UTMCoord;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Keeps in memory the datablocks found by the most recent region queries. The region of a query is widened
+ * to the cells of a grid that it overlaps, so queries with close coordinates share the same result, which is
+ * then filtered to the exact region of each query. Results are dropped when the total number of datablocks
+ * cached exceeds the configured limit (least recently used first).
+ * Every dataset has a build version that is increased when it changes, and results are kept under the version
+ * of their dataset when they were requested, so a query that was running while the dataset changed is never
+ * served again.
+ */
+@Component
+public class RegionQueryCache {
+
+    private final long maxDatablocks;
+    private final double gridSize;
+
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    //Results in access order, used for the eviction. Guarded by itself
+    private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedDatablocks = 0;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    public RegionQueryCache(CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        this.maxDatablocks = cacheProperties.getRegionMaxDatablocks();
+        this.gridSize = cacheProperties.getRegionGridSize();
+        this.hits = Counter.builder("cache.region.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("cache.region.requests").tag("result", "miss").register(meterRegistry);
+    }
+
+    /**
+     * Returns the datablocks of a dataset that overlap a region, querying them if needed
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param queryBox      region of the query
+     * @param maxDepth      deepest level of the datablocks, -1 if there is no limit
+     * @param loader        queries the datablocks that overlap a region
+     * @return
+     */
+    public Flux<AbstractDatablock> get(String workspaceName, String datasetName, GeorefBox queryBox, int maxDepth,
+                                       Function<GeorefBox, Flux<AbstractDatablock>> loader) {
+        if (maxDatablocks <= 0 || gridSize <= 0)
+            return loader.apply(queryBox);
+
+        String dataset = key(workspaceName, datasetName);
+        GeorefBox region = snap(queryBox);
+        List<Object> key = Arrays.asList(dataset, versions.getOrDefault(dataset, 0L), region, maxDepth);
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(dataset, loader.apply(region).collectList());
+                entries.put(key, entry);
+                misses.increment();
+            } else {
+                hits.increment();
+            }
+        }
+
+        Entry result = entry;
+        return result.datablocks
+                .doOnNext(datablocks -> register(key, result, datablocks.size()))
+                .doOnError(throwable -> remove(key, result))
+                .flatMapIterable(datablocks -> datablocks)
+                .filter(datablock -> datablock.getGeorefBox().doesOverlap(queryBox));
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        synchronized (entries) {
+            if (event.getWorkspaceName() == null)
+                versions.replaceAll((dataset, version) -> version + 1);
+            else
+                versions.merge(key(event.getWorkspaceName(), event.getDatasetName()), 1L, Long::sum);
+
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (event.getWorkspaceName() == null
+                        || entry.dataset.equals(key(event.getWorkspaceName(), event.getDatasetName()))) {
+                    cachedDatablocks -= entry.weight;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Accounts a loaded result and evicts the least recently used ones until the cache fits its limit
+     *
+     * @param key
+     * @param entry
+     * @param weight
+     */
+    private void register(List<Object> key, Entry entry, int weight) {
+        synchronized (entries) {
+            if (entry.weight >= 0 || entries.get(key) != entry)
+                return;
+            entry.weight = weight;
+            cachedDatablocks += weight;
+
+            Iterator<Map.Entry<List<Object>, Entry>> iterator = entries.entrySet().iterator();
+            while (cachedDatablocks > maxDatablocks && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+                if (eldest == entry || eldest.weight < 0)
+                    continue;
+                cachedDatablocks -= eldest.weight;
+                iterator.remove();
+            }
+            if (cachedDatablocks > maxDatablocks)
+                remove(key, entry);
+        }
+    }
+
+    private void remove(List<Object> key, Entry entry) {
+        synchronized (entries) {
+            if (entries.remove(key, entry) && entry.weight > 0)
+                cachedDatablocks -= entry.weight;
+        }
+    }
+
+    /**
+     * Widens a region to the cells of the grid that it overlaps
+     *
+     * @param queryBox
+     * @return
+     */
+    private GeorefBox snap(GeorefBox queryBox) {
+        UTMCoord southWest = queryBox.getSouthWestBottom();
+        UTMCoord northEast = queryBox.getNorthEastTop();
+        return new GeorefBox(
+                new UTMCoord(Math.floor(southWest.getEasting() / gridSize) * gridSize,
+                        Math.floor(southWest.getNorthing() / gridSize) * gridSize, southWest.getZone(), southWest.getHeight()),
+                new UTMCoord(Math.ceil(northEast.getEasting() / gridSize) * gridSize,
+                        Math.ceil(northEast.getNorthing() / gridSize) * gridSize, northEast.getZone(), northEast.getHeight()));
+    }
+
+    private static String key(String workspaceName, String datasetName) {
+        return workspaceName + "/" + datasetName;
+    }
+
+    private static class Entry {
+
+        private final String dataset;
+        private final Mono<List<AbstractDatablock>> datablocks;
+        //Number of datablocks of the result, -1 while it is being loaded
+        private int weight = -1;
+
+        private Entry(String dataset, Mono<List<AbstractDatablock>> datablocks) {
+            this.dataset = dataset;
+            this.datablocks = datablocks.cache();
+        }
+
+    }
+
+}
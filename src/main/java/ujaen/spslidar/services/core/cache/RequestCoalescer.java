@@ -0,0 +1,294 @@
+package ujaen.spslidar.services.core.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.ConnectableFlux;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Signal;
+import reactor.util.function.Tuple2;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Shares a single read among the identical requests that arrive while it is in progress, so that a burst of
+ * requests for the same datablock or region reaches the database once. A read is only shared while it is in
+ * progress; the requests that arrive once it has finished start a new one.
+ * The first buffers of a shared stream are replayed to the requests that join it late, up to the configured
+ * number of buffers. Requests that arrive after that read the stream on their own. A shared stream is read
+ * at the pace of its slowest request, a few buffers ahead of it.
+ * The number of reads started and of requests that joined a read in progress is counted by type of request.
+ */
+@Component
+public class RequestCoalescer {
+
+    //Buffers that a shared read goes ahead of its slowest request
+    private static final int prefetchBuffers = 4;
+
+    private final int replayBuffers;
+    private final MeterRegistry meterRegistry;
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    private final Map<List<Object>, Mono<?>> values = new ConcurrentHashMap<>();
+    private final Map<List<Object>, SharedStream> streams = new ConcurrentHashMap<>();
+    private final Map<String, Counter[]> counters = new ConcurrentHashMap<>();
+
+    public RequestCoalescer(CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        this.replayBuffers = cacheProperties.getCoalesceReplayBuffers();
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Returns the result of a read that produces a single value, sharing it with the identical reads in progress
+     *
+     * @param type          type of request, used by the metrics
+     * @param workspaceName
+     * @param datasetName
+     * @param request       parameters that identify the read within the dataset
+     * @param upstream      starts the read
+     * @param <T>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> mono(String type, String workspaceName, String datasetName, Object request,
+                            Supplier<Mono<T>> upstream) {
+        if (replayBuffers <= 0)
+            return upstream.get();
+
+        List<Object> key = Arrays.asList(type, workspaceName, datasetName, request);
+        return Mono.defer(() -> {
+            boolean[] started = {false};
+            Mono<?> shared = values.computeIfAbsent(key, k -> {
+                started[0] = true;
+                Mono<T>[] read = new Mono[1];
+                read[0] = upstream.get()
+                        .doFinally(signalType -> values.remove(key, read[0]))
+                        .cache();
+                return read[0];
+            });
+            counters(type)[started[0] ? 0 : 1].increment();
+            return (Mono<T>) shared;
+        });
+    }
+
+    /**
+     * Returns the content of a read, sharing it with the identical reads in progress. Every request receives
+     * its own buffers, which are views of the buffers read. A shared read advances at the pace of its slowest
+     * request, so it doesn't hold more than the buffers replayed and the ones read ahead
+     *
+     * @param type          type of request, used by the metrics
+     * @param workspaceName
+     * @param datasetName
+     * @param request       parameters that identify the read within the dataset
+     * @param upstream      starts the read
+     * @return
+     */
+    public Flux<DataBuffer> buffers(String type, String workspaceName, String datasetName, Object request,
+                                    Supplier<Flux<DataBuffer>> upstream) {
+        if (replayBuffers <= 0)
+            return upstream.get();
+
+        List<Object> key = Arrays.asList(type, workspaceName, datasetName, request);
+        return Flux.defer(() -> {
+            while (true) {
+                boolean[] started = {false};
+                SharedStream shared = streams.computeIfAbsent(key, k -> {
+                    started[0] = true;
+                    return new SharedStream(k, upstream);
+                });
+                Flux<DataBuffer> joined = shared.join();
+                if (joined != null) {
+                    counters(type)[started[0] ? 0 : 1].increment();
+                    return joined.map(buffer -> bufferFactory.wrap(buffer.asByteBuffer()));
+                }
+                //The read has gone past the buffers replayed, so it is replaced by a new one
+                streams.remove(key, shared);
+            }
+        });
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        values.keySet().removeIf(key -> event.affects((String) key.get(1), (String) key.get(2)));
+        streams.keySet().removeIf(key -> event.affects((String) key.get(1), (String) key.get(2)));
+    }
+
+    /**
+     * Counters of the reads started and of the requests that joined a read in progress
+     *
+     * @param type
+     * @return
+     */
+    private Counter[] counters(String type) {
+        return counters.computeIfAbsent(type, t -> new Counter[]{
+                Counter.builder("coalescing.requests").tag("type", t).tag("result", "upstream").register(meterRegistry),
+                Counter.builder("coalescing.requests").tag("type", t).tag("result", "shared").register(meterRegistry)});
+    }
+
+    /**
+     * Read shared by several requests. The first buffers read are kept, so that the requests that join it
+     * after it has started receive them, and the rest are delivered through a publish operator that only
+     * reads ahead a few buffers of what the slowest request has consumed. A request joins the read by
+     * subscribing to the live buffers and to a copy of the buffers kept at the same time (under the same lock
+     * used to keep them), so it neither misses nor repeats a buffer.
+     */
+    private class SharedStream {
+
+        private final List<Object> key;
+        private final ConnectableFlux<Tuple2<Long, DataBuffer>> live;
+
+        //Guarded by this
+        private final List<DataBuffer> head = new ArrayList<>();
+        private long read = 0;
+        private int subscribers = 0;
+        private Disposable connection;
+        private boolean closed = false;
+
+        private SharedStream(List<Object> key, Supplier<Flux<DataBuffer>> upstream) {
+            this.key = key;
+            this.live = Flux.defer(upstream)
+                    .index()
+                    .doOnNext(this::keep)
+                    .doFinally(signalType -> close())
+                    .publish(prefetchBuffers);
+        }
+
+        /**
+         * Joins the read
+         *
+         * @return the buffers of the read from the first one, or null if the buffers already read are no
+         * longer kept
+         */
+        private synchronized Flux<DataBuffer> join() {
+            if (closed || read > replayBuffers)
+                return null;
+
+            List<DataBuffer> replayed = new ArrayList<>(head);
+            Bridge bridge = new Bridge(replayed.size());
+            live.subscribe(bridge);
+            subscribers++;
+            if (connection == null)
+                connection = live.connect();
+
+            return Flux.fromIterable(replayed)
+                    .concatWith(Flux.create(bridge::attach))
+                    .doFinally(signalType -> leave(bridge));
+        }
+
+        private synchronized void keep(Tuple2<Long, DataBuffer> buffer) {
+            read++;
+            if (read <= replayBuffers)
+                head.add(buffer.getT2());
+            else
+                head.clear();
+        }
+
+        /**
+         * Drops a request from the read, cancelling it when no request is left
+         *
+         * @param bridge
+         */
+        private void leave(Bridge bridge) {
+            bridge.dispose();
+            Disposable cancelled = null;
+            synchronized (this) {
+                if (--subscribers == 0 && !closed) {
+                    cancelled = connection;
+                    close();
+                }
+            }
+            if (cancelled != null)
+                cancelled.dispose();
+        }
+
+        private synchronized void close() {
+            closed = true;
+            head.clear();
+            streams.remove(key, this);
+        }
+
+    }
+
+    /**
+     * Subscription of a request to the live buffers of a shared read. It is subscribed when the request
+     * joins, so that the read waits for it, but it doesn't request any buffer until the request has received
+     * those replayed; the buffers it receives that were also replayed are skipped.
+     */
+    private static class Bridge extends BaseSubscriber<Tuple2<Long, DataBuffer>> {
+
+        private final long replayed;
+        private FluxSink<DataBuffer> sink;
+        private final Queue<Signal<DataBuffer>> pending = new ArrayDeque<>();
+
+        private Bridge(long replayed) {
+            this.replayed = replayed;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            //Nothing is requested until the request consumes the replayed buffers
+        }
+
+        private synchronized void attach(FluxSink<DataBuffer> sink) {
+            this.sink = sink;
+            //Nothing was requested before, so only the end of the read can be pending
+            Signal<DataBuffer> signal;
+            while ((signal = pending.poll()) != null)
+                deliver(signal);
+            sink.onRequest(this::request);
+            sink.onDispose(this::dispose);
+        }
+
+        @Override
+        protected void hookOnNext(Tuple2<Long, DataBuffer> buffer) {
+            if (buffer.getT1() < replayed)
+                request(1);
+            else
+                signal(Signal.next(buffer.getT2()));
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            signal(Signal.complete());
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            signal(Signal.error(throwable));
+        }
+
+        private synchronized void signal(Signal<DataBuffer> signal) {
+            if (sink == null)
+                pending.add(signal);
+            else
+                deliver(signal);
+        }
+
+        private void deliver(Signal<DataBuffer> signal) {
+            if (signal.isOnNext())
+                sink.next(signal.get());
+            else if (signal.isOnError())
+                sink.error(signal.getThrowable());
+            else
+                sink.complete();
+        }
+
+    }
+
+}
@@ -0,0 +1,186 @@
+package ujaen.spslidar.services.core.complete;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import ujaen.spslidar.Exceptions.BuildingOctreeException;
+import ujaen.spslidar.Exceptions.ElementNotFound;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.entities.StoredFile;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+import ujaen.spslidar.services.tools.LasToolsService;
+import ujaen.spslidar.services.tools.SystemFileStorageService;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a single file with the complete point cloud of every dataset, so that downloading a dataset sends a
+ * stored file instead of merging the files of its nodes on each request. The file is built with lasmerge, and
+ * compressed, once the octrees of the dataset have been built, or on the first request if it doesn't exist.
+ * The file is referenced by the dataset until its octrees are built again.
+ * There is a single build of each dataset at a time, which every request that arrives meanwhile waits for.
+ * Builds are cancelled when the dataset changes.
+ */
+@Service
+public class CompleteDatasetService {
+
+    private static final int downloadConcurrency = 4;
+
+    Logger logger = LoggerFactory.getLogger(CompleteDatasetService.class);
+
+    private final DatasetRepositoryInterface datasetRepositoryInterface;
+    private final DatablockRepositoryInterface datablockRepositoryInterface;
+    private final FileRepositoryInterface fileRepositoryInterface;
+    private final LasToolsService lasToolsService;
+    private final SystemFileStorageService systemFileStorageService;
+
+    //Builds in progress, guarded by itself
+    private final Map<String, Build> builds = new HashMap<>();
+
+    public CompleteDatasetService(DatasetRepositoryInterface datasetRepositoryInterface,
+                                  DatablockRepositoryInterface datablockRepositoryInterface,
+                                  FileRepositoryInterface fileRepositoryInterface,
+                                  LasToolsService lasToolsService,
+                                  SystemFileStorageService systemFileStorageService) {
+        this.datasetRepositoryInterface = datasetRepositoryInterface;
+        this.datablockRepositoryInterface = datablockRepositoryInterface;
+        this.fileRepositoryInterface = fileRepositoryInterface;
+        this.lasToolsService = lasToolsService;
+        this.systemFileStorageService = systemFileStorageService;
+    }
+
+    /**
+     * Returns the description of the file with the complete point cloud of a dataset, building it if needed
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @return Mono with the stored file. ElementNotFound if the dataset doesn't exist or has no data,
+     * BuildingOctreeException if its octrees are being built
+     */
+    public Mono<StoredFile> getCompleteFile(String workspaceName, String datasetName) {
+        return datasetRepositoryInterface.findByWorkspaceAndDataset(workspaceName, datasetName)
+                .switchIfEmpty(Mono.error(new ElementNotFound()))
+                .flatMap(dataset -> {
+                    if (dataset.getDataAssociated() == Dataset.State.BUILDING)
+                        return Mono.error(new BuildingOctreeException());
+                    if (dataset.getDataAssociated() != Dataset.State.DATA_ASSOCIATED)
+                        return Mono.error(new ElementNotFound());
+
+                    Mono<StoredFile> built = Mono.defer(() -> start(workspaceName, datasetName))
+                            .flatMap(fileRepositoryInterface::findFile);
+                    if (dataset.getCompleteFile() == null)
+                        return built;
+                    return fileRepositoryInterface.findFile(dataset.getCompleteFile())
+                            .switchIfEmpty(built);
+                })
+                .switchIfEmpty(Mono.error(new ElementNotFound()));
+    }
+
+    /**
+     * Starts the build of the file with the complete point cloud of a dataset, unless there is one running
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @return Mono with the id of the file, empty if the dataset changed while it was built
+     */
+    public Mono<ObjectId> start(String workspaceName, String datasetName) {
+        synchronized (builds) {
+            String key = key(workspaceName, datasetName);
+            Build running = builds.get(key);
+            if (running != null)
+                return running.result.asMono();
+
+            Build build = new Build(workspaceName, datasetName);
+            builds.put(key, build);
+            build.job = build(workspaceName, datasetName)
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .doFinally(signalType -> {
+                        synchronized (builds) {
+                            builds.remove(key, build);
+                        }
+                    })
+                    .subscribe(objectId -> {
+                        logger.info("Complete file of " + key + " built");
+                        build.result.tryEmitValue(objectId);
+                    }, throwable -> {
+                        logger.error("Complete file of " + key + " failed: " + throwable);
+                        build.result.tryEmitError(throwable);
+                    }, () -> build.result.tryEmitEmpty());
+            return build.result.asMono();
+        }
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        List<Build> cancelled = new ArrayList<>();
+        synchronized (builds) {
+            builds.values().removeIf(build -> event.affects(build.workspaceName, build.datasetName) && cancelled.add(build));
+        }
+        for (Build build : cancelled) {
+            if (build.job != null)
+                build.job.dispose();
+            build.result.tryEmitError(new BuildingOctreeException());
+        }
+    }
+
+    /**
+     * Downloads the files of the nodes of a dataset to a directory of its own, merges them and stores the result
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @return Mono with the id of the stored file, empty if the dataset changed in the meantime
+     */
+    private Mono<ObjectId> build(String workspaceName, String datasetName) {
+        String fileName = workspaceName + "_" + datasetName + ".laz";
+
+        return Mono.usingWhen(
+                Mono.fromCallable(() -> Path.of(systemFileStorageService.buildMergeDirectory(workspaceName, datasetName))),
+                directory -> datablockRepositoryInterface.findAllDatablocksInDataset(workspaceName, datasetName)
+                        .filter(datablock -> datablock.getObjectId() != null)
+                        .flatMap(datablock -> {
+                            Path path = directory.resolve(datablock.getObjectId().toHexString() + ".laz");
+                            return DataBufferUtils.write(fileRepositoryInterface.getFile(datablock.getObjectId()), path)
+                                    .thenReturn(path.toString());
+                        }, downloadConcurrency)
+                        .collectList()
+                        .filter(files -> !files.isEmpty())
+                        .flatMap(files -> lasToolsService.mergeFileList(files, directory.resolve(fileName)))
+                        .flatMap(fileRepositoryInterface::storeFile)
+                        .filterWhen(objectId -> datasetRepositoryInterface.updateCompleteFile(workspaceName, datasetName, objectId)),
+                directory -> Mono.fromRunnable(() -> systemFileStorageService.cleanDirectory(directory))
+                        .subscribeOn(Schedulers.boundedElastic()));
+    }
+
+    private static String key(String workspaceName, String datasetName) {
+        return workspaceName + "/" + datasetName;
+    }
+
+    private static class Build {
+
+        private final String workspaceName;
+        private final String datasetName;
+        private final Sinks.One<ObjectId> result = Sinks.one();
+        private volatile Disposable job;
+
+        private Build(String workspaceName, String datasetName) {
+            this.workspaceName = workspaceName;
+            this.datasetName = datasetName;
+        }
+
+    }
+
+}
@@ -0,0 +1,242 @@
+package ujaen.spslidar.services.core.copc;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import ujaen.spslidar.DTOs.http.CopcExportDTO;
+import ujaen.spslidar.Exceptions.BuildingOctreeException;
+import ujaen.spslidar.Exceptions.ElementNotFound;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.entities.StoredFile;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+import ujaen.spslidar.services.core.potree.PotreeExportService;
+import ujaen.spslidar.services.core.potree.PotreeOctree;
+import ujaen.spslidar.services.tools.LasToolsService;
+import ujaen.spslidar.services.tools.SystemFileStorageService;
+
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Exports the octree of each grid cell of a dataset as a Cloud Optimized Point Cloud (COPC) file, so that
+ * COPC readers can load the cells with byte ranges. The files of the nodes are merged by lascopcindex in the
+ * order of the hierarchy, the root first, and the resulting files are stored and referenced by the dataset
+ * until its octrees are built again.
+ * Exports run in the background, one at a time for each dataset, and are cancelled when the dataset changes.
+ */
+@Service
+public class CopcExportService {
+
+    private static final int downloadConcurrency = 4;
+
+    Logger logger = LoggerFactory.getLogger(CopcExportService.class);
+
+    private final PotreeExportService potreeExportService;
+    private final LasToolsService lasToolsService;
+    private final FileRepositoryInterface fileRepositoryInterface;
+    private final DatasetRepositoryInterface datasetRepositoryInterface;
+    private final SystemFileStorageService systemFileStorageService;
+
+    //Last export of every dataset since the server started, guarded by itself
+    private final Map<String, Export> exports = new HashMap<>();
+
+    public enum State {
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    public CopcExportService(PotreeExportService potreeExportService,
+                             LasToolsService lasToolsService,
+                             FileRepositoryInterface fileRepositoryInterface,
+                             DatasetRepositoryInterface datasetRepositoryInterface,
+                             SystemFileStorageService systemFileStorageService) {
+        this.potreeExportService = potreeExportService;
+        this.lasToolsService = lasToolsService;
+        this.fileRepositoryInterface = fileRepositoryInterface;
+        this.datasetRepositoryInterface = datasetRepositoryInterface;
+        this.systemFileStorageService = systemFileStorageService;
+    }
+
+    /**
+     * Starts the export of a dataset, unless there is one already running
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @return Mono with the state of the export. ElementNotFound if the dataset doesn't exist or has no data,
+     * BuildingOctreeException if its octrees are being built
+     */
+    public Mono<CopcExportDTO> startExport(String workspaceName, String datasetName) {
+        return datasetRepositoryInterface.findByWorkspaceAndDataset(workspaceName, datasetName)
+                .switchIfEmpty(Mono.error(new ElementNotFound()))
+                .flatMap(dataset -> {
+                    if (dataset.getDataAssociated() == Dataset.State.BUILDING)
+                        return Mono.error(new BuildingOctreeException());
+                    if (dataset.getDataAssociated() != Dataset.State.DATA_ASSOCIATED)
+                        return Mono.error(new ElementNotFound());
+
+                    return Mono.just(exportDTO(start(workspaceName, datasetName), dataset));
+                });
+    }
+
+    /**
+     * Returns the state of the last export of a dataset and the files exported
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @return Mono with the state of the export, ElementNotFound if the dataset has never been exported
+     */
+    public Mono<CopcExportDTO> getExport(String workspaceName, String datasetName) {
+        return datasetRepositoryInterface.findByWorkspaceAndDataset(workspaceName, datasetName)
+                .switchIfEmpty(Mono.error(new ElementNotFound()))
+                .flatMap(dataset -> {
+                    Export export;
+                    synchronized (exports) {
+                        export = exports.get(key(workspaceName, datasetName));
+                    }
+                    if (export == null && dataset.getCopcFiles().isEmpty())
+                        return Mono.error(new ElementNotFound());
+                    return Mono.just(exportDTO(export, dataset));
+                });
+    }
+
+    /**
+     * Returns the description of the COPC file of a cell
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param cell          index of the cell
+     * @return Mono with the stored file, ElementNotFound if the cell hasn't been exported
+     */
+    public Mono<StoredFile> getCopcFile(String workspaceName, String datasetName, int cell) {
+        return datasetRepositoryInterface.findByWorkspaceAndDataset(workspaceName, datasetName)
+                .flatMap(dataset -> Mono.justOrEmpty(dataset.getCopcFiles().get(String.valueOf(cell))))
+                .flatMap(fileRepositoryInterface::findFile)
+                .switchIfEmpty(Mono.error(new ElementNotFound()));
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        synchronized (exports) {
+            exports.values().removeIf(export -> {
+                if (!event.affects(export.workspaceName, export.datasetName))
+                    return false;
+                if (export.job != null)
+                    export.job.dispose();
+                return true;
+            });
+        }
+    }
+
+    private Export start(String workspaceName, String datasetName) {
+        synchronized (exports) {
+            String key = key(workspaceName, datasetName);
+            Export running = exports.get(key);
+            if (running != null && running.state == State.RUNNING)
+                return running;
+
+            Export export = new Export(workspaceName, datasetName);
+            exports.put(key, export);
+            export.job = export(export)
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .subscribe(updated -> {
+                        export.state = updated ? State.DONE : State.FAILED;
+                        logger.info("COPC export of " + key + (updated ? " finished" : " discarded, the dataset has changed"));
+                    }, throwable -> {
+                        export.state = State.FAILED;
+                        logger.error("COPC export of " + key + " failed: " + throwable);
+                    });
+            return export;
+        }
+    }
+
+    private Mono<Boolean> export(Export export) {
+        return potreeExportService.getOctrees(export.workspaceName, export.datasetName)
+                .flatMapMany(octrees -> {
+                    export.cells = octrees.size();
+                    return Flux.fromIterable(octrees);
+                })
+                .concatMap(octree -> exportCell(export, octree)
+                        .map(objectId -> Map.entry(String.valueOf(octree.getCell()), objectId))
+                        .doOnNext(entry -> export.exportedCells.incrementAndGet()))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .flatMap(copcFiles -> datasetRepositoryInterface.updateCopcFiles(export.workspaceName,
+                        export.datasetName, copcFiles));
+    }
+
+    /**
+     * Downloads the files of the nodes of a cell to a directory of its own, merges them in a COPC file and stores it
+     *
+     * @param export
+     * @param octree octree of the cell
+     * @return Mono with the id of the stored file, empty if the cell has no points
+     */
+    private Mono<ObjectId> exportCell(Export export, PotreeOctree octree) {
+        String fileName = export.workspaceName + "_" + export.datasetName + "_" + octree.getCell() + ".copc.laz";
+
+        return Mono.usingWhen(
+                Mono.fromCallable(() -> Path.of(systemFileStorageService.buildMergeDirectory(export.workspaceName, export.datasetName))),
+                directory -> Flux.range(0, octree.getNumberOfNodes())
+                        .filter(index -> octree.getNodePoints(index) > 0)
+                        .map(octree::getNode)
+                        .flatMapSequential(node -> {
+                            Path path = directory.resolve(node.getObjectId().toHexString() + ".laz");
+                            return DataBufferUtils.write(fileRepositoryInterface.getFile(node.getObjectId()), path)
+                                    .thenReturn(path.toString());
+                        }, downloadConcurrency)
+                        .collectList()
+                        .filter(files -> !files.isEmpty())
+                        .flatMap(files -> lasToolsService.createCopcFile(files, directory.resolve(fileName)))
+                        .flatMap(fileRepositoryInterface::storeFile),
+                directory -> Mono.fromRunnable(() -> systemFileStorageService.cleanDirectory(directory))
+                        .subscribeOn(Schedulers.boundedElastic()));
+    }
+
+    private CopcExportDTO exportDTO(Export export, Dataset dataset) {
+        List<String> files = dataset.getCopcFiles().keySet().stream()
+                .map(Integer::valueOf)
+                .sorted()
+                .map(cell -> "copc/" + cell + ".copc.laz")
+                .collect(Collectors.toList());
+
+        if (export == null)
+            return new CopcExportDTO(State.DONE.name(), null, files.size(), files.size(), files);
+        return new CopcExportDTO(export.state.name(), export.started, export.cells, export.exportedCells.get(), files);
+    }
+
+    private static String key(String workspaceName, String datasetName) {
+        return workspaceName + "/" + datasetName;
+    }
+
+    private static class Export {
+
+        private final String workspaceName;
+        private final String datasetName;
+        private final Date started = new Date();
+        private final AtomicInteger exportedCells = new AtomicInteger();
+        private volatile State state = State.RUNNING;
+        private volatile int cells;
+        private volatile Disposable job;
+
+        private Export(String workspaceName, String datasetName) {
+            this.workspaceName = workspaceName;
+            this.datasetName = datasetName;
+        }
+
+    }
+
+}
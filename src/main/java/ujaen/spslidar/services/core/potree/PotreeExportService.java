@@ -0,0 +1,177 @@
+package ujaen.spslidar.services.core.potree;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.Exceptions.ElementNotFound;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+import ujaen.spslidar.services.core.cache.OctreeTopology;
+import ujaen.spslidar.services.core.cache.OctreeTopologyCache;
+import ujaen.spslidar.services.tools.PotreeNodeEncoder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Publishes the octrees of the datasets as Potree 2.0 point clouds, one for each grid cell, so that Potree can
+ * load them directly. The hierarchy is generated from the metadata of the datablocks, with the number of points
+ * read from the headers of their files, and kept in memory for the most recently requested datasets until they
+ * change. The points of octree.bin are encoded from the files of the
+ * datablocks when they are requested, only for the nodes that the requested range covers.
+ */
+@Service
+public class PotreeExportService {
+
+    private static final int maxDatasets = 32;
+    private static final int nodesInAdvance = 4;
+    private static final int headersInAdvance = 16;
+
+    private final DatablockRepositoryInterface datablockRepositoryInterface;
+    private final OctreeTopologyCache octreeTopologyCache;
+    private final PotreeNodeEncoder potreeNodeEncoder;
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    //Octrees of the most recently requested datasets in access order, guarded by itself
+    private final LinkedHashMap<String, Mono<List<PotreeOctree>>> octrees = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Mono<List<PotreeOctree>>> eldest) {
+            return size() > maxDatasets;
+        }
+    };
+
+    public PotreeExportService(DatablockRepositoryInterface datablockRepositoryInterface,
+                               OctreeTopologyCache octreeTopologyCache,
+                               PotreeNodeEncoder potreeNodeEncoder) {
+        this.datablockRepositoryInterface = datablockRepositoryInterface;
+        this.octreeTopologyCache = octreeTopologyCache;
+        this.potreeNodeEncoder = potreeNodeEncoder;
+    }
+
+    /**
+     * Returns the octrees of a dataset, ordered by UTM zone, northing and easting of their cells
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @return Mono with the octrees, empty if the dataset has no data
+     */
+    public Mono<List<PotreeOctree>> getOctrees(String workspaceName, String datasetName) {
+        String key = workspaceName + "/" + datasetName;
+        synchronized (octrees) {
+            Mono<List<PotreeOctree>> datasetOctrees = octrees.get(key);
+            if (datasetOctrees != null)
+                return datasetOctrees;
+
+            Mono<List<PotreeOctree>> loaded = load(workspaceName, datasetName).cache();
+            octrees.put(key, loaded);
+            return loaded.doOnError(throwable -> {
+                synchronized (octrees) {
+                    octrees.remove(key, loaded);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the octree of a cell of a dataset
+     *
+     * @param workspaceName
+     * @param datasetName
+     * @param cell          index of the cell
+     * @return Mono with the octree, ElementNotFound if there is no such cell
+     */
+    public Mono<PotreeOctree> getOctree(String workspaceName, String datasetName, int cell) {
+        return getOctrees(workspaceName, datasetName)
+                .filter(datasetOctrees -> cell >= 0 && cell < datasetOctrees.size())
+                .map(datasetOctrees -> datasetOctrees.get(cell))
+                .switchIfEmpty(Mono.error(new ElementNotFound()));
+    }
+
+    /**
+     * Returns part of octree.bin, encoding the points of the nodes that it covers
+     *
+     * @param octree
+     * @param start  position of the first byte
+     * @param end    position of the last byte, included
+     * @return
+     */
+    public Flux<DataBuffer> getOctreeRange(PotreeOctree octree, long start, long end) {
+        int[] nodes = octree.nodesInRange(start, end);
+        return Flux.range(nodes[0], nodes[1] - nodes[0] + 1)
+                .flatMapSequential(index -> potreeNodeEncoder
+                        .encode(octree.getNode(index), octree.getNodePoints(index), octree.getOffset(), octree.getScale())
+                        .map(points -> {
+                            long nodeStart = octree.getNodeOffset(index);
+                            int from = (int) Math.max(0, start - nodeStart);
+                            int to = (int) Math.min(points.limit(), end - nodeStart + 1);
+                            return bufferFactory.wrap(points.position(from).limit(to).slice());
+                        }), nodesInAdvance);
+    }
+
+    @EventListener
+    public void onDatasetChanged(DatasetChangedEvent event) {
+        synchronized (octrees) {
+            octrees.keySet().removeIf(key -> event.getWorkspaceName() == null
+                    || key.equals(event.getWorkspaceName() + "/" + event.getDatasetName()));
+        }
+    }
+
+    private Mono<List<PotreeOctree>> load(String workspaceName, String datasetName) {
+        return octreeTopologyCache.get(workspaceName, datasetName)
+                .map(this::datablocks)
+                .switchIfEmpty(Mono.defer(() -> datablockRepositoryInterface
+                        .findAllDatablocksInDataset(workspaceName, datasetName)
+                        .collectList()))
+                .flatMap(datablocks -> Flux.fromIterable(datablocks)
+                        .flatMapSequential(potreeNodeEncoder::countPoints, headersInAdvance)
+                        .collectList()
+                        .map(counts -> {
+                            Map<AbstractDatablock, Long> numberOfPoints = new IdentityHashMap<>();
+                            for (int i = 0; i < datablocks.size(); i++)
+                                numberOfPoints.put(datablocks.get(i), counts.get(i));
+                            return octrees(datablocks, numberOfPoints);
+                        }));
+    }
+
+    /**
+     * Builds the octree of every cell that has a root
+     *
+     * @param datablocks     datablocks of the dataset
+     * @param numberOfPoints number of points of the file of each datablock
+     * @return
+     */
+    private List<PotreeOctree> octrees(List<AbstractDatablock> datablocks, Map<AbstractDatablock, Long> numberOfPoints) {
+        Map<GeorefBox, List<AbstractDatablock>> byCell = datablocks.stream()
+                .collect(Collectors.groupingBy(AbstractDatablock::getUTMZoneLocalGrid));
+
+        List<GeorefBox> cells = byCell.keySet().stream()
+                .sorted(Comparator.comparing((GeorefBox cell) -> cell.getSouthWestBottom().getZone())
+                        .thenComparingDouble(cell -> cell.getSouthWestBottom().getNorthing())
+                        .thenComparingDouble(cell -> cell.getSouthWestBottom().getEasting()))
+                .filter(cell -> byCell.get(cell).stream().anyMatch(datablock -> datablock.getId() == 0))
+                .collect(Collectors.toList());
+
+        List<PotreeOctree> datasetOctrees = new ArrayList<>();
+        for (GeorefBox cell : cells)
+            datasetOctrees.add(new PotreeOctree(datasetOctrees.size(), byCell.get(cell), numberOfPoints::get));
+        return datasetOctrees;
+    }
+
+    private List<AbstractDatablock> datablocks(OctreeTopology topology) {
+        List<AbstractDatablock> datablocks = new ArrayList<>(topology.size());
+        for (int position = 0; position < topology.size(); position++)
+            datablocks.add(topology.getDatablock(position));
+        return datablocks;
+    }
+
+}
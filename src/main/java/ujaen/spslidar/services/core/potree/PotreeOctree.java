@@ -0,0 +1,305 @@
+package ujaen.spslidar.services.core.potree;
+
+import ujaen.spslidar.DTOs.http.PotreeMetadataDTO;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.GeorefBox;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Octree of a grid cell described as a Potree 2.0 point cloud. The octrees are built by halving the bounds of
+ * each node like Potree does, so every datablock is a node of the Potree hierarchy. Only the order of the
+ * children differs: the local index of a datablock takes the easting as its lowest bit and the height as its
+ * highest one, while Potree does the opposite.
+ * The points of the nodes are placed one after another in octree.bin, in the order in which the hierarchy lists
+ * them, with the DEFAULT encoding of Potree: position (3 x int32), intensity (uint16), classification (uint8)
+ * and rgb (3 x uint16). The hierarchy is split in chunks of stepSize levels, and the nodes in the last level of
+ * a chunk that have children are proxies of the chunk that starts with them.
+ * The number of points of each node is the one of the file of its datablock, as the metadata may hold an estimate.
+ */
+public class PotreeOctree {
+
+    public static final int bytesPerPoint = 21;
+    public static final int stepSize = 4;
+    private static final int bytesPerNode = 22;
+    private static final double positionScale = 0.001;
+
+    private final int cell;
+    private final GeorefBox cellBox;
+    private final GeorefBox box;
+    private final double[] offset;
+    private final double[] scale;
+    private final long points;
+    private final int depth;
+    private final double spacing;
+    private final byte[] hierarchy;
+    private final long firstChunkSize;
+
+    //Nodes in the order of octree.bin, with their number of points and the position of their points in it
+    private final AbstractDatablock[] nodes;
+    private final long[] nodePoints;
+    private final long[] nodeOffsets;
+
+    /**
+     * @param cell           index of the cell in the dataset
+     * @param datablocks     datablocks of the octree of the cell, the root included
+     * @param numberOfPoints number of points of the file of each datablock
+     */
+    public PotreeOctree(int cell, List<AbstractDatablock> datablocks, ToLongFunction<AbstractDatablock> numberOfPoints) {
+        Map<Integer, AbstractDatablock> byId = new HashMap<>();
+        for (AbstractDatablock datablock : datablocks)
+            byId.put(datablock.getId(), datablock);
+
+        AbstractDatablock root = byId.get(0);
+        if (root == null)
+            throw new IllegalArgumentException("The octree has no root");
+
+        this.cell = cell;
+        this.cellBox = root.getUTMZoneLocalGrid();
+        this.box = root.getGeorefBox();
+
+        double[] min = min(box);
+        double[] max = max(box);
+        this.offset = min;
+        this.scale = new double[3];
+        for (int axis = 0; axis < 3; axis++)
+            scale[axis] = Math.max(positionScale, (max[axis] - min[axis]) / Integer.MAX_VALUE);
+
+        //Points of every node, in the breadth-first order of the Potree children
+        List<AbstractDatablock> order = new ArrayList<>();
+        order.add(root);
+        for (int i = 0; i < order.size(); i++)
+            order.addAll(children(byId, order.get(i)));
+
+        this.nodes = order.toArray(new AbstractDatablock[0]);
+        this.nodePoints = new long[nodes.length];
+        this.nodeOffsets = new long[nodes.length + 1];
+        Map<Integer, Integer> positions = new HashMap<>();
+        int maxDepth = 0;
+        long totalPoints = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            positions.put(nodes[i].getId(), i);
+            nodePoints[i] = numberOfPoints.applyAsLong(nodes[i]);
+            nodeOffsets[i + 1] = nodeOffsets[i] + nodePoints[i] * bytesPerPoint;
+            maxDepth = Math.max(maxDepth, nodes[i].getDepth());
+            totalPoints += nodePoints[i];
+        }
+        this.points = totalPoints;
+        this.depth = maxDepth;
+
+        double area = (max[0] - min[0]) * (max[1] - min[1]);
+        this.spacing = nodePoints[0] > 0
+                ? Math.sqrt(area / nodePoints[0])
+                : Math.max(max[0] - min[0], max[1] - min[1]) / 128;
+
+        //Chunks of the hierarchy, starting with the one of the root
+        List<AbstractDatablock> chunkRoots = new ArrayList<>();
+        List<List<AbstractDatablock>> chunks = new ArrayList<>();
+        Map<Integer, Integer> chunkOf = new HashMap<>();
+        chunkRoots.add(root);
+        for (int c = 0; c < chunkRoots.size(); c++) {
+            AbstractDatablock chunkRoot = chunkRoots.get(c);
+            List<AbstractDatablock> entries = new ArrayList<>();
+            entries.add(chunkRoot);
+            for (int i = 0; i < entries.size(); i++) {
+                AbstractDatablock node = entries.get(i);
+                if (i > 0 && node.getDepth() >= chunkRoot.getDepth() + stepSize)
+                    continue;
+                for (AbstractDatablock child : children(byId, node)) {
+                    entries.add(child);
+                    if (child.getDepth() >= chunkRoot.getDepth() + stepSize && !children(byId, child).isEmpty()) {
+                        chunkOf.put(child.getId(), chunkRoots.size());
+                        chunkRoots.add(child);
+                    }
+                }
+            }
+            chunks.add(entries);
+        }
+
+        long[] chunkOffsets = new long[chunks.size() + 1];
+        for (int c = 0; c < chunks.size(); c++)
+            chunkOffsets[c + 1] = chunkOffsets[c] + (long) chunks.get(c).size() * bytesPerNode;
+        this.firstChunkSize = chunkOffsets[1];
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) chunkOffsets[chunks.size()]).order(ByteOrder.LITTLE_ENDIAN);
+        for (int c = 0; c < chunks.size(); c++) {
+            for (AbstractDatablock node : chunks.get(c)) {
+                List<AbstractDatablock> nodeChildren = children(byId, node);
+                Integer proxyChunk = node == chunkRoots.get(c) ? null : chunkOf.get(node.getId());
+                int childMask = 0;
+                for (AbstractDatablock child : nodeChildren)
+                    childMask |= 1 << toPotreeIndex(localIndex(child.getId()));
+
+                buffer.put((byte) (proxyChunk != null ? 2 : nodeChildren.isEmpty() ? 1 : 0));
+                buffer.put((byte) childMask);
+                int position = positions.get(node.getId());
+                buffer.putInt((int) Math.min(nodePoints[position], 0xFFFFFFFFL));
+                if (proxyChunk != null) {
+                    buffer.putLong(chunkOffsets[proxyChunk]);
+                    buffer.putLong(chunkOffsets[proxyChunk + 1] - chunkOffsets[proxyChunk]);
+                } else {
+                    buffer.putLong(nodeOffsets[position]);
+                    buffer.putLong(nodeOffsets[position + 1] - nodeOffsets[position]);
+                }
+            }
+        }
+        this.hierarchy = buffer.array();
+    }
+
+    /**
+     * Builds the content of metadata.json
+     *
+     * @param name name of the point cloud
+     * @return
+     */
+    public PotreeMetadataDTO metadata(String name) {
+        double[] min = min(box);
+        double[] max = max(box);
+        List<PotreeMetadataDTO.Attribute> attributes = Arrays.asList(
+                new PotreeMetadataDTO.Attribute("position", "", 12, 3, 4, "int32", min, max),
+                new PotreeMetadataDTO.Attribute("intensity", "", 2, 1, 2, "uint16", new double[]{0}, new double[]{65535}),
+                new PotreeMetadataDTO.Attribute("classification", "", 1, 1, 1, "uint8", new double[]{0}, new double[]{255}),
+                new PotreeMetadataDTO.Attribute("rgb", "", 6, 3, 2, "uint16", new double[]{0, 0, 0},
+                        new double[]{65535, 65535, 65535}));
+
+        return new PotreeMetadataDTO("2.0", name, "", points, projection(),
+                new PotreeMetadataDTO.Hierarchy(firstChunkSize, stepSize, depth),
+                offset, scale, spacing, new PotreeMetadataDTO.BoundingBox(min, max), "DEFAULT", attributes);
+    }
+
+    /**
+     * Returns the position in octree.bin of the nodes that hold the bytes between two positions
+     *
+     * @param start position of the first byte
+     * @param end   position of the last byte, included
+     * @return indexes of the first and the last node
+     */
+    public int[] nodesInRange(long start, long end) {
+        return new int[]{nodeAt(start), nodeAt(end)};
+    }
+
+    private int nodeAt(long position) {
+        int index = Arrays.binarySearch(nodeOffsets, position);
+        if (index < 0)
+            index = -index - 2;
+        //Nodes without points share their offset with the next one
+        while (index < nodes.length - 1 && nodeOffsets[index + 1] <= position)
+            index++;
+        return Math.min(index, nodes.length - 1);
+    }
+
+    public int getCell() {
+        return cell;
+    }
+
+    public GeorefBox getCellBox() {
+        return cellBox;
+    }
+
+    public GeorefBox getBox() {
+        return box;
+    }
+
+    public long getPoints() {
+        return points;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public double[] getOffset() {
+        return offset;
+    }
+
+    public double[] getScale() {
+        return scale;
+    }
+
+    public byte[] getHierarchy() {
+        return hierarchy;
+    }
+
+    public long getOctreeSize() {
+        return nodeOffsets[nodes.length];
+    }
+
+    public AbstractDatablock getNode(int index) {
+        return nodes[index];
+    }
+
+    public long getNodePoints(int index) {
+        return nodePoints[index];
+    }
+
+    public long getNodeOffset(int index) {
+        return nodeOffsets[index];
+    }
+
+    public int getNumberOfNodes() {
+        return nodes.length;
+    }
+
+    /**
+     * Children of a datablock in the order of the Potree child index
+     *
+     * @param byId
+     * @param datablock
+     * @return
+     */
+    private static List<AbstractDatablock> children(Map<Integer, AbstractDatablock> byId, AbstractDatablock datablock) {
+        List<AbstractDatablock> children = new ArrayList<>();
+        for (int potreeIndex = 0; potreeIndex < 8; potreeIndex++) {
+            AbstractDatablock child = byId.get(datablock.getId() * 8 + toPotreeIndex(potreeIndex) + 1);
+            if (child != null)
+                children.add(child);
+        }
+        return children;
+    }
+
+    private static int localIndex(int id) {
+        return (id - 1) % 8;
+    }
+
+    /**
+     * Swaps the bits of the easting and the height of a child index, which converts it in both directions
+     *
+     * @param index
+     * @return
+     */
+    private static int toPotreeIndex(int index) {
+        return (index & 2) | (index & 1) << 2 | (index >> 2) & 1;
+    }
+
+    /**
+     * Proj4 definition of the UTM zone of the cell
+     *
+     * @return
+     */
+    private String projection() {
+        String zone = cellBox.getSouthWestBottom().getZone();
+        if (zone == null || zone.length() < 2)
+            return "";
+        char band = Character.toUpperCase(zone.charAt(zone.length() - 1));
+        int number = Integer.parseInt(zone.substring(0, zone.length() - 1));
+        return "+proj=utm +zone=" + number + (band < 'N' ? " +south" : "") + " +datum=WGS84 +units=m +no_defs";
+    }
+
+    private static double[] min(GeorefBox box) {
+        return new double[]{box.getSouthWestBottom().getEasting(), box.getSouthWestBottom().getNorthing(),
+                box.getSouthWestBottom().getHeight()};
+    }
+
+    private static double[] max(GeorefBox box) {
+        return new double[]{box.getNorthEastTop().getEasting(), box.getNorthEastTop().getNorthing(),
+                box.getNorthEastTop().getHeight()};
+    }
+
+}
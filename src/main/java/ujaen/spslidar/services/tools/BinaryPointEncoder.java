@@ -0,0 +1,251 @@
+package ujaen.spslidar.services.tools;
+
+import com.github.mreutegg.laszip4j.laslib.LASreadOpener;
+import com.github.mreutegg.laszip4j.laslib.LASreader;
+import com.github.mreutegg.laszip4j.laszip.LASpoint;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.utils.geoconverter.GeoConverter;
+import ujaen.spslidar.services.core.PointFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Encodes the points of datablocks in the binary format, meant for web viewers that load the points into
+ * typed arrays. Every datablock is sent as a block, little-endian, with a header of 72 bytes:
+ * <pre>
+ *  0  "SPSB"
+ *  4  uint32  length of the block, header included
+ *  8  uint32  node id
+ * 12  uint32  number of points
+ * 16  uint8   bits of the positions (16 or 32)
+ * 17  uint8   attributes included (1 rgb, 2 intensity, 4 classification)
+ * 18  uint8   bits of the colours (16)
+ * 19  5 bytes reserved
+ * 24  float64 x3  offset of the positions, the minimum of the bounds of the datablock
+ * 48  float64 x3  scale of the positions
+ * </pre>
+ * followed by the arrays x, y and z (uint16 or uint32, position = offset + value * scale), r, g and b (uint16),
+ * intensity (uint16) and classification (uint8). Colours are sent as they are stored in the LAS files, so that
+ * every block of a dataset uses the same scale whatever the range of the colours of its points. Each array is padded to a multiple of 4 bytes, so all of
+ * them are aligned in the block.
+ * The points are decoded straight from the files in the local disk cache, using arrays of each thread that
+ * are reused from one datablock to the next.
+ * Positions are in the UTM zone of their datablock. A clip box whose corners belong to different zones is split
+ * in a box for each zone, and every datablock is clipped by the box of its zone.
+ */
+@Service
+public class BinaryPointEncoder {
+
+    private static final int headerSize = 72;
+    private static final int colorBits = 16;
+    private static final byte[] magic = "SPSB".getBytes(StandardCharsets.US_ASCII);
+    private static final int filesInAdvance = 4;
+    //Datablocks with more points than this are decoded into arrays that aren't kept by the thread
+    private static final int maxReusedPoints = 1 << 20;
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final BlobDiskCache blobDiskCache;
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    public BinaryPointEncoder(BlobDiskCache blobDiskCache) {
+        this.blobDiskCache = blobDiskCache;
+    }
+
+    /**
+     * Encodes the points of the datablocks passed, a block for each one
+     *
+     * @param datablocks datablocks in the order in which they are sent
+     * @param format     binary format requested
+     * @param clipBox    box that the points must be inside of (only easting and northing are checked),
+     *                   null to send every point. Its corners may be in different UTM zones
+     * @return Flux of DataBuffer with a block for each datablock
+     */
+    public Flux<DataBuffer> encode(List<AbstractDatablock> datablocks, PointFormat format, GeorefBox clipBox) {
+        Map<String, GeorefBox> clipBoxes = clipBox != null ? GeoConverter.splitByUTMZone(clipBox).stream()
+                .collect(Collectors.toMap(box -> box.getSouthWestBottom().getZone(), box -> box)) : null;
+
+        return Flux.fromIterable(datablocks)
+                .filter(datablock -> clipBoxes == null || (clipBoxes.containsKey(zone(datablock))
+                        && overlaps(clipBoxes.get(zone(datablock)), datablock.getGeorefBox())))
+                .flatMapSequential(datablock -> blobDiskCache.prefetch(datablock.getObjectId()).thenReturn(datablock),
+                        filesInAdvance)
+                .concatMap(datablock -> Mono.usingWhen(blobDiskCache.acquire(datablock.getObjectId()),
+                        path -> Mono.fromCallable(() -> encodeFile(datablock, path, format,
+                                clipBoxes != null ? clipBoxes.get(zone(datablock)) : null))
+                                .subscribeOn(Schedulers.boundedElastic()),
+                        path -> Mono.fromRunnable(() -> blobDiskCache.release(datablock.getObjectId()))))
+                .map(bufferFactory::wrap);
+    }
+
+    private ByteBuffer encodeFile(AbstractDatablock datablock, Path path, PointFormat format, GeorefBox clipBox) {
+        GeorefBox box = datablock.getGeorefBox();
+        double[] offset = {box.getSouthWestBottom().getEasting(), box.getSouthWestBottom().getNorthing(), box.getSouthWestBottom().getHeight()};
+        double[] extent = {box.getNorthEastTop().getEasting() - offset[0], box.getNorthEastTop().getNorthing() - offset[1],
+                box.getNorthEastTop().getHeight() - offset[2]};
+        long maxValue = format.getPositionBits() == 16 ? 0xFFFFL : 0xFFFFFFFFL;
+
+        int declared = (int) Math.min(Integer.MAX_VALUE, datablock.getNumberOfPoints());
+        Scratch points = declared <= maxReusedPoints ? scratch.get() : new Scratch();
+        points.ensure(declared);
+
+        double[] scale = new double[3];
+        int count = 0;
+        LASreader reader = new LASreadOpener().open(path.toString());
+        try {
+            double[] fileScale = {reader.header.x_scale_factor, reader.header.y_scale_factor, reader.header.z_scale_factor};
+            for (int axis = 0; axis < 3; axis++) {
+                double minScale = extent[axis] / maxValue;
+                scale[axis] = format.getPositionBits() == 16 ? Math.max(minScale, Double.MIN_NORMAL)
+                        : Math.max(fileScale[axis], minScale);
+            }
+
+            for (int read = 0; read < declared && reader.read_point(); read++) {
+                LASpoint point = reader.point;
+                if (clipBox != null && !inside(clipBox, point))
+                    continue;
+
+                points.x[count] = quantize(point.get_x(), offset[0], scale[0], maxValue);
+                points.y[count] = quantize(point.get_y(), offset[1], scale[1], maxValue);
+                points.z[count] = quantize(point.get_z(), offset[2], scale[2], maxValue);
+                if (format.has(PointFormat.RGB)) {
+                    points.r[count] = point.have_rgb ? point.get_R() : 0;
+                    points.g[count] = point.have_rgb ? point.get_G() : 0;
+                    points.b[count] = point.have_rgb ? point.get_B() : 0;
+                }
+                if (format.has(PointFormat.INTENSITY))
+                    points.intensity[count] = point.get_intensity();
+                if (format.has(PointFormat.CLASSIFICATION))
+                    points.classification[count] = (byte) (reader.header.point_data_format >= 6
+                            ? point.get_extended_classification() : point.get_classification());
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        int positionBytes = format.getPositionBits() / 8;
+        int length = headerSize + 3 * padded(count * positionBytes);
+        if (format.has(PointFormat.RGB))
+            length += 3 * padded(count * 2);
+        if (format.has(PointFormat.INTENSITY))
+            length += padded(count * 2);
+        if (format.has(PointFormat.CLASSIFICATION))
+            length += padded(count);
+
+        ByteBuffer block = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        block.put(magic);
+        block.putInt(length);
+        block.putInt(datablock.getId());
+        block.putInt(count);
+        block.put((byte) format.getPositionBits());
+        block.put((byte) format.getAttributes());
+        block.put((byte) colorBits);
+        block.put(new byte[5]);
+        for (int axis = 0; axis < 3; axis++)
+            block.putDouble(offset[axis]);
+        for (int axis = 0; axis < 3; axis++)
+            block.putDouble(scale[axis]);
+
+        for (int[] values : new int[][]{points.x, points.y, points.z}) {
+            for (int i = 0; i < count; i++) {
+                if (positionBytes == 2)
+                    block.putShort((short) values[i]);
+                else
+                    block.putInt(values[i]);
+            }
+            align(block);
+        }
+        if (format.has(PointFormat.RGB)) {
+            for (char[] values : new char[][]{points.r, points.g, points.b}) {
+                for (int i = 0; i < count; i++)
+                    block.putChar(values[i]);
+                align(block);
+            }
+        }
+        if (format.has(PointFormat.INTENSITY)) {
+            for (int i = 0; i < count; i++)
+                block.putChar(points.intensity[i]);
+            align(block);
+        }
+        if (format.has(PointFormat.CLASSIFICATION)) {
+            block.put(points.classification, 0, count);
+            align(block);
+        }
+        return block.flip();
+    }
+
+    private static int quantize(double value, double offset, double scale, long maxValue) {
+        long quantized = Math.round((value - offset) / scale);
+        return (int) Math.max(0, Math.min(maxValue, quantized));
+    }
+
+    private static int padded(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    private static void align(ByteBuffer block) {
+        while ((block.position() & 3) != 0)
+            block.put((byte) 0);
+    }
+
+    private static String zone(AbstractDatablock datablock) {
+        return datablock.getGeorefBox().getSouthWestBottom().getZone();
+    }
+
+    private static boolean inside(GeorefBox clipBox, LASpoint point) {
+        double x = point.get_x();
+        double y = point.get_y();
+        return x >= clipBox.getSouthWestBottom().getEasting() && x <= clipBox.getNorthEastTop().getEasting()
+                && y >= clipBox.getSouthWestBottom().getNorthing() && y <= clipBox.getNorthEastTop().getNorthing();
+    }
+
+    private static boolean overlaps(GeorefBox clipBox, GeorefBox box) {
+        return box.getSouthWestBottom().getEasting() <= clipBox.getNorthEastTop().getEasting()
+                && box.getNorthEastTop().getEasting() >= clipBox.getSouthWestBottom().getEasting()
+                && box.getSouthWestBottom().getNorthing() <= clipBox.getNorthEastTop().getNorthing()
+                && box.getNorthEastTop().getNorthing() >= clipBox.getSouthWestBottom().getNorthing();
+    }
+
+    /**
+     * Decoded points of a datablock, one array for each value
+     */
+    private static class Scratch {
+
+        int[] x = new int[0];
+        int[] y = new int[0];
+        int[] z = new int[0];
+        char[] r = new char[0];
+        char[] g = new char[0];
+        char[] b = new char[0];
+        char[] intensity = new char[0];
+        byte[] classification = new byte[0];
+
+        void ensure(int points) {
+            if (x.length >= points)
+                return;
+            x = new int[points];
+            y = new int[points];
+            z = new int[points];
+            r = new char[points];
+            g = new char[points];
+            b = new char[points];
+            intensity = new char[points];
+            classification = new byte[points];
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package ujaen.spslidar.services.tools;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import ujaen.spslidar.Exceptions.ElementNotFound;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.utils.properties.FileStorageProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local copy of the stored files, kept in a directory with a limited size. Stored files never change,
+ * so a file is downloaded the first time it is requested and then read from disk until it is evicted
+ * (least recently used first) or removed from the repository. Files being used are pinned and are
+ * neither evicted nor deleted until they are released.
+ */
+@Service
+public class BlobDiskCache {
+
+    private static final String suffix = ".laz";
+    private static final String downloadSuffix = ".tmp";
+
+    Logger logger = LoggerFactory.getLogger(BlobDiskCache.class);
+
+    private final FileRepositoryInterface fileRepositoryInterface;
+    private final Path cacheLocation;
+    private final long maxBytes;
+
+    private final Map<ObjectId, Mono<Path>> downloads = new ConcurrentHashMap<>();
+    //Cached files in access order with their size, guarded by itself along with the pins and the total size
+    private final LinkedHashMap<ObjectId, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<ObjectId, Integer> pins = new HashMap<>();
+    //Files removed from the repository while they were pinned, deleted once they are released
+    private final Set<ObjectId> removed = new HashSet<>();
+    private long cachedBytes = 0;
+
+    public BlobDiskCache(FileRepositoryInterface fileRepositoryInterface,
+                         SystemFileStorageService systemFileStorageService,
+                         FileStorageProperties fileStorageProperties) {
+        this.fileRepositoryInterface = fileRepositoryInterface;
+        this.cacheLocation = systemFileStorageService.getCachePath();
+        this.maxBytes = fileStorageProperties.getCacheMaxBytes();
+        loadIndex();
+    }
+
+    /**
+     * Returns the path of the local copy of a file, downloading it if needed, and pins it so that it
+     * isn't evicted until it is released. Concurrent requests for a file that is being downloaded
+     * wait for the same download.
+     *
+     * @param objectId id of the file
+     * @return Mono with the path of the local copy
+     */
+    public Mono<Path> acquire(ObjectId objectId) {
+        return Mono.defer(() -> {
+            synchronized (files) {
+                if (files.get(objectId) != null) {
+                    pin(objectId);
+                    Path path = pathOf(objectId);
+                    path.toFile().setLastModified(System.currentTimeMillis());
+                    return Mono.just(path);
+                }
+            }
+
+            Mono<Path> download = downloads.computeIfAbsent(objectId, this::download);
+            return download
+                    .doOnNext(path -> {
+                        synchronized (files) {
+                            pin(objectId);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Downloads a file if it isn't cached, without pinning it
+     *
+     * @param objectId id of the file
+     * @return Mono that completes once the file is cached
+     */
+    public Mono<Void> prefetch(ObjectId objectId) {
+        return acquire(objectId)
+                .doOnNext(path -> release(objectId))
+                .then();
+    }
+
+    /**
+     * Releases a file pinned by acquire
+     *
+     * @param objectId
+     */
+    public void release(ObjectId objectId) {
+        synchronized (files) {
+            pins.computeIfPresent(objectId, (id, count) -> count > 1 ? count - 1 : null);
+            if (!pins.containsKey(objectId) && removed.remove(objectId))
+                deleteFile(pathOf(objectId));
+            evict();
+        }
+    }
+
+    /**
+     * Read-through version of FileRepositoryInterface.getFile
+     *
+     * @param objectId id of the file
+     * @return Flux of DataBuffer with the content of the file
+     */
+    public Flux<DataBuffer> getFile(ObjectId objectId) {
+        return Flux.usingWhen(acquire(objectId),
+                path -> DataBufferUtils.read(path, new DefaultDataBufferFactory(), 256 * 1024),
+                path -> Mono.fromRunnable(() -> release(objectId)));
+    }
+
+    /**
+     * Removes the local copy of a file, invoked when the file is removed from the repository. If the file
+     * is pinned, it is deleted when it is released
+     *
+     * @param objectId
+     */
+    public void remove(ObjectId objectId) {
+        synchronized (files) {
+            Long size = files.remove(objectId);
+            if (size != null) {
+                cachedBytes -= size;
+                if (pins.containsKey(objectId))
+                    removed.add(objectId);
+                else
+                    deleteFile(pathOf(objectId));
+            }
+        }
+    }
+
+    /**
+     * Downloads a file into the cache. The content of a missing file is empty, so the size of the download
+     * is checked against the one of the stored file before it is cached
+     *
+     * @param objectId id of the file
+     * @return Mono with the path of the local copy. ElementNotFound if the file doesn't exist or its download
+     * is incomplete
+     */
+    private Mono<Path> download(ObjectId objectId) {
+        Path path = pathOf(objectId);
+        Path downloadPath = cacheLocation.resolve(objectId.toString() + downloadSuffix);
+
+        return fileRepositoryInterface.findFile(objectId)
+                .switchIfEmpty(Mono.error(new ElementNotFound()))
+                .flatMap(file -> Mono.using(
+                        () -> AsynchronousFileChannel.open(downloadPath, StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                        channel -> DataBufferUtils.write(fileRepositoryInterface.getFile(objectId), channel)
+                                .map(DataBufferUtils::release)
+                                .then(),
+                        this::closeChannel)
+                        .then(Mono.fromCallable(() -> {
+                            long size = Files.size(downloadPath);
+                            if (size != file.getLength())
+                                throw new ElementNotFound();
+
+                            Files.move(downloadPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                            synchronized (files) {
+                                removed.remove(objectId);
+                                files.put(objectId, size);
+                                cachedBytes += size;
+                            }
+                            return path;
+                        }).subscribeOn(Schedulers.boundedElastic())))
+                .doOnError(throwable -> deleteFile(downloadPath))
+                .doFinally(signalType -> downloads.remove(objectId))
+                .cache();
+    }
+
+    private void pin(ObjectId objectId) {
+        pins.merge(objectId, 1, Integer::sum);
+    }
+
+    /**
+     * Removes the least recently used files that aren't pinned until the cache fits its limit. Files whose
+     * download has just finished are skipped too, as their waiters haven't pinned them yet
+     */
+    private void evict() {
+        Iterator<Map.Entry<ObjectId, Long>> iterator = files.entrySet().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<ObjectId, Long> eldest = iterator.next();
+            if (pins.containsKey(eldest.getKey()) || downloads.containsKey(eldest.getKey()))
+                continue;
+
+            cachedBytes -= eldest.getValue();
+            iterator.remove();
+            deleteFile(pathOf(eldest.getKey()));
+        }
+    }
+
+    /**
+     * Rebuilds the index with the files left in the directory by a previous execution, oldest first
+     */
+    private void loadIndex() {
+        File[] cached = cacheLocation.toFile().listFiles();
+        if (cached == null)
+            return;
+
+        Arrays.sort(cached, Comparator.comparingLong(File::lastModified));
+        for (File file : cached) {
+            String name = file.getName();
+            if (name.endsWith(suffix) && ObjectId.isValid(name.substring(0, name.length() - suffix.length()))) {
+                files.put(new ObjectId(name.substring(0, name.length() - suffix.length())), file.length());
+                cachedBytes += file.length();
+            } else {
+                deleteFile(file.toPath());
+            }
+        }
+        evict();
+        logger.info("Disk cache with " + files.size() + " files (" + cachedBytes + " bytes)");
+    }
+
+    private Path pathOf(ObjectId objectId) {
+        return cacheLocation.resolve(objectId.toString() + suffix);
+    }
+
+    private void closeChannel(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ioException) {
+            logger.warn("Couldn't close cached file: " + ioException);
+        }
+    }
+
+    private void deleteFile(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ioException) {
+            logger.warn("Couldn't remove cached file " + path + ": " + ioException);
+        }
+    }
+
+}
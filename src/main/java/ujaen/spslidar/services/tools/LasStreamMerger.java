@@ -0,0 +1,524 @@
+package ujaen.spslidar.services.tools;
+
+import com.github.mreutegg.laszip4j.laslib.LASheader;
+import com.github.mreutegg.laszip4j.laslib.LASreadOpener;
+import com.github.mreutegg.laszip4j.laslib.LASreader;
+import com.github.mreutegg.laszip4j.laslib.LASvlr;
+import com.github.mreutegg.laszip4j.laszip.LASpoint;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.UTMCoord;
+import ujaen.spslidar.utils.geoconverter.GeoConverter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Merges the files of a number of datablocks into a single LAS 1.2 file (point format 3) that is sent while
+ * it is being built: the header is written as soon as the first file is opened, with the number of points
+ * read from the headers of the files and the bounds taken from the metadata of the datablocks, and then the
+ * points of each file are decoded and written one file after another. No temporary file is created.
+ * The number of points of the metadata is never trusted, as the datablocks stored by older versions or sampled
+ * by the tools may declare an estimate.
+ * Files are read from the local disk cache, and the next ones are downloaded while the current one is sent.
+ * The datablocks may come from several sources (datasets), in which case every point carries the index of its
+ * source in two extra bytes, described by an Extra Bytes record, and the names of the sources are listed in
+ * another record of the header.
+ * A clip box whose corners belong to different UTM zones is split in a box for each zone, and the points of the
+ * datablocks of a zone other than the one of the first file are reprojected to it.
+ */
+@Service
+public class LasStreamMerger {
+
+    private static final int headerSize = 227;
+    private static final int vlrHeaderSize = 54;
+    private static final byte pointFormat = 3;
+    private static final int recordLength = 34;
+    private static final int sourceBytes = 2;
+    private static final int pointsPerBuffer = 4096;
+    private static final int filesInAdvance = 4;
+    private static final String projectionUserId = "LASF_Projection";
+    private static final String specUserId = "LASF_Spec";
+    private static final char extraBytesRecordId = 4;
+    private static final int extraBytesDescriptorSize = 192;
+    private static final byte unsignedShortType = 3;
+    private static final String sourceAttribute = "dataset_id";
+    private static final String sourcesUserId = "spslidar";
+    private static final char sourcesRecordId = 1;
+
+    private final BlobDiskCache blobDiskCache;
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    public LasStreamMerger(BlobDiskCache blobDiskCache) {
+        this.blobDiskCache = blobDiskCache;
+    }
+
+    /**
+     * Merges the files of the datablocks passed
+     *
+     * @param datablocks datablocks whose points are merged, in the order in which they are written
+     * @return Flux of DataBuffer with the content of the merged file
+     */
+    public Flux<DataBuffer> merge(List<AbstractDatablock> datablocks) {
+        return merge(datablocks, null);
+    }
+
+    /**
+     * Merges the points of the files of the datablocks passed that are inside a box. Datablocks that are
+     * completely inside the box are written without checking their points. The points of those that cross
+     * its limits are counted first, as the header must declare them, and checked again while they are written,
+     * so only these are decoded twice.
+     *
+     * @param datablocks datablocks whose points are merged, in the order in which they are written
+     * @param clipBox    box that the points must be inside of (only easting and northing are checked),
+     *                   null to write every point. Its corners may be in different UTM zones
+     * @return Flux of DataBuffer with the content of the merged file
+     */
+    public Flux<DataBuffer> merge(List<AbstractDatablock> datablocks, GeorefBox clipBox) {
+        return merge(Collections.singletonList(datablocks), null, clipBox);
+    }
+
+    /**
+     * Merges the points of the files of the datablocks of several sources that are inside a box. Every point is
+     * tagged with the index of its source, which is stored as an extra attribute of the points, and the names of
+     * the sources are written in the header in the order of their indexes
+     *
+     * @param sources     datablocks of every source, in the order in which they are written
+     * @param sourceNames names of the sources, null to write the points without their source
+     * @param clipBox     box that the points must be inside of (only easting and northing are checked),
+     *                    null to write every point
+     * @return Flux of DataBuffer with the content of the merged file
+     */
+    public Flux<DataBuffer> merge(List<List<AbstractDatablock>> sources, List<String> sourceNames, GeorefBox clipBox) {
+        if (sourceNames != null && sourceNames.size() > 0xFFFF)
+            return Flux.error(new IllegalArgumentException("Too many sources for a merged file: " + sourceNames.size()));
+
+        Map<String, GeorefBox> clipBoxes = clipBox != null ? GeoConverter.splitByUTMZone(clipBox).stream()
+                .collect(Collectors.toMap(box -> box.getSouthWestBottom().getZone(), box -> box)) : null;
+        List<Part> pending = new ArrayList<>();
+        for (int source = 0; source < sources.size(); source++) {
+            for (AbstractDatablock datablock : sources.get(source))
+                pending.add(new Part(datablock, source, 0, null));
+        }
+
+        return Flux.fromIterable(pending)
+                .flatMapSequential(part -> part(part.datablock, part.source, clipBoxes), filesInAdvance)
+                .filter(part -> part.points > 0)
+                .collectList()
+                .flatMapMany(parts -> {
+                    MergedFile mergedFile = new MergedFile(parts, sourceNames);
+                    if (parts.isEmpty())
+                        return Flux.just(bufferFactory.wrap(mergedFile.header(null)));
+
+                    return Flux.fromIterable(parts)
+                            .flatMapSequential(part -> blobDiskCache.prefetch(part.datablock.getObjectId()).thenReturn(part),
+                                    filesInAdvance)
+                            .concatMap(part -> Flux.usingWhen(blobDiskCache.acquire(part.datablock.getObjectId()),
+                                    path -> readFile(mergedFile, part, path),
+                                    path -> Mono.fromRunnable(() -> blobDiskCache.release(part.datablock.getObjectId()))));
+                });
+    }
+
+    /**
+     * Decides how many points of a datablock are written. The file is opened to read its number of points from
+     * its header, and only the files of the datablocks that cross the limits of the clip box of their zone need
+     * their points to be counted
+     *
+     * @param datablock
+     * @param source
+     * @param clipBoxes clip box of every UTM zone, null if the points aren't clipped
+     * @return
+     */
+    private Mono<Part> part(AbstractDatablock datablock, int source, Map<String, GeorefBox> clipBoxes) {
+        GeorefBox box = datablock.getGeorefBox();
+        GeorefBox clipBox = clipBoxes != null ? clipBoxes.get(zone(datablock)) : null;
+        if (datablock.getObjectId() == null || (clipBoxes != null && clipBox == null)
+                || (clipBox != null && !overlaps(clipBox, box)))
+            return Mono.just(new Part(datablock, source, 0, null));
+
+        GeorefBox crossedBox = clipBox == null || contains(clipBox, box) ? null : clipBox;
+        return Mono.usingWhen(blobDiskCache.acquire(datablock.getObjectId()),
+                path -> Mono.fromCallable(() -> countPoints(path, crossedBox))
+                        .subscribeOn(Schedulers.boundedElastic()),
+                path -> Mono.fromRunnable(() -> blobDiskCache.release(datablock.getObjectId())))
+                .map(points -> new Part(datablock, source, points, crossedBox));
+    }
+
+    /**
+     * Counts the points of a file that are written
+     *
+     * @param path
+     * @param clipBox box that the points must be inside of, null to take the number of points of the header
+     * @return
+     */
+    private long countPoints(Path path, GeorefBox clipBox) {
+        LASreader reader = new LASreadOpener().open(path.toString());
+        try {
+            if (clipBox == null)
+                return reader.npoints;
+
+            long inside = 0;
+            while (reader.read_point()) {
+                if (inside(clipBox, reader.point))
+                    inside++;
+            }
+            return inside;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the points of a file, preceded by the header if it is the first one. A file never writes more
+     * points than those counted for the header, and fails if it has fewer, so the body always matches the header
+     *
+     * @param mergedFile
+     * @param part
+     * @param path
+     * @return
+     */
+    private Flux<DataBuffer> readFile(MergedFile mergedFile, Part part, Path path) {
+        return Flux.<DataBuffer, FileReader>generate(
+                () -> new FileReader(new LASreadOpener().open(path.toString()), part),
+                (fileReader, sink) -> {
+                    if (!mergedFile.headerWritten) {
+                        mergedFile.headerWritten = true;
+                        sink.next(bufferFactory.wrap(mergedFile.header(fileReader.reader.header)));
+                        return fileReader;
+                    }
+                    writePoints(mergedFile, fileReader, sink);
+                    return fileReader;
+                },
+                fileReader -> fileReader.reader.close())
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private void writePoints(MergedFile mergedFile, FileReader fileReader, SynchronousSink<DataBuffer> sink) {
+        ByteBuffer buffer = ByteBuffer.allocate(pointsPerBuffer * mergedFile.recordLength).order(ByteOrder.LITTLE_ENDIAN);
+        boolean extended = fileReader.reader.header.point_data_format >= 6;
+        GeorefBox clipBox = fileReader.part.clipBox;
+        String zone = zone(fileReader.part.datablock);
+        boolean reprojected = !zone.equals(mergedFile.zone);
+
+        boolean ended = false;
+        while (buffer.hasRemaining() && fileReader.pending > 0) {
+            if (!fileReader.reader.read_point()) {
+                ended = true;
+                break;
+            }
+            if (clipBox != null && !inside(clipBox, fileReader.reader.point))
+                continue;
+            LASpoint point = fileReader.reader.point;
+            if (reprojected) {
+                UTMCoord coord = GeoConverter.reprojectUTMCoordinate(new UTMCoord(point.get_x(), point.get_y(), zone, 0), mergedFile.zone);
+                writePoint(mergedFile, point, coord.getEasting(), coord.getNorthing(), extended, buffer);
+            } else {
+                writePoint(mergedFile, point, point.get_x(), point.get_y(), extended, buffer);
+            }
+            if (mergedFile.sourceNames != null)
+                buffer.putChar((char) fileReader.part.source);
+            fileReader.pending--;
+        }
+
+        if (buffer.position() > 0)
+            sink.next(bufferFactory.wrap(Arrays.copyOf(buffer.array(), buffer.position())));
+        if (ended && fileReader.pending > 0)
+            sink.error(new IOException("The file of datablock " + fileReader.part.datablock.getId() + " has "
+                    + fileReader.pending + " points less than when it was counted"));
+        else if (buffer.hasRemaining())
+            sink.complete();
+    }
+
+    private void writePoint(MergedFile mergedFile, LASpoint point, double x, double y, boolean extended, ByteBuffer buffer) {
+        int returnNumber = extended ? Math.min(7, point.get_extended_return_number()) : point.get_return_number();
+        int numberOfReturns = extended ? Math.min(7, point.get_extended_number_of_returns()) : point.get_number_of_returns();
+        int classification = extended ? point.get_extended_classification() : point.get_classification();
+        int scanAngle = extended
+                ? (int) Math.max(-90, Math.min(90, Math.round(point.get_extended_scan_angle() * 0.006)))
+                : point.get_scan_angle_rank();
+
+        buffer.putInt(mergedFile.quantize(x, 0));
+        buffer.putInt(mergedFile.quantize(y, 1));
+        buffer.putInt(mergedFile.quantize(point.get_z(), 2));
+        buffer.putChar(point.get_intensity());
+        buffer.put((byte) ((returnNumber & 7) | (numberOfReturns & 7) << 3
+                | (point.get_scan_direction_flag() & 1) << 6 | (point.get_edge_of_flight_line() & 1) << 7));
+        buffer.put((byte) ((classification & 31) | (point.get_synthetic_flag() & 1) << 5
+                | (point.get_keypoint_flag() & 1) << 6 | (point.get_withheld_flag() & 1) << 7));
+        buffer.put((byte) scanAngle);
+        buffer.put(point.get_user_data());
+        buffer.putChar(point.get_point_source_ID());
+        buffer.putDouble(point.have_gps_time ? point.get_gps_time() : 0);
+        buffer.putChar(point.have_rgb ? point.get_R() : 0);
+        buffer.putChar(point.have_rgb ? point.get_G() : 0);
+        buffer.putChar(point.have_rgb ? point.get_B() : 0);
+    }
+
+    private static String zone(AbstractDatablock datablock) {
+        return datablock.getGeorefBox().getSouthWestBottom().getZone();
+    }
+
+    private static boolean inside(GeorefBox clipBox, LASpoint point) {
+        double x = point.get_x();
+        double y = point.get_y();
+        return x >= clipBox.getSouthWestBottom().getEasting() && x <= clipBox.getNorthEastTop().getEasting()
+                && y >= clipBox.getSouthWestBottom().getNorthing() && y <= clipBox.getNorthEastTop().getNorthing();
+    }
+
+    private static boolean contains(GeorefBox clipBox, GeorefBox box) {
+        return box.getSouthWestBottom().getEasting() >= clipBox.getSouthWestBottom().getEasting()
+                && box.getSouthWestBottom().getNorthing() >= clipBox.getSouthWestBottom().getNorthing()
+                && box.getNorthEastTop().getEasting() <= clipBox.getNorthEastTop().getEasting()
+                && box.getNorthEastTop().getNorthing() <= clipBox.getNorthEastTop().getNorthing();
+    }
+
+    private static boolean overlaps(GeorefBox clipBox, GeorefBox box) {
+        return box.getSouthWestBottom().getEasting() <= clipBox.getNorthEastTop().getEasting()
+                && box.getNorthEastTop().getEasting() >= clipBox.getSouthWestBottom().getEasting()
+                && box.getSouthWestBottom().getNorthing() <= clipBox.getNorthEastTop().getNorthing()
+                && box.getNorthEastTop().getNorthing() >= clipBox.getSouthWestBottom().getNorthing();
+    }
+
+    /**
+     * Datablock to be merged, with the index of its source, the number of its points that are written and the
+     * box they are clipped to, null if they are all written
+     */
+    private static class Part {
+
+        final AbstractDatablock datablock;
+        final int source;
+        final long points;
+        final GeorefBox clipBox;
+
+        Part(AbstractDatablock datablock, int source, long points, GeorefBox clipBox) {
+            this.datablock = datablock;
+            this.source = source;
+            this.points = points;
+            this.clipBox = clipBox;
+        }
+    }
+
+    /**
+     * Reader of a file, with the number of points that can still be written from it
+     */
+    private static class FileReader {
+
+        final LASreader reader;
+        final Part part;
+        long pending;
+
+        FileReader(LASreader reader, Part part) {
+            this.reader = reader;
+            this.part = part;
+            this.pending = part.points;
+        }
+    }
+
+    /**
+     * Header values of the merged file and progress of its writing
+     */
+    private static class MergedFile {
+
+        final long numberOfPoints;
+        //UTM zone of the points, the one of the first file
+        final String zone;
+        final List<String> sourceNames;
+        final int recordLength;
+        final double[] min = {0, 0, 0};
+        final double[] max = {0, 0, 0};
+        final double[] scale = {0.01, 0.01, 0.01};
+        final double[] offset = {0, 0, 0};
+
+        boolean headerWritten = false;
+
+        MergedFile(List<Part> parts, List<String> sourceNames) {
+            this.sourceNames = sourceNames;
+            this.recordLength = sourceNames != null ? LasStreamMerger.recordLength + sourceBytes : LasStreamMerger.recordLength;
+            this.zone = parts.isEmpty() ? null : zone(parts.get(0).datablock);
+            numberOfPoints = parts.stream().mapToLong(part -> part.points).sum();
+            if (numberOfPoints > 0xFFFFFFFFL)
+                throw new IllegalArgumentException("Too many points for a LAS 1.2 file: " + numberOfPoints);
+
+            for (int i = 0; i < parts.size(); i++) {
+                GeorefBox box = bounds(parts.get(i));
+                double[] boxMin = {box.getSouthWestBottom().getEasting(), box.getSouthWestBottom().getNorthing(), box.getSouthWestBottom().getHeight()};
+                double[] boxMax = {box.getNorthEastTop().getEasting(), box.getNorthEastTop().getNorthing(), box.getNorthEastTop().getHeight()};
+                for (int axis = 0; axis < 3; axis++) {
+                    min[axis] = i == 0 ? boxMin[axis] : Math.min(min[axis], boxMin[axis]);
+                    max[axis] = i == 0 ? boxMax[axis] : Math.max(max[axis], boxMax[axis]);
+                }
+            }
+            for (int axis = 0; axis < 3; axis++)
+                offset[axis] = Math.floor(min[axis]);
+        }
+
+        /**
+         * Bounds of the points written of a datablock, limited to its clip box and reprojected to the zone of the
+         * merged file if it belongs to another one
+         *
+         * @param part
+         * @return
+         */
+        private GeorefBox bounds(Part part) {
+            GeorefBox box = part.datablock.getGeorefBox();
+            UTMCoord southWest = box.getSouthWestBottom();
+            UTMCoord northEast = box.getNorthEastTop();
+            double[] limits = {southWest.getEasting(), southWest.getNorthing(), northEast.getEasting(), northEast.getNorthing()};
+            if (part.clipBox != null) {
+                limits[0] = Math.max(limits[0], part.clipBox.getSouthWestBottom().getEasting());
+                limits[1] = Math.max(limits[1], part.clipBox.getSouthWestBottom().getNorthing());
+                limits[2] = Math.min(limits[2], part.clipBox.getNorthEastTop().getEasting());
+                limits[3] = Math.min(limits[3], part.clipBox.getNorthEastTop().getNorthing());
+            }
+            if (zone.equals(southWest.getZone()))
+                return new GeorefBox(new UTMCoord(limits[0], limits[1], zone, southWest.getHeight()),
+                        new UTMCoord(limits[2], limits[3], zone, northEast.getHeight()));
+
+            //The corners of the box aren't enough, its sides are curved in the other zone
+            double[] reprojected = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+            for (int step = 0; step <= 4; step++) {
+                double easting = limits[0] + (limits[2] - limits[0]) * step / 4;
+                double northing = limits[1] + (limits[3] - limits[1]) * step / 4;
+                for (double[] corner : new double[][]{{easting, limits[1]}, {easting, limits[3]}, {limits[0], northing}, {limits[2], northing}}) {
+                    UTMCoord coord = GeoConverter.reprojectUTMCoordinate(new UTMCoord(corner[0], corner[1], southWest.getZone(), 0), zone);
+                    reprojected[0] = Math.min(reprojected[0], coord.getEasting());
+                    reprojected[1] = Math.min(reprojected[1], coord.getNorthing());
+                    reprojected[2] = Math.max(reprojected[2], coord.getEasting());
+                    reprojected[3] = Math.max(reprojected[3], coord.getNorthing());
+                }
+            }
+            return new GeorefBox(new UTMCoord(reprojected[0], reprojected[1], zone, southWest.getHeight()),
+                    new UTMCoord(reprojected[2], reprojected[3], zone, northEast.getHeight()));
+        }
+
+        int quantize(double value, int axis) {
+            return (int) Math.round((value - offset[axis]) / scale[axis]);
+        }
+
+        /**
+         * Builds the header. The scale of the first file is kept unless the bounds wouldn't fit in it,
+         * and its projection records are copied. If the points carry their source, the records that describe
+         * the attribute and list the names of the sources are added
+         *
+         * @param firstFile header of the first file, null if there are no files
+         * @return
+         */
+        byte[] header(LASheader firstFile) {
+            List<LASvlr> projection = new ArrayList<>();
+            if (firstFile != null) {
+                double[] fileScale = {firstFile.x_scale_factor, firstFile.y_scale_factor, firstFile.z_scale_factor};
+                for (int axis = 0; axis < 3; axis++)
+                    scale[axis] = Math.max(fileScale[axis], (max[axis] - offset[axis]) / Integer.MAX_VALUE);
+
+                for (int i = 0; firstFile.vlrs != null && i < firstFile.number_of_variable_length_records; i++) {
+                    if (projectionUserId.equals(text(firstFile.vlrs[i].user_id)))
+                        projection.add(firstFile.vlrs[i]);
+                }
+            }
+            byte[] sourceDescriptor = sourceNames != null ? sourceDescriptor() : null;
+            byte[] sources = sourceNames != null ? String.join("\n", sourceNames).getBytes(StandardCharsets.UTF_8) : null;
+            if (sources != null && sources.length > 0xFFFF)
+                throw new IllegalArgumentException("Names of the sources too long for a LAS record: " + sources.length);
+
+            int records = projection.size() + (sourceNames != null ? 2 : 0);
+            int vlrsSize = projection.stream().mapToInt(vlr -> vlrHeaderSize + vlr.data.length).sum()
+                    + (sourceNames != null ? 2 * vlrHeaderSize + sourceDescriptor.length + sources.length : 0);
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize + vlrsSize).order(ByteOrder.LITTLE_ENDIAN);
+            LocalDate today = LocalDate.now();
+            header.put("LASF".getBytes(StandardCharsets.US_ASCII));
+            header.putChar((char) 0);
+            header.putChar(firstFile != null ? (char) (firstFile.global_encoding & 1) : 0);
+            header.put(new byte[16]);
+            header.put((byte) 1).put((byte) 2);
+            header.put(fixed("MERGE", 32));
+            header.put(fixed("spslidar", 32));
+            header.putChar((char) today.getDayOfYear());
+            header.putChar((char) today.getYear());
+            header.putChar((char) headerSize);
+            header.putInt(headerSize + vlrsSize);
+            header.putInt(records);
+            header.put(pointFormat);
+            header.putChar((char) recordLength);
+            header.putInt((int) numberOfPoints);
+            header.put(new byte[20]);
+            for (int axis = 0; axis < 3; axis++)
+                header.putDouble(scale[axis]);
+            for (int axis = 0; axis < 3; axis++)
+                header.putDouble(offset[axis]);
+            for (int axis = 0; axis < 3; axis++)
+                header.putDouble(max[axis]).putDouble(min[axis]);
+
+            for (LASvlr vlr : projection) {
+                header.putChar((char) 0);
+                header.put(fixed(projectionUserId, 16));
+                header.putChar(vlr.record_id);
+                header.putChar((char) vlr.data.length);
+                header.put(vlr.description != null ? Arrays.copyOf(vlr.description, 32) : new byte[32]);
+                header.put(vlr.data);
+            }
+            if (sourceNames != null) {
+                putRecord(header, specUserId, extraBytesRecordId, "Extra bytes", sourceDescriptor);
+                putRecord(header, sourcesUserId, sourcesRecordId, "Names of the datasets", sources);
+            }
+            return header.array();
+        }
+
+        private static void putRecord(ByteBuffer header, String userId, char recordId, String description, byte[] data) {
+            header.putChar((char) 0);
+            header.put(fixed(userId, 16));
+            header.putChar(recordId);
+            header.putChar((char) data.length);
+            header.put(fixed(description, 32));
+            header.put(data);
+        }
+
+        /**
+         * Extra Bytes descriptor of the source of the points, an unsigned short without scale nor offset
+         *
+         * @return
+         */
+        private static byte[] sourceDescriptor() {
+            ByteBuffer descriptor = ByteBuffer.allocate(extraBytesDescriptorSize).order(ByteOrder.LITTLE_ENDIAN);
+            descriptor.put(new byte[2]);
+            descriptor.put(unsignedShortType);
+            descriptor.put((byte) 0);
+            descriptor.put(fixed(sourceAttribute, 32));
+            descriptor.put(new byte[4]);
+            descriptor.put(new byte[24 * 5]);
+            descriptor.put(fixed("Index of the dataset", 32));
+            return descriptor.array();
+        }
+
+        private static byte[] fixed(String value, int length) {
+            return Arrays.copyOf(value.getBytes(StandardCharsets.US_ASCII), length);
+        }
+
+        private static String text(byte[] value) {
+            if (value == null)
+                return "";
+            int length = 0;
+            while (length < value.length && value[length] != 0)
+                length++;
+            return new String(value, 0, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package ujaen.spslidar.services.tools;
 
+import com.github.mreutegg.laszip4j.LASHeader;
+import com.github.mreutegg.laszip4j.LASReader;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +16,7 @@ import ujaen.spslidar.entities.GeorefBox;
 import ujaen.spslidar.utils.properties.LasToolsProperties;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
@@ -528,6 +531,74 @@ public class LasToolsService {
                 .then(Mono.just(fileToReturn));
     }
 
+    /**
+     * Merges a list of files with lasmerge, which compresses the result if the name of the output file ends
+     * with .laz. The names of the files are passed in a list file next to the output file, as there may be
+     * too many of them for the command line
+     *
+     * @param filesToMerge
+     * @param fileToReturn
+     * @return Mono with the path of the merged file, error if it has not been created
+     */
+    public Mono<Path> mergeFileList(List<String> filesToMerge, Path fileToReturn) {
+        return runWithFileList("lasmerge", filesToMerge, fileToReturn, List.of());
+    }
+
+    /**
+     * Merges a list of files in a Cloud Optimized Point Cloud (COPC) file with lascopcindex. The files are
+     * passed in a list file, as there can be too many for the command line
+     *
+     * @param filesToMerge
+     * @param fileToReturn path of the COPC file, which should end with .copc.laz
+     * @return Mono with the path of the COPC file, error if it has not been created
+     */
+    public Mono<Path> createCopcFile(List<String> filesToMerge, Path fileToReturn) {
+        return runWithFileList("lascopcindex", filesToMerge, fileToReturn, List.of("-merged"));
+    }
+
+    /**
+     * Runs a tool over a list of files written to a list file next to the output, which is passed with -lof
+     *
+     * @param tool
+     * @param inputFiles
+     * @param fileToReturn
+     * @param options      arguments added after the list file
+     * @return Mono with the path of the output, error if the tool has not created it
+     */
+    private Mono<Path> runWithFileList(String tool, List<String> inputFiles, Path fileToReturn, List<String> options) {
+        Path listFile = fileToReturn.resolveSibling(fileToReturn.getFileName() + ".txt");
+        ProcessBuilder processBuilder = new ProcessBuilder(fileListCommand(tool, listFile, fileToReturn, options));
+
+        return Mono.fromCallable(() -> Files.write(listFile, inputFiles))
+                .then(processBuilderRunner(processBuilder))
+                .then(Mono.fromCallable(() -> {
+                    if (!Files.exists(fileToReturn))
+                        throw new IOException(tool + " did not create " + fileToReturn);
+                    return fileToReturn;
+                }));
+    }
+
+    List<String> fileListCommand(String tool, Path listFile, Path fileToReturn, List<String> options) {
+
+        List<String> opsEnv = new ArrayList<>();
+        opsEnv.add("wine");
+        opsEnv.add("/LAStools/bin/" + tool + ".exe");
+
+        List<String> devEnv = new ArrayList<>();
+        devEnv.add(tool);
+
+        List<String> commonArguments = new ArrayList<>();
+        commonArguments.add("-lof");
+        commonArguments.add(listFile.toString());
+        commonArguments.addAll(options);
+        commonArguments.add("-o");
+        commonArguments.add(fileToReturn.toString());
+
+        return environment.equals("ops")
+                ? Stream.concat(opsEnv.stream(), commonArguments.stream()).collect(Collectors.toList())
+                : Stream.concat(devEnv.stream(), commonArguments.stream()).collect(Collectors.toList());
+    }
+
 
     public Mono<Datablock> convertMaxDepthFileToBDReady(Datablock datablock) {
 
@@ -555,12 +626,28 @@ public class LasToolsService {
                 .then(Mono.just(datablock))
                 .map(dblock -> {
                     dblock.setLazFileAssociated(lazFileAssociated);
+                    dblock.setNumberOfPoints(countPoints(lazFileAssociated));
                     return dblock;
                 });
 
 
     }
 
+
+    /**
+     * Returns the number of points of a file as written in its header, so that the datablocks declare
+     * exactly the points stored in their files
+     *
+     * @param file
+     * @return
+     */
+    private long countPoints(String file) {
+        LASHeader header = new LASReader(new File(file)).getHeader();
+        return header.getLegacyNumberOfPointRecords() != 0
+                ? Integer.toUnsignedLong(header.getLegacyNumberOfPointRecords())
+                : header.getNumberOfPointRecords();
+    }
+
     public Mono<Datablock> optimizeFile(Datablock datablock) {
         String lazFileAssociated = composeOutputFileName(datablock.getLazFileAssociated(), OPTIMIZED, Optional.empty());
 
@@ -585,6 +672,7 @@ public class LasToolsService {
                 .then(Mono.just(datablock))
                 .map(dblock -> {
                     dblock.setLazFileAssociated(lazFileAssociated);
+                    dblock.setNumberOfPoints(countPoints(lazFileAssociated));
                     return dblock;
                 });
 
@@ -0,0 +1,131 @@
+package ujaen.spslidar.services.tools;
+
+import com.github.mreutegg.laszip4j.laslib.LASreadOpener;
+import com.github.mreutegg.laszip4j.laslib.LASreader;
+import com.github.mreutegg.laszip4j.laszip.LASpoint;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import ujaen.spslidar.Exceptions.ElementNotFound;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.services.core.potree.PotreeOctree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+/**
+ * Encodes the points of a datablock with the DEFAULT encoding of Potree 2.0: position relative to the offset
+ * of the point cloud (3 x int32), intensity (uint16), classification (uint8) and rgb (3 x uint16), little-endian.
+ * The size of a node is declared by the hierarchy before its points are read, so the hierarchy takes the number
+ * of points of each node from the header of its file rather than from the metadata of the datablock, which may
+ * be an estimate.
+ */
+@Service
+public class PotreeNodeEncoder {
+
+    //Enough for the header of LAS 1.4, which has the 64 bit number of points
+    private static final int headerBytes = 375;
+    private static final int minHeaderBytes = 227;
+
+    private final BlobDiskCache blobDiskCache;
+    private final FileRepositoryInterface fileRepositoryInterface;
+
+    public PotreeNodeEncoder(BlobDiskCache blobDiskCache, FileRepositoryInterface fileRepositoryInterface) {
+        this.blobDiskCache = blobDiskCache;
+        this.fileRepositoryInterface = fileRepositoryInterface;
+    }
+
+    /**
+     * Returns the number of points of the file of a datablock, reading only the header of the stored file
+     *
+     * @param datablock
+     * @return Mono with the number of points. ElementNotFound if the file doesn't exist
+     */
+    public Mono<Long> countPoints(AbstractDatablock datablock) {
+        if (datablock.getObjectId() == null)
+            return Mono.just(0L);
+
+        return fileRepositoryInterface.findFile(datablock.getObjectId())
+                .switchIfEmpty(Mono.error(new ElementNotFound()))
+                .flatMap(file -> DataBufferUtils.join(fileRepositoryInterface.getFile(file, 0,
+                        Math.min(file.getLength(), headerBytes) - 1)))
+                .flatMap(dataBuffer -> {
+                    try {
+                        return Mono.just(countPoints(dataBuffer.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN)));
+                    } catch (IOException e) {
+                        return Mono.error(e);
+                    } finally {
+                        DataBufferUtils.release(dataBuffer);
+                    }
+                });
+    }
+
+    /**
+     * Encodes the points of a datablock
+     *
+     * @param datablock
+     * @param points    number of points of its file, as declared by the hierarchy
+     * @param offset    offset of the positions of the point cloud
+     * @param scale     scale of the positions of the point cloud
+     * @return Mono with the points of the node. IOException if the file has fewer points
+     */
+    public Mono<ByteBuffer> encode(AbstractDatablock datablock, long points, double[] offset, double[] scale) {
+        if (points == 0)
+            return Mono.just(ByteBuffer.allocate(0));
+
+        return Mono.usingWhen(blobDiskCache.acquire(datablock.getObjectId()),
+                path -> Mono.fromCallable(() -> encodeFile(path, (int) points, offset, scale))
+                        .subscribeOn(Schedulers.boundedElastic()),
+                path -> Mono.fromRunnable(() -> blobDiskCache.release(datablock.getObjectId())));
+    }
+
+    private ByteBuffer encodeFile(Path path, int points, double[] offset, double[] scale) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(points * PotreeOctree.bytesPerPoint).order(ByteOrder.LITTLE_ENDIAN);
+        LASreader reader = new LASreadOpener().open(path.toString());
+        try {
+            boolean extended = reader.header.point_data_format >= 6;
+            while (buffer.hasRemaining() && reader.read_point()) {
+                LASpoint point = reader.point;
+                buffer.putInt((int) Math.round((point.get_x() - offset[0]) / scale[0]));
+                buffer.putInt((int) Math.round((point.get_y() - offset[1]) / scale[1]));
+                buffer.putInt((int) Math.round((point.get_z() - offset[2]) / scale[2]));
+                buffer.putChar(point.get_intensity());
+                buffer.put((byte) (extended ? point.get_extended_classification() : point.get_classification()));
+                buffer.putChar(point.have_rgb ? point.get_R() : 0);
+                buffer.putChar(point.have_rgb ? point.get_G() : 0);
+                buffer.putChar(point.have_rgb ? point.get_B() : 0);
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (buffer.hasRemaining())
+            throw new IOException("The file " + path.getFileName() + " has " + buffer.position() / PotreeOctree.bytesPerPoint
+                    + " points but its header declares " + points);
+        return buffer.flip();
+    }
+
+    /**
+     * Reads the number of points of a LAS or LAZ header, which is never compressed
+     *
+     * @param header first bytes of the file
+     * @return
+     * @throws IOException if they aren't the header of a LAS file
+     */
+    static long countPoints(ByteBuffer header) throws IOException {
+        if (header.limit() < minHeaderBytes || header.get(0) != 'L' || header.get(1) != 'A'
+                || header.get(2) != 'S' || header.get(3) != 'F')
+            throw new IOException("The file is not a LAS file");
+
+        int versionMinor = header.get(25);
+        int headerSize = header.getChar(94);
+        if (versionMinor >= 4 && headerSize >= headerBytes && header.limit() >= headerBytes)
+            return header.getLong(247);
+        return Integer.toUnsignedLong(header.getInt(107));
+    }
+
+}
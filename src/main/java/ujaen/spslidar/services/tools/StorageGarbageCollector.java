@@ -0,0 +1,152 @@
+package ujaen.spslidar.services.tools;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import ujaen.spslidar.DTOs.http.GarbageCollectionReportDTO;
+import ujaen.spslidar.entities.StoredFile;
+import ujaen.spslidar.entities.Workspace;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
+import ujaen.spslidar.utils.properties.GarbageCollectionProperties;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Reclaims the storage left behind by builds and merges that didn't finish: stored files that no datablock
+ * or dataset references and work directories that are no longer being modified. Only what is older than the grace
+ * period is considered, so builds in progress are never affected.
+ */
+@Service
+public class StorageGarbageCollector {
+
+    Logger logger = LoggerFactory.getLogger(StorageGarbageCollector.class);
+
+    private final FileRepositoryInterface fileRepositoryInterface;
+    private final DatablockRepositoryInterface datablockRepositoryInterface;
+    private final DatasetRepositoryInterface datasetRepositoryInterface;
+    private final WorkspaceRepositoryInterface workspaceRepositoryInterface;
+    private final SystemFileStorageService systemFileStorageService;
+    private final BlobDiskCache blobDiskCache;
+    private final GarbageCollectionProperties properties;
+
+    private final Counter reclaimedFileBytes;
+    private final Counter reclaimedDirectoryBytes;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile GarbageCollectionReportDTO lastReport;
+
+    public StorageGarbageCollector(FileRepositoryInterface fileRepositoryInterface,
+                                   DatablockRepositoryInterface datablockRepositoryInterface,
+                                   DatasetRepositoryInterface datasetRepositoryInterface,
+                                   WorkspaceRepositoryInterface workspaceRepositoryInterface,
+                                   SystemFileStorageService systemFileStorageService,
+                                   BlobDiskCache blobDiskCache,
+                                   GarbageCollectionProperties properties,
+                                   MeterRegistry meterRegistry) {
+        this.fileRepositoryInterface = fileRepositoryInterface;
+        this.datablockRepositoryInterface = datablockRepositoryInterface;
+        this.datasetRepositoryInterface = datasetRepositoryInterface;
+        this.workspaceRepositoryInterface = workspaceRepositoryInterface;
+        this.systemFileStorageService = systemFileStorageService;
+        this.blobDiskCache = blobDiskCache;
+        this.properties = properties;
+        this.reclaimedFileBytes = Counter.builder("storage.gc.reclaimed").baseUnit("bytes").tag("type", "files").register(meterRegistry);
+        this.reclaimedDirectoryBytes = Counter.builder("storage.gc.reclaimed").baseUnit("bytes").tag("type", "directories").register(meterRegistry);
+    }
+
+    @Scheduled(initialDelayString = "${gc.initial-delay:PT10M}", fixedDelayString = "${gc.interval:PT1H}")
+    public void scheduledSweep() {
+        if (properties.isEnabled())
+            sweep().block();
+    }
+
+    /**
+     * Runs a sweep, unless there is one already running
+     *
+     * @return Mono with the report of the sweep, or Mono empty if another one was running
+     */
+    public Mono<GarbageCollectionReportDTO> sweep() {
+        return Mono.defer(() -> {
+            if (!running.compareAndSet(false, true))
+                return Mono.empty();
+
+            Instant limit = Instant.now().minus(properties.getGracePeriod());
+            return Mono.zip(removeOrphanFiles(limit), removeAbandonedDirectories(limit))
+                    .map(tuple -> new GarbageCollectionReportDTO(new Date(), tuple.getT1().size(),
+                            tuple.getT1().stream().mapToLong(StoredFile::getLength).sum(),
+                            tuple.getT2().size(), tuple.getT2().values().stream().mapToLong(Long::longValue).sum()))
+                    .doOnNext(report -> {
+                        reclaimedFileBytes.increment(report.getFileBytes());
+                        reclaimedDirectoryBytes.increment(report.getDirectoryBytes());
+                        lastReport = report;
+                        logger.info("Garbage collection removed " + report.getFiles() + " files (" + report.getFileBytes()
+                                + " bytes) and " + report.getDirectories() + " directories (" + report.getDirectoryBytes() + " bytes)");
+                    })
+                    .doFinally(signalType -> running.set(false));
+        });
+    }
+
+    public Mono<GarbageCollectionReportDTO> getLastReport() {
+        return Mono.justOrEmpty(lastReport);
+    }
+
+    /**
+     * Checks the files in batches against the datablocks and datasets of every workspace and removes those that
+     * aren't referenced, at the configured rate
+     *
+     * @param limit
+     * @return
+     */
+    private Mono<List<StoredFile>> removeOrphanFiles(Instant limit) {
+        Duration deleteInterval = Duration.ofMillis(1000 / Math.max(1, properties.getDeletesPerSecond()));
+
+        return workspaceRepositoryInterface.findAll()
+                .map(Workspace::getName)
+                .collectList()
+                .flatMapMany(workspaces -> fileRepositoryInterface.findFilesUploadedBefore(Date.from(limit))
+                        .buffer(properties.getBatchSize())
+                        .concatMap(files -> findUnreferenced(workspaces, files)))
+                .delayElements(deleteInterval)
+                .concatMap(file -> fileRepositoryInterface.deleteFile(file.getObjectId())
+                        .then(Mono.fromRunnable(() -> blobDiskCache.remove(file.getObjectId())))
+                        .thenReturn(file)
+                        .onErrorResume(throwable -> {
+                            logger.warn("Couldn't remove file " + file.getObjectId() + ": " + throwable);
+                            return Mono.empty();
+                        }))
+                .collectList();
+    }
+
+    private Flux<StoredFile> findUnreferenced(List<String> workspaces, List<StoredFile> files) {
+        List<ObjectId> fileIds = files.stream().map(StoredFile::getObjectId).collect(Collectors.toList());
+
+        return Flux.fromIterable(workspaces)
+                .flatMap(workspace -> Flux.merge(datablockRepositoryInterface.findReferencedFiles(workspace, fileIds),
+                        datasetRepositoryInterface.findReferencedFiles(workspace, fileIds)))
+                .collect(Collectors.toSet())
+                .flatMapMany(referenced -> Flux.fromIterable(files)
+                        .filter(file -> !referenced.contains(file.getObjectId())));
+    }
+
+    private Mono<Map<Path, Long>> removeAbandonedDirectories(Instant limit) {
+        return Mono.fromCallable(() -> systemFileStorageService.removeDirectoriesNotModifiedSince(limit))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+}
@@ -13,11 +13,17 @@ import ujaen.spslidar.utils.properties.FileStorageProperties;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 /**
  * Service defined to interact with the file storage system
@@ -29,6 +35,7 @@ public class SystemFileStorageService {
 
     private final Path fileStorageLocation;
     private final Path fileMergeLocation;
+    private final Path fileCacheLocation;
     private final String suffix = ".laz";
 
     /**
@@ -45,9 +52,13 @@ public class SystemFileStorageService {
         this.fileMergeLocation = Paths.get(fileStorageProperties.getMergeDir())
                 .toAbsolutePath().normalize();
 
+        this.fileCacheLocation = Paths.get(fileStorageProperties.getCacheDir())
+                .toAbsolutePath().normalize();
+
         try {
             Files.createDirectories(fileStorageLocation);
             Files.createDirectories(fileMergeLocation);
+            Files.createDirectories(fileCacheLocation);
         } catch (Exception e) {
             throw new RuntimeException("Could not create the directory where the uploaded files will be stored.", e);
         }
@@ -59,6 +70,10 @@ public class SystemFileStorageService {
         return this.fileStorageLocation.toString();
     }
 
+    public Path getCachePath() {
+        return this.fileCacheLocation;
+    }
+
     private String buildDirectory(Path baseLocation, String directory) {
         try {
             Path newDirectory = Paths.get(baseLocation.toString(), directory);
@@ -83,8 +98,16 @@ public class SystemFileStorageService {
 
     }
 
+    /**
+     * Builds a new directory for a merge. Each merge gets its own directory, so concurrent merges
+     * of the same dataset don't remove each other's files
+     *
+     * @param workspace
+     * @param dataset
+     * @return the full path of the new directory
+     */
     public String buildMergeDirectory(String workspace, String dataset) {
-        String mergeFolder = workspace + "_" + dataset;
+        String mergeFolder = workspace + "_" + dataset + "_" + UUID.randomUUID();
         return buildDirectory(fileMergeLocation, mergeFolder);
     }
 
@@ -175,5 +198,49 @@ public class SystemFileStorageService {
         }
     }
 
+    /**
+     * Removes the work directories of the upload and merge locations in which no file has been modified since
+     * the passed instant. These are left behind by builds and merges that didn't finish.
+     *
+     * @param instant
+     * @return size in bytes of each directory removed
+     */
+    public Map<Path, Long> removeDirectoriesNotModifiedSince(Instant instant) {
+        Map<Path, Long> removed = new HashMap<>();
+
+        for (Path location : List.of(fileStorageLocation, fileMergeLocation)) {
+            try (Stream<Path> directories = Files.list(location)) {
+                directories
+                        .filter(Files::isDirectory)
+                        //The merge and cache locations may be inside the upload one
+                        .filter(directory -> !fileMergeLocation.startsWith(directory))
+                        .filter(directory -> !fileCacheLocation.startsWith(directory))
+                        .forEach(directory -> {
+                            try {
+                                if (lastModification(directory).isBefore(instant)) {
+                                    long size = FileUtils.sizeOfDirectory(directory.toFile());
+                                    FileUtils.deleteDirectory(directory.toFile());
+                                    removed.put(directory, size);
+                                }
+                            } catch (IOException | UncheckedIOException ioException) {
+                                logger.warn("Couldn't remove " + directory + ": " + ioException);
+                            }
+                        });
+            } catch (IOException ioException) {
+                logger.warn("Couldn't list " + location + ": " + ioException);
+            }
+        }
+        return removed;
+    }
+
+    private Instant lastModification(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files
+                    .map(file -> file.toFile().lastModified())
+                    .max(Long::compare)
+                    .map(Instant::ofEpochMilli)
+                    .orElse(Instant.EPOCH);
+        }
+    }
 
 }
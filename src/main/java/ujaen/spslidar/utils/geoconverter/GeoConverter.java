@@ -1,7 +1,12 @@
 package ujaen.spslidar.utils.geoconverter;
 
+import ujaen.spslidar.entities.GeorefBox;
 import ujaen.spslidar.entities.UTMCoord;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Referenced from https://stackoverflow.com/a/28224544
  */
@@ -21,6 +26,27 @@ public class GeoConverter {
         return transformtoUTM(longLat, zone, lat);
     }
 
+    /**
+     * Splits a bounding box whose corners belong to different UTM zones in a box for each zone, built with
+     * the corner of that zone and the other corner reprojected to it
+     * @param georefBox
+     * @return The boxes of the south west zone and the north east zone, or the box itself if it is in a single zone
+     */
+    public static List<GeorefBox> splitByUTMZone(GeorefBox georefBox) {
+
+        UTMCoord southWest = georefBox.getSouthWestBottom();
+        UTMCoord northEast = georefBox.getNorthEastTop();
+        if (southWest.getZone().equals(northEast.getZone()))
+            return Collections.singletonList(georefBox);
+
+        UTMCoord northEastReprojected = reprojectUTMCoordinate(northEast, southWest.getZone());
+        northEastReprojected.setHeight(northEast.getHeight());
+        UTMCoord southWestReprojected = reprojectUTMCoordinate(southWest, northEast.getZone());
+        southWestReprojected.setHeight(southWest.getHeight());
+
+        return Arrays.asList(new GeorefBox(southWest, northEastReprojected), new GeorefBox(southWestReprojected, northEast));
+    }
+
     /**
      * Transforms a UTMCoord to Longitude-Latitude
      * @param utmCoord
@@ -0,0 +1,38 @@
+package ujaen.spslidar.utils.properties;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "cache")
+@Data
+@NoArgsConstructor
+public class CacheProperties {
+
+    //Maximum number of octree nodes kept in memory by the topology cache, 0 disables it
+    private long topologyMaxNodes;
+
+    //Time that workspaces and datasets read from the database are kept in memory, 0 disables it
+    private Duration metadataTtl;
+
+    //Maximum number of workspaces and datasets kept in memory
+    private int metadataMaxEntries;
+
+    //Maximum size of the datablock files kept in direct memory, 0 disables it
+    private long payloadMaxBytes;
+
+    //Deepest level of the octrees whose datablock files are kept in the protected segment
+    private int payloadProtectedDepth;
+
+    //Maximum number of datablocks kept in memory by the region query cache, 0 disables it
+    private long regionMaxDatablocks;
+
+    //Size (in meters) of the grid to which the regions are widened before caching their datablocks
+    private double regionGridSize;
+
+    //Buffers of a shared read replayed to the identical requests that join it late, 0 disables the coalescing
+    private int coalesceReplayBuffers;
+
+}
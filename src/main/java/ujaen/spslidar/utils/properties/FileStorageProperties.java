@@ -11,6 +11,8 @@ public class FileStorageProperties {
 
     private String uploadDir;
     private String mergeDir;
+    private String cacheDir;
+    private long cacheMaxBytes;
 
 
 }
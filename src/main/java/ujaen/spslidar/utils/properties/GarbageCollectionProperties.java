@@ -0,0 +1,26 @@
+package ujaen.spslidar.utils.properties;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "gc")
+@Data
+@NoArgsConstructor
+public class GarbageCollectionProperties {
+
+    //Enables the periodic sweep, it can still be run on demand
+    private boolean enabled;
+
+    //Files and directories younger than this are never removed, so work in progress is left alone
+    private Duration gracePeriod;
+
+    //Number of files whose references are checked with each query
+    private int batchSize;
+
+    //Maximum number of files removed per second
+    private int deletesPerSecond;
+
+}
@@ -0,0 +1,21 @@
+package ujaen.spslidar.utils.properties;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "prefetch")
+@Data
+@NoArgsConstructor
+public class PrefetchProperties {
+
+    //Enables the prefetch of the children of the datablocks served
+    private boolean enabled;
+
+    //Maximum number of datablocks whose children are being prefetched at the same time
+    private int maxConcurrent;
+
+    //Number of datablock files being sent to the clients over which nothing is prefetched
+    private int maxActiveReads;
+
+}
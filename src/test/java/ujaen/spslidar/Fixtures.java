@@ -0,0 +1,59 @@
+package ujaen.spslidar;
+
+import org.bson.types.ObjectId;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.UTMCoord;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Entities shared by the unit tests
+ */
+public class Fixtures {
+
+    public static GeorefBox box(double minEasting, double minNorthing, double maxEasting, double maxNorthing, String zone) {
+        return new GeorefBox(new UTMCoord(minEasting, minNorthing, zone, 0),
+                new UTMCoord(maxEasting, maxNorthing, zone, 100));
+    }
+
+    public static Dataset dataset(String workspaceName, String datasetName, Dataset.State state) {
+        Dataset dataset = new Dataset();
+        dataset.setWorkspaceName(workspaceName);
+        dataset.setDatasetName(datasetName);
+        dataset.setDate(LocalDateTime.of(2020, 1, 1, 0, 0));
+        dataset.setDataAssociated(state);
+        return dataset;
+    }
+
+    /**
+     * Builds a complete octree over a grid cell, with every node down to the given depth
+     *
+     * @param cell
+     * @param maxDepth depth of the leaves
+     * @return the nodes of the octree, root first
+     */
+    public static List<AbstractDatablock> octree(GeorefBox cell, int maxDepth) {
+        List<AbstractDatablock> datablocks = new ArrayList<>();
+        Datablock root = new Datablock(0, cell, cell);
+        addNode(root, maxDepth, datablocks);
+        return datablocks;
+    }
+
+    private static void addNode(Datablock datablock, int maxDepth, List<AbstractDatablock> datablocks) {
+        datablock.setObjectId(new ObjectId());
+        datablock.setNumberOfPoints(100);
+        datablocks.add(datablock);
+        if (datablock.getDepth() == maxDepth)
+            return;
+        for (Datablock child : datablock.createSubRegions()) {
+            datablock.getChildren().add(child.getId());
+            addNode(child, maxDepth, datablocks);
+        }
+    }
+
+}
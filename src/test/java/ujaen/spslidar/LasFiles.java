@@ -0,0 +1,111 @@
+package ujaen.spslidar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Writes uncompressed LAS 1.2 files (point data format 3) for the unit tests
+ */
+public class LasFiles {
+
+    public static final int headerSize = 227;
+    public static final int recordLength = 34;
+    public static final double scale = 0.01;
+
+    /**
+     * Point of a test file
+     */
+    public static class Point {
+
+        public final double x;
+        public final double y;
+        public final double z;
+        public final int intensity;
+        public final int classification;
+        public final int r;
+        public final int g;
+        public final int b;
+
+        public Point(double x, double y, double z, int intensity, int classification, int r, int g, int b) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.intensity = intensity;
+            this.classification = classification;
+            this.r = r;
+            this.g = g;
+            this.b = b;
+        }
+    }
+
+    public static Path write(Path path, Point... points) throws IOException {
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (Point point : points) {
+            double[] values = {point.x, point.y, point.z};
+            for (int axis = 0; axis < 3; axis++) {
+                min[axis] = Math.min(min[axis], values[axis]);
+                max[axis] = Math.max(max[axis], values[axis]);
+            }
+        }
+        if (points.length == 0) {
+            Arrays.fill(min, 0);
+            Arrays.fill(max, 0);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + points.length * recordLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("LASF".getBytes(StandardCharsets.US_ASCII));
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.put(new byte[16]);
+        buffer.put((byte) 1);
+        buffer.put((byte) 2);
+        buffer.put(text("spslidar", 32));
+        buffer.put(text("spslidar tests", 32));
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 2022);
+        buffer.putShort((short) headerSize);
+        buffer.putInt(headerSize);
+        buffer.putInt(0);
+        buffer.put((byte) 3);
+        buffer.putShort((short) recordLength);
+        buffer.putInt(points.length);
+        buffer.putInt(points.length);
+        buffer.put(new byte[16]);
+        for (int axis = 0; axis < 3; axis++)
+            buffer.putDouble(scale);
+        for (int axis = 0; axis < 3; axis++)
+            buffer.putDouble(0);
+        for (int axis = 0; axis < 3; axis++) {
+            buffer.putDouble(max[axis]);
+            buffer.putDouble(min[axis]);
+        }
+
+        for (Point point : points) {
+            buffer.putInt((int) Math.round(point.x / scale));
+            buffer.putInt((int) Math.round(point.y / scale));
+            buffer.putInt((int) Math.round(point.z / scale));
+            buffer.putShort((short) point.intensity);
+            buffer.put((byte) 0x09);
+            buffer.put((byte) point.classification);
+            buffer.put((byte) 0);
+            buffer.put((byte) 0);
+            buffer.putShort((short) 0);
+            buffer.putDouble(0);
+            buffer.putShort((short) point.r);
+            buffer.putShort((short) point.g);
+            buffer.putShort((short) point.b);
+        }
+        return Files.write(path, buffer.array());
+    }
+
+    private static byte[] text(String value, int length) {
+        return Arrays.copyOf(value.getBytes(StandardCharsets.US_ASCII), length);
+    }
+
+}
@@ -0,0 +1,71 @@
+package ujaen.spslidar;
+
+import org.bson.types.ObjectId;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.entities.StoredFile;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Stored files kept in memory for the unit tests. Like GridFS, a missing file has no description and
+ * an empty content
+ */
+public class MemoryFiles {
+
+    public final Map<ObjectId, byte[]> contents = new ConcurrentHashMap<>();
+    public final Map<ObjectId, Date> uploadDates = new ConcurrentHashMap<>();
+    public final AtomicInteger reads = new AtomicInteger();
+
+    public ObjectId add(byte[] content) {
+        ObjectId objectId = new ObjectId();
+        contents.put(objectId, content);
+        uploadDates.put(objectId, new Date());
+        return objectId;
+    }
+
+    public ObjectId add(Path path) throws IOException {
+        return add(Files.readAllBytes(path));
+    }
+
+    public FileRepositoryInterface repository() {
+        return repository(Map.of());
+    }
+
+    /**
+     * @param answers answers of other methods of the repository
+     * @return
+     */
+    public FileRepositoryInterface repository(Map<String, Function<Object[], Object>> answers) {
+        Map<String, Function<Object[], Object>> all = new HashMap<>(answers);
+        all.putIfAbsent("findFile", args -> Mono.justOrEmpty(describe((ObjectId) args[0])));
+        all.putIfAbsent("getFile", args -> Flux.defer(() -> {
+            reads.incrementAndGet();
+            if (args.length == 1) {
+                byte[] content = contents.get((ObjectId) args[0]);
+                return content == null ? Flux.empty() : Flux.just(new DefaultDataBufferFactory().wrap(content));
+            }
+            byte[] content = contents.get(((StoredFile) args[0]).getObjectId());
+            return Flux.just(new DefaultDataBufferFactory().wrap(
+                    Arrays.copyOfRange(content, (int) (long) args[1], (int) (long) args[2] + 1)));
+        }));
+        return Stubs.stub(FileRepositoryInterface.class, all);
+    }
+
+    public StoredFile describe(ObjectId objectId) {
+        byte[] content = contents.get(objectId);
+        return content == null ? null : new StoredFile(objectId, content.length, 255 * 1024, uploadDates.get(objectId));
+    }
+
+}
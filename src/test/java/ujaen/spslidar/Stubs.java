@@ -0,0 +1,34 @@
+package ujaen.spslidar;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Builds implementations of the repository and service interfaces for the unit tests, answering only
+ * the methods the test needs. Any other call fails, so that a test notices when the code under test
+ * starts using something it didn't expect.
+ */
+public class Stubs {
+
+    public static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (instance, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return instance == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(instance);
+                    default:
+                        return type.getSimpleName() + " stub";
+                }
+            }
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer == null)
+                throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+            return answer.apply(args);
+        });
+        return type.cast(proxy);
+    }
+
+}
@@ -0,0 +1,169 @@
+package ujaen.spslidar.controllers;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.entities.StoredFile;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileResponsesTest {
+
+    private static final String content = "0123456789abcdefghijklmnopqrstuvwxyz";
+    private static final long uploadTime = 1_600_000_000_000L;
+
+    private final StoredFile file = new StoredFile(new ObjectId(), content.length(), 255, new Date(uploadTime + 250));
+    private final String eTag = "\"" + file.getObjectId().toHexString() + "\"";
+
+    @Test
+    void sendsTheCompleteFileWithItsValidators() {
+        ResponseEntity<Flux<DataBuffer>> response = storedFile(new HttpHeaders());
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(eTag, response.getHeaders().getETag());
+        assertEquals(uploadTime, response.getHeaders().getLastModified());
+        assertEquals(content.length(), response.getHeaders().getContentLength());
+        assertEquals("bytes", response.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+        assertTrue(response.getHeaders().getCacheControl().contains("immutable"));
+        assertBody(content, response);
+    }
+
+    @Test
+    void answersConditionalRequestsWithNotModified() {
+        HttpHeaders matching = new HttpHeaders();
+        matching.setIfNoneMatch(eTag);
+        HttpHeaders any = new HttpHeaders();
+        any.setIfNoneMatch("*");
+        HttpHeaders notModifiedSince = new HttpHeaders();
+        notModifiedSince.setIfModifiedSince(uploadTime);
+
+        for (HttpHeaders headers : new HttpHeaders[]{matching, any, notModifiedSince}) {
+            ResponseEntity<Flux<DataBuffer>> response = storedFile(headers);
+
+            assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+            assertEquals(eTag, response.getHeaders().getETag());
+            assertBody("", response);
+        }
+    }
+
+    @Test
+    void sendsTheFileWhenItDoesNotMatch() {
+        HttpHeaders otherTag = new HttpHeaders();
+        otherTag.setIfNoneMatch("\"" + new ObjectId().toHexString() + "\"");
+        HttpHeaders modifiedSince = new HttpHeaders();
+        modifiedSince.setIfModifiedSince(uploadTime - 1000);
+        //The tag takes precedence over the date
+        HttpHeaders otherTagAndDate = new HttpHeaders();
+        otherTagAndDate.setIfNoneMatch("\"" + new ObjectId().toHexString() + "\"");
+        otherTagAndDate.setIfModifiedSince(uploadTime);
+
+        for (HttpHeaders headers : new HttpHeaders[]{otherTag, modifiedSince, otherTagAndDate}) {
+            assertEquals(HttpStatus.OK, storedFile(headers).getStatusCode());
+        }
+    }
+
+    @Test
+    void sendsTheRequestedRange() {
+        ResponseEntity<Flux<DataBuffer>> response = storedFile(range("bytes=10-19"));
+
+        assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+        assertEquals("bytes 10-19/36", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertEquals(10, response.getHeaders().getContentLength());
+        assertBody("abcdefghij", response);
+
+        assertBody("wxyz", storedFile(range("bytes=-4")));
+        assertBody("uvwxyz", storedFile(range("bytes=30-")));
+        assertBody("xyz", storedFile(range("bytes=33-100")));
+    }
+
+    @Test
+    void rejectsUnsatisfiableRanges() {
+        ResponseEntity<Flux<DataBuffer>> response = storedFile(range("bytes=36-40"));
+
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatusCode());
+        assertEquals("bytes */36", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertBody("", response);
+
+        for (String value : new String[]{"bytes=100-", "bytes=-0"}) {
+            assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, storedFile(range(value)).getStatusCode());
+        }
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+                FileResponses.generatedFile(0, this::read, range("bytes=0-")).getStatusCode());
+    }
+
+    @Test
+    void sendsTheCompleteFileForMultipleOrInvalidRanges() {
+        for (String value : new String[]{"bytes=0-1,5-6", "bytes=a-b", "items=0-1"}) {
+            ResponseEntity<Flux<DataBuffer>> response = storedFile(range(value));
+
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+            assertBody(content, response);
+        }
+    }
+
+    @Test
+    void sendsTheRangeOnlyIfTheFileIsTheSame() {
+        HttpHeaders sameFile = range("bytes=0-3");
+        sameFile.set(HttpHeaders.IF_RANGE, eTag);
+        HttpHeaders otherFile = range("bytes=0-3");
+        otherFile.set(HttpHeaders.IF_RANGE, "\"" + new ObjectId().toHexString() + "\"");
+
+        assertEquals(HttpStatus.PARTIAL_CONTENT, storedFile(sameFile).getStatusCode());
+        assertBody("0123", storedFile(sameFile));
+        assertEquals(HttpStatus.OK, storedFile(otherFile).getStatusCode());
+        assertBody(content, storedFile(otherFile));
+    }
+
+    @Test
+    void sendsRangesOfGeneratedFiles() {
+        ResponseEntity<Flux<DataBuffer>> complete = FileResponses.generatedFile(content.length(), this::read, new HttpHeaders());
+        ResponseEntity<Flux<DataBuffer>> partial = FileResponses.generatedFile(content.length(), this::read, range("bytes=2-4"));
+        ResponseEntity<Flux<DataBuffer>> empty = FileResponses.generatedFile(0, this::read, new HttpHeaders());
+
+        assertEquals(HttpStatus.OK, complete.getStatusCode());
+        assertNull(complete.getHeaders().getETag());
+        assertBody(content, complete);
+        assertEquals(HttpStatus.PARTIAL_CONTENT, partial.getStatusCode());
+        assertBody("234", partial);
+        assertEquals(0, empty.getHeaders().getContentLength());
+        assertBody("", empty);
+    }
+
+    private ResponseEntity<Flux<DataBuffer>> storedFile(HttpHeaders headers) {
+        BiFunction<Long, Long, Flux<DataBuffer>> range = this::read;
+        return FileResponses.storedFile(file, read(0L, (long) content.length() - 1), range, headers);
+    }
+
+    private Flux<DataBuffer> read(Long start, Long end) {
+        return Flux.just(new DefaultDataBufferFactory()
+                .wrap(content.substring(start.intValue(), end.intValue() + 1).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static HttpHeaders range(String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, value);
+        return headers;
+    }
+
+    private static void assertBody(String expected, ResponseEntity<Flux<DataBuffer>> response) {
+        StepVerifier.create(response.getBody()
+                        .map(dataBuffer -> dataBuffer.toString(StandardCharsets.US_ASCII))
+                        .reduce("", String::concat))
+                .expectNext(expected)
+                .verifyComplete();
+    }
+
+}
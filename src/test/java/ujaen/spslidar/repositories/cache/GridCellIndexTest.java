@@ -0,0 +1,110 @@
+package ujaen.spslidar.repositories.cache;
+
+import org.junit.jupiter.api.Test;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.GridCell;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ujaen.spslidar.Fixtures.box;
+
+class GridCellIndexTest {
+
+    private static final int cellSize = 1000;
+
+    @Test
+    void findsTheDatasetsOfTheIntersectedCells() {
+        GridCellIndex index = new GridCellIndex(cellSize, List.of(
+                cell(400000, 4100000, "30S", "a", "b"),
+                cell(401000, 4100000, "30S", "b"),
+                cell(405000, 4105000, "30S", "c"),
+                cell(400000, 4100000, "31S", "d")));
+
+        assertEquals(Set.of("a", "b"), index.findDatasets(box(400100, 4100100, 400200, 4100200, "30S")));
+        assertEquals(Set.of("a", "b"), index.findDatasets(box(400500, 4100500, 401500, 4100600, "30S")));
+        assertEquals(Set.of("a", "b", "c"), index.findDatasets(box(399000, 4099000, 406000, 4106000, "30S")));
+        assertEquals(Set.of("d"), index.findDatasets(box(400100, 4100100, 400200, 4100200, "31S")));
+        assertTrue(index.findDatasets(box(402100, 4100100, 402200, 4100200, "30S")).isEmpty());
+        assertTrue(index.findDatasets(box(400100, 4100100, 400200, 4100200, "29S")).isEmpty());
+    }
+
+    @Test
+    void followsTheLimitsOfTheRangeQuery() {
+        GridCellIndex index = new GridCellIndex(cellSize, List.of(
+                cell(400000, 4100000, "30S", "a"),
+                cell(401000, 4100000, "30S", "b")));
+
+        //A cell is taken when it starts before the end of the box and ends at or after its start
+        assertEquals(Set.of("a"), index.findDatasets(box(400500, 4100500, 401000, 4100600, "30S")));
+        assertEquals(Set.of("a", "b"), index.findDatasets(box(401000, 4100500, 401500, 4100600, "30S")));
+    }
+
+    @Test
+    void addsAndRemovesDatasets() {
+        GridCellIndex index = new GridCellIndex(cellSize, List.of(cell(400000, 4100000, "30S", "a")));
+        GeorefBox query = box(400100, 4100100, 400200, 4100200, "30S");
+
+        index.add(cellBox(400000, 4100000, "30S"), "b");
+        assertEquals(Set.of("a", "b"), index.findDatasets(query));
+
+        index.remove(cellBox(400000, 4100000, "30S"), "a");
+        index.remove(cellBox(400000, 4100000, "31S"), "b");
+        assertEquals(Set.of("b"), index.findDatasets(query));
+
+        index.remove(cellBox(400000, 4100000, "30S"), "b");
+        assertTrue(index.findDatasets(query).isEmpty());
+    }
+
+    @Test
+    void probingAndScanningMatchTheRangeQuery() {
+        Random random = new Random(7);
+        List<GridCell> gridCells = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            gridCells.add(cell(400000 + random.nextInt(40) * cellSize, 4100000 + random.nextInt(40) * cellSize,
+                    "30S", "dataset" + i));
+        }
+        GridCellIndex index = new GridCellIndex(cellSize, gridCells);
+
+        //Small boxes probe their cells, big ones scan the stored cells
+        for (int i = 0; i < 500; i++) {
+            double minEasting = 399000 + random.nextDouble() * 42000;
+            double minNorthing = 4099000 + random.nextDouble() * 42000;
+            double side = random.nextBoolean() ? random.nextDouble() * 3000 : random.nextDouble() * 40000;
+            GeorefBox query = box(minEasting, minNorthing, minEasting + side, minNorthing + side, "30S");
+
+            assertEquals(rangeQuery(gridCells, query), index.findDatasets(query));
+        }
+    }
+
+    private static Set<String> rangeQuery(List<GridCell> gridCells, GeorefBox query) {
+        Set<String> datasets = new HashSet<>();
+        for (GridCell gridCell : gridCells) {
+            GeorefBox cell = gridCell.getGridGeorefBox();
+            if (cell.getSouthWestBottom().getEasting() < query.getNorthEastTop().getEasting()
+                    && cell.getNorthEastTop().getEasting() >= query.getSouthWestBottom().getEasting()
+                    && cell.getSouthWestBottom().getNorthing() < query.getNorthEastTop().getNorthing()
+                    && cell.getNorthEastTop().getNorthing() >= query.getSouthWestBottom().getNorthing())
+                datasets.addAll(gridCell.getDatasets());
+        }
+        return datasets;
+    }
+
+    private static GridCell cell(double easting, double northing, String zone, String... datasets) {
+        GridCell gridCell = new GridCell(cellBox(easting, northing, zone));
+        for (String dataset : datasets) {
+            gridCell.addDataset(dataset);
+        }
+        return gridCell;
+    }
+
+    private static GeorefBox cellBox(double easting, double northing, String zone) {
+        return box(easting, northing, easting + cellSize, northing + cellSize, zone);
+    }
+
+}
@@ -0,0 +1,114 @@
+package ujaen.spslidar.repositories.mongo;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import ujaen.spslidar.DTOs.database.mongo.DatablockDBDTO;
+import ujaen.spslidar.DTOs.database.mongo.DatablockDocument;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.UTMCoord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the size and the decoding time of the datablock documents with the previous layout (DatablockDBDTO)
+ * and the compact one (DatablockDocument). It doesn't need a database. Excluded from the build, run it with
+ * mvn test -DexcludedTestGroups=none -Dtest=DatablockCodecBenchmark
+ */
+@Tag("benchmark")
+class DatablockCodecBenchmark {
+
+    private static final int datablocks = 20000;
+    private static final int rounds = 10;
+
+    @Test
+    void compareLayouts() {
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.afterPropertiesSet();
+        Codec<Document> codec = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+        List<RawBsonDocument> previous = new ArrayList<>();
+        List<RawBsonDocument> compact = new ArrayList<>();
+        for (Datablock datablock : buildOctree()) {
+            Document document = new Document();
+            converter.write(new DatablockDBDTO(datablock, "dataset", datablock.getObjectId()), document);
+            previous.add(new RawBsonDocument(document, codec));
+            compact.add(new RawBsonDocument(DatablockDocument.encode(datablock, "dataset", datablock.getObjectId()), codec));
+        }
+
+        long previousSize = averageSize(previous);
+        long compactSize = averageSize(compact);
+        System.out.println("Datablocks: " + previous.size());
+        System.out.println("Average size (bytes) - previous: " + previousSize + " - compact: " + compactSize);
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            long checksum = 0;
+            for (RawBsonDocument raw : previous) {
+                Document document = codec.decode(raw.asBsonReader(), DecoderContext.builder().build());
+                checksum += converter.read(DatablockDBDTO.class, document).fromDatablockDBDTO().getId();
+            }
+            long previousTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (RawBsonDocument raw : compact) {
+                Document document = codec.decode(raw.asBsonReader(), DecoderContext.builder().build());
+                checksum -= DatablockDocument.decode(document).getId();
+            }
+            long compactTime = System.nanoTime() - start;
+
+            System.out.println("Round " + round + " decode time (ns/doc) - previous: " + previousTime / previous.size()
+                    + " - compact: " + compactTime / compact.size());
+            assertEquals(0, checksum);
+        }
+
+        assertTrue(compactSize < previousSize);
+    }
+
+    private static long averageSize(List<RawBsonDocument> documents) {
+        return documents.stream().mapToLong(document -> document.getByteBuffer().remaining()).sum() / documents.size();
+    }
+
+    /**
+     * Builds a complete octree over a single grid cell until it reaches the number of datablocks of the benchmark
+     *
+     * @return
+     */
+    private static List<Datablock> buildOctree() {
+        String zone = "30S";
+        GeorefBox cell = new GeorefBox(
+                UTMCoord.builder().easting(430000).northing(4180000).zone(zone).build(),
+                UTMCoord.builder().easting(431000).northing(4181000).zone(zone).build());
+        GeorefBox bbox = new GeorefBox(new UTMCoord(430012.25, 4180003.5, zone, 312.75),
+                new UTMCoord(430998.5, 4180996.75, zone, 1308.25));
+
+        List<Datablock> octree = new ArrayList<>();
+        octree.add(new Datablock(0, bbox, cell));
+        for (int i = 0; octree.size() < datablocks; i++) {
+            octree.addAll(octree.get(i).createSubRegions());
+        }
+
+        for (AbstractDatablock datablock : octree) {
+            datablock.setNumberOfPoints(50000 + datablock.getId() % 1000);
+            datablock.setObjectId(new ObjectId());
+        }
+        return octree;
+    }
+
+}
@@ -0,0 +1,123 @@
+package ujaen.spslidar.repositories.mongo;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import ujaen.spslidar.DTOs.database.mongo.DatablockDBDTO;
+import ujaen.spslidar.DTOs.database.mongo.DatablockDocument;
+import ujaen.spslidar.Fixtures;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.UTMCoord;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads both layouts of the datablock documents, after a round trip through BSON, and matches their grid cells.
+ * The client never connects, the template is only used for its converter
+ */
+class DatablockRepositoryMongoTest {
+
+    private static final Codec<Document> codec = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+    private final GeorefBox cell = new GeorefBox(
+            UTMCoord.builder().easting(430000).northing(4180000).zone("30S").build(),
+            UTMCoord.builder().easting(431000).northing(4181000).zone("30S").build());
+
+    private MongoClient client;
+    private ReactiveMongoTemplate template;
+    private DatablockRepositoryMongo repository;
+
+    @BeforeEach
+    void setUp() {
+        client = MongoClients.create("mongodb://localhost:1");
+        template = new ReactiveMongoTemplate(client, "test");
+        repository = new DatablockRepositoryMongo(template);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+    }
+
+    @Test
+    void decodesTheCurrentLayout() {
+        for (AbstractDatablock datablock : octree()) {
+            Document document = roundTrip(DatablockDocument.encode(datablock, "dataset", datablock.getObjectId()));
+
+            assertTrue(DatablockDocument.isCurrentVersion(document));
+            assertSameDatablock(datablock, repository.fromDocument(document));
+        }
+    }
+
+    @Test
+    void decodesThePreviousLayout() {
+        for (AbstractDatablock datablock : octree()) {
+            Document document = new Document();
+            template.getConverter().write(new DatablockDBDTO(datablock, "dataset", datablock.getObjectId()), document);
+            document = roundTrip(document);
+
+            assertFalse(DatablockDocument.isCurrentVersion(document));
+            assertSameDatablock(datablock, repository.fromDocument(document));
+        }
+    }
+
+    @Test
+    void cellCriteriaMatchesBothLayouts() {
+        AbstractDatablock datablock = octree().get(3);
+        Document current = roundTrip(DatablockDocument.encode(datablock, "dataset", datablock.getObjectId()));
+        Document previous = new Document();
+        template.getConverter().write(new DatablockDBDTO(datablock, "dataset", datablock.getObjectId()), previous);
+        previous = roundTrip(previous);
+
+        //The cell of a query is parsed from the request, without height
+        GeorefBox requested = new GeorefBox("30S4300004180000", "30S4310004181000");
+        List<?> accepted = (List<?>) repository.cellCriteria(requested).getCriteriaObject()
+                .get(DatablockDocument.CELL_FIELD, Document.class).get("$in");
+
+        assertEquals("430000.0,4180000.0,431000.0,4181000.0", DatablockDocument.cellKey(requested));
+        assertEquals(2, accepted.size());
+        assertTrue(accepted.contains(current.get(DatablockDocument.CELL_FIELD)));
+        assertTrue(accepted.contains(previous.get(DatablockDocument.CELL_FIELD)));
+    }
+
+    private List<AbstractDatablock> octree() {
+        List<AbstractDatablock> datablocks = Fixtures.octree(cell, 2);
+        for (AbstractDatablock datablock : datablocks)
+            datablock.setGeorefBox(new GeorefBox(
+                    new UTMCoord(datablock.getGeorefBox().getSouthWestBottom().getEasting() + 0.25,
+                            datablock.getGeorefBox().getSouthWestBottom().getNorthing() + 0.5, "30S", 312.75),
+                    new UTMCoord(datablock.getGeorefBox().getNorthEastTop().getEasting() - 0.125,
+                            datablock.getGeorefBox().getNorthEastTop().getNorthing(), "30S", 1308.25)));
+        datablocks.get(1).setNumberOfPoints(5_000_000_000L);
+        return datablocks;
+    }
+
+    private static Document roundTrip(Document document) {
+        return codec.decode(new RawBsonDocument(document, codec).asBsonReader(), DecoderContext.builder().build());
+    }
+
+    private static void assertSameDatablock(AbstractDatablock expected, AbstractDatablock actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getDepth(), actual.getDepth());
+        assertEquals(expected.getNumberOfPoints(), actual.getNumberOfPoints());
+        assertEquals(expected.getGeorefBox(), actual.getGeorefBox());
+        assertEquals(expected.getChildren(), actual.getChildren());
+        assertEquals(expected.getObjectId(), actual.getObjectId());
+        assertEquals(DatablockDocument.cellKey(expected.getUTMZoneLocalGrid()), DatablockDocument.cellKey(actual.getUTMZoneLocalGrid()));
+        assertEquals(expected.getUTMZoneLocalGrid().getSouthWestBottom().getZone(), actual.getUTMZoneLocalGrid().getSouthWestBottom().getZone());
+    }
+
+}
@@ -0,0 +1,186 @@
+package ujaen.spslidar.services.core;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.DTOs.http.DatablockKeyDTO;
+import ujaen.spslidar.Exceptions.BatchTooLargeException;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.StoredFile;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.repositories.mongo.GridFileStorageService;
+import ujaen.spslidar.services.core.cache.ChildPrefetcher;
+import ujaen.spslidar.services.core.cache.OctreeTopologyCache;
+import ujaen.spslidar.services.core.cache.PayloadCache;
+import ujaen.spslidar.services.core.cache.RequestCoalescer;
+import ujaen.spslidar.utils.properties.CacheProperties;
+import ujaen.spslidar.utils.properties.PrefetchProperties;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ujaen.spslidar.Stubs.stub;
+
+public class DatablockServiceCommonUtilsTest {
+
+    private static final String WORKSPACE = "workspace";
+    private static final String DATASET = "dataset";
+    private static final String SOUTH_WEST = "30S4000004100000";
+    private static final String NORTH_EAST = "30S4010004101000";
+
+    private final GeorefBox cell = new GeorefBox(SOUTH_WEST, NORTH_EAST);
+    private final List<AbstractDatablock> datablocks = new ArrayList<>();
+    private final Map<ObjectId, AtomicInteger> reads = new ConcurrentHashMap<>();
+
+    public DatablockServiceCommonUtilsTest() {
+        //Root with two children
+        Datablock root = new Datablock(0, cell, cell);
+        root.setChildren(List.of(1, 2));
+        datablocks.add(root);
+        datablocks.add(new Datablock(0, 0, cell.getSubRegions(0, "30S"), cell, 1));
+        datablocks.add(new Datablock(0, 1, cell.getSubRegions(1, "30S"), cell, 1));
+        for (AbstractDatablock datablock : datablocks) {
+            datablock.setObjectId(new ObjectId());
+            reads.put(datablock.getObjectId(), new AtomicInteger());
+        }
+    }
+
+    private DatablockServiceCommonUtils commonUtils() {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setPayloadMaxBytes(1024 * 1024);
+        cacheProperties.setPayloadProtectedDepth(1);
+        cacheProperties.setCoalesceReplayBuffers(8);
+        PrefetchProperties prefetchProperties = new PrefetchProperties();
+        prefetchProperties.setEnabled(true);
+        prefetchProperties.setMaxConcurrent(4);
+        prefetchProperties.setMaxActiveReads(100);
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        GridFileStorageService files = new GridFileStorageService(null, null, null, null) {
+            @Override
+            public Flux<DataBuffer> getFile(ObjectId objectId) {
+                return Flux.defer(() -> {
+                    reads.get(objectId).incrementAndGet();
+                    return Flux.just(new DefaultDataBufferFactory().wrap(content(objectId)));
+                });
+            }
+
+            @Override
+            public Mono<StoredFile> findFile(ObjectId objectId) {
+                return Mono.just(new StoredFile(objectId, content(objectId).remaining(), 255 * 1024, new Date()));
+            }
+        };
+        DatablockRepositoryInterface datablockRepository = stub(DatablockRepositoryInterface.class, Map.of(
+                "findDatablocksByWorkspaceAndDatasetAndNodesAndGridCells", args -> Flux.fromIterable(datablocks)
+                        .filter(datablock -> ((Collection<?>) args[2]).contains(datablock.getId())),
+                "findDatablockByWorkspaceAndDatasetAndNodeAndGridCell", args -> Mono.justOrEmpty(datablocks.stream()
+                        .filter(datablock -> datablock.getId() == (int) args[2]).findFirst())));
+
+        //The topology cache is disabled, so the datablocks are read from the repository
+        OctreeTopologyCache topologyCache = new OctreeTopologyCache(null, datablockRepository, new CacheProperties());
+        PayloadCache payloadCache = new PayloadCache(cacheProperties, meterRegistry);
+        RequestCoalescer requestCoalescer = new RequestCoalescer(cacheProperties, meterRegistry);
+        ChildPrefetcher childPrefetcher = new ChildPrefetcher(prefetchProperties, topologyCache, datablockRepository,
+                files, payloadCache, requestCoalescer, meterRegistry);
+
+        return new DatablockServiceCommonUtils(null, datablockRepository, files, null, topologyCache, null,
+                payloadCache, null, null, requestCoalescer, childPrefetcher);
+    }
+
+    @Test
+    public void sendsLittleEndianPartsForEveryKey() {
+        List<DatablockKeyDTO> keys = List.of(new DatablockKeyDTO(0, SOUTH_WEST, NORTH_EAST),
+                new DatablockKeyDTO(1000, SOUTH_WEST, NORTH_EAST));
+
+        StepVerifier.create(DataBufferUtils.join(commonUtils().getDatablockFiles(WORKSPACE, DATASET, keys)))
+                .assertNext(buffer -> {
+                    Map<Integer, String> parts = parts(buffer.asByteBuffer());
+                    assertEquals(2, parts.size());
+                    assertEquals(datablocks.get(0).getObjectId().toHexString(), parts.get(0));
+                    assertEquals(null, parts.get(1));
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    public void readsTheFilesOfABatchThroughThePayloadCache() {
+        DatablockServiceCommonUtils commonUtils = commonUtils();
+        List<DatablockKeyDTO> keys = List.of(new DatablockKeyDTO(0, SOUTH_WEST, NORTH_EAST));
+
+        StepVerifier.create(commonUtils.getDatablockFiles(WORKSPACE, DATASET, keys).then())
+                .verifyComplete();
+        //The children of the root are prefetched once it has been sent
+        StepVerifier.create(Mono.fromSupplier(() -> reads.get(datablocks.get(2).getObjectId()).get())
+                        .filter(count -> count > 0)
+                        .repeatWhenEmpty(repeat -> repeat.delayElements(Duration.ofMillis(10)).take(100)))
+                .expectNext(1)
+                .verifyComplete();
+
+        //Later requests of the same files, in a batch or one by one, are answered from the cache
+        StepVerifier.create(commonUtils.getDatablockFiles(WORKSPACE, DATASET, List.of(
+                        new DatablockKeyDTO(0, SOUTH_WEST, NORTH_EAST),
+                        new DatablockKeyDTO(1, SOUTH_WEST, NORTH_EAST))).then()
+                        .then(DataBufferUtils.join(commonUtils.getDatablockFile(WORKSPACE, DATASET, 2, SOUTH_WEST, NORTH_EAST))))
+                .assertNext(buffer -> assertEquals(datablocks.get(2).getObjectId().toHexString(),
+                        StandardCharsets.US_ASCII.decode(buffer.asByteBuffer()).toString()))
+                .verifyComplete();
+        for (AbstractDatablock datablock : datablocks)
+            assertEquals(1, reads.get(datablock.getObjectId()).get());
+    }
+
+    @Test
+    public void rejectsBatchesOverTheLimit() {
+        List<DatablockKeyDTO> keys = IntStream.range(0, 257)
+                .mapToObj(id -> new DatablockKeyDTO(id, SOUTH_WEST, NORTH_EAST))
+                .collect(Collectors.toList());
+
+        StepVerifier.create(commonUtils().getDatablockFiles(WORKSPACE, DATASET, keys))
+                .verifyError(BatchTooLargeException.class);
+        StepVerifier.create(commonUtils().getDatablockFiles(WORKSPACE, DATASET, keys.subList(0, 256)).then())
+                .verifyComplete();
+    }
+
+    private static ByteBuffer content(ObjectId objectId) {
+        return ByteBuffer.wrap(objectId.toHexString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static Map<Integer, String> parts(ByteBuffer stream) {
+        stream.order(ByteOrder.LITTLE_ENDIAN);
+        Map<Integer, String> parts = new TreeMap<>();
+        while (stream.hasRemaining()) {
+            int index = stream.getInt();
+            long length = stream.getLong();
+            if (length < 0) {
+                parts.put(index, null);
+                continue;
+            }
+            byte[] file = new byte[(int) length];
+            stream.get(file);
+            parts.put(index, new String(file, StandardCharsets.US_ASCII));
+        }
+        return Collections.unmodifiableMap(parts);
+    }
+
+}
@@ -0,0 +1,65 @@
+package ujaen.spslidar.services.core;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.DTOs.http.DatasetDTO;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.entities.Workspace;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.repositories.GridCellRepositoryInterface;
+import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static ujaen.spslidar.Fixtures.box;
+import static ujaen.spslidar.Stubs.stub;
+
+class DatasetServiceTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void registersTheRootCellsOfTheDatasetInTheGrid() {
+        List<Iterable<GeorefBox>> savedCells = new ArrayList<>();
+        AtomicReference<Dataset> updated = new AtomicReference<>();
+
+        WorkspaceRepositoryInterface workspaces = stub(WorkspaceRepositoryInterface.class, Map.of(
+                "findByName", args -> Mono.just(new Workspace((String) args[0], "", 1000))));
+        DatasetRepositoryInterface datasets = stub(DatasetRepositoryInterface.class, Map.of(
+                "save", args -> Mono.just(args[0]),
+                "update", args -> {
+                    updated.set((Dataset) args[0]);
+                    return Mono.just(args[0]);
+                }));
+        GridCellRepositoryInterface gridCells = stub(GridCellRepositoryInterface.class, Map.of(
+                "addDatasetToGridCells", args -> {
+                    savedCells.add((Iterable<GeorefBox>) args[2]);
+                    return Mono.just(4L);
+                }));
+        DatasetService datasetService = new DatasetService(workspaces, datasets, gridCells);
+
+        DatasetDTO datasetDTO = new DatasetDTO("dataset", "", LocalDateTime.of(2020, 1, 1, 0, 0),
+                box(430500, 4180500, 431500, 4181500, "30S"), 10000, "LAZ");
+        StepVerifier.create(datasetService.addDataset("workspace", datasetDTO))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        List<GeorefBox> rootCells = updated.get().getRootDatablocks().get("30S");
+        assertEquals(List.of("430000.0,4180000.0", "430000.0,4181000.0", "431000.0,4180000.0", "431000.0,4181000.0"),
+                rootCells.stream()
+                        .map(cell -> cell.getSouthWestBottom().getEasting() + "," + cell.getSouthWestBottom().getNorthing())
+                        .collect(Collectors.toList()));
+        //The grid gets the same cells that the dataset stores
+        assertEquals(1, savedCells.size());
+        assertSame(rootCells, savedCells.get(0));
+    }
+
+}
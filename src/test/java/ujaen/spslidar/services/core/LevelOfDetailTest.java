@@ -0,0 +1,109 @@
+package ujaen.spslidar.services.core;
+
+import org.junit.jupiter.api.Test;
+import ujaen.spslidar.entities.AbstractDatablock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ujaen.spslidar.Fixtures.box;
+import static ujaen.spslidar.Fixtures.octree;
+
+/**
+ * The octrees cover cells of 1000 meters with 100 points per datablock, so the spacing is 100 meters at the
+ * root, 50 at the first level and 25 at the second one, and each level has 100, 800 and 6400 points
+ */
+class LevelOfDetailTest {
+
+    private final List<AbstractDatablock> datablocks = octree(box(400000, 4100000, 401000, 4101000, "30S"), 2);
+
+    @Test
+    void budgetAddsCompleteLevels() {
+        assertEquals(List.of(0), depths(budget(50)));
+        assertEquals(List.of(0), depths(budget(100)));
+        assertEquals(List.of(0), depths(budget(899)));
+        assertEquals(List.of(0, 1), depths(budget(900)));
+        assertEquals(List.of(0, 1), depths(budget(7299)));
+        assertEquals(List.of(0, 1, 2), depths(budget(7300)));
+        assertEquals(73, budget(1_000_000).size());
+    }
+
+    @Test
+    void spacingRefinesTheCoarseDatablocks() {
+        assertEquals(1, spacing(200).size());
+        assertEquals(9, spacing(60).size());
+        assertEquals(73, spacing(10).size());
+    }
+
+    @Test
+    void spacingIsCheckedForEachDatablock() {
+        //A sparse datablock of the first level is refined while its siblings are not
+        AbstractDatablock sparse = datablocks.stream().filter(datablock -> datablock.getId() == 3).findFirst().orElseThrow();
+        sparse.setNumberOfPoints(4);
+
+        List<AbstractDatablock> selected = spacing(60);
+
+        assertEquals(17, selected.size());
+        assertTrue(selected.stream().filter(datablock -> datablock.getDepth() == 2)
+                .allMatch(datablock -> (datablock.getId() - 1) / 8 == 3));
+    }
+
+    @Test
+    void spacingIsCheckedForEachCell() {
+        List<AbstractDatablock> twoCells = new ArrayList<>(datablocks);
+        List<AbstractDatablock> other = octree(box(401000, 4100000, 402000, 4101000, "30S"), 2);
+        other.get(0).setNumberOfPoints(10_000);
+        twoCells.addAll(other);
+
+        //The root of the second cell is dense enough, only the first cell goes down to its first level
+        assertEquals(10, new LevelOfDetail(null, null, 60.0).select(twoCells).size());
+    }
+
+    @Test
+    void budgetIsAppliedAfterTheSpacing() {
+        assertEquals(List.of(0, 1), depths(new LevelOfDetail(null, 900L, 10.0).select(datablocks)));
+        assertEquals(List.of(0, 1), depths(new LevelOfDetail(null, 1_000_000L, 60.0).select(datablocks)));
+    }
+
+    @Test
+    void sortsTheDatablocksByDepth() {
+        List<AbstractDatablock> shuffled = new ArrayList<>(datablocks);
+        Collections.shuffle(shuffled, new Random(3));
+
+        List<AbstractDatablock> selected = new LevelOfDetail(null, 900L, null).select(shuffled);
+
+        assertEquals(9, selected.size());
+        assertEquals(0, selected.get(0).getDepth());
+        assertEquals(9, new LevelOfDetail(null, null, 60.0).select(shuffled).size());
+    }
+
+    @Test
+    void fullDetailHasNoLimits() {
+        LevelOfDetail full = LevelOfDetail.full();
+
+        assertTrue(full.isFull());
+        assertEquals(-1, full.getDepthLimit());
+        assertEquals(73, full.select(datablocks).size());
+        assertFalse(new LevelOfDetail(1, null, null).isFull());
+        assertEquals(1, new LevelOfDetail(1, null, null).getDepthLimit());
+    }
+
+    private List<AbstractDatablock> budget(long pointBudget) {
+        return new LevelOfDetail(null, pointBudget, null).select(datablocks);
+    }
+
+    private List<AbstractDatablock> spacing(double minSpacing) {
+        return new LevelOfDetail(null, null, minSpacing).select(datablocks);
+    }
+
+    private static List<Integer> depths(List<AbstractDatablock> datablocks) {
+        return datablocks.stream().map(AbstractDatablock::getDepth).distinct().collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,149 @@
+package ujaen.spslidar.services.core.cache;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ujaen.spslidar.Fixtures.box;
+import static ujaen.spslidar.Fixtures.dataset;
+import static ujaen.spslidar.Fixtures.octree;
+import static ujaen.spslidar.Stubs.stub;
+
+public class OctreeTopologyCacheTest {
+
+    private static final String WORKSPACE = "workspace";
+    private static final String DATASET = "dataset";
+
+    //Root and its 8 children
+    private final List<AbstractDatablock> datablocks = octree(box(0, 0, 100, 100, "30S"), 1);
+
+    private final AtomicReference<Mono<Dataset>> dataset =
+            new AtomicReference<>(Mono.just(dataset(WORKSPACE, DATASET, Dataset.State.DATA_ASSOCIATED)));
+    private final AtomicInteger datasetReads = new AtomicInteger();
+    private final AtomicInteger datablockReads = new AtomicInteger();
+
+    private OctreeTopologyCache cache(long maxNodes) {
+        DatasetRepositoryInterface datasets = stub(DatasetRepositoryInterface.class, Map.of(
+                "findByWorkspaceAndDataset", args -> Mono.defer(() -> {
+                    datasetReads.incrementAndGet();
+                    return dataset.get();
+                })));
+        DatablockRepositoryInterface datablockRepository = stub(DatablockRepositoryInterface.class, Map.of(
+                "findAllDatablocksInDataset", args -> Flux.defer(() -> {
+                    datablockReads.incrementAndGet();
+                    return Flux.fromIterable(datablocks);
+                })));
+        CacheProperties properties = new CacheProperties();
+        properties.setTopologyMaxNodes(maxNodes);
+        return new OctreeTopologyCache(datasets, datablockRepository, properties);
+    }
+
+    @Test
+    public void loadsTheTopologyOnce() {
+        OctreeTopologyCache cache = cache(100);
+
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .assertNext(topology -> assertEquals(9, topology.size()))
+                .verifyComplete();
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        assertEquals(1, datablockReads.get());
+    }
+
+    @Test
+    public void doesNotCacheErrors() {
+        OctreeTopologyCache cache = cache(100);
+        dataset.set(Mono.error(new IllegalStateException("transient")));
+
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .verifyError(IllegalStateException.class);
+
+        dataset.set(Mono.just(dataset(WORKSPACE, DATASET, Dataset.State.DATA_ASSOCIATED)));
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .assertNext(topology -> assertEquals(9, topology.size()))
+                .verifyComplete();
+    }
+
+    @Test
+    public void doesNotCacheDatasetsBeingBuilt() {
+        OctreeTopologyCache cache = cache(100);
+        dataset.set(Mono.just(dataset(WORKSPACE, DATASET, Dataset.State.BUILDING)));
+
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .verifyComplete();
+
+        dataset.set(Mono.just(dataset(WORKSPACE, DATASET, Dataset.State.DATA_ASSOCIATED)));
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .assertNext(topology -> assertEquals(9, topology.size()))
+                .verifyComplete();
+        assertEquals(2, datasetReads.get());
+    }
+
+    @Test
+    public void remembersOversizedDatasetsUntilTheyChange() {
+        OctreeTopologyCache cache = cache(5);
+
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .verifyComplete();
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .verifyComplete();
+        assertEquals(1, datablockReads.get());
+
+        cache.onDatasetChanged(new DatasetChangedEvent(WORKSPACE, DATASET));
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .verifyComplete();
+        assertEquals(2, datablockReads.get());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedTopology() {
+        OctreeTopologyCache cache = cache(10);
+
+        StepVerifier.create(cache.get(WORKSPACE, "first")).expectNextCount(1).verifyComplete();
+        StepVerifier.create(cache.get(WORKSPACE, "second")).expectNextCount(1).verifyComplete();
+        assertEquals(2, datablockReads.get());
+
+        //The first one was evicted to make room for the second one
+        StepVerifier.create(cache.get(WORKSPACE, "second")).expectNextCount(1).verifyComplete();
+        assertEquals(2, datablockReads.get());
+        StepVerifier.create(cache.get(WORKSPACE, "first")).expectNextCount(1).verifyComplete();
+        assertEquals(3, datablockReads.get());
+    }
+
+    @Test
+    public void doesNotAccountLoadsDroppedByAChange() {
+        OctreeTopologyCache cache = cache(100);
+        Sinks.One<Dataset> running = Sinks.one();
+        dataset.set(running.asMono());
+
+        StepVerifier.create(cache.get(WORKSPACE, DATASET))
+                .then(() -> {
+                    cache.onDatasetChanged(new DatasetChangedEvent(WORKSPACE, DATASET));
+                    running.tryEmitValue(dataset(WORKSPACE, DATASET, Dataset.State.DATA_ASSOCIATED));
+                })
+                .expectNextCount(1)
+                .verifyComplete();
+        assertEquals(0, cache.getCachedNodes());
+
+        dataset.set(Mono.just(dataset(WORKSPACE, DATASET, Dataset.State.DATA_ASSOCIATED)));
+        StepVerifier.create(cache.get(WORKSPACE, DATASET)).expectNextCount(1).verifyComplete();
+        assertEquals(9, cache.getCachedNodes());
+        assertEquals(2, datablockReads.get());
+    }
+
+}
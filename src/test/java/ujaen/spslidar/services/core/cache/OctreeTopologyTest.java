@@ -0,0 +1,92 @@
+package ujaen.spslidar.services.core.cache;
+
+import org.junit.jupiter.api.Test;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.GeorefBox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static ujaen.spslidar.Fixtures.box;
+import static ujaen.spslidar.Fixtures.octree;
+
+public class OctreeTopologyTest {
+
+    private final GeorefBox westCell = box(0, 0, 100, 100, "30S");
+    private final GeorefBox eastCell = box(100, 0, 200, 100, "30S");
+
+    //Two octrees of depth 2 (73 nodes each)
+    private final List<AbstractDatablock> datablocks = new ArrayList<>();
+    private final OctreeTopology topology;
+
+    public OctreeTopologyTest() {
+        datablocks.addAll(octree(westCell, 2));
+        datablocks.addAll(octree(eastCell, 2));
+        topology = new OctreeTopology(datablocks);
+    }
+
+    @Test
+    public void findsNodesByCellAndIdentifier() {
+        assertEquals(146, topology.size());
+
+        int position = topology.find(eastCell, 9);
+        assertTrue(position >= 0);
+        Datablock datablock = topology.getDatablock(position);
+        assertEquals(9, datablock.getId());
+        assertEquals(2, datablock.getDepth());
+        assertEquals(eastCell, datablock.getUTMZoneLocalGrid());
+        assertEquals(datablocks.get(73 + 2).getObjectId(), datablock.getObjectId());
+
+        assertEquals(-1, topology.find(eastCell, 1000));
+        assertEquals(-1, topology.find(box(500, 500, 600, 600, "30S"), 0));
+        assertEquals(2, topology.findAll(0).size());
+    }
+
+    @Test
+    public void rebuildsTheChildrenOfANode() {
+        Datablock root = topology.getDatablock(topology.find(westCell, 0));
+        assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8), root.getChildren());
+        assertEquals(westCell, root.getGeorefBox());
+    }
+
+    @Test
+    public void findsOverlappingNodesDescendingOnlyThroughOverlappingBranches() {
+        //South-west quarter of the west cell: the root, its 2 children below that quarter (bottom and top)
+        //and their 2 grandchildren each
+        Set<Integer> ids = ids(topology.findOverlapping(box(10, 10, 20, 20, "30S"), -1));
+        assertEquals(Set.of(0, 1, 5, 9, 13, 41, 45), ids);
+
+        //A box over both cells returns both roots
+        List<Integer> roots = topology.findOverlapping(box(90, 10, 110, 20, "30S"), 0);
+        assertEquals(2, roots.size());
+        assertEquals(Set.of(0), ids(roots));
+    }
+
+    @Test
+    public void stopsAtTheDepthLimit() {
+        GeorefBox everything = box(0, 0, 200, 100, "30S");
+
+        assertEquals(146, topology.findOverlapping(everything, -1).size());
+        assertEquals(18, topology.findOverlapping(everything, 1).size());
+        assertEquals(2, topology.findOverlapping(everything, 0).size());
+        assertTrue(topology.findOverlapping(everything, 1).stream()
+                .allMatch(position -> topology.getDatablock(position).getDepth() <= 1));
+    }
+
+    @Test
+    public void ignoresCellsOfOtherZones() {
+        assertTrue(topology.findOverlapping(box(0, 0, 200, 100, "31S"), -1).isEmpty());
+    }
+
+    private Set<Integer> ids(List<Integer> positions) {
+        return positions.stream()
+                .map(position -> topology.getDatablock(position).getId())
+                .collect(Collectors.toSet());
+    }
+
+}
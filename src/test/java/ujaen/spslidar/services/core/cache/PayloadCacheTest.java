@@ -0,0 +1,224 @@
+package ujaen.spslidar.services.core.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.DTOs.http.PayloadCacheStatsDTO;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The cache takes 1600 bytes, so entries of 100 bytes fill 12 places in the protected segment and 16 in total
+ */
+class PayloadCacheTest {
+
+    private static final int maxBytes = 1600;
+    private static final int entrySize = 100;
+    private static final int protectedDepth = 2;
+
+    private final PayloadCache payloadCache = payloadCache(maxBytes);
+
+    @Test
+    void servesHitsWithoutTheLoader() {
+        AbstractDatablock datablock = datablock(0);
+        AtomicInteger loads = new AtomicInteger();
+
+        StepVerifier.create(read(datablock, loader(entrySize, loads))).expectNext(content(entrySize)).verifyComplete();
+        StepVerifier.create(read(datablock, loader(entrySize, loads))).expectNext(content(entrySize)).verifyComplete();
+
+        assertEquals(1, loads.get());
+        assertEquals(entrySize, payloadCache.getCachedBytes());
+        PayloadCacheStatsDTO stats = payloadCache.getStats().get(0);
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getEntries());
+        assertEquals(0.5, stats.getHitRatio());
+    }
+
+    @Test
+    void evictsTheProbationarySegmentFirst() {
+        List<AbstractDatablock> probationary = store(4, protectedDepth + 1);
+        List<AbstractDatablock> protectedBlocks = store(12, protectedDepth);
+
+        //The cache is full and no protected datablock has lost its place
+        assertEquals(maxBytes, payloadCache.getCachedBytes());
+        probationary.forEach(datablock -> assertTrue(cached(datablock)));
+
+        List<AbstractDatablock> more = store(2, protectedDepth + 1);
+
+        assertFalse(cached(probationary.get(0)));
+        assertFalse(cached(probationary.get(1)));
+        probationary.subList(2, 4).forEach(datablock -> assertTrue(cached(datablock)));
+        protectedBlocks.forEach(datablock -> assertTrue(cached(datablock)));
+        more.forEach(datablock -> assertTrue(cached(datablock)));
+        assertEquals(maxBytes, payloadCache.getCachedBytes());
+        assertEquals(2, payloadCache.getStats().get(0).getEvictions());
+    }
+
+    @Test
+    void demotesProtectedEntriesOverTheirShare() {
+        List<AbstractDatablock> probationary = store(4, protectedDepth + 1);
+        List<AbstractDatablock> protectedBlocks = store(13, protectedDepth);
+
+        //The eldest protected datablock becomes the most recent probationary one, the eldest probationary is evicted
+        assertFalse(cached(probationary.get(0)));
+        assertTrue(cached(protectedBlocks.get(0)));
+
+        store(4, protectedDepth + 1);
+        assertFalse(cached(probationary.get(3)));
+        assertFalse(cached(protectedBlocks.get(0)));
+        protectedBlocks.subList(1, 13).forEach(datablock -> assertTrue(cached(datablock)));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedEntry() {
+        List<AbstractDatablock> probationary = store(16, protectedDepth + 1);
+
+        //A hit moves the entry to the end of its segment
+        StepVerifier.create(read(probationary.get(0), () -> Flux.error(new IllegalStateException())))
+                .expectNextCount(1).verifyComplete();
+        store(1, protectedDepth + 1);
+
+        assertTrue(cached(probationary.get(0)));
+        assertFalse(cached(probationary.get(1)));
+    }
+
+    @Test
+    void skipsFilesOverTheEntryLimit() {
+        AbstractDatablock datablock = datablock(0);
+        AtomicInteger loads = new AtomicInteger();
+
+        StepVerifier.create(read(datablock, loader(maxBytes / 16 + 1, loads))).expectNextCount(1).verifyComplete();
+
+        assertFalse(cached(datablock));
+        assertEquals(0, payloadCache.getCachedBytes());
+        StepVerifier.create(payloadCache.prefetch("workspace", "dataset", datablock, loader(maxBytes / 16 + 1, loads)))
+                .expectNext(false).verifyComplete();
+    }
+
+    @Test
+    void prefetchIsNotCountedAsARequest() {
+        AbstractDatablock datablock = datablock(0);
+        AtomicInteger loads = new AtomicInteger();
+
+        StepVerifier.create(payloadCache.prefetch("workspace", "dataset", datablock, loader(entrySize, loads)))
+                .expectNext(true).verifyComplete();
+        StepVerifier.create(payloadCache.prefetch("workspace", "dataset", datablock, loader(entrySize, loads)))
+                .expectNext(false).verifyComplete();
+
+        assertEquals(1, loads.get());
+        assertTrue(cached(datablock));
+        PayloadCacheStatsDTO stats = payloadCache.getStats().get(0);
+        assertEquals(0, stats.getHits() + stats.getMisses());
+        assertEquals(1, stats.getEntries());
+    }
+
+    @Test
+    void dropsTheEntriesOfAChangedDataset() {
+        AbstractDatablock changed = datablock(0);
+        AbstractDatablock kept = datablock(protectedDepth + 1);
+        StepVerifier.create(read(changed, loader(entrySize, new AtomicInteger()))).expectNextCount(1).verifyComplete();
+        StepVerifier.create(payloadCache.get("workspace", "other", kept, loader(entrySize, new AtomicInteger())))
+                .expectNextCount(2).verifyComplete();
+
+        payloadCache.onDatasetChanged(new DatasetChangedEvent("workspace", "dataset"));
+
+        assertFalse(cached(changed));
+        assertTrue(cached(kept));
+        assertEquals(entrySize, payloadCache.getCachedBytes());
+    }
+
+    @Test
+    void disabledCacheAlwaysLoads() {
+        PayloadCache disabled = payloadCache(0);
+        AbstractDatablock datablock = datablock(0);
+        AtomicInteger loads = new AtomicInteger();
+
+        for (int i = 0; i < 2; i++) {
+            StepVerifier.create(disabled.get("workspace", "dataset", datablock, loader(entrySize, loads)))
+                    .expectNextCount(2).verifyComplete();
+        }
+
+        assertEquals(2, loads.get());
+        assertFalse(disabled.getRange(datablock.getObjectId(), 0, 0).isPresent());
+    }
+
+    @Test
+    void servesRangesOfCachedFiles() {
+        AbstractDatablock datablock = datablock(0);
+        StepVerifier.create(read(datablock, loader(entrySize, new AtomicInteger()))).expectNextCount(1).verifyComplete();
+
+        DataBuffer range = payloadCache.getRange(datablock.getObjectId(), 10, 19).orElseThrow();
+
+        assertEquals(content(entrySize).substring(10, 20), range.toString(StandardCharsets.ISO_8859_1));
+    }
+
+    private List<AbstractDatablock> store(int count, int depth) {
+        List<AbstractDatablock> datablocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            AbstractDatablock datablock = datablock(depth);
+            StepVerifier.create(read(datablock, loader(entrySize, new AtomicInteger()))).expectNextCount(1).verifyComplete();
+            datablocks.add(datablock);
+        }
+        return datablocks;
+    }
+
+    private boolean cached(AbstractDatablock datablock) {
+        return payloadCache.getRange(datablock.getObjectId(), 0, 0).isPresent();
+    }
+
+    private Flux<String> read(AbstractDatablock datablock, Supplier<Flux<DataBuffer>> loader) {
+        return payloadCache.get("workspace", "dataset", datablock, loader)
+                .map(dataBuffer -> dataBuffer.toString(StandardCharsets.ISO_8859_1))
+                .reduce(String::concat)
+                .flux();
+    }
+
+    private static Supplier<Flux<DataBuffer>> loader(int size, AtomicInteger loads) {
+        return () -> {
+            loads.incrementAndGet();
+            String content = content(size);
+            //Sent in two buffers, as the stored files are
+            return Flux.just(content.substring(0, size / 2), content.substring(size / 2))
+                    .map(part -> new DefaultDataBufferFactory().wrap(part.getBytes(StandardCharsets.ISO_8859_1)));
+        };
+    }
+
+    private static String content(int size) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        return content.toString();
+    }
+
+    private static AbstractDatablock datablock(int depth) {
+        Datablock datablock = new Datablock();
+        datablock.setDepth(depth);
+        datablock.setObjectId(new ObjectId());
+        return datablock;
+    }
+
+    private static PayloadCache payloadCache(long maxBytes) {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setPayloadMaxBytes(maxBytes);
+        cacheProperties.setPayloadProtectedDepth(protectedDepth);
+        return new PayloadCache(cacheProperties, new SimpleMeterRegistry());
+    }
+
+}
@@ -0,0 +1,160 @@
+package ujaen.spslidar.services.core.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ujaen.spslidar.Fixtures.box;
+
+/**
+ * Regions are widened to a grid of 1000 meters. The loader returns a datablock of 100 meters at each corner
+ * of the widened region, tagged with the number of the load
+ */
+class RegionQueryCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final Function<GeorefBox, Flux<AbstractDatablock>> loader = region -> Flux.defer(() -> corners(region, loads.incrementAndGet()));
+
+    private final RegionQueryCache regionQueryCache = regionQueryCache(100);
+
+    @Test
+    void sharesTheResultOfCloseRegions() {
+        StepVerifier.create(get("dataset", box(400100, 4100100, 401900, 4101900, "30S"), -1))
+                .expectNext(1, 1, 1, 1).verifyComplete();
+        //Same cells of the grid, filtered to the region of each query
+        StepVerifier.create(get("dataset", box(400050, 4100050, 401050, 4101050, "30S"), -1))
+                .expectNext(1).verifyComplete();
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void keepsEachDepthAndDatasetApart() {
+        GeorefBox region = box(400100, 4100100, 400900, 4100900, "30S");
+        StepVerifier.create(get("dataset", region, -1)).expectNextCount(4).verifyComplete();
+        StepVerifier.create(get("dataset", region, 2)).expectNextCount(4).verifyComplete();
+        StepVerifier.create(get("other", region, -1)).expectNextCount(4).verifyComplete();
+
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    void changedDatasetsAreLoadedAgain() {
+        GeorefBox region = box(400100, 4100100, 400900, 4100900, "30S");
+        StepVerifier.create(get("dataset", region, -1)).expectNext(1, 1, 1, 1).verifyComplete();
+        StepVerifier.create(get("other", region, -1)).expectNext(2, 2, 2, 2).verifyComplete();
+
+        regionQueryCache.onDatasetChanged(new DatasetChangedEvent("workspace", "dataset"));
+
+        StepVerifier.create(get("dataset", region, -1)).expectNext(3, 3, 3, 3).verifyComplete();
+        StepVerifier.create(get("other", region, -1)).expectNext(2, 2, 2, 2).verifyComplete();
+
+        regionQueryCache.onDatasetChanged(DatasetChangedEvent.all());
+
+        StepVerifier.create(get("dataset", region, -1)).expectNext(4, 4, 4, 4).verifyComplete();
+        StepVerifier.create(get("other", region, -1)).expectNext(5, 5, 5, 5).verifyComplete();
+    }
+
+    @Test
+    void queriesRunningWhileTheDatasetChangesAreNotServedAgain() {
+        GeorefBox region = box(400100, 4100100, 400900, 4100900, "30S");
+        Sinks.Many<AbstractDatablock> running = Sinks.many().unicast().onBackpressureBuffer();
+        List<Integer> stale = new ArrayList<>();
+        regionQueryCache.get("workspace", "dataset", region, -1, box -> running.asFlux())
+                .map(AbstractDatablock::getNumberOfPoints)
+                .subscribe(points -> stale.add(points.intValue()));
+
+        regionQueryCache.onDatasetChanged(new DatasetChangedEvent("workspace", "dataset"));
+
+        //A query that arrives meanwhile loads the new data instead of waiting for the running one
+        StepVerifier.create(get("dataset", region, -1)).expectNext(1, 1, 1, 1).verifyComplete();
+
+        corners(region, 0).subscribe(running::tryEmitNext);
+        running.tryEmitComplete();
+        assertEquals(List.of(0, 0, 0, 0), stale);
+
+        StepVerifier.create(get("dataset", region, -1)).expectNext(1, 1, 1, 1).verifyComplete();
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void failedQueriesAreNotCached() {
+        GeorefBox region = box(400100, 4100100, 400900, 4100900, "30S");
+        StepVerifier.create(regionQueryCache.get("workspace", "dataset", region, -1,
+                box -> Flux.error(new IllegalStateException()))).verifyError(IllegalStateException.class);
+
+        StepVerifier.create(get("dataset", region, -1)).expectNext(1, 1, 1, 1).verifyComplete();
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedResults() {
+        RegionQueryCache small = regionQueryCache(8);
+        GeorefBox first = box(400100, 4100100, 400900, 4100900, "30S");
+        GeorefBox second = box(402100, 4100100, 402900, 4100900, "30S");
+        GeorefBox third = box(404100, 4100100, 404900, 4100900, "30S");
+
+        StepVerifier.create(small.get("workspace", "dataset", first, -1, loader)).expectNextCount(4).verifyComplete();
+        StepVerifier.create(small.get("workspace", "dataset", second, -1, loader)).expectNextCount(4).verifyComplete();
+        StepVerifier.create(small.get("workspace", "dataset", first, -1, loader)).expectNextCount(4).verifyComplete();
+        StepVerifier.create(small.get("workspace", "dataset", third, -1, loader)).expectNextCount(4).verifyComplete();
+        assertEquals(3, loads.get());
+
+        //The second result was the least recently used
+        StepVerifier.create(small.get("workspace", "dataset", first, -1, loader)).expectNextCount(4).verifyComplete();
+        StepVerifier.create(small.get("workspace", "dataset", second, -1, loader)).expectNextCount(4).verifyComplete();
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    void disabledCacheAlwaysLoads() {
+        RegionQueryCache disabled = regionQueryCache(0);
+        GeorefBox region = box(400100, 4100100, 400900, 4100900, "30S");
+
+        for (int i = 0; i < 2; i++) {
+            StepVerifier.create(disabled.get("workspace", "dataset", region, -1, loader)).expectNextCount(4).verifyComplete();
+        }
+        assertEquals(2, loads.get());
+    }
+
+    private Flux<Integer> get(String datasetName, GeorefBox queryBox, int maxDepth) {
+        return regionQueryCache.get("workspace", datasetName, queryBox, maxDepth, loader)
+                .map(datablock -> (int) datablock.getNumberOfPoints());
+    }
+
+    private static Flux<AbstractDatablock> corners(GeorefBox region, int load) {
+        double minEasting = region.getSouthWestBottom().getEasting();
+        double minNorthing = region.getSouthWestBottom().getNorthing();
+        double maxEasting = region.getNorthEastTop().getEasting() - 100;
+        double maxNorthing = region.getNorthEastTop().getNorthing() - 100;
+        return Flux.just(
+                datablock(minEasting, minNorthing, load), datablock(maxEasting, minNorthing, load),
+                datablock(minEasting, maxNorthing, load), datablock(maxEasting, maxNorthing, load));
+    }
+
+    private static AbstractDatablock datablock(double easting, double northing, int load) {
+        Datablock datablock = new Datablock();
+        datablock.setGeorefBox(box(easting, northing, easting + 100, northing + 100, "30S"));
+        datablock.setNumberOfPoints(load);
+        return datablock;
+    }
+
+    private static RegionQueryCache regionQueryCache(long maxDatablocks) {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setRegionMaxDatablocks(maxDatablocks);
+        cacheProperties.setRegionGridSize(1000);
+        return new RegionQueryCache(cacheProperties, new SimpleMeterRegistry());
+    }
+
+}
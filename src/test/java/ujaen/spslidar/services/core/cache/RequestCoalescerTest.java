@@ -0,0 +1,188 @@
+package ujaen.spslidar.services.core.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.utils.properties.CacheProperties;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RequestCoalescerTest {
+
+    private static final int REPLAY_BUFFERS = 8;
+    private static final int BUFFERS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+    private final AtomicInteger reads = new AtomicInteger();
+    private final AtomicInteger emitted = new AtomicInteger();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private RequestCoalescer coalescer() {
+        CacheProperties properties = new CacheProperties();
+        properties.setCoalesceReplayBuffers(REPLAY_BUFFERS);
+        return new RequestCoalescer(properties, new SimpleMeterRegistry());
+    }
+
+    private Flux<DataBuffer> read() {
+        return Flux.range(0, BUFFERS)
+                .doOnSubscribe(subscription -> reads.incrementAndGet())
+                .<DataBuffer>map(i -> bufferFactory.wrap(ByteBuffer.allocate(BUFFER_SIZE).putInt(0, i)))
+                .doOnNext(buffer -> emitted.incrementAndGet())
+                .doOnCancel(() -> cancelled.set(true));
+    }
+
+    private Flux<DataBuffer> region(RequestCoalescer coalescer) {
+        return coalescer.buffers("region", "workspace", "dataset", "request", this::read);
+    }
+
+    @Test
+    public void sharesAReadInProgress() {
+        RequestCoalescer coalescer = coalescer();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        region(coalescer).subscribe(first);
+        region(coalescer).subscribe(second);
+        first.request(Long.MAX_VALUE);
+        second.request(Long.MAX_VALUE);
+
+        List<Integer> expected = IntStream.range(0, BUFFERS).boxed().collect(Collectors.toList());
+        assertEquals(expected, first.values);
+        assertEquals(expected, second.values);
+        assertTrue(first.completed && second.completed);
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void slowRequestKeepsTheSharedReadBounded() {
+        RequestCoalescer coalescer = coalescer();
+        Recorder slow = new Recorder();
+        Recorder fast = new Recorder();
+
+        region(coalescer).subscribe(slow);
+        region(coalescer).subscribe(fast);
+        fast.request(Long.MAX_VALUE);
+
+        //The read only goes a few buffers ahead of the slowest request, whatever the other one asks for
+        for (int i = 0; i < BUFFERS; i++) {
+            assertTrue(emitted.get() - slow.values.size() <= REPLAY_BUFFERS + 1,
+                    "read " + emitted.get() + " buffers for a request that consumed " + slow.values.size());
+            slow.request(1);
+        }
+
+        assertEquals(BUFFERS, slow.values.size());
+        assertEquals(BUFFERS, fast.values.size());
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void requestsArrivingAfterTheReplayedBuffersReadOnTheirOwn() {
+        RequestCoalescer coalescer = coalescer();
+        Recorder first = new Recorder();
+
+        region(coalescer).subscribe(first);
+        first.request(REPLAY_BUFFERS * 2);
+
+        StepVerifier.create(region(coalescer).map(this::value))
+                .expectNextSequence(IntStream.range(0, BUFFERS).boxed().collect(Collectors.toList()))
+                .verifyComplete();
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void cancelsTheReadWhenEveryRequestLeaves() {
+        RequestCoalescer coalescer = coalescer();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        region(coalescer).subscribe(first);
+        region(coalescer).subscribe(second);
+        first.request(2);
+        first.cancel();
+        assertTrue(!cancelled.get());
+        second.cancel();
+        assertTrue(cancelled.get());
+
+        //The next request starts a new read
+        StepVerifier.create(region(coalescer).count())
+                .expectNext((long) BUFFERS)
+                .verifyComplete();
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void concurrentRequestsReceiveEveryBufferOnce() {
+        RequestCoalescer coalescer = coalescer();
+        List<Integer> expected = IntStream.range(0, BUFFERS).boxed().collect(Collectors.toList());
+
+        for (int attempt = 0; attempt < 20; attempt++) {
+            StepVerifier.create(Flux.range(0, 8)
+                            .flatMap(i -> coalescer.buffers("region", "workspace", "dataset", "request",
+                                            () -> read().subscribeOn(Schedulers.parallel()))
+                                    .map(this::value)
+                                    .collectList()
+                                    .subscribeOn(Schedulers.boundedElastic())))
+                    .thenConsumeWhile(values -> values.equals(expected))
+                    .verifyComplete();
+        }
+    }
+
+    @Test
+    public void sharesSingleValues() {
+        RequestCoalescer coalescer = coalescer();
+        Mono<Integer> read = Mono.fromCallable(reads::incrementAndGet).delaySubscription(java.time.Duration.ofMillis(50));
+
+        StepVerifier.create(Mono.zip(
+                        coalescer.mono("file", "workspace", "dataset", "id", () -> read),
+                        coalescer.mono("file", "workspace", "dataset", "id", () -> read)))
+                .assertNext(values -> assertEquals(values.getT1(), values.getT2()))
+                .verifyComplete();
+        assertEquals(1, reads.get());
+    }
+
+    private int value(DataBuffer buffer) {
+        return buffer.asByteBuffer().getInt(0);
+    }
+
+    /**
+     * Subscriber that only receives the buffers it requests
+     */
+    private class Recorder extends BaseSubscriber<DataBuffer> {
+
+        private final List<Integer> values = new ArrayList<>();
+        private boolean completed = false;
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+        }
+
+        @Override
+        protected void hookOnNext(DataBuffer buffer) {
+            values.add(value(buffer));
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            completed = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+package ujaen.spslidar.services.core.complete;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.Exceptions.BuildingOctreeException;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.entities.StoredFile;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.services.core.cache.DatasetChangedEvent;
+import ujaen.spslidar.services.tools.LasToolsService;
+import ujaen.spslidar.services.tools.SystemFileStorageService;
+import ujaen.spslidar.utils.properties.FileStorageProperties;
+import ujaen.spslidar.utils.properties.LasToolsProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static ujaen.spslidar.Fixtures.box;
+import static ujaen.spslidar.Fixtures.dataset;
+import static ujaen.spslidar.Fixtures.octree;
+import static ujaen.spslidar.Stubs.stub;
+
+public class CompleteDatasetServiceTest {
+
+    private static final String WORKSPACE = "workspace";
+    private static final String DATASET = "dataset";
+
+    @TempDir
+    Path storage;
+
+    private final List<AbstractDatablock> datablocks = octree(box(0, 0, 100, 100, "30S"), 1);
+    private final AtomicReference<ObjectId> completeFile = new AtomicReference<>();
+    private final AtomicInteger merges = new AtomicInteger();
+    //Lets a test hold the merge until it has checked what happens meanwhile
+    private final Sinks.Empty<Void> mergeGate = Sinks.empty();
+
+    @Test
+    public void buildsTheFileOnceForConcurrentRequests() {
+        CompleteDatasetService completeDatasetService = completeDatasetService();
+
+        Mono<StoredFile> first = completeDatasetService.getCompleteFile(WORKSPACE, DATASET);
+        Mono<StoredFile> second = completeDatasetService.getCompleteFile(WORKSPACE, DATASET);
+        StepVerifier.create(Mono.zip(first, second))
+                .then(mergeGate::tryEmitEmpty)
+                .assertNext(files -> {
+                    assertEquals(completeFile.get(), files.getT1().getObjectId());
+                    assertEquals(completeFile.get(), files.getT2().getObjectId());
+                })
+                .verifyComplete();
+        assertEquals(1, merges.get());
+
+        //Once stored, the file is served without building it again
+        StepVerifier.create(completeDatasetService.getCompleteFile(WORKSPACE, DATASET))
+                .assertNext(file -> assertEquals(completeFile.get(), file.getObjectId()))
+                .verifyComplete();
+        assertEquals(1, merges.get());
+    }
+
+    @Test
+    public void cancelsTheBuildWhenTheDatasetChanges() {
+        CompleteDatasetService completeDatasetService = completeDatasetService();
+
+        StepVerifier.create(completeDatasetService.getCompleteFile(WORKSPACE, DATASET))
+                .then(() -> completeDatasetService.onDatasetChanged(new DatasetChangedEvent(WORKSPACE, DATASET)))
+                .verifyError(BuildingOctreeException.class);
+        assertNull(completeFile.get());
+    }
+
+    private CompleteDatasetService completeDatasetService() {
+        FileStorageProperties fileStorageProperties = new FileStorageProperties();
+        fileStorageProperties.setUploadDir(storage.resolve("upload").toString());
+        fileStorageProperties.setMergeDir(storage.resolve("merge").toString());
+        fileStorageProperties.setCacheDir(storage.resolve("cache").toString());
+        SystemFileStorageService systemFileStorageService = new SystemFileStorageService(fileStorageProperties);
+
+        LasToolsProperties lasToolsProperties = new LasToolsProperties();
+        lasToolsProperties.setEnvironment("dev");
+        LasToolsService lasToolsService = new LasToolsService(lasToolsProperties, null, systemFileStorageService) {
+            @Override
+            public Mono<Path> mergeFileList(List<String> filesToMerge, Path fileToReturn) {
+                merges.incrementAndGet();
+                assertEquals(datablocks.size(), filesToMerge.size());
+                return mergeGate.asMono()
+                        .then(Mono.fromCallable(() -> Files.writeString(fileToReturn, "merged")));
+            }
+        };
+
+        DatasetRepositoryInterface datasetRepositoryInterface = stub(DatasetRepositoryInterface.class, Map.of(
+                "findByWorkspaceAndDataset", args -> Mono.fromCallable(() -> {
+                    Dataset dataset = dataset(WORKSPACE, DATASET, Dataset.State.DATA_ASSOCIATED);
+                    dataset.setCompleteFile(completeFile.get());
+                    return dataset;
+                }),
+                "updateCompleteFile", args -> Mono.fromCallable(() -> {
+                    completeFile.set((ObjectId) args[2]);
+                    return true;
+                })));
+        DatablockRepositoryInterface datablockRepositoryInterface = stub(DatablockRepositoryInterface.class, Map.of(
+                "findAllDatablocksInDataset", args -> Flux.fromIterable(datablocks)));
+        FileRepositoryInterface fileRepositoryInterface = stub(FileRepositoryInterface.class, Map.of(
+                "getFile", args -> Flux.just(content(args[0].toString())),
+                "storeFile", args -> Mono.just(new ObjectId()),
+                "findFile", args -> Mono.just(new StoredFile((ObjectId) args[0], 6, 255 * 1024, new Date()))));
+
+        return new CompleteDatasetService(datasetRepositoryInterface, datablockRepositoryInterface,
+                fileRepositoryInterface, lasToolsService, systemFileStorageService);
+    }
+
+    private static DataBuffer content(String text) {
+        return new DefaultDataBufferFactory().wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
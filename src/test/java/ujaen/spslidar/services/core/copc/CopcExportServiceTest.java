@@ -0,0 +1,131 @@
+package ujaen.spslidar.services.core.copc;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.services.core.potree.PotreeExportService;
+import ujaen.spslidar.services.core.potree.PotreeOctree;
+import ujaen.spslidar.services.tools.LasToolsService;
+import ujaen.spslidar.services.tools.SystemFileStorageService;
+import ujaen.spslidar.utils.properties.FileStorageProperties;
+import ujaen.spslidar.utils.properties.LasToolsProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ujaen.spslidar.Fixtures.box;
+import static ujaen.spslidar.Fixtures.dataset;
+import static ujaen.spslidar.Fixtures.octree;
+import static ujaen.spslidar.Stubs.stub;
+
+public class CopcExportServiceTest {
+
+    private static final String WORKSPACE = "workspace";
+    private static final String DATASET = "dataset";
+
+    @TempDir
+    Path storage;
+
+    private final List<AbstractDatablock> datablocks = octree(box(0, 0, 100, 100, "30S"), 1);
+    private final List<String> merged = new ArrayList<>();
+    private final AtomicReference<Map<String, ObjectId>> copcFiles = new AtomicReference<>();
+
+    @Test
+    public void mergesTheNodesDownloadedToItsOwnDirectory() {
+        CopcExportService copcExportService = copcExportService();
+
+        StepVerifier.create(copcExportService.startExport(WORKSPACE, DATASET))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(Mono.defer(() -> copcExportService.getExport(WORKSPACE, DATASET))
+                        .filter(export -> !export.getState().equals(CopcExportService.State.RUNNING.name()))
+                        .repeatWhenEmpty(repeat -> repeat.delayElements(Duration.ofMillis(20))))
+                .assertNext(export -> assertEquals(CopcExportService.State.DONE.name(), export.getState()))
+                .verifyComplete();
+
+        //Every node, root first, with the content stored for it
+        PotreeOctree octree = new PotreeOctree(0, datablocks, AbstractDatablock::getNumberOfPoints);
+        List<String> expected = new ArrayList<>();
+        for (int node = 0; node < octree.getNumberOfNodes(); node++)
+            expected.add(octree.getNode(node).getObjectId().toHexString());
+        assertEquals(expected, merged);
+        assertEquals(1, copcFiles.get().size());
+
+        //The merge directory is removed once the file is stored
+        assertEquals(0, storage.resolve("merge").toFile().list().length);
+    }
+
+    private CopcExportService copcExportService() {
+        FileStorageProperties fileStorageProperties = new FileStorageProperties();
+        fileStorageProperties.setUploadDir(storage.resolve("upload").toString());
+        fileStorageProperties.setMergeDir(storage.resolve("merge").toString());
+        fileStorageProperties.setCacheDir(storage.resolve("cache").toString());
+        SystemFileStorageService systemFileStorageService = new SystemFileStorageService(fileStorageProperties);
+
+        PotreeExportService potreeExportService = new PotreeExportService(null, null, null) {
+            @Override
+            public Mono<List<PotreeOctree>> getOctrees(String workspaceName, String datasetName) {
+                return Mono.just(List.of(new PotreeOctree(0, datablocks, AbstractDatablock::getNumberOfPoints)));
+            }
+        };
+
+        LasToolsProperties lasToolsProperties = new LasToolsProperties();
+        lasToolsProperties.setEnvironment("dev");
+        LasToolsService lasToolsService = new LasToolsService(lasToolsProperties, null, systemFileStorageService) {
+            @Override
+            public Mono<Path> createCopcFile(List<String> filesToMerge, Path fileToReturn) {
+                return Mono.fromCallable(() -> {
+                    for (String file : filesToMerge) {
+                        Path path = Path.of(file);
+                        assertEquals(fileToReturn.getParent(), path.getParent());
+                        String objectId = path.getFileName().toString().replace(".laz", "");
+                        assertEquals(objectId, Files.readString(path));
+                        merged.add(objectId);
+                    }
+                    return Files.writeString(fileToReturn, "copc");
+                });
+            }
+        };
+
+        FileRepositoryInterface fileRepositoryInterface = stub(FileRepositoryInterface.class, Map.of(
+                "getFile", args -> Flux.just(content(((ObjectId) args[0]).toHexString())),
+                "storeFile", args -> Mono.just(new ObjectId())));
+        DatasetRepositoryInterface datasetRepositoryInterface = stub(DatasetRepositoryInterface.class, Map.of(
+                "findByWorkspaceAndDataset", args -> Mono.fromCallable(() -> {
+                    Dataset dataset = dataset(WORKSPACE, DATASET, Dataset.State.DATA_ASSOCIATED);
+                    if (copcFiles.get() != null)
+                        dataset.setCopcFiles(copcFiles.get());
+                    return dataset;
+                }),
+                "updateCopcFiles", args -> Mono.fromCallable(() -> {
+                    @SuppressWarnings("unchecked")
+                    Map<String, ObjectId> files = (Map<String, ObjectId>) args[2];
+                    copcFiles.set(files);
+                    return true;
+                })));
+
+        return new CopcExportService(potreeExportService, lasToolsService, fileRepositoryInterface,
+                datasetRepositoryInterface, systemFileStorageService);
+    }
+
+    private static DataBuffer content(String text) {
+        return new DefaultDataBufferFactory().wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
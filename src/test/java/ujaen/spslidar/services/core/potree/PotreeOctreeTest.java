@@ -0,0 +1,47 @@
+package ujaen.spslidar.services.core.potree;
+
+import org.junit.jupiter.api.Test;
+import ujaen.spslidar.entities.AbstractDatablock;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ujaen.spslidar.Fixtures.box;
+import static ujaen.spslidar.Fixtures.octree;
+
+class PotreeOctreeTest {
+
+    @Test
+    void sizesTheNodesWithTheCountsOfTheirFiles() {
+        //The metadata declares 100 points in every datablock
+        List<AbstractDatablock> datablocks = octree(box(430000, 4180000, 431000, 4181000, "30S"), 2);
+        PotreeOctree octree = new PotreeOctree(0, datablocks, datablock -> datablock.getId() + 1);
+
+        long points = 0;
+        for (int i = 0; i < octree.getNumberOfNodes(); i++) {
+            AbstractDatablock node = octree.getNode(i);
+            assertEquals(node.getId() + 1, octree.getNodePoints(i));
+            assertEquals(points * PotreeOctree.bytesPerPoint, octree.getNodeOffset(i));
+            points += octree.getNodePoints(i);
+        }
+        assertEquals(points, octree.getPoints());
+        assertEquals(points * PotreeOctree.bytesPerPoint, octree.getOctreeSize());
+
+        ByteBuffer hierarchy = ByteBuffer.wrap(octree.getHierarchy()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(1, hierarchy.getInt(2));
+        assertEquals(PotreeOctree.bytesPerPoint, hierarchy.getLong(14));
+    }
+
+    @Test
+    void emptyFilesTakeNoBytes() {
+        List<AbstractDatablock> datablocks = octree(box(430000, 4180000, 431000, 4181000, "30S"), 1);
+        PotreeOctree octree = new PotreeOctree(0, datablocks, datablock -> datablock.getId() == 0 ? 0 : 10);
+
+        assertEquals(80, octree.getPoints());
+        assertEquals(0, octree.getNodeOffset(1));
+        assertEquals(80L * PotreeOctree.bytesPerPoint, octree.getOctreeSize());
+    }
+
+}
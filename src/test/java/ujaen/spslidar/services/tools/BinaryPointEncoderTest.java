@@ -0,0 +1,91 @@
+package ujaen.spslidar.services.tools;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.LasFiles;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.GeorefBox;
+import ujaen.spslidar.services.core.PointFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ujaen.spslidar.Fixtures.box;
+
+public class BinaryPointEncoderTest {
+
+    @TempDir
+    Path storage;
+
+    private Datablock datablock(LocalBlobDiskCache cache, int id, GeorefBox box, LasFiles.Point... points) throws IOException {
+        Datablock datablock = new Datablock(id, box, box);
+        datablock.setNumberOfPoints(points.length);
+        datablock.setObjectId(cache.add(LasFiles.write(storage.resolve(id + ".las"), points)));
+        return datablock;
+    }
+
+    @Test
+    public void sendsTheColoursOfEveryBlockWithTheSameScale() throws IOException {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage);
+        GeorefBox box = box(0, 0, 10, 10, "30S");
+        //A block whose colours fit in 8 bits and another one that needs 16
+        List<AbstractDatablock> datablocks = List.of(
+                datablock(cache, 1, box, new LasFiles.Point(1, 1, 1, 10, 2, 200, 100, 50)),
+                datablock(cache, 2, box, new LasFiles.Point(2, 2, 2, 20, 6, 200, 100, 65535)));
+
+        PointFormat format = PointFormat.parse("bin", "rgb,intensity,classification", 32);
+        StepVerifier.create(new BinaryPointEncoder(cache).encode(datablocks, format, null))
+                .assertNext(buffer -> assertPoint(buffer, 1, 200, 100, 50, 10, 2))
+                .assertNext(buffer -> assertPoint(buffer, 2, 200, 100, 65535, 20, 6))
+                .verifyComplete();
+    }
+
+    @Test
+    public void clipsThePoints() throws IOException {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage);
+        GeorefBox box = box(0, 0, 10, 10, "30S");
+        List<AbstractDatablock> datablocks = List.of(datablock(cache, 1, box,
+                new LasFiles.Point(1, 1, 1, 10, 2, 1, 1, 1),
+                new LasFiles.Point(8, 8, 1, 10, 2, 1, 1, 1)));
+
+        PointFormat format = PointFormat.parse("bin", null, 16);
+        StepVerifier.create(new BinaryPointEncoder(cache).encode(datablocks, format, box(0, 0, 5, 5, "30S")))
+                .assertNext(buffer -> {
+                    ByteBuffer block = buffer.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+                    assertEquals(1, block.getInt(12));
+                    assertEquals(16, block.get(16));
+                    assertEquals(72 + 3 * 4, block.getInt(4));
+                })
+                .verifyComplete();
+    }
+
+    private static void assertPoint(DataBuffer buffer, int id, int r, int g, int b, int intensity, int classification) {
+        ByteBuffer block = buffer.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[4];
+        block.get(magic);
+        assertEquals("SPSB", new String(magic, StandardCharsets.US_ASCII));
+        assertEquals(id, block.getInt(8));
+        assertEquals(1, block.getInt(12));
+        assertEquals(32, block.get(16));
+        assertEquals(PointFormat.RGB | PointFormat.INTENSITY | PointFormat.CLASSIFICATION, block.get(17));
+        assertEquals(16, block.get(18));
+
+        //x, y and z (4 bytes each), then r, g and b (2 bytes padded to 4), intensity and classification
+        int colors = 72 + 3 * 4;
+        assertEquals(r, block.getChar(colors));
+        assertEquals(g, block.getChar(colors + 4));
+        assertEquals(b, block.getChar(colors + 8));
+        assertEquals(intensity, block.getChar(colors + 12));
+        assertEquals(classification, block.get(colors + 16));
+        assertEquals(colors + 20, block.getInt(4));
+    }
+
+}
@@ -0,0 +1,122 @@
+package ujaen.spslidar.services.tools;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.Exceptions.ElementNotFound;
+import ujaen.spslidar.MemoryFiles;
+import ujaen.spslidar.repositories.FileRepositoryInterface;
+import ujaen.spslidar.utils.properties.FileStorageProperties;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobDiskCacheTest {
+
+    private static final byte[] content = "0123456789".getBytes();
+
+    @TempDir
+    Path storage;
+
+    private final MemoryFiles memoryFiles = new MemoryFiles();
+
+    @Test
+    void downloadsEachFileOnce() throws IOException {
+        ObjectId objectId = memoryFiles.add(content);
+        BlobDiskCache cache = cache(memoryFiles.repository());
+
+        for (int i = 0; i < 2; i++) {
+            Path path = cache.acquire(objectId).block();
+            assertArrayEquals(content, Files.readAllBytes(path));
+            cache.release(objectId);
+        }
+        assertEquals(1, memoryFiles.reads.get());
+    }
+
+    @Test
+    void missingFilesAreNotCached() throws IOException {
+        BlobDiskCache cache = cache(memoryFiles.repository());
+
+        StepVerifier.create(cache.acquire(new ObjectId())).verifyError(ElementNotFound.class);
+        assertCacheFiles(0);
+    }
+
+    @Test
+    void incompleteDownloadsAreNotCached() throws IOException {
+        ObjectId objectId = memoryFiles.add(content);
+        FileRepositoryInterface truncating = memoryFiles.repository(Map.of("getFile", args -> {
+            memoryFiles.reads.incrementAndGet();
+            return Flux.just(new DefaultDataBufferFactory().wrap(Arrays.copyOf(content, 4)));
+        }));
+        BlobDiskCache cache = cache(truncating);
+
+        StepVerifier.create(cache.acquire(objectId)).verifyError(ElementNotFound.class);
+        assertCacheFiles(0);
+
+        //The next request downloads it again
+        StepVerifier.create(cache.acquire(objectId)).verifyError(ElementNotFound.class);
+        assertEquals(2, memoryFiles.reads.get());
+    }
+
+    @Test
+    void removedFilesAreDeletedOnceReleased() throws IOException {
+        ObjectId pinned = memoryFiles.add(content);
+        ObjectId unpinned = memoryFiles.add(content);
+        BlobDiskCache cache = cache(memoryFiles.repository());
+
+        Path pinnedPath = cache.acquire(pinned).block();
+        Path unpinnedPath = cache.acquire(unpinned).block();
+        cache.release(unpinned);
+
+        cache.remove(pinned);
+        cache.remove(unpinned);
+        assertTrue(Files.exists(pinnedPath));
+        assertFalse(Files.exists(unpinnedPath));
+
+        cache.release(pinned);
+        assertFalse(Files.exists(pinnedPath));
+        assertCacheFiles(0);
+    }
+
+    @Test
+    void removedFilesAreDownloadedAgain() throws IOException {
+        ObjectId objectId = memoryFiles.add(content);
+        BlobDiskCache cache = cache(memoryFiles.repository());
+
+        cache.acquire(objectId).block();
+        cache.remove(objectId);
+        Path path = cache.acquire(objectId).block();
+        cache.release(objectId);
+        cache.release(objectId);
+
+        assertTrue(Files.exists(path));
+        assertEquals(2, memoryFiles.reads.get());
+    }
+
+    private void assertCacheFiles(long expected) throws IOException {
+        try (var files = Files.list(storage.resolve("cache"))) {
+            assertEquals(expected, files.count());
+        }
+    }
+
+    private BlobDiskCache cache(FileRepositoryInterface fileRepositoryInterface) {
+        FileStorageProperties properties = new FileStorageProperties();
+        properties.setUploadDir(storage.resolve("upload").toString());
+        properties.setMergeDir(storage.resolve("merge").toString());
+        properties.setCacheDir(storage.resolve("cache").toString());
+        properties.setCacheMaxBytes(1000);
+        return new BlobDiskCache(fileRepositoryInterface, new SystemFileStorageService(properties), properties);
+    }
+
+}
@@ -0,0 +1,146 @@
+package ujaen.spslidar.services.tools;
+
+import com.github.mreutegg.laszip4j.laslib.LASreadOpener;
+import com.github.mreutegg.laszip4j.laslib.LASreader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import ujaen.spslidar.LasFiles;
+import ujaen.spslidar.entities.AbstractDatablock;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.entities.GeorefBox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ujaen.spslidar.Fixtures.box;
+
+public class LasStreamMergerTest {
+
+    @TempDir
+    Path storage;
+
+    private final GeorefBox cell = box(0, 0, 100, 100, "30S");
+
+    private Datablock datablock(LocalBlobDiskCache cache, int id, long declared, LasFiles.Point... points) throws IOException {
+        Datablock datablock = new Datablock(id, cell, cell);
+        datablock.setNumberOfPoints(declared);
+        datablock.setObjectId(cache.add(LasFiles.write(storage.resolve(id + ".las"), points)));
+        return datablock;
+    }
+
+    private static LasFiles.Point point(double x, double y) {
+        return new LasFiles.Point(x, y, 5, 100, 2, 1, 2, 3);
+    }
+
+    @Test
+    public void mergesTheFilesInOrder() throws IOException {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage);
+        List<AbstractDatablock> datablocks = List.of(
+                datablock(cache, 1, 2, point(10, 10), point(20, 20)),
+                datablock(cache, 2, 1, point(30, 30)));
+
+        List<double[]> points = read(new LasStreamMerger(cache).merge(datablocks));
+        assertEquals(3, points.size());
+        assertEquals(10, points.get(0)[0], 0.01);
+        assertEquals(20, points.get(1)[1], 0.01);
+        assertEquals(30, points.get(2)[0], 0.01);
+    }
+
+    @Test
+    public void clipsTheDatablocksThatCrossTheBox() throws IOException {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage);
+        List<AbstractDatablock> datablocks = List.of(datablock(cache, 1, 3, point(10, 10), point(60, 60), point(20, 20)));
+
+        List<double[]> points = read(new LasStreamMerger(cache).merge(datablocks, box(0, 0, 50, 50, "30S")));
+        assertEquals(2, points.size());
+        assertEquals(20, points.get(1)[0], 0.01);
+    }
+
+    @Test
+    public void writesThePointsOfTheFilesWhateverTheDatablocksDeclare() throws IOException {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage);
+        //Datablocks stored by older versions or sampled by the tools declare estimates
+        List<AbstractDatablock> datablocks = List.of(
+                datablock(cache, 1, 3, point(10, 10), point(20, 20)),
+                datablock(cache, 2, 1, point(30, 30), point(40, 40), point(50, 50)),
+                datablock(cache, 3, 0, point(60, 60)),
+                datablock(cache, 4, 2));
+
+        List<double[]> points = read(new LasStreamMerger(cache).merge(datablocks));
+        assertEquals(6, points.size());
+        for (int i = 0; i < points.size(); i++)
+            assertEquals(10 * (i + 1), points.get(i)[0], 0.01);
+    }
+
+    @Test
+    public void clipsEveryPointOfTheFiles() throws IOException {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage);
+        List<AbstractDatablock> datablocks = List.of(
+                datablock(cache, 1, 1, point(10, 10), point(60, 60), point(20, 20), point(30, 30)));
+
+        List<double[]> points = read(new LasStreamMerger(cache).merge(datablocks, box(0, 0, 50, 50, "30S")));
+        assertEquals(3, points.size());
+        assertEquals(30, points.get(2)[0], 0.01);
+    }
+
+    @Test
+    public void writesOnlyTheHeaderWhenTheFilesHaveNoPoints() throws IOException {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage);
+        List<AbstractDatablock> datablocks = List.of(datablock(cache, 1, 3));
+
+        assertEquals(0, read(new LasStreamMerger(cache).merge(datablocks)).size());
+    }
+
+    @Test
+    public void tagsThePointsWithTheirSource() throws IOException {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage);
+        List<List<AbstractDatablock>> sources = List.of(
+                List.of(datablock(cache, 1, 1, point(10, 10))),
+                List.of(datablock(cache, 2, 1, point(20, 20))));
+
+        ByteBuffer file = join(new LasStreamMerger(cache).merge(sources, List.of("2020", "2021"), null));
+        int offset = file.getInt(96);
+        int recordLength = file.getChar(105);
+        assertEquals(36, recordLength);
+        assertEquals(2, file.getInt(107));
+        assertEquals(offset + 2 * recordLength, file.limit());
+        assertEquals(0, file.getChar(offset + 34));
+        assertEquals(1, file.getChar(offset + recordLength + 34));
+    }
+
+    private ByteBuffer join(Flux<DataBuffer> merged) {
+        DataBuffer buffer = DataBufferUtils.join(merged).block();
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes a merged file and reads its points back, checking that the body matches the header
+     */
+    private List<double[]> read(Flux<DataBuffer> merged) throws IOException {
+        ByteBuffer file = join(merged);
+        assertEquals(file.getInt(96) + (long) file.getInt(107) * file.getChar(105), file.limit());
+
+        Path path = Files.write(storage.resolve("merged.las"), file.array());
+        List<double[]> points = new ArrayList<>();
+        LASreader reader = new LASreadOpener().open(path.toString());
+        try {
+            while (reader.read_point())
+                points.add(new double[]{reader.point.get_x(), reader.point.get_y(), reader.point.get_z()});
+        } finally {
+            reader.close();
+        }
+        return points;
+    }
+
+}
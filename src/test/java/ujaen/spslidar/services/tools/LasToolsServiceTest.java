@@ -0,0 +1,40 @@
+package ujaen.spslidar.services.tools;
+
+import org.junit.jupiter.api.Test;
+import ujaen.spslidar.utils.properties.LasToolsProperties;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LasToolsServiceTest {
+
+    private final Path listFile = Path.of("merge", "cell.copc.laz.txt");
+    private final Path output = Path.of("merge", "cell.copc.laz");
+
+    private LasToolsService lasToolsService(String environment) {
+        LasToolsProperties properties = new LasToolsProperties();
+        properties.setEnvironment(environment);
+        properties.setExtension(".laz");
+        return new LasToolsService(properties, null, null);
+    }
+
+    @Test
+    public void passesTheInputFilesInAListFile() {
+        List<String> command = lasToolsService("dev")
+                .fileListCommand("lascopcindex", listFile, output, List.of("-merged"));
+
+        assertEquals(List.of("lascopcindex", "-lof", listFile.toString(), "-merged", "-o", output.toString()), command);
+    }
+
+    @Test
+    public void runsTheWindowsToolsWithWine() {
+        List<String> command = lasToolsService("ops")
+                .fileListCommand("lasmerge", listFile, output, List.of());
+
+        assertEquals(List.of("wine", "/LAStools/bin/lasmerge.exe", "-lof", listFile.toString(), "-o", output.toString()),
+                command);
+    }
+
+}
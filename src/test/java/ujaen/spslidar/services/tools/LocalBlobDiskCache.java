@@ -0,0 +1,54 @@
+package ujaen.spslidar.services.tools;
+
+import org.bson.types.ObjectId;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.utils.properties.FileStorageProperties;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Disk cache over files written by a test, which are never downloaded nor evicted
+ */
+class LocalBlobDiskCache extends BlobDiskCache {
+
+    private final Map<ObjectId, Path> files = new HashMap<>();
+
+    LocalBlobDiskCache(Path storage) {
+        this(properties(storage));
+    }
+
+    private LocalBlobDiskCache(FileStorageProperties properties) {
+        super(null, new SystemFileStorageService(properties), properties);
+    }
+
+    ObjectId add(Path path) {
+        ObjectId objectId = new ObjectId();
+        files.put(objectId, path);
+        return objectId;
+    }
+
+    @Override
+    public Mono<Path> acquire(ObjectId objectId) {
+        return Mono.justOrEmpty(files.get(objectId));
+    }
+
+    @Override
+    public Mono<Void> prefetch(ObjectId objectId) {
+        return Mono.empty();
+    }
+
+    @Override
+    public void release(ObjectId objectId) {
+    }
+
+    static FileStorageProperties properties(Path storage) {
+        FileStorageProperties properties = new FileStorageProperties();
+        properties.setUploadDir(storage.resolve("upload").toString());
+        properties.setMergeDir(storage.resolve("merge").toString());
+        properties.setCacheDir(storage.resolve("cache").toString());
+        return properties;
+    }
+
+}
@@ -0,0 +1,98 @@
+package ujaen.spslidar.services.tools;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import ujaen.spslidar.Exceptions.ElementNotFound;
+import ujaen.spslidar.LasFiles;
+import ujaen.spslidar.MemoryFiles;
+import ujaen.spslidar.entities.Datablock;
+import ujaen.spslidar.services.core.potree.PotreeOctree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PotreeNodeEncoderTest {
+
+    @TempDir
+    Path storage;
+
+    private final MemoryFiles memoryFiles = new MemoryFiles();
+
+    private static LasFiles.Point point(double x) {
+        return new LasFiles.Point(x, x, 5, 100, 2, 1, 2, 3);
+    }
+
+    private Datablock datablock(long declared, LasFiles.Point... points) throws IOException {
+        Path path = LasFiles.write(storage.resolve(new ObjectId() + ".las"), points);
+        Datablock datablock = new Datablock();
+        datablock.setNumberOfPoints(declared);
+        datablock.setObjectId(memoryFiles.add(path));
+        return datablock;
+    }
+
+    private PotreeNodeEncoder encoder() {
+        LocalBlobDiskCache cache = new LocalBlobDiskCache(storage) {
+            @Override
+            public Mono<Path> acquire(ObjectId objectId) {
+                return Mono.fromCallable(() -> Files.write(storage.resolve(objectId + ".las"),
+                        memoryFiles.contents.get(objectId)));
+            }
+        };
+        return new PotreeNodeEncoder(cache, memoryFiles.repository());
+    }
+
+    @Test
+    public void countsThePointsOfTheFileHeader() throws IOException {
+        PotreeNodeEncoder encoder = encoder();
+
+        StepVerifier.create(encoder.countPoints(datablock(5, point(1), point(2)))).expectNext(2L).verifyComplete();
+        StepVerifier.create(encoder.countPoints(datablock(1, point(1), point(2), point(3)))).expectNext(3L).verifyComplete();
+        StepVerifier.create(encoder.countPoints(new Datablock())).expectNext(0L).verifyComplete();
+
+        Datablock missing = new Datablock();
+        missing.setObjectId(new ObjectId());
+        StepVerifier.create(encoder.countPoints(missing)).verifyError(ElementNotFound.class);
+    }
+
+    @Test
+    public void readsTheCountOfLas14Headers() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(375).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'L', 'A', 'S', 'F'});
+        header.put(24, (byte) 1).put(25, (byte) 4).putChar(94, (char) 375);
+        header.putInt(107, 0).putLong(247, 5_000_000_000L);
+
+        assertEquals(5_000_000_000L, PotreeNodeEncoder.countPoints(header));
+        assertThrows(IOException.class, () -> PotreeNodeEncoder.countPoints(ByteBuffer.allocate(375)));
+    }
+
+    @Test
+    public void encodesEveryPointOfTheFileOnce() throws IOException {
+        Datablock datablock = datablock(5, point(1), point(2));
+
+        StepVerifier.create(encoder().encode(datablock, 2, new double[]{0, 0, 0}, new double[]{0.001, 0.001, 0.001}))
+                .assertNext(points -> {
+                    assertEquals(2 * PotreeOctree.bytesPerPoint, points.remaining());
+                    assertEquals(1000, points.order(ByteOrder.LITTLE_ENDIAN).getInt(0));
+                    assertEquals(2000, points.getInt(PotreeOctree.bytesPerPoint));
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    public void failsRatherThanRepeatingPoints() throws IOException {
+        Datablock datablock = datablock(2, point(1), point(2));
+
+        StepVerifier.create(encoder().encode(datablock, 3, new double[]{0, 0, 0}, new double[]{0.001, 0.001, 0.001}))
+                .verifyError(IOException.class);
+    }
+
+}
@@ -0,0 +1,138 @@
+package ujaen.spslidar.services.tools;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ujaen.spslidar.DTOs.http.GarbageCollectionReportDTO;
+import ujaen.spslidar.MemoryFiles;
+import ujaen.spslidar.entities.Dataset;
+import ujaen.spslidar.entities.Workspace;
+import ujaen.spslidar.repositories.DatablockRepositoryInterface;
+import ujaen.spslidar.repositories.DatasetRepositoryInterface;
+import ujaen.spslidar.repositories.WorkspaceRepositoryInterface;
+import ujaen.spslidar.utils.properties.GarbageCollectionProperties;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static ujaen.spslidar.Fixtures.dataset;
+import static ujaen.spslidar.Stubs.stub;
+
+/**
+ * Two workspaces whose datablocks and datasets reference some of the stored files. The files are stored
+ * two hours ago, unless they are recent, and the grace period is one hour
+ */
+class StorageGarbageCollectorTest {
+
+    private static final byte[] content = new byte[100];
+
+    @TempDir
+    Path storage;
+
+    private final MemoryFiles memoryFiles = new MemoryFiles();
+    private final Map<String, Set<ObjectId>> datablockFiles = new HashMap<>();
+    private final Map<String, List<Dataset>> datasets = new HashMap<>();
+    private final List<ObjectId> evicted = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    void removesOnlyTheOldFilesThatNothingReferences() {
+        ObjectId datablockFile = oldFile();
+        ObjectId otherWorkspaceFile = oldFile();
+        ObjectId copcFile = oldFile();
+        ObjectId completeFile = oldFile();
+        ObjectId recentFile = memoryFiles.add(content);
+        ObjectId orphan = oldFile();
+        ObjectId otherOrphan = oldFile();
+
+        datablockFiles.put("first", Set.of(datablockFile));
+        datablockFiles.put("second", Set.of(otherWorkspaceFile));
+        Dataset exported = dataset("first", "exported", Dataset.State.DATA_ASSOCIATED);
+        exported.getCopcFiles().put("0", copcFile);
+        Dataset merged = dataset("second", "merged", Dataset.State.DATA_ASSOCIATED);
+        merged.setCompleteFile(completeFile);
+        datasets.put("first", List.of(exported));
+        datasets.put("second", List.of(merged));
+
+        GarbageCollectionReportDTO report = collector().sweep().block();
+
+        assertEquals(2, report.getFiles());
+        assertEquals(2L * content.length, report.getFileBytes());
+        assertEquals(Set.of(datablockFile, otherWorkspaceFile, copcFile, completeFile, recentFile),
+                memoryFiles.contents.keySet());
+        assertEquals(Set.of(orphan, otherOrphan), Set.copyOf(evicted));
+    }
+
+    @Test
+    void keepsEveryFileOfTheGracePeriod() {
+        memoryFiles.add(content);
+        memoryFiles.add(content);
+
+        GarbageCollectionReportDTO report = collector().sweep().block();
+
+        assertEquals(0, report.getFiles());
+        assertEquals(2, memoryFiles.contents.size());
+        assertEquals(List.of(), evicted);
+    }
+
+    private ObjectId oldFile() {
+        ObjectId objectId = memoryFiles.add(content);
+        memoryFiles.uploadDates.put(objectId, Date.from(Instant.now().minus(Duration.ofHours(2))));
+        return objectId;
+    }
+
+    private StorageGarbageCollector collector() {
+        GarbageCollectionProperties properties = new GarbageCollectionProperties();
+        properties.setGracePeriod(Duration.ofHours(1));
+        //Small batches, so the references are checked in several queries
+        properties.setBatchSize(2);
+        properties.setDeletesPerSecond(1000);
+
+        WorkspaceRepositoryInterface workspaces = stub(WorkspaceRepositoryInterface.class, Map.of(
+                "findAll", args -> Flux.just(new Workspace("first", "", 1000), new Workspace("second", "", 1000))));
+        DatablockRepositoryInterface datablocks = stub(DatablockRepositoryInterface.class, Map.of(
+                "findReferencedFiles", args -> Flux.fromIterable(datablockFiles.getOrDefault((String) args[0], Set.of()))
+                        .filter(((Collection<?>) args[1])::contains)));
+        DatasetRepositoryInterface datasetRepository = stub(DatasetRepositoryInterface.class, Map.of(
+                "findReferencedFiles", args -> Flux.fromIterable(datasets.getOrDefault((String) args[0], List.of()))
+                        .flatMapIterable(dataset -> {
+                            List<ObjectId> files = new ArrayList<>(dataset.getCopcFiles().values());
+                            if (dataset.getCompleteFile() != null)
+                                files.add(dataset.getCompleteFile());
+                            return files;
+                        })
+                        .filter(((Collection<?>) args[1])::contains)));
+
+        LocalBlobDiskCache blobDiskCache = new LocalBlobDiskCache(storage) {
+            @Override
+            public void remove(ObjectId objectId) {
+                evicted.add(objectId);
+            }
+        };
+
+        return new StorageGarbageCollector(
+                memoryFiles.repository(Map.of(
+                        "findFilesUploadedBefore", args -> Flux.fromIterable(memoryFiles.contents.keySet())
+                                .filter(objectId -> memoryFiles.uploadDates.get(objectId).before((Date) args[0]))
+                                .map(memoryFiles::describe)
+                                .collect(Collectors.toList())
+                                .flatMapIterable(files -> files),
+                        "deleteFile", args -> Mono.fromRunnable(() -> memoryFiles.contents.remove((ObjectId) args[0])))),
+                datablocks, datasetRepository, workspaces,
+                new SystemFileStorageService(LocalBlobDiskCache.properties(storage)), blobDiskCache, properties, new SimpleMeterRegistry());
+    }
+
+}